@@ -24,10 +24,98 @@ public class AppConstants {
     public static final PiPipeconfId PIPECONF_ID = new PiPipeconfId("org.p4.srv6_usid");
 
     public static final int DEFAULT_FLOW_RULE_PRIORITY = 10;
-    public static final int INITIAL_SETUP_DELAY = 2; // Seconds.
-    public static final int CLEAN_UP_DELAY = 2000; // milliseconds
-    public static final int DEFAULT_CLEAN_UP_RETRY_TIMES = 10;
+    public static final int CLEAN_UP_TIMEOUT = 20000; // milliseconds
+    public static final int DEACTIVATE_CLEAN_UP_TIMEOUT = 1000; // milliseconds
+
+    // Component properties, see the field of the same name in the component
+    // for a description. They can be changed at runtime with `cfg set`.
+
+    // MainComponent. When true, flows from the previous execution are adopted
+    // instead of wiped at activation (warm restart).
+    public static final String WARM_RESTART = "warmRestart";
+    public static final boolean WARM_RESTART_DEFAULT = false;
+
+    // MainComponent. Number of threads used to run per-device configuration
+    // tasks, 0 for one per available processor.
+    public static final String EXECUTOR_POOL_SIZE = "executorPoolSize";
+    public static final int EXECUTOR_POOL_SIZE_DEFAULT = 0;
+    public static final int EXECUTOR_SHUTDOWN_TIMEOUT = 5; // Seconds.
+
+    // FlowRuleWriter. Flow rule writes for the same device are buffered for
+    // this long, or until this many operations are pending, then sent with a
+    // single batch.
+    public static final String WRITE_BATCH_DELAY = "writeBatchDelay";
+    public static final int WRITE_BATCH_DELAY_DEFAULT = 5; // milliseconds
+    public static final String WRITE_BATCH_SIZE = "writeBatchSize";
+    public static final int WRITE_BATCH_SIZE_DEFAULT = 500;
+
+    // DeviceLifecycleComponent. Number of set up steps contributed by the app
+    // components (see DeviceSetupStep). Flows left by a warm restart are swept
+    // once this many steps are registered and applied to a device, so that
+    // the flows of a component activated late are adopted. A step that fails
+    // is retried after SETUP_RETRY_DELAY, doubled at each attempt, up to
+    // SETUP_MAX_RETRIES times, then on the next event for the device.
+    public static final int SETUP_STEP_COUNT = 5;
+    public static final int SETUP_RETRY_DELAY = 1; // Seconds.
+    public static final int SETUP_MAX_RETRIES = 5;
+
+    // Bounds of the adaptive rate of flow rule operations written to each
+    // device, in operations per second. The rate is lowered when batches take
+    // longer than WRITE_LATENCY_TARGET or fail.
+    public static final double INITIAL_WRITE_RATE = 1000;
+    public static final double MIN_WRITE_RATE = 50;
+    public static final double MAX_WRITE_RATE = 20000;
+    public static final int WRITE_LATENCY_TARGET = 500; // milliseconds
+
+    // PacketInAdmissionComponent. Packet-ins admitted per second, device and
+    // type (see PuntType).
+    public static final String PUNT_RATE_LLDP = "puntRateLldp";
+    public static final int PUNT_RATE_LLDP_DEFAULT = 100;
+    public static final String PUNT_RATE_BDDP = "puntRateBddp";
+    public static final int PUNT_RATE_BDDP_DEFAULT = 100;
+    public static final String PUNT_RATE_NDP_NS = "puntRateNdpNs";
+    public static final int PUNT_RATE_NDP_NS_DEFAULT = 200;
+    public static final String PUNT_RATE_NDP_NA = "puntRateNdpNa";
+    public static final int PUNT_RATE_NDP_NA_DEFAULT = 200;
+    public static final String PUNT_RATE_OTHER = "puntRateOther";
+    public static final int PUNT_RATE_OTHER_DEFAULT = 100;
+
+    // PacketDispatchComponent. Packet-ins are queued on this many shards, by
+    // device, each processed by its own thread, 0 for one per available
+    // processor up to 4. When a queue is full, its oldest packets are dropped.
+    public static final String PACKET_DISPATCH_SHARDS = "packetDispatchShards";
+    public static final int PACKET_DISPATCH_SHARDS_DEFAULT = 0;
+    public static final String PACKET_QUEUE_CAPACITY = "packetQueueCapacity";
+    public static final int PACKET_QUEUE_CAPACITY_DEFAULT = 4096;
+    // Max number of packet-ins handed over to app processors at once.
+    public static final int PACKET_DISPATCH_BATCH_SIZE = 64;
+
+    // EventRecorderComponent. When set, events received by the app listeners
+    // and the resulting writes are recorded to the given file (see EventLog).
+    public static final String EVENT_LOG = "eventLog";
+    public static final String EVENT_LOG_DEFAULT = "";
+    public static final int EVENT_LOG_FLUSH_INTERVAL = 1; // Seconds.
+
+    // NorthboundJournalComponent. Directory of the journal of northbound
+    // operations (see NorthboundJournal), when empty srv6_usid in the Karaf
+    // data directory.
+    public static final String JOURNAL_DIR = "journalDir";
+    public static final String JOURNAL_DIR_DEFAULT = "";
+    public static final String JOURNAL_DEFAULT_DIR = "srv6_usid";
+    public static final int JOURNAL_CAPACITY = 64 * 1024 * 1024; // Bytes.
+    // The journal is forced to disk at this interval, and compacted into a
+    // snapshot when more than this fraction of it is used.
+    public static final int JOURNAL_FLUSH_INTERVAL = 1; // Seconds.
+    public static final double JOURNAL_COMPACTION_THRESHOLD = 0.5;
 
     public static final int CPU_PORT_ID = 255;
     public static final int CPU_CLONE_SESSION_ID = 99;
+    // Multicast group replicating packet-outs to all ports of a device.
+    public static final int FLOOD_GROUP_ID = 254;
+    // Multicast group replicating broadcast and multicast traffic of hosts.
+    public static final int BROADCAST_GROUP_ID = 255;
+    // Groups of the ip6_ecmp_selector allocated by the pipeliner to next
+    // objectives have this bit set. Group IDs computed by the app components
+    // for the same action profile must have it clear.
+    public static final int PIPELINER_GROUP_ID_BIT = 0x40000000;
 }
@@ -0,0 +1,424 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.onlab.util.SharedScheduledExecutors;
+import org.onosproject.mastership.MastershipEvent;
+import org.onosproject.mastership.MastershipListener;
+import org.onosproject.mastership.MastershipService;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.config.NetworkConfigEvent;
+import org.onosproject.net.config.NetworkConfigListener;
+import org.onosproject.net.config.NetworkConfigService;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
+import org.onosproject.net.pi.service.PiPipeconfService;
+import org.onosproject.srv6_usid.common.DeviceSetupStep;
+import org.onosproject.srv6_usid.common.OperationTracer;
+import org.onosproject.srv6_usid.common.OperationTracer.Span;
+import org.onosproject.srv6_usid.common.OperationType;
+import org.onosproject.srv6_usid.common.Srv6DeviceConfig;
+import org.onosproject.srv6_usid.common.WriteSource;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.collect.Streams.stream;
+import static org.onosproject.srv6_usid.AppConstants.PIPECONF_ID;
+import static org.onosproject.srv6_usid.AppConstants.SETUP_MAX_RETRIES;
+import static org.onosproject.srv6_usid.AppConstants.SETUP_RETRY_DELAY;
+import static org.onosproject.srv6_usid.AppConstants.SETUP_STEP_COUNT;
+import static org.onosproject.srv6_usid.common.OperationTracer.OUTCOME_FAILED;
+import static org.onosproject.srv6_usid.common.OperationTracer.OUTCOME_OK;
+import static org.onosproject.srv6_usid.common.OperationTracer.OUTCOME_SKIPPED;
+import static org.onosproject.srv6_usid.common.TaskPriority.BULK;
+import static org.onosproject.srv6_usid.common.TaskPriority.DEVICE_SETUP;
+
+/**
+ * Component that orchestrates the set up of devices. A device is set up as
+ * soon as it is available, it runs this app's pipeconf, its Srv6DeviceConfig
+ * is in the netcfg and this controller instance is its master. The set up
+ * steps contributed by the other components then run as one pipeline, and
+ * their flow rules are written with a single batch.
+ * <p>
+ * Steps already applied to a device are not run again on repeated events,
+ * until the device goes away or its config changes. Once all the steps are
+ * applied and written, flows left by a warm restart and not adopted are
+ * swept.
+ */
+@Component(immediate = true, service = DeviceLifecycleComponent.class)
+public class DeviceLifecycleComponent {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(DeviceLifecycleComponent.class.getName());
+
+    private static final WriteSource WRITE_SOURCE = WriteSource.of("device-setup");
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceService deviceService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MastershipService mastershipService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private NetworkConfigService configService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private PiPipeconfService pipeconfService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MainComponent mainComponent;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private FlowRuleWriter flowRuleWriter;
+
+    private final DeviceListener deviceListener = new InternalDeviceListener();
+    private final MastershipListener mastershipListener = new InternalMastershipListener();
+    private final NetworkConfigListener configListener = new InternalConfigListener();
+
+    // Set up steps, in registration order.
+    private final List<DeviceSetupStep> steps = new CopyOnWriteArrayList<>();
+
+    // Steps already applied, per device.
+    private final Map<DeviceId, Set<DeviceSetupStep>> appliedSteps = Maps.newConcurrentMap();
+
+    // Devices with a set up task waiting in the executor, with the source of
+    // the first request.
+    private final Map<DeviceId, WriteSource> pendingSetUp = Maps.newConcurrentMap();
+
+    // Retries of failed set up steps, per device, with the number of attempts
+    // so far. Guarded by itself.
+    private final Map<DeviceId, Retry> retries = Maps.newHashMap();
+
+    @Activate
+    protected void activate() {
+        deviceService.addListener(deviceListener);
+        mastershipService.addListener(mastershipListener);
+        configService.addListener(configListener);
+
+        log.info("Started");
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        deviceService.removeListener(deviceListener);
+        mastershipService.removeListener(mastershipListener);
+        configService.removeListener(configListener);
+
+        synchronized (retries) {
+            retries.values().forEach(retry -> retry.task.cancel(false));
+            retries.clear();
+        }
+        steps.clear();
+        appliedSteps.clear();
+        pendingSetUp.clear();
+
+        log.info("Stopped");
+    }
+
+    /**
+     * Registers a set up step. The step is applied to all devices that are
+     * already ready, and to all devices becoming ready afterwards.
+     *
+     * @param step set up step
+     */
+    public void addSetupStep(DeviceSetupStep step) {
+        steps.add(step);
+        stream(deviceService.getAvailableDevices())
+                .map(Device::id)
+                .forEach(deviceId -> requestSetUp(deviceId, WRITE_SOURCE));
+    }
+
+    /**
+     * Unregisters a set up step.
+     *
+     * @param step set up step
+     */
+    public void removeSetupStep(DeviceSetupStep step) {
+        steps.remove(step);
+        appliedSteps.values().forEach(applied -> applied.remove(step));
+    }
+
+    /**
+     * Returns true if the given device can be set up by this instance.
+     *
+     * @param deviceId the device ID
+     * @return true if ready
+     */
+    private boolean isReady(DeviceId deviceId) {
+        return deviceService.isAvailable(deviceId) &&
+                mastershipService.isLocalMaster(deviceId) &&
+                pipeconfService.ofDevice(deviceId)
+                        .map(PIPECONF_ID::equals).orElse(false) &&
+                configService.getConfig(deviceId, Srv6DeviceConfig.class) != null;
+    }
+
+    private void requestSetUp(DeviceId deviceId, WriteSource source) {
+        if (!isReady(deviceId)) {
+            return;
+        }
+        if (pendingSetUp.putIfAbsent(deviceId, source) != null) {
+            // Already queued, the task will apply all pending steps.
+            return;
+        }
+        mainComponent.getExecutor(deviceId, DEVICE_SETUP).execute(() -> {
+            final WriteSource pending = pendingSetUp.remove(deviceId);
+            setUpDevice(deviceId, pending != null ? pending : source);
+        });
+    }
+
+    private void resetDevice(DeviceId deviceId) {
+        appliedSteps.remove(deviceId);
+        cancelRetry(deviceId);
+    }
+
+    /**
+     * Schedules a new set up of the given device after a step failed, with
+     * an exponential backoff, unless the retries are exhausted.
+     */
+    private void scheduleRetry(DeviceId deviceId, WriteSource source) {
+        synchronized (retries) {
+            final Retry previous = retries.get(deviceId);
+            final int attempts = previous == null ? 1 : previous.attempts + 1;
+            if (attempts > SETUP_MAX_RETRIES) {
+                log.warn("Giving up set up of {} after {} retries, until its next event",
+                         deviceId, SETUP_MAX_RETRIES);
+                retries.remove(deviceId);
+                return;
+            }
+            final long delay = (long) SETUP_RETRY_DELAY << (attempts - 1);
+            retries.put(deviceId, new Retry(attempts, SharedScheduledExecutors.schedule(
+                    () -> requestSetUp(deviceId, source), delay, TimeUnit.SECONDS)));
+        }
+    }
+
+    private void cancelRetry(DeviceId deviceId) {
+        synchronized (retries) {
+            final Retry retry = retries.remove(deviceId);
+            if (retry != null) {
+                retry.task.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Runs all steps not yet applied to the given device and writes the
+     * resulting flow rules with a single batch.
+     *
+     * @param deviceId the device ID
+     * @param source   source of the write
+     */
+    private void setUpDevice(DeviceId deviceId, WriteSource source) {
+        final Span span = OperationTracer.start(OperationType.DEVICE_SETUP, deviceId);
+        if (!isReady(deviceId)) {
+            span.end(OUTCOME_SKIPPED);
+            return;
+        }
+        final Set<DeviceSetupStep> applied = appliedSteps.computeIfAbsent(
+                deviceId, d -> Sets.newConcurrentHashSet());
+
+        final List<FlowRule> flowRules = Lists.newArrayList();
+        final List<String> stepNames = Lists.newArrayList();
+        boolean failed = false;
+        for (DeviceSetupStep step : steps) {
+            if (applied.contains(step)) {
+                continue;
+            }
+            try {
+                flowRules.addAll(step.setUpDevice(deviceId));
+                applied.add(step);
+                stepNames.add(step.name());
+            } catch (RuntimeException e) {
+                failed = true;
+                // Let the other steps go ahead, this one is retried later.
+                log.warn("Unable to set up {} for {}: {}",
+                         deviceId, step.name(), e.getMessage());
+            }
+        }
+        if (failed) {
+            scheduleRetry(deviceId, source);
+        } else {
+            cancelRetry(deviceId);
+        }
+
+        if (stepNames.isEmpty()) {
+            span.end(failed ? OUTCOME_FAILED : OUTCOME_SKIPPED);
+            return;
+        }
+
+        log.info("*** Setting up {} ({}), writing {} flow rules...",
+                 deviceId, String.join(", ", stepNames), flowRules.size());
+
+        final boolean complete = !failed && steps.size() >= SETUP_STEP_COUNT &&
+                applied.containsAll(steps);
+        final FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+        flowRules.forEach(ops::add);
+        flowRuleWriter.apply(source, complete
+                ? ops.build(new SetUpContext(deviceId, applied))
+                : ops.build(), DEVICE_SETUP);
+        span.entries(flowRules.size()).end(failed ? OUTCOME_FAILED : OUTCOME_OK);
+    }
+
+    /**
+     * Context of the write of the last set up steps of a device. Once the
+     * write is confirmed, the flows of the previous execution that were not
+     * adopted are removed.
+     */
+    private class SetUpContext implements FlowRuleOperationsContext {
+
+        private final DeviceId deviceId;
+        private final Set<DeviceSetupStep> applied;
+
+        SetUpContext(DeviceId deviceId, Set<DeviceSetupStep> applied) {
+            this.deviceId = deviceId;
+            this.applied = applied;
+        }
+
+        @Override
+        public void onSuccess(FlowRuleOperations ops) {
+            if (appliedSteps.get(deviceId) != applied) {
+                // Reset meanwhile, the next set up will sweep.
+                return;
+            }
+            mainComponent.getExecutor(deviceId, BULK)
+                    .execute(() -> flowRuleWriter.sweepStale(deviceId));
+        }
+
+        @Override
+        public void onError(FlowRuleOperations ops) {
+            log.warn("Unable to confirm set up of {}, keeping flows of the " +
+                             "previous execution until the next set up", deviceId);
+        }
+    }
+
+    /**
+     * Retry of the set up of a device.
+     */
+    private static final class Retry {
+
+        private final int attempts;
+        private final ScheduledFuture<?> task;
+
+        private Retry(int attempts, ScheduledFuture<?> task) {
+            this.attempts = attempts;
+            this.task = task;
+        }
+    }
+
+    /**
+     * Listener of device events.
+     */
+    private class InternalDeviceListener implements DeviceListener {
+
+        @Override
+        public boolean isRelevant(DeviceEvent event) {
+            switch (event.type()) {
+                case DEVICE_ADDED:
+                case DEVICE_AVAILABILITY_CHANGED:
+                case DEVICE_REMOVED:
+                    return true;
+                default:
+                    // Ignore other events.
+                    return false;
+            }
+        }
+
+        @Override
+        public void event(DeviceEvent event) {
+            final DeviceId deviceId = event.subject().id();
+            if (event.type() != DeviceEvent.Type.DEVICE_REMOVED &&
+                    deviceService.isAvailable(deviceId)) {
+                // A P4Runtime device is considered available in ONOS when there
+                // is a StreamChannel session open and the pipeline
+                // configuration has been set.
+                requestSetUp(deviceId, WRITE_SOURCE.forEvent("device", event));
+            } else {
+                resetDevice(deviceId);
+            }
+        }
+    }
+
+    /**
+     * Listener of mastership events.
+     */
+    private class InternalMastershipListener implements MastershipListener {
+
+        @Override
+        public boolean isRelevant(MastershipEvent event) {
+            return event.type() == MastershipEvent.Type.MASTER_CHANGED;
+        }
+
+        @Override
+        public void event(MastershipEvent event) {
+            final DeviceId deviceId = event.subject();
+            if (mastershipService.isLocalMaster(deviceId)) {
+                requestSetUp(deviceId, WRITE_SOURCE.forEvent("mastership", event));
+            } else {
+                resetDevice(deviceId);
+            }
+        }
+    }
+
+    /**
+     * Listener of netcfg events for the Srv6DeviceConfig.
+     */
+    private class InternalConfigListener implements NetworkConfigListener {
+
+        @Override
+        public boolean isRelevant(NetworkConfigEvent event) {
+            switch (event.type()) {
+                case CONFIG_ADDED:
+                case CONFIG_UPDATED:
+                case CONFIG_REMOVED:
+                    break;
+                default:
+                    return false;
+            }
+            return event.configClass().equals(Srv6DeviceConfig.class) &&
+                    event.subject() instanceof DeviceId;
+        }
+
+        @Override
+        public void event(NetworkConfigEvent event) {
+            final DeviceId deviceId = (DeviceId) event.subject();
+            // Config changed, set up the device again from scratch.
+            resetDevice(deviceId);
+            if (event.type() != NetworkConfigEvent.Type.CONFIG_REMOVED) {
+                requestSetUp(deviceId, WRITE_SOURCE.forEvent("config", event));
+            }
+        }
+    }
+}
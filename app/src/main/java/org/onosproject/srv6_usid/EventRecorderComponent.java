@@ -0,0 +1,450 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import org.onlab.util.SharedScheduledExecutors;
+import org.onosproject.cfg.ComponentConfigService;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.mastership.MastershipEvent;
+import org.onosproject.mastership.MastershipInfo;
+import org.onosproject.mastership.MastershipListener;
+import org.onosproject.mastership.MastershipService;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.Link;
+import org.onosproject.net.config.NetworkConfigEvent;
+import org.onosproject.net.config.NetworkConfigListener;
+import org.onosproject.net.config.NetworkConfigService;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleEvent;
+import org.onosproject.net.flow.FlowRuleListener;
+import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.group.Group;
+import org.onosproject.net.group.GroupEvent;
+import org.onosproject.net.group.GroupListener;
+import org.onosproject.net.group.GroupService;
+import org.onosproject.net.host.HostEvent;
+import org.onosproject.net.host.HostListener;
+import org.onosproject.net.host.HostService;
+import org.onosproject.net.intf.Interface;
+import org.onosproject.net.intf.InterfaceEvent;
+import org.onosproject.net.intf.InterfaceListener;
+import org.onosproject.net.intf.InterfaceService;
+import org.onosproject.net.link.LinkEvent;
+import org.onosproject.net.link.LinkListener;
+import org.onosproject.net.link.LinkService;
+import org.onosproject.srv6_usid.common.EventLog;
+import org.onosproject.srv6_usid.common.Srv6DeviceConfig;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.onlab.util.Tools.get;
+import static org.onosproject.srv6_usid.AppConstants.EVENT_LOG;
+import static org.onosproject.srv6_usid.AppConstants.EVENT_LOG_DEFAULT;
+import static org.onosproject.srv6_usid.AppConstants.EVENT_LOG_FLUSH_INTERVAL;
+
+/**
+ * App component that records the events received by the app listeners, and
+ * the flow rules and groups of the app written as a result, to a binary log
+ * (see {@link EventLog}). Logs can be replayed offline on fake services to
+ * reproduce and profile incidents.
+ * <p>
+ * Recording is enabled by setting the eventLog component property to the path
+ * of the log file, e.g. with `cfg set`. The log starts with the current state of the
+ * network, so that it can be replayed from scratch.
+ */
+@Component(
+        immediate = true,
+        enabled = true,
+        service = EventRecorderComponent.class,
+        property = {
+                EVENT_LOG + "=" + EVENT_LOG_DEFAULT,
+        }
+)
+public class EventRecorderComponent {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(EventRecorderComponent.class.getName());
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceService deviceService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private LinkService linkService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private HostService hostService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private InterfaceService interfaceService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private NetworkConfigService configService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MastershipService mastershipService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private FlowRuleService flowRuleService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private GroupService groupService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MainComponent mainComponent;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private ComponentConfigService cfgService;
+
+    /** Path of the file events are recorded to, empty to disable recording. */
+    private String eventLog = EVENT_LOG_DEFAULT;
+
+    private final DeviceListener deviceListener = new InternalDeviceListener();
+    private final LinkListener linkListener = new InternalLinkListener();
+    private final HostListener hostListener = new InternalHostListener();
+    private final InterfaceListener interfaceListener = new InternalInterfaceListener();
+    private final NetworkConfigListener configListener = new InternalConfigListener();
+    private final MastershipListener mastershipListener = new InternalMastershipListener();
+    private final FlowRuleListener flowRuleListener = new InternalFlowRuleListener();
+    private final GroupListener groupListener = new InternalGroupListener();
+
+    private ApplicationId appId;
+    private volatile EventLog.Writer writer;
+    private ScheduledFuture<?> flushTask;
+
+    // Cleared when the log cannot be written. Set and cleared with the writer
+    // locked, so that records are never written to a closed log.
+    private volatile boolean recording;
+
+    @Activate
+    protected void activate(ComponentContext context) {
+        appId = mainComponent.getAppId();
+        cfgService.registerProperties(getClass());
+        modified(context);
+
+        log.info("Started");
+    }
+
+    @Modified
+    protected synchronized void modified(ComponentContext context) {
+        final String path = Strings.nullToEmpty(get(context.getProperties(), EVENT_LOG));
+        if (path.equals(eventLog) && (path.isEmpty() || writer != null)) {
+            return;
+        }
+        stopRecording();
+        eventLog = path;
+        if (path.isEmpty()) {
+            log.info("Event recording disabled");
+        } else {
+            startRecording(path);
+        }
+    }
+
+    @Deactivate
+    protected synchronized void deactivate() {
+        cfgService.unregisterProperties(getClass(), false);
+        stopRecording();
+
+        log.info("Stopped");
+    }
+
+    private void startRecording(String path) {
+        try {
+            writer = new EventLog.Writer(new FileOutputStream(path));
+        } catch (IOException e) {
+            log.error("Unable to create event log {}, recording disabled", path, e);
+            return;
+        }
+
+        // Events received while the snapshot is written are recorded after
+        // it, as the writer is locked meanwhile.
+        synchronized (writer) {
+            recording = true;
+            addListeners();
+            record(this::writeSnapshot);
+        }
+        flushTask = SharedScheduledExecutors.scheduleAtFixedRate(
+                () -> record(EventLog.Writer::flush), EVENT_LOG_FLUSH_INTERVAL,
+                EVENT_LOG_FLUSH_INTERVAL, TimeUnit.SECONDS);
+
+        log.info("Recording events to {}", path);
+    }
+
+    private void stopRecording() {
+        final EventLog.Writer logWriter = writer;
+        if (logWriter == null) {
+            return;
+        }
+        flushTask.cancel(false);
+        removeListeners();
+        // Wait for a record being written, the following ones are dropped.
+        synchronized (logWriter) {
+            recording = false;
+            writer = null;
+        }
+        try {
+            logWriter.close();
+        } catch (IOException e) {
+            log.warn("Unable to close event log", e);
+        }
+    }
+
+    private void addListeners() {
+        deviceService.addListener(deviceListener);
+        linkService.addListener(linkListener);
+        hostService.addListener(hostListener);
+        interfaceService.addListener(interfaceListener);
+        configService.addListener(configListener);
+        mastershipService.addListener(mastershipListener);
+        flowRuleService.addListener(flowRuleListener);
+        groupService.addListener(groupListener);
+    }
+
+    private void removeListeners() {
+        groupService.removeListener(groupListener);
+        flowRuleService.removeListener(flowRuleListener);
+        mastershipService.removeListener(mastershipListener);
+        configService.removeListener(configListener);
+        interfaceService.removeListener(interfaceListener);
+        hostService.removeListener(hostListener);
+        linkService.removeListener(linkListener);
+        deviceService.removeListener(deviceListener);
+    }
+
+    /**
+     * Writes the current state of the network, as added events.
+     *
+     * @param logWriter event log writer
+     * @throws IOException if the log cannot be written
+     */
+    private void writeSnapshot(EventLog.Writer logWriter) throws IOException {
+        for (Device device : deviceService.getDevices()) {
+            final DeviceId deviceId = device.id();
+            logWriter.device(new DeviceEvent(DeviceEvent.Type.DEVICE_ADDED, device),
+                             deviceService.isAvailable(deviceId), deviceService.getPorts(deviceId));
+            final Srv6DeviceConfig config = configService.getConfig(deviceId, Srv6DeviceConfig.class);
+            if (config != null) {
+                logWriter.config(new NetworkConfigEvent(NetworkConfigEvent.Type.CONFIG_ADDED, deviceId,
+                                                        config, null, Srv6DeviceConfig.class));
+            }
+            logWriter.mastership(new MastershipEvent(MastershipEvent.Type.MASTER_CHANGED, deviceId,
+                                                     new MastershipInfo()),
+                                 mastershipService.isLocalMaster(deviceId));
+        }
+        for (Link link : linkService.getLinks()) {
+            logWriter.link(new LinkEvent(LinkEvent.Type.LINK_ADDED, link));
+        }
+        for (Interface intf : interfaceService.getInterfaces()) {
+            logWriter.intf(new InterfaceEvent(InterfaceEvent.Type.INTERFACE_ADDED, intf));
+        }
+        for (Host host : hostService.getHosts()) {
+            logWriter.host(new HostEvent(HostEvent.Type.HOST_ADDED, host));
+        }
+        logWriter.endSnapshot();
+    }
+
+    private void record(Record record) {
+        // Listeners may still be running when recording is stopped.
+        final EventLog.Writer logWriter = writer;
+        if (!recording || logWriter == null) {
+            return;
+        }
+        synchronized (logWriter) {
+            if (!recording || writer != logWriter) {
+                return;
+            }
+            try {
+                record.write(logWriter);
+            } catch (IOException e) {
+                recording = false;
+                log.error("Unable to write event log, recording stopped", e);
+            }
+        }
+    }
+
+    /**
+     * Write of a record to the log.
+     */
+    private interface Record {
+        void write(EventLog.Writer logWriter) throws IOException;
+    }
+
+    /**
+     * Listener of device and port events.
+     */
+    private class InternalDeviceListener implements DeviceListener {
+
+        @Override
+        public boolean isRelevant(DeviceEvent event) {
+            switch (event.type()) {
+                case DEVICE_ADDED:
+                case DEVICE_AVAILABILITY_CHANGED:
+                case DEVICE_REMOVED:
+                case PORT_ADDED:
+                case PORT_UPDATED:
+                case PORT_REMOVED:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public void event(DeviceEvent event) {
+            final DeviceId deviceId = event.subject().id();
+            record(w -> w.device(
+                    event, deviceService.isAvailable(deviceId),
+                    event.type() == DeviceEvent.Type.DEVICE_ADDED
+                            ? deviceService.getPorts(deviceId) : ImmutableList.of()));
+        }
+    }
+
+    /**
+     * Listener of link events.
+     */
+    private class InternalLinkListener implements LinkListener {
+
+        @Override
+        public void event(LinkEvent event) {
+            record(w -> w.link(event));
+        }
+    }
+
+    /**
+     * Listener of host events.
+     */
+    private class InternalHostListener implements HostListener {
+
+        @Override
+        public void event(HostEvent event) {
+            record(w -> w.host(event));
+        }
+    }
+
+    /**
+     * Listener of interface events.
+     */
+    private class InternalInterfaceListener implements InterfaceListener {
+
+        @Override
+        public void event(InterfaceEvent event) {
+            record(w -> w.intf(event));
+        }
+    }
+
+    /**
+     * Listener of events of the Srv6DeviceConfig of devices.
+     */
+    private class InternalConfigListener implements NetworkConfigListener {
+
+        @Override
+        public boolean isRelevant(NetworkConfigEvent event) {
+            return event.configClass() == Srv6DeviceConfig.class &&
+                    event.subject() instanceof DeviceId;
+        }
+
+        @Override
+        public void event(NetworkConfigEvent event) {
+            record(w -> w.config(event));
+        }
+    }
+
+    /**
+     * Listener of mastership changes.
+     */
+    private class InternalMastershipListener implements MastershipListener {
+
+        @Override
+        public boolean isRelevant(MastershipEvent event) {
+            return event.type() == MastershipEvent.Type.MASTER_CHANGED;
+        }
+
+        @Override
+        public void event(MastershipEvent event) {
+            record(w -> w.mastership(event, mastershipService.isLocalMaster(event.subject())));
+        }
+    }
+
+    /**
+     * Listener of flow rules of the app added or removed on devices.
+     */
+    private class InternalFlowRuleListener implements FlowRuleListener {
+
+        @Override
+        public boolean isRelevant(FlowRuleEvent event) {
+            return (event.type() == FlowRuleEvent.Type.RULE_ADDED ||
+                    event.type() == FlowRuleEvent.Type.RULE_REMOVED) &&
+                    event.subject().appId() == appId.id();
+        }
+
+        @Override
+        public void event(FlowRuleEvent event) {
+            final FlowRule rule = event.subject();
+            record(w -> w.write(new EventLog.Write(
+                    event.type() == FlowRuleEvent.Type.RULE_ADDED
+                            ? EventLog.WriteKind.FLOW_ADDED : EventLog.WriteKind.FLOW_REMOVED,
+                    rule.deviceId(), rule.table().toString())));
+        }
+    }
+
+    /**
+     * Listener of groups of the app added, updated or removed on devices.
+     */
+    private class InternalGroupListener implements GroupListener {
+
+        @Override
+        public boolean isRelevant(GroupEvent event) {
+            switch (event.type()) {
+                case GROUP_ADDED:
+                case GROUP_UPDATED:
+                case GROUP_REMOVED:
+                    return appId.equals(event.subject().appId());
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public void event(GroupEvent event) {
+            final Group group = event.subject();
+            final EventLog.WriteKind kind = event.type() == GroupEvent.Type.GROUP_ADDED
+                    ? EventLog.WriteKind.GROUP_ADDED
+                    : event.type() == GroupEvent.Type.GROUP_UPDATED
+                    ? EventLog.WriteKind.GROUP_UPDATED : EventLog.WriteKind.GROUP_REMOVED;
+            record(w -> w.write(new EventLog.Write(
+                    kind, group.deviceId(), "0x" + Integer.toHexString(group.id().id()))));
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.mastership.MastershipService;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Port;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.group.Group;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.group.GroupEvent;
+import org.onosproject.net.group.GroupListener;
+import org.onosproject.net.group.GroupService;
+import org.onosproject.srv6_usid.common.DeviceSetupStep;
+import org.onosproject.srv6_usid.common.Utils;
+import org.onosproject.srv6_usid.pipeconf.InterpreterServices;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.collect.Streams.stream;
+import static org.onosproject.srv6_usid.AppConstants.FLOOD_GROUP_ID;
+
+/**
+ * App component that maintains, on each device, a multicast group replicating
+ * packets to all ports. Packet-outs to the FLOOD port are then sent as a
+ * single packet-out tagged with this group (see InterpreterImpl), instead of
+ * one packet-out per port.
+ * <p>
+ * The list of ports of each device is cached and refreshed on port events,
+ * which also update the buckets of the group.
+ */
+@Component(
+        immediate = true,
+        enabled = true,
+        service = FloodGroupComponent.class
+)
+public class FloodGroupComponent {
+
+    private static final Logger log = LoggerFactory.getLogger(FloodGroupComponent.class);
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceService deviceService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MastershipService mastershipService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private GroupService groupService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MainComponent mainComponent;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private FlowRuleWriter flowRuleWriter;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceLifecycleComponent deviceLifecycle;
+
+    private final DeviceSetupStep setupStep = new InternalSetupStep();
+    private final DeviceListener deviceListener = new InternalDeviceListener();
+    private final GroupListener groupListener = new InternalGroupListener();
+
+    private ApplicationId appId;
+
+    // Ports of each device where flooded packets are sent.
+    private final Map<DeviceId, Set<PortNumber>> floodPorts = Maps.newConcurrentMap();
+
+    // Devices where the flood group is installed.
+    private final Set<DeviceId> floodGroupDevices = Sets.newConcurrentHashSet();
+
+    @Activate
+    protected void activate() {
+        appId = mainComponent.getAppId();
+
+        groupService.addListener(groupListener);
+        deviceService.addListener(deviceListener);
+
+        // Groups left by a previous execution on warm restart.
+        stream(deviceService.getAvailableDevices())
+                .forEach(device -> updateGroupState(device.id()));
+
+        deviceLifecycle.addSetupStep(setupStep);
+        InterpreterServices.bind(this);
+
+        log.info("Started");
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        InterpreterServices.unbind(this);
+        deviceLifecycle.removeSetupStep(setupStep);
+        deviceService.removeListener(deviceListener);
+        groupService.removeListener(groupListener);
+
+        floodPorts.clear();
+        floodGroupDevices.clear();
+
+        log.info("Stopped");
+    }
+
+    /**
+     * Returns true if packets can be flooded on the given device with a single
+     * packet-out, i.e. the flood group is installed.
+     *
+     * @param deviceId the device ID
+     * @return true if the flood group is installed
+     */
+    public boolean isFloodGroupInstalled(DeviceId deviceId) {
+        return floodGroupDevices.contains(deviceId);
+    }
+
+    /**
+     * Returns the ports of the given device where flooded packets are sent.
+     *
+     * @param deviceId the device ID
+     * @return set of ports
+     */
+    public Set<PortNumber> getFloodPorts(DeviceId deviceId) {
+        return floodPorts.computeIfAbsent(deviceId, this::fetchFloodPorts);
+    }
+
+    private Set<PortNumber> fetchFloodPorts(DeviceId deviceId) {
+        return deviceService.getPorts(deviceId).stream()
+                .filter(Port::isEnabled)
+                .map(Port::number)
+                .filter(port -> !port.isLogical())
+                .collect(ImmutableSet.toImmutableSet());
+    }
+
+    /**
+     * Refreshes the cached ports of the given device and updates the flood
+     * group accordingly.
+     *
+     * @param deviceId the device ID
+     */
+    private void updateFloodGroup(DeviceId deviceId) {
+        final Set<PortNumber> ports = fetchFloodPorts(deviceId);
+        floodPorts.put(deviceId, ports);
+
+        if (ports.isEmpty()) {
+            log.debug("Device {} has 0 ports to flood", deviceId);
+            return;
+        }
+
+        final GroupDescription floodGroup = Utils.buildMulticastGroup(
+                appId, deviceId, FLOOD_GROUP_ID, ports);
+
+        // Skipped by the writer if the ports did not change.
+        flowRuleWriter.addGroup(floodGroup);
+    }
+
+    private void updateGroupState(DeviceId deviceId) {
+        final Group group = groupService.getGroup(
+                deviceId, Utils.buildGroupKey(FLOOD_GROUP_ID));
+        if (group != null && group.state() == Group.GroupState.ADDED) {
+            floodGroupDevices.add(deviceId);
+        }
+    }
+
+    private boolean isFloodGroup(Group group) {
+        return group.appId().equals(appId) &&
+                group.id().id() == FLOOD_GROUP_ID;
+    }
+
+    /**
+     * Set up step installing the flood group.
+     */
+    private class InternalSetupStep implements DeviceSetupStep {
+
+        @Override
+        public String name() {
+            return "Flood group";
+        }
+
+        @Override
+        public Collection<FlowRule> setUpDevice(DeviceId deviceId) {
+            updateFloodGroup(deviceId);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Listener of port events, which refreshes the flood ports.
+     */
+    private class InternalDeviceListener implements DeviceListener {
+
+        @Override
+        public boolean isRelevant(DeviceEvent event) {
+            switch (event.type()) {
+                case PORT_ADDED:
+                case PORT_UPDATED:
+                case PORT_REMOVED:
+                case DEVICE_REMOVED:
+                    return true;
+                default:
+                    // Ignore other events.
+                    return false;
+            }
+        }
+
+        @Override
+        public void event(DeviceEvent event) {
+            final DeviceId deviceId = event.subject().id();
+            if (event.type() == DeviceEvent.Type.DEVICE_REMOVED) {
+                floodPorts.remove(deviceId);
+                floodGroupDevices.remove(deviceId);
+                return;
+            }
+            if (!mastershipService.isLocalMaster(deviceId)) {
+                // Only the master updates the group, ports are fetched again
+                // when needed.
+                floodPorts.remove(deviceId);
+                return;
+            }
+            mainComponent.getExecutor(deviceId).execute(() -> {
+                log.debug("{} event! deviceId={}, port={}",
+                          event.type(), deviceId, event.port().number());
+                updateFloodGroup(deviceId);
+            });
+        }
+    }
+
+    /**
+     * Listener of group events, which tracks where the flood group is
+     * installed.
+     */
+    private class InternalGroupListener implements GroupListener {
+
+        @Override
+        public boolean isRelevant(GroupEvent event) {
+            switch (event.type()) {
+                case GROUP_ADDED:
+                case GROUP_REMOVED:
+                    return isFloodGroup(event.subject());
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public void event(GroupEvent event) {
+            final DeviceId deviceId = event.subject().deviceId();
+            if (event.type() == GroupEvent.Type.GROUP_ADDED) {
+                floodGroupDevices.add(deviceId);
+            } else {
+                floodGroupDevices.remove(deviceId);
+            }
+        }
+    }
+}
@@ -0,0 +1,1111 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.onlab.util.SharedScheduledExecutors;
+import org.onosproject.cfg.ComponentConfigService;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.mastership.MastershipService;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleEvent;
+import org.onosproject.net.flow.FlowRuleListener;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
+import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.flow.TableId;
+import org.onosproject.net.flow.instructions.PiInstruction;
+import org.onosproject.net.group.Group;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.group.GroupEvent;
+import org.onosproject.net.group.GroupKey;
+import org.onosproject.net.group.GroupListener;
+import org.onosproject.net.group.GroupService;
+import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiTableId;
+import org.onosproject.net.pi.runtime.PiAction;
+import org.onosproject.net.pi.runtime.PiTableAction;
+import org.onosproject.srv6_usid.common.OperationTracer;
+import org.onosproject.srv6_usid.common.OperationTracer.Span;
+import org.onosproject.srv6_usid.common.OperationType;
+import org.onosproject.srv6_usid.common.TaskPriority;
+import org.onosproject.srv6_usid.common.WriteRateLimiter;
+import org.onosproject.srv6_usid.common.WriteSource;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static com.google.common.collect.Streams.stream;
+import static java.lang.String.format;
+import static org.onlab.util.Tools.getIntegerProperty;
+import static org.onosproject.net.flow.FlowRuleOperation.Type.REMOVE;
+import static org.onosproject.net.flow.instructions.Instruction.Type.PROTOCOL_INDEPENDENT;
+import static org.onosproject.srv6_usid.AppConstants.INITIAL_WRITE_RATE;
+import static org.onosproject.srv6_usid.AppConstants.MAX_WRITE_RATE;
+import static org.onosproject.srv6_usid.AppConstants.MIN_WRITE_RATE;
+import static org.onosproject.srv6_usid.AppConstants.WRITE_BATCH_DELAY;
+import static org.onosproject.srv6_usid.AppConstants.WRITE_BATCH_DELAY_DEFAULT;
+import static org.onosproject.srv6_usid.AppConstants.WRITE_BATCH_SIZE;
+import static org.onosproject.srv6_usid.AppConstants.WRITE_BATCH_SIZE_DEFAULT;
+import static org.onosproject.srv6_usid.AppConstants.WRITE_LATENCY_TARGET;
+import static org.onosproject.srv6_usid.common.OperationTracer.OUTCOME_FAILED;
+import static org.onosproject.srv6_usid.common.OperationTracer.OUTCOME_OK;
+import static org.onosproject.srv6_usid.common.OperationTracer.OUTCOME_SKIPPED;
+import static org.onosproject.srv6_usid.common.RuleTemplates.L2_FIREWALL;
+import static org.onosproject.srv6_usid.common.RuleTemplates.MULTICAST;
+import static org.onosproject.srv6_usid.common.RuleTemplates.NDP_REPLY;
+import static org.onosproject.srv6_usid.common.RuleTemplates.ROUTING_V4_TABLE;
+import static org.onosproject.srv6_usid.common.RuleTemplates.ROUTING_V6;
+import static org.onosproject.srv6_usid.common.RuleTemplates.SRV6_ENCAP_TABLE;
+import static org.onosproject.srv6_usid.common.RuleTemplates.SRV6_ENCAP_V4_TABLE;
+import static org.onosproject.srv6_usid.common.RuleTemplates.SRV6_END;
+import static org.onosproject.srv6_usid.common.RuleTemplates.SRV6_USID_UA;
+import static org.onosproject.srv6_usid.common.RuleTemplates.UNICAST;
+import static org.onosproject.srv6_usid.common.RuleTemplates.XCONNECT;
+
+/**
+ * Component through which the other app components write flow rules and
+ * groups.
+ * <p>
+ * Flow rule operations are buffered per device for a few milliseconds, or
+ * until enough of them are pending, and then written with a single batch.
+ * An add followed by a remove of a flow never written cancel out. Batches are
+ * staged by table, so that flows are added after the ones they depend on
+ * (e.g. xconnect before localsid) and removed before them.
+ * <p>
+ * Each device has one buffer lane per {@link TaskPriority}. A batch only
+ * takes the operations of the most urgent lane with pending operations, and
+ * bulk operations are written in chunks of at most writeBatchSize, so that
+ * the set up of a device waits for one bulk chunk at most, however large the
+ * bulk backlog.
+ * <p>
+ * Batches are paced by a per-device token bucket, whose rate adapts to the
+ * latency and failures of the batches written, see {@link WriteRateLimiter}.
+ * While a device is throttled its operations keep accumulating in the buffer.
+ * <p>
+ * The last rule and group written for each device, table and match key
+ * (i.e. flow ID) or group key are kept. Writes identical to what
+ * is already installed are skipped, and changed contents are sent as a single
+ * modify. This avoids re-sending the same state every time a device flaps and
+ * is set up again.
+ * <p>
+ * On a warm restart, flows left on the devices by the previous execution are
+ * not wiped. Instead, they are adopted when a component installs an identical
+ * rule, in which case no write is sent to the device. Once the set up of a
+ * device is confirmed, flows that were not adopted are stale and removed.
+ */
+@Component(
+        immediate = true,
+        service = FlowRuleWriter.class,
+        property = {
+                WRITE_BATCH_DELAY + ":Integer=" + WRITE_BATCH_DELAY_DEFAULT,
+                WRITE_BATCH_SIZE + ":Integer=" + WRITE_BATCH_SIZE_DEFAULT,
+        }
+)
+public class FlowRuleWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(FlowRuleWriter.class);
+
+    // Tables whose content is fully recomputed by the components at device
+    // set up. Other tables (e.g. SRv6 policies and routes) are populated from
+    // the northbound and never considered stale.
+    private static final Set<PiTableId> RECOMPUTED_TABLES = ImmutableSet.of(
+            L2_FIREWALL.tableId(),
+            UNICAST.tableId(),
+            MULTICAST.tableId(),
+            NDP_REPLY.tableId(),
+            SRV6_END.tableId());
+
+    // Dependency level of each table: a table only points to entries of
+    // tables with a lower level (e.g. a uA localsid entry to an xconnect
+    // entry). The My Station table comes last, as it admits traffic in the
+    // routing pipeline. Other tables are at level 0.
+    private static final Map<PiTableId, Integer> TABLE_LEVELS =
+            ImmutableMap.<PiTableId, Integer>builder()
+                    .put(XCONNECT.tableId(), 1)
+                    .put(ROUTING_V6.tableId(), 1)
+                    .put(ROUTING_V4_TABLE, 1)
+                    .put(SRV6_END.tableId(), 2)
+                    .put(SRV6_ENCAP_TABLE, 2)
+                    .put(SRV6_ENCAP_V4_TABLE, 2)
+                    .put(L2_FIREWALL.tableId(), 3)
+                    .build();
+    private static final int MAX_TABLE_LEVEL = 3;
+
+    // Northbound actions sharing a table with recomputed entries.
+    private static final Set<PiActionId> NORTHBOUND_ACTIONS = ImmutableSet.of(
+            SRV6_USID_UA.actionId());
+
+    private static final WriteSource WARM_RESTART_SOURCE = WriteSource.of("warm-restart");
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private FlowRuleService flowRuleService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private GroupService groupService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceService deviceService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MastershipService mastershipService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MainComponent mainComponent;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MetricsComponent metrics;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private ComponentConfigService cfgService;
+
+    /** Max time flow rule writes for a device are buffered, in milliseconds. */
+    private volatile int writeBatchDelay = WRITE_BATCH_DELAY_DEFAULT;
+
+    /** Number of buffered operations for a device triggering a write. */
+    private volatile int writeBatchSize = WRITE_BATCH_SIZE_DEFAULT;
+
+    private ApplicationId appId;
+
+    // Flows found on devices at warm restart, not adopted yet.
+    private final Map<DeviceId, Map<FlowId, FlowEntry>> adoptable = Maps.newConcurrentMap();
+
+    // Last flows and groups written, per device, to compare their content.
+    private final Map<DeviceId, Map<FlowId, FlowRule>> installedFlows = Maps.newConcurrentMap();
+    private final Map<DeviceId, Map<GroupKey, GroupDescription>> installedGroups =
+            Maps.newConcurrentMap();
+
+    // Group writes not confirmed by a group event yet, per device.
+    private final Map<DeviceId, Map<GroupKey, CompletableFuture<Void>>> pendingGroupWrites =
+            Maps.newConcurrentMap();
+
+    // Pending operations, per device.
+    private final Map<DeviceId, WriteBuffer> buffers = Maps.newConcurrentMap();
+
+    // Write rate limiters, per device.
+    private final Map<DeviceId, WriteRateLimiter> rateLimiters = Maps.newConcurrentMap();
+
+    private final FlowRuleListener flowRuleListener = new InternalFlowRuleListener();
+    private final GroupListener groupListener = new InternalGroupListener();
+    private final DeviceListener deviceListener = new InternalDeviceListener();
+
+    @Activate
+    protected void activate(ComponentContext context) {
+        appId = mainComponent.getAppId();
+        cfgService.registerProperties(getClass());
+        modified(context);
+
+        flowRuleService.addListener(flowRuleListener);
+        groupService.addListener(groupListener);
+        deviceService.addListener(deviceListener);
+
+        if (mainComponent.isWarmRestart()) {
+            startAdoption();
+        }
+
+        log.info("Started");
+    }
+
+    @Modified
+    protected void modified(ComponentContext context) {
+        final Dictionary<?, ?> properties = context.getProperties();
+        writeBatchDelay = getIntegerProperty(properties, WRITE_BATCH_DELAY, WRITE_BATCH_DELAY_DEFAULT);
+        writeBatchSize = getIntegerProperty(properties, WRITE_BATCH_SIZE, WRITE_BATCH_SIZE_DEFAULT);
+        log.info("Buffering flow rule writes for {} ms or up to {} operations",
+                 writeBatchDelay, writeBatchSize);
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        cfgService.unregisterProperties(getClass(), false);
+        // Write what is still pending, whatever the rate.
+        buffers.keySet().forEach(this::drain);
+
+        flowRuleService.removeListener(flowRuleListener);
+        groupService.removeListener(groupListener);
+        deviceService.removeListener(deviceListener);
+
+        adoptable.clear();
+        rateLimiters.clear();
+        installedFlows.clear();
+        installedGroups.clear();
+        pendingGroupWrites.clear();
+
+        log.info("Stopped");
+    }
+
+    /**
+     * Installs the given flow rules.
+     *
+     * @param source    source of the write, for metrics
+     * @param flowRules flow rules
+     */
+    public void applyFlowRules(WriteSource source, FlowRule... flowRules) {
+        applyFlowRules(source, Arrays.asList(flowRules));
+    }
+
+    /**
+     * Installs the given flow rules.
+     *
+     * @param source    source of the write, for metrics
+     * @param flowRules flow rules
+     */
+    public void applyFlowRules(WriteSource source, Collection<FlowRule> flowRules) {
+        applyFlowRules(source, TaskPriority.TOPOLOGY_CHANGE, flowRules);
+    }
+
+    /**
+     * Installs the given flow rules, with the given priority.
+     *
+     * @param source    source of the write, for metrics
+     * @param priority  priority of the write
+     * @param flowRules flow rules
+     */
+    public void applyFlowRules(WriteSource source, TaskPriority priority,
+                               Collection<FlowRule> flowRules) {
+        FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+        flowRules.forEach(ops::add);
+        apply(source, ops.build(), priority);
+    }
+
+    /**
+     * Removes the given flow rules.
+     *
+     * @param source    source of the write, for metrics
+     * @param flowRules flow rules
+     */
+    public void removeFlowRules(WriteSource source, FlowRule... flowRules) {
+        FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+        Arrays.stream(flowRules).forEach(ops::remove);
+        apply(source, ops.build());
+    }
+
+    /**
+     * Applies a batch of flow rule operations, reacting to topology changes.
+     *
+     * @param source source of the write, for metrics
+     * @param ops    flow rule operations
+     * @see #apply(WriteSource, FlowRuleOperations, TaskPriority)
+     */
+    public void apply(WriteSource source, FlowRuleOperations ops) {
+        apply(source, ops, TaskPriority.TOPOLOGY_CHANGE);
+    }
+
+    /**
+     * Applies a batch of flow rule operations with the given priority.
+     * Operations are buffered and written together with the ones of other
+     * components for the same device, more urgent ones first. The stages of
+     * the given batch are not kept, as flows are staged by table. The callback
+     * of the batch, if any, is invoked once the operations on all devices are
+     * done.
+     *
+     * @param source   source of the write, for metrics
+     * @param ops      flow rule operations
+     * @param priority priority of the write
+     */
+    public void apply(WriteSource source, FlowRuleOperations ops, TaskPriority priority) {
+        final Map<DeviceId, List<FlowRuleOperation>> deviceOps = ops.stages().stream()
+                .flatMap(Set::stream)
+                .collect(Collectors.groupingBy(op -> op.rule().deviceId()));
+        if (deviceOps.isEmpty()) {
+            if (ops.callback() != null) {
+                ops.callback().onSuccess(ops);
+            }
+            return;
+        }
+        final BatchCallback callback = ops.callback() == null ? null
+                : new BatchCallback(ops, deviceOps.size());
+        deviceOps.forEach((deviceId, opList) -> enqueue(
+                deviceId, opList, source, priority, callback));
+    }
+
+    private void enqueue(DeviceId deviceId, List<FlowRuleOperation> ops,
+                         WriteSource source, TaskPriority priority,
+                         BatchCallback callback) {
+        final WriteBuffer buffer = buffers.computeIfAbsent(deviceId, d -> new WriteBuffer());
+        final boolean flushNow;
+        synchronized (buffer) {
+            final Set<TaskPriority> lanes = EnumSet.noneOf(TaskPriority.class);
+            ops.forEach(op -> {
+                final TaskPriority lane = buffer.merge(op, source, priority);
+                if (lane != null) {
+                    lanes.add(lane);
+                }
+            });
+            if (callback != null) {
+                // Notified once every lane the operations went to is done.
+                if (lanes.isEmpty()) {
+                    lanes.add(priority);
+                }
+                callback.addParts(lanes.size() - 1);
+                lanes.forEach(lane -> buffer.lanes.get(lane).callbacks.add(callback));
+            }
+            final int delay = writeBatchDelay;
+            flushNow = delay <= 0 ||
+                    (!buffer.throttled && buffer.size() >= writeBatchSize);
+            if (!flushNow && buffer.flushTask == null) {
+                buffer.flushTask = SharedScheduledExecutors.schedule(
+                        () -> flush(deviceId), delay, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (flushNow) {
+            flush(deviceId);
+        }
+    }
+
+    /**
+     * Writes the operations of the most urgent lane buffered for the given
+     * device with a single batch, up to writeBatchSize operations for the
+     * bulk lane. Adds identical to the installed flows are skipped, adds of
+     * changed flows are turned into modifies.
+     *
+     * @param deviceId the device ID
+     */
+    private void flush(DeviceId deviceId) {
+        final WriteBuffer buffer = buffers.get(deviceId);
+        if (buffer == null) {
+            return;
+        }
+        final List<BatchCallback> done = Lists.newArrayList();
+        final Set<FlowId> doneFailed = Sets.newHashSet();
+        // Held while building the batch, so that batches for the same device
+        // are submitted in order.
+        synchronized (buffer) {
+            if (buffer.flushTask != null) {
+                buffer.flushTask.cancel(false);
+                buffer.flushTask = null;
+            }
+            buffer.throttled = false;
+            final WriteRateLimiter rateLimiter = rateLimiters.computeIfAbsent(
+                    deviceId, d -> new WriteRateLimiter(
+                            d.toString(), INITIAL_WRITE_RATE, MIN_WRITE_RATE,
+                            MAX_WRITE_RATE, WRITE_LATENCY_TARGET, TimeUnit.MILLISECONDS));
+            // Callbacks of lanes left without operations, e.g. cancelled out.
+            buffer.lanes.values().forEach(l -> l.takeIfDone(done, doneFailed));
+            final TaskPriority priority = buffer.nextLane();
+            if (priority != null) {
+                writeChunk(deviceId, buffer, priority, rateLimiter, false, done, doneFailed);
+            }
+        }
+        done.forEach(c -> c.partDone(doneFailed));
+    }
+
+    /**
+     * Writes all the operations buffered for the given device, lane by lane,
+     * bypassing the rate limiter, and drops the buffer. Used on deactivation,
+     * when a throttled flush would not be retried.
+     *
+     * @param deviceId the device ID
+     */
+    private void drain(DeviceId deviceId) {
+        final WriteBuffer buffer = buffers.remove(deviceId);
+        if (buffer == null) {
+            return;
+        }
+        final List<BatchCallback> done = Lists.newArrayList();
+        final Set<FlowId> doneFailed = Sets.newHashSet();
+        synchronized (buffer) {
+            if (buffer.flushTask != null) {
+                buffer.flushTask.cancel(false);
+                buffer.flushTask = null;
+            }
+            final WriteRateLimiter rateLimiter = rateLimiters.computeIfAbsent(
+                    deviceId, d -> new WriteRateLimiter(
+                            d.toString(), INITIAL_WRITE_RATE, MIN_WRITE_RATE,
+                            MAX_WRITE_RATE, WRITE_LATENCY_TARGET, TimeUnit.MILLISECONDS));
+            TaskPriority priority;
+            while ((priority = buffer.nextLane()) != null) {
+                writeChunk(deviceId, buffer, priority, rateLimiter, true, done, doneFailed);
+            }
+            // Callbacks of lanes left without operations, e.g. cancelled out.
+            buffer.lanes.values().forEach(l -> l.takeIfDone(done, doneFailed));
+        }
+        done.forEach(c -> c.partDone(doneFailed));
+    }
+
+    // Must be called with the buffer lock held. When draining, all the
+    // operations of the lane are written whatever the rate.
+    private void writeChunk(DeviceId deviceId, WriteBuffer buffer, TaskPriority priority,
+                            WriteRateLimiter rateLimiter, boolean drain,
+                            List<BatchCallback> done, Set<FlowId> doneFailed) {
+        final Lane lane = buffer.lanes.get(priority);
+        final int limit = priority == TaskPriority.BULK && !drain ? writeBatchSize : Integer.MAX_VALUE;
+        final List<FlowRuleOperation> ops = ImmutableList.copyOf(
+                Iterables.limit(lane.ops.values(), limit));
+
+        // Removes first, from the highest level down, then adds from the
+        // lowest level up. Adds identical to the installed or adoptable
+        // flows are skipped.
+        final List<List<FlowRuleOperation>> stages = Lists.newArrayList();
+        for (int i = 0; i <= 2 * MAX_TABLE_LEVEL + 1; i++) {
+            stages.add(Lists.newArrayList());
+        }
+        int written = 0;
+        for (FlowRuleOperation op : ops) {
+            final FlowRule rule = op.rule();
+            final int level = TABLE_LEVELS.getOrDefault(rule.table(), 0);
+            if (op.type() == REMOVE) {
+                stages.get(MAX_TABLE_LEVEL - level).add(op);
+                written++;
+                continue;
+            }
+            if (op.type() == FlowRuleOperation.Type.ADD && isAdoptable(rule)) {
+                continue;
+            }
+            final FlowRule previous = installedFlow(rule);
+            if (previous != null && sameContent(previous, rule)) {
+                continue;
+            }
+            stages.get(MAX_TABLE_LEVEL + 1 + level).add(
+                    previous == null ? op : new FlowRuleOperation(
+                            rule, FlowRuleOperation.Type.MODIFY));
+            written++;
+        }
+
+        // Only what is actually sent to the device consumes tokens.
+        if (!drain && written > 0 && !rateLimiter.tryAcquire(written)) {
+            // Throttled, try again later with what will have accumulated.
+            log.debug("Throttling writes to {}, {} operations pending",
+                      deviceId, written);
+            buffer.throttled = true;
+            buffer.flushTask = SharedScheduledExecutors.schedule(
+                    () -> flush(deviceId), rateLimiter.retryDelayMillis(written),
+                    TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        final Set<WriteSource> sources = Sets.newHashSet();
+        for (FlowRuleOperation op : ops) {
+            final FlowId flowId = op.rule().id();
+            lane.ops.remove(flowId);
+            sources.add(lane.sources.remove(flowId));
+            // Committed, record the flows as installed.
+            if (op.type() == REMOVE) {
+                forgetFlow(op.rule());
+                continue;
+            }
+            recordFlow(op.rule());
+            if (op.type() == FlowRuleOperation.Type.ADD) {
+                adopt(op.rule());
+            }
+        }
+        if (!drain && !buffer.isEmpty()) {
+            // Next chunk or lane, as soon as the rate allows.
+            buffer.flushTask = SharedScheduledExecutors.schedule(
+                    () -> flush(deviceId), 0, TimeUnit.MILLISECONDS);
+        }
+
+        if (written == 0) {
+            log.debug("Skipping flow rule write on {}, all flows already installed",
+                      deviceId);
+            lane.takeIfDone(done, doneFailed);
+            return;
+        }
+
+        final FlowRuleOperations.Builder builder = FlowRuleOperations.builder();
+        final Set<TableId> tables = Sets.newHashSet();
+        boolean firstStage = true;
+        for (List<FlowRuleOperation> stage : stages) {
+            if (stage.isEmpty()) {
+                continue;
+            }
+            if (!firstStage) {
+                builder.newStage();
+            }
+            firstStage = false;
+            for (FlowRuleOperation op : stage) {
+                addOperation(builder, op);
+                tables.add(op.rule().table());
+            }
+        }
+        log.debug("Writing {} {} flow rule operations on {} ({} buffered)",
+                  written, priority, deviceId, ops.size());
+        lane.inFlight++;
+        final FlowRuleOperations batch = builder.build(new InternalOperationsContext(
+                deviceId, buffer, lane, tables, sources, rateLimiter, written));
+        try {
+            flowRuleService.apply(batch);
+        } catch (RuntimeException e) {
+            // E.g. the flow rule service going away, fail the callbacks
+            // rather than leaving them pending.
+            log.warn("Unable to write flow rules on {}: {}", deviceId, e.getMessage());
+            batch.callback().onError(batch);
+        }
+    }
+
+    private static void addOperation(FlowRuleOperations.Builder builder,
+                                     FlowRuleOperation op) {
+        switch (op.type()) {
+            case ADD:
+                builder.add(op.rule());
+                break;
+            case MODIFY:
+                builder.modify(op.rule());
+                break;
+            case REMOVE:
+                builder.remove(op.rule());
+                break;
+            default:
+                log.warn("Unknown operation {}", op.type());
+        }
+    }
+
+    /**
+     * Returns true if the given flow may be on the device, i.e. it was
+     * written or found there at warm restart.
+     */
+    private boolean isKnown(FlowRule rule) {
+        final Map<FlowId, FlowRule> flows = installedFlows.get(rule.deviceId());
+        final Map<FlowId, FlowEntry> entries = adoptable.get(rule.deviceId());
+        return (flows != null && flows.containsKey(rule.id())) ||
+                (entries != null && entries.containsKey(rule.id()));
+    }
+
+    /**
+     * Returns the statistics of the flow rule writes, e.g. the current rate
+     * and the number of throttling events.
+     *
+     * @return map of device ID to statistics
+     */
+    public Map<DeviceId, WriteRateLimiter.Stats> getWriteStats() {
+        return rateLimiters.entrySet().stream()
+                .collect(ImmutableMap.toImmutableMap(
+                        Map.Entry::getKey, e -> e.getValue().stats()));
+    }
+
+    /**
+     * Installs the given group, unless an identical one was already written.
+     * If the buckets of the group changed, they are modified in place.
+     *
+     * @param group group description
+     * @return future completed when the group is added or updated on the
+     *         device, or exceptionally if that fails
+     */
+    public CompletableFuture<Void> addGroup(GroupDescription group) {
+        final GroupKey groupKey = group.appCookie();
+        final GroupDescription previous = installedGroups
+                .computeIfAbsent(group.deviceId(), d -> Maps.newConcurrentMap())
+                .put(groupKey, group);
+        if (previous != null && sameContent(previous, group)) {
+            log.debug("Skipping group {} on {}, already installed",
+                      groupKey, group.deviceId());
+            return CompletableFuture.completedFuture(null);
+        }
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        pendingGroupWrites
+                .computeIfAbsent(group.deviceId(), d -> Maps.newConcurrentMap())
+                .merge(groupKey, future, (older, newer) -> {
+                    // Also done when the latest write is.
+                    newer.whenComplete((r, e) -> complete(older, e));
+                    return newer;
+                });
+        if (previous == null) {
+            groupService.addGroup(group);
+        } else {
+            groupService.setBucketsForGroup(group.deviceId(), groupKey, group.buckets(),
+                                            groupKey, group.appId());
+        }
+        return future;
+    }
+
+    private static void complete(CompletableFuture<Void> future, Throwable error) {
+        if (error == null) {
+            future.complete(null);
+        } else {
+            future.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Removes the given group.
+     *
+     * @param deviceId the device ID
+     * @param groupKey the group key
+     * @param appId    the application ID that owns the group
+     */
+    public void removeGroup(DeviceId deviceId, GroupKey groupKey, ApplicationId appId) {
+        final Map<GroupKey, GroupDescription> groups = installedGroups.get(deviceId);
+        if (groups != null) {
+            groups.remove(groupKey);
+        }
+        groupService.removeGroup(deviceId, groupKey, appId);
+    }
+
+    private FlowRule installedFlow(FlowRule rule) {
+        final Map<FlowId, FlowRule> flows = installedFlows.get(rule.deviceId());
+        return flows == null ? null : flows.get(rule.id());
+    }
+
+    /**
+     * Records the given flow as installed and returns the flow previously
+     * recorded with the same ID, or null if there was none.
+     */
+    private FlowRule recordFlow(FlowRule rule) {
+        return installedFlows
+                .computeIfAbsent(rule.deviceId(), d -> Maps.newConcurrentMap())
+                .put(rule.id(), rule);
+    }
+
+    private void forgetFlow(FlowRule rule) {
+        final Map<FlowId, FlowRule> flows = installedFlows.get(rule.deviceId());
+        if (flows != null) {
+            flows.remove(rule.id());
+        }
+    }
+
+    // Flows with the same ID have the same selector, table and priority.
+    private static boolean sameContent(FlowRule a, FlowRule b) {
+        return a.isPermanent() == b.isPermanent() &&
+                a.timeout() == b.timeout() &&
+                Objects.equals(a.treatment(), b.treatment());
+    }
+
+    private static boolean sameContent(GroupDescription a, GroupDescription b) {
+        return a.type() == b.type() &&
+                Objects.equals(a.buckets(), b.buckets());
+    }
+
+    /**
+     * Returns true if an identical flow was found on the device at warm
+     * restart and not adopted yet, false if it must be written.
+     */
+    private boolean isAdoptable(FlowRule rule) {
+        final Map<FlowId, FlowEntry> entries = adoptable.get(rule.deviceId());
+        final FlowEntry entry = entries == null ? null : entries.get(rule.id());
+        return entry != null && entry.treatment().equals(rule.treatment());
+    }
+
+    /**
+     * Marks the flow found on the device at warm restart with the same ID of
+     * the given one as owned again by this execution of the app.
+     */
+    private void adopt(FlowRule rule) {
+        final Map<FlowId, FlowEntry> entries = adoptable.get(rule.deviceId());
+        if (entries != null) {
+            // Once rewritten, the flow is no longer a candidate for removal.
+            entries.remove(rule.id());
+        }
+    }
+
+    private void startAdoption() {
+        Map<DeviceId, List<FlowEntry>> entries = stream(
+                flowRuleService.getFlowEntriesById(appId))
+                .filter(e -> e.state() == FlowEntry.FlowEntryState.ADDED)
+                .collect(Collectors.groupingBy(FlowEntry::deviceId));
+
+        // Groups left by the previous execution are assumed up to date.
+        stream(deviceService.getAvailableDevices()).forEach(device -> stream(
+                groupService.getGroups(device.id(), appId))
+                .filter(g -> g.state() == Group.GroupState.ADDED)
+                .forEach(g -> installedGroups
+                        .computeIfAbsent(g.deviceId(), d -> Maps.newConcurrentMap())
+                        .put(g.appCookie(), g)));
+
+        entries.forEach((deviceId, deviceEntries) -> {
+            // Kept until the set up of the device is confirmed, see
+            // sweepStale().
+            adoptable.put(deviceId, Maps.newConcurrentMap(deviceEntries.stream()
+                    .collect(Collectors.toMap(FlowEntry::id, e -> e, (a, b) -> a))));
+        });
+
+        log.info("Warm restart: adopting {} flows on {} devices...",
+                 entries.values().stream().mapToInt(List::size).sum(),
+                 entries.size());
+    }
+
+    /**
+     * Removes the flows found on the given device at warm restart that were
+     * not adopted. Must be called once all the set up steps of the device are
+     * applied and their writes confirmed, as flows not adopted by then are
+     * stale. Does nothing if there is no flow left to adopt.
+     *
+     * @param deviceId the device ID
+     */
+    public void sweepStale(DeviceId deviceId) {
+        if (!adoptable.containsKey(deviceId)) {
+            return;
+        }
+        if (!deviceService.isAvailable(deviceId) ||
+                !mastershipService.isLocalMaster(deviceId)) {
+            // Keep them until the next complete set up.
+            log.debug("Not sweeping {}, device not available or not master", deviceId);
+            return;
+        }
+        final Map<FlowId, FlowEntry> entries = adoptable.remove(deviceId);
+        if (entries == null) {
+            return;
+        }
+
+        final Span span = OperationTracer.start(OperationType.CLEANUP, deviceId);
+        try {
+            List<FlowEntry> stale = entries.values().stream()
+                    .filter(this::isRecomputed)
+                    .collect(Collectors.toList());
+
+            log.info("Warm restart of {}: {} flows not adopted, {} stale",
+                     deviceId, entries.size(), stale.size());
+
+            if (!stale.isEmpty()) {
+                FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+                stale.forEach(ops::remove);
+                apply(WARM_RESTART_SOURCE, ops.build(), TaskPriority.BULK);
+            }
+            span.entries(stale.size()).end(stale.isEmpty() ? OUTCOME_SKIPPED : OUTCOME_OK);
+        } finally {
+            span.end(OUTCOME_FAILED);
+        }
+    }
+
+    private boolean isRecomputed(FlowEntry entry) {
+        if (!(entry.table() instanceof PiTableId) ||
+                !RECOMPUTED_TABLES.contains(entry.table())) {
+            return false;
+        }
+        return entry.treatment().allInstructions().stream()
+                .filter(i -> i.type() == PROTOCOL_INDEPENDENT)
+                .map(i -> ((PiInstruction) i).action())
+                .noneMatch(this::isNorthboundAction);
+    }
+
+    private boolean isNorthboundAction(PiTableAction action) {
+        return action instanceof PiAction &&
+                NORTHBOUND_ACTIONS.contains(((PiAction) action).id());
+    }
+
+    /**
+     * Operations pending for a device, per priority.
+     */
+    private final class WriteBuffer {
+
+        private final Map<TaskPriority, Lane> lanes = new EnumMap<>(TaskPriority.class);
+        private ScheduledFuture<?> flushTask;
+        // Whether the last flush was delayed by the rate limiter.
+        private boolean throttled;
+
+        private WriteBuffer() {
+            for (TaskPriority priority : TaskPriority.values()) {
+                lanes.put(priority, new Lane());
+            }
+        }
+
+        /**
+         * Merges the given operation with the one pending for the same flow,
+         * if any, and returns the lane it went to, or null if they cancelled
+         * out. The latest operation wins, in the most urgent of their lanes.
+         */
+        private TaskPriority merge(FlowRuleOperation op, WriteSource source,
+                                   TaskPriority priority) {
+            final FlowId flowId = op.rule().id();
+            FlowRuleOperation pending = null;
+            TaskPriority lanePriority = priority;
+            for (Map.Entry<TaskPriority, Lane> entry : lanes.entrySet()) {
+                pending = entry.getValue().ops.remove(flowId);
+                if (pending != null) {
+                    entry.getValue().sources.remove(flowId);
+                    if (entry.getKey().compareTo(priority) < 0) {
+                        lanePriority = entry.getKey();
+                    }
+                    break;
+                }
+            }
+            if (op.type() == REMOVE && pending != null &&
+                    pending.type() != REMOVE && !isKnown(op.rule())) {
+                // Never written, nothing to add nor remove.
+                return null;
+            }
+            final Lane lane = lanes.get(lanePriority);
+            lane.ops.put(flowId, op);
+            lane.sources.put(flowId, source);
+            return lanePriority;
+        }
+
+        // Most urgent lane with pending operations, or null if none.
+        private TaskPriority nextLane() {
+            for (Map.Entry<TaskPriority, Lane> entry : lanes.entrySet()) {
+                if (!entry.getValue().ops.isEmpty()) {
+                    return entry.getKey();
+                }
+            }
+            return null;
+        }
+
+        private int size() {
+            return lanes.values().stream().mapToInt(lane -> lane.ops.size()).sum();
+        }
+
+        private boolean isEmpty() {
+            return nextLane() == null;
+        }
+    }
+
+    /**
+     * Operations pending for a device with the same priority, and callbacks
+     * of the batches that put them there.
+     */
+    private static final class Lane {
+
+        // Last operation for each flow, and its source.
+        private final Map<FlowId, FlowRuleOperation> ops = new LinkedHashMap<>();
+        private final Map<FlowId, WriteSource> sources = Maps.newHashMap();
+        // Notified once the lane is empty and its batches are done.
+        private final List<BatchCallback> callbacks = Lists.newArrayList();
+        private final Set<FlowId> failed = Sets.newHashSet();
+        private int inFlight;
+
+        /**
+         * Moves the callbacks and failed flows to the given collections if
+         * the lane is done, i.e. empty and without batches in flight.
+         */
+        private void takeIfDone(List<BatchCallback> done, Set<FlowId> doneFailed) {
+            if (!ops.isEmpty() || inFlight > 0 || callbacks.isEmpty()) {
+                return;
+            }
+            done.addAll(callbacks);
+            doneFailed.addAll(failed);
+            callbacks.clear();
+            failed.clear();
+        }
+    }
+
+    /**
+     * Tracks the completion of a batch applied by a component, whose
+     * operations may be written to several devices.
+     */
+    private static final class BatchCallback {
+
+        private final FlowRuleOperations ops;
+        // Lanes of the devices the operations went to, not done yet.
+        private final AtomicInteger pendingParts;
+        private final Set<FlowId> failed = Sets.newConcurrentHashSet();
+
+        private BatchCallback(FlowRuleOperations ops, int devices) {
+            this.ops = ops;
+            this.pendingParts = new AtomicInteger(devices);
+        }
+
+        // Called before the parts of a device are registered, while the
+        // count includes that device.
+        private void addParts(int parts) {
+            pendingParts.addAndGet(parts);
+        }
+
+        private void partDone(Set<FlowId> failedFlows) {
+            failed.addAll(failedFlows);
+            if (pendingParts.decrementAndGet() > 0) {
+                return;
+            }
+            final FlowRuleOperations.Builder failedOps = FlowRuleOperations.builder();
+            final List<FlowRuleOperation> failedList = ops.stages().stream()
+                    .flatMap(Set::stream)
+                    .filter(op -> failed.contains(op.rule().id()))
+                    .collect(Collectors.toList());
+            if (failedList.isEmpty()) {
+                ops.callback().onSuccess(ops);
+            } else {
+                failedList.forEach(op -> addOperation(failedOps, op));
+                ops.callback().onError(failedOps.build());
+            }
+        }
+    }
+
+    /**
+     * Context of a written batch, which forgets flows that could not be
+     * written, so that they are written again on the next attempt, records
+     * the write latency and notifies the components that applied the
+     * operations once their lane is done.
+     */
+    private class InternalOperationsContext implements FlowRuleOperationsContext {
+
+        private final DeviceId deviceId;
+        private final WriteBuffer buffer;
+        private final Lane lane;
+        private final Set<TableId> tables;
+        private final Set<WriteSource> sources;
+        private final WriteRateLimiter rateLimiter;
+        private final int size;
+        private final long startNanos = System.nanoTime();
+
+        InternalOperationsContext(DeviceId deviceId, WriteBuffer buffer, Lane lane,
+                                  Set<TableId> tables, Set<WriteSource> sources,
+                                  WriteRateLimiter rateLimiter, int size) {
+            this.deviceId = deviceId;
+            this.buffer = buffer;
+            this.lane = lane;
+            this.tables = tables;
+            this.sources = sources;
+            this.rateLimiter = rateLimiter;
+            this.size = size;
+        }
+
+        @Override
+        public void onSuccess(FlowRuleOperations ops) {
+            final long latencyNanos = System.nanoTime() - startNanos;
+            rateLimiter.batchDone(size, latencyNanos, false);
+            metrics.recordWrite(deviceId, tables, sources, latencyNanos, false);
+            batchDone(Collections.emptySet());
+        }
+
+        @Override
+        public void onError(FlowRuleOperations ops) {
+            final long latencyNanos = System.nanoTime() - startNanos;
+            rateLimiter.batchDone(size, latencyNanos, true);
+            metrics.recordWrite(deviceId, tables, sources, latencyNanos, true);
+            final Set<FlowId> failedFlows = Sets.newHashSet();
+            ops.stages().forEach(stage -> stage.forEach(op -> {
+                forgetFlow(op.rule());
+                failedFlows.add(op.rule().id());
+            }));
+            batchDone(failedFlows);
+        }
+
+        private void batchDone(Set<FlowId> failedFlows) {
+            final List<BatchCallback> done = Lists.newArrayList();
+            final Set<FlowId> doneFailed = Sets.newHashSet();
+            synchronized (buffer) {
+                lane.inFlight--;
+                lane.failed.addAll(failedFlows);
+                lane.takeIfDone(done, doneFailed);
+            }
+            done.forEach(c -> c.partDone(doneFailed));
+        }
+    }
+
+    /**
+     * Listener of flow rule events, which forgets flows removed from the
+     * store by other means than this writer.
+     */
+    private class InternalFlowRuleListener implements FlowRuleListener {
+
+        @Override
+        public boolean isRelevant(FlowRuleEvent event) {
+            return event.type() == FlowRuleEvent.Type.RULE_REMOVED &&
+                    installedFlows.containsKey(event.subject().deviceId());
+        }
+
+        @Override
+        public void event(FlowRuleEvent event) {
+            final FlowRule rule = event.subject();
+            final Map<FlowId, FlowRule> flows = installedFlows.get(rule.deviceId());
+            if (flows != null) {
+                // Keep the entry if it was rewritten with a different content.
+                flows.computeIfPresent(rule.id(), (id, installed) ->
+                        sameContent(installed, rule) ? null : installed);
+            }
+        }
+    }
+
+    /**
+     * Listener of group events, which forgets groups removed or failed, and
+     * completes pending group writes.
+     */
+    private class InternalGroupListener implements GroupListener {
+
+        @Override
+        public boolean isRelevant(GroupEvent event) {
+            final DeviceId deviceId = event.subject().deviceId();
+            switch (event.type()) {
+                case GROUP_ADDED:
+                case GROUP_UPDATED:
+                    return pendingGroupWrites.containsKey(deviceId);
+                case GROUP_REMOVED:
+                case GROUP_ADD_FAILED:
+                case GROUP_UPDATE_FAILED:
+                    return installedGroups.containsKey(deviceId) ||
+                            pendingGroupWrites.containsKey(deviceId);
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public void event(GroupEvent event) {
+            final Group group = event.subject();
+            final boolean written = event.type() == GroupEvent.Type.GROUP_ADDED ||
+                    event.type() == GroupEvent.Type.GROUP_UPDATED;
+            if (!written) {
+                final Map<GroupKey, GroupDescription> groups = installedGroups.get(group.deviceId());
+                if (groups != null) {
+                    groups.remove(group.appCookie());
+                }
+            }
+            final Map<GroupKey, CompletableFuture<Void>> pending =
+                    pendingGroupWrites.get(group.deviceId());
+            final CompletableFuture<Void> future = pending == null ? null
+                    : pending.remove(group.appCookie());
+            if (future != null) {
+                complete(future, written ? null : new IllegalStateException(
+                        format("Group %s %s", group.appCookie(), event.type())));
+            }
+        }
+    }
+
+    /**
+     * Listener of device events, which forgets the state of removed devices.
+     */
+    private class InternalDeviceListener implements DeviceListener {
+
+        @Override
+        public boolean isRelevant(DeviceEvent event) {
+            return event.type() == DeviceEvent.Type.DEVICE_REMOVED;
+        }
+
+        @Override
+        public void event(DeviceEvent event) {
+            final DeviceId deviceId = event.subject().id();
+            adoptable.remove(deviceId);
+            installedFlows.remove(deviceId);
+            installedGroups.remove(deviceId);
+            pendingGroupWrites.remove(deviceId);
+        }
+    }
+}
@@ -25,18 +25,13 @@ import org.onlab.packet.MacAddress;
 import org.onlab.util.ItemNotFoundException;
 import org.onosproject.core.ApplicationId;
 import org.onosproject.mastership.MastershipService;
-import org.onosproject.net.Device;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.Host;
 import org.onosproject.net.Link;
 import org.onosproject.net.PortNumber;
 import org.onosproject.net.config.NetworkConfigService;
-import org.onosproject.net.device.DeviceEvent;
-import org.onosproject.net.device.DeviceListener;
 import org.onosproject.net.device.DeviceService;
 import org.onosproject.net.flow.FlowRule;
-import org.onosproject.net.flow.FlowRuleService;
-import org.onosproject.net.flow.criteria.PiCriterion;
 import org.onosproject.net.group.GroupDescription;
 import org.onosproject.net.group.GroupService;
 import org.onosproject.net.host.InterfaceIpAddress;
@@ -45,20 +40,20 @@ import org.onosproject.net.intf.InterfaceService;
 import org.onosproject.net.link.LinkEvent;
 import org.onosproject.net.link.LinkListener;
 import org.onosproject.net.link.LinkService;
-import org.onosproject.net.pi.model.PiActionId;
-import org.onosproject.net.pi.model.PiActionParamId;
-import org.onosproject.net.pi.model.PiMatchFieldId;
-import org.onosproject.net.pi.runtime.PiAction;
-import org.onosproject.net.pi.runtime.PiActionParam;
 import org.onosproject.net.pi.runtime.PiActionProfileGroupId;
-import org.onosproject.net.pi.runtime.PiTableAction;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.onosproject.srv6_usid.common.DeviceSetupStep;
+import org.onosproject.srv6_usid.common.NorthboundJournal.Kind;
+import org.onosproject.srv6_usid.common.NorthboundJournal.Op;
+import org.onosproject.srv6_usid.common.OperationTracer;
+import org.onosproject.srv6_usid.common.OperationTracer.Span;
+import org.onosproject.srv6_usid.common.OperationType;
 import org.onosproject.srv6_usid.common.Srv6DeviceConfig;
-import org.onosproject.srv6_usid.common.Utils;
+import org.onosproject.srv6_usid.common.WriteSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -69,8 +64,14 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
 
-import static com.google.common.collect.Streams.stream;
-import static org.onosproject.srv6_usid.AppConstants.INITIAL_SETUP_DELAY;
+import static org.onlab.util.ImmutableByteSequence.copyFrom;
+import static org.onosproject.srv6_usid.AppConstants.PIPELINER_GROUP_ID_BIT;
+import static org.onosproject.srv6_usid.common.OperationTracer.OUTCOME_FAILED;
+import static org.onosproject.srv6_usid.common.OperationTracer.OUTCOME_OK;
+import static org.onosproject.srv6_usid.common.RuleTemplates.L2_FIREWALL;
+import static org.onosproject.srv6_usid.common.RuleTemplates.ROUTING_V6;
+import static org.onosproject.srv6_usid.common.RuleTemplates.UNICAST;
+import static org.onosproject.srv6_usid.common.TaskPriority.BULK;
 
 /**
  * App component that configures devices to provide IPv6 routing capabilities
@@ -87,8 +88,10 @@ public class Ipv6RoutingComponent {
 
     private static final Logger log = LoggerFactory.getLogger(Ipv6RoutingComponent.class);
 
+    private static final WriteSource WRITE_SOURCE = WriteSource.of("ipv6-routing");
+
     private final LinkListener linkListener = new InternalLinkListener();
-    private final DeviceListener deviceListener = new InternalDeviceListener();
+    private final DeviceSetupStep setupStep = new InternalSetupStep();
 
     private ApplicationId appId;
 
@@ -99,9 +102,6 @@ public class Ipv6RoutingComponent {
     // the activate() method.
     //--------------------------------------------------------------------------
 
-    @Reference(cardinality = ReferenceCardinality.MANDATORY)
-    private FlowRuleService flowRuleService;
-
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     private MastershipService mastershipService;
 
@@ -123,6 +123,15 @@ public class Ipv6RoutingComponent {
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     private MainComponent mainComponent;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private FlowRuleWriter flowRuleWriter;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceLifecycleComponent deviceLifecycle;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private NorthboundJournalComponent journal;
+
     //--------------------------------------------------------------------------
     // COMPONENT ACTIVATION.
     //
@@ -135,10 +144,9 @@ public class Ipv6RoutingComponent {
         appId = mainComponent.getAppId();
 
         linkService.addListener(linkListener);
-        deviceService.addListener(deviceListener);
 
-        // Schedule set up for all devices.
-        mainComponent.scheduleTask(this::setUpAllDevices, INITIAL_SETUP_DELAY);
+        // Set up devices as soon as they are ready.
+        deviceLifecycle.addSetupStep(setupStep);
 
         log.info("Started");
     }
@@ -146,43 +154,28 @@ public class Ipv6RoutingComponent {
     @Deactivate
     protected void deactivate() {
         linkService.removeListener(linkListener);
-        deviceService.removeListener(deviceListener);
+        deviceLifecycle.removeSetupStep(setupStep);
 
         log.info("Stopped");
     }
 
     /**
-     * Sets up the "My Station" table for the given device using the
+     * Creates the "My Station" rule for the given device using the
      * myStationMac address found in the config.
      * <p>
-     * This method will be called at component activation for each device
-     * (switch) known by ONOS, and every time a new device-added event is
-     * captured by the InternalDeviceListener defined below.
+     * This method will be called by the set up step defined below, every time
+     * the device becomes ready.
      *
      * @param deviceId the device ID
+     * @return My Station flow rule
      */
-    private void setUpMyStationTable(DeviceId deviceId) {
+    private FlowRule createMyStationRule(DeviceId deviceId) {
 
         log.info("Adding My Station rules to {}...", deviceId);
 
         final MacAddress myStationMac = getMyStationMac(deviceId);
 
-        final String tableId = "IngressPipeImpl.l2_firewall";
-
-        final PiCriterion match = PiCriterion.builder()
-                .matchExact(
-                        PiMatchFieldId.of("hdr.ethernet.dst_addr"),
-                        myStationMac.toBytes())
-                .build();
-
-        final PiTableAction action = PiAction.builder()
-                .withId(PiActionId.of("NoAction"))
-                .build();
-
-        final FlowRule myStationRule = Utils.buildFlowRule(
-                deviceId, appId, tableId, match, action);
-
-        flowRuleService.applyFlowRules(myStationRule);
+        return L2_FIREWALL.exact(deviceId, appId, myStationMac.toBytes());
     }
 
 
@@ -201,22 +194,8 @@ public class Ipv6RoutingComponent {
     private FlowRule createL2NextHopRule(DeviceId deviceId, MacAddress nexthopMac,
                                          PortNumber outPort) {
 
-        final String tableId = "IngressPipeImpl.unicast";
-        final PiCriterion match = PiCriterion.builder()
-                .matchExact(PiMatchFieldId.of("hdr.ethernet.dst_addr"),
-                            nexthopMac.toBytes())
-                .build();
-
-
-        final PiAction action = PiAction.builder()
-                .withId(PiActionId.of("IngressPipeImpl.set_output_port"))
-                .withParameter(new PiActionParam(
-                        PiActionParamId.of("port_num"),
-                        outPort.toLong()))
-                .build();
-
-        return Utils.buildFlowRule(
-                deviceId, appId, tableId, match, action);
+        return UNICAST.exact(deviceId, appId, nexthopMac.toBytes(),
+                             copyFrom(outPort.toLong()));
     }
 
     //--------------------------------------------------------------------------
@@ -260,53 +239,43 @@ public class Ipv6RoutingComponent {
         public void event(LinkEvent event) {
             DeviceId srcDev = event.subject().src().deviceId();
             DeviceId dstDev = event.subject().dst().deviceId();
+            WriteSource source = WRITE_SOURCE.forEvent("link", event);
 
             if (mastershipService.isLocalMaster(srcDev)) {
-                mainComponent.getExecutorService().execute(() -> {
+                mainComponent.getExecutor(srcDev).execute(() -> {
                     log.info("{} event! Configuring {}... linkSrc={}, linkDst={}",
                              event.type(), srcDev, srcDev, dstDev);
-                    setUpL2NextHopRules(srcDev);
+                    installL2NextHopRules(srcDev, source);
                 });
             }
             if (mastershipService.isLocalMaster(dstDev)) {
-                mainComponent.getExecutorService().execute(() -> {
+                mainComponent.getExecutor(dstDev).execute(() -> {
                     log.info("{} event! Configuring {}... linkSrc={}, linkDst={}",
                              event.type(), dstDev, srcDev, dstDev);
-                    setUpL2NextHopRules(dstDev);
+                    installL2NextHopRules(dstDev, source);
                 });
             }
         }
     }
 
     /**
-     * Listener of device events which triggers configuration of the My Station
-     * table.
+     * Set up step which configures the My Station table, the L2 next hop
+     * rules and the routes recorded in the journal.
      */
-    class InternalDeviceListener implements DeviceListener {
+    class InternalSetupStep implements DeviceSetupStep {
 
         @Override
-        public boolean isRelevant(DeviceEvent event) {
-            switch (event.type()) {
-                case DEVICE_AVAILABILITY_CHANGED:
-                case DEVICE_ADDED:
-                    break;
-                default:
-                    return false;
-            }
-            // Process device event if this controller instance is the master
-            // for the device and the device is available.
-            DeviceId deviceId = event.subject().id();
-            return mastershipService.isLocalMaster(deviceId) &&
-                    deviceService.isAvailable(event.subject().id());
+        public String name() {
+            return "IPv6 routing";
         }
 
         @Override
-        public void event(DeviceEvent event) {
-            mainComponent.getExecutorService().execute(() -> {
-                DeviceId deviceId = event.subject().id();
-                log.info("{} event! device id={}", event.type(), deviceId);
-                setUpMyStationTable(deviceId);
-            });
+        public Collection<FlowRule> setUpDevice(DeviceId deviceId) {
+            List<FlowRule> flowRules = Lists.newArrayList();
+            flowRules.add(createMyStationRule(deviceId));
+            flowRules.addAll(buildL2NextHopRules(deviceId));
+            flowRules.addAll(buildJournaledRoutes(deviceId));
+            return flowRules;
         }
     }
 
@@ -318,14 +287,16 @@ public class Ipv6RoutingComponent {
     //--------------------------------------------------------------------------
 
     /**
-     * Set up L2 nexthop rules of a device to providing forwarding inside the
-     * fabric, i.e. between leaf and core switches.
+     * Creates the L2 nexthop rules of a device to providing forwarding inside
+     * the fabric, i.e. between leaf and core switches.
      *
      * @param deviceId the device ID
+     * @return L2 nexthop flow rules
      */
-    private void setUpL2NextHopRules(DeviceId deviceId) {
+    private List<FlowRule> buildL2NextHopRules(DeviceId deviceId) {
 
         Set<Link> egressLinks = linkService.getDeviceEgressLinks(deviceId);
+        List<FlowRule> nextHopRules = Lists.newArrayList();
 
         for (Link link : egressLinks) {
             // For each other switch directly connected to this.
@@ -335,10 +306,27 @@ public class Ipv6RoutingComponent {
             // Get next hop MAC address.
             final MacAddress nextHopMac = getMyStationMac(nextHopDevice);
 
-            final FlowRule nextHopRule = createL2NextHopRule(
-                    deviceId, nextHopMac, outPort);
+            nextHopRules.add(createL2NextHopRule(
+                    deviceId, nextHopMac, outPort));
+        }
+        return nextHopRules;
+    }
 
-            flowRuleService.applyFlowRules(nextHopRule);
+    /**
+     * Installs the L2 nexthop rules of a device, e.g. after a link change.
+     *
+     * @param deviceId the device ID
+     * @param source   source of the write
+     */
+    private void installL2NextHopRules(DeviceId deviceId, WriteSource source) {
+        final Span span = OperationTracer.start(OperationType.ROUTE_INSTALL, deviceId)
+                .table(UNICAST.tableId());
+        try {
+            final List<FlowRule> rules = buildL2NextHopRules(deviceId);
+            flowRuleWriter.applyFlowRules(source, rules);
+            span.entries(rules.size()).end(OUTCOME_OK);
+        } finally {
+            span.end(OUTCOME_FAILED);
         }
     }
 
@@ -347,29 +335,54 @@ public class Ipv6RoutingComponent {
                                     int mask, MacAddress nextHopMac) {
         log.info("Adding a route on {}...", routerId);
 
-        final String tableId = "IngressPipeImpl.routing_v6";
-        final String actionName = "IngressPipeImpl.routing_v6";
-
-        final PiCriterion match = PiCriterion.builder()
-                .matchLpm(
-                        PiMatchFieldId.of("hdr.ipv6.dst_addr"),
-                        ipv6Addr.toOctets(),
-                        mask)
-                .build();
-
-        final PiAction action = PiAction.builder()
-                    .withId(PiActionId.of("IngressPipeImpl.set_next_hop"))
-                    .withParameter(new PiActionParam(
-                            // Action param name.
-                            PiActionParamId.of("next_hop"),
-                            // Action param value.
-                            nextHopMac.toBytes()))
-                    .build();
-
-         flowRuleService.applyFlowRules(Utils
-                 .buildFlowRule(routerId, appId, tableId, match, action));
-       
-    }    
+        final Span span = OperationTracer.start(OperationType.ROUTE_INSTALL, routerId)
+                .table(ROUTING_V6.tableId());
+        try {
+            final FlowRule rule = buildRoutingRule(routerId, ipv6Addr, mask, nextHopMac);
+            journal.record(Op.of(Kind.ROUTE, routerId, ipv6Addr, mask, nextHopMac));
+            // Imports may add many routes, written after set up and topology
+            // changes.
+            mainComponent.getExecutor(routerId, BULK).execute(
+                    () -> flowRuleWriter.applyFlowRules(
+                            WRITE_SOURCE, BULK, Collections.singletonList(rule)));
+            span.entries(1).end(OUTCOME_OK);
+        } finally {
+            span.end(OUTCOME_FAILED);
+        }
+    }
+
+    private FlowRule buildRoutingRule(DeviceId routerId, Ip6Address ipv6Addr,
+                                      int mask, MacAddress nextHopMac) {
+        return ROUTING_V6.lpm(routerId, appId, ipv6Addr.toOctets(), mask,
+                              copyFrom(nextHopMac.toBytes()));
+    }
+
+    /**
+     * Builds the rules of the routes recorded in the journal for the given
+     * device, e.g. to restore them after a restart.
+     *
+     * @param deviceId the device ID
+     * @return flow rules
+     */
+    private List<FlowRule> buildJournaledRoutes(DeviceId deviceId) {
+        final List<FlowRule> rules = Lists.newArrayList();
+        for (Op op : journal.getOps(deviceId)) {
+            if (op.kind() != Kind.ROUTE) {
+                continue;
+            }
+            try {
+                rules.add(buildRoutingRule(deviceId, Ip6Address.valueOf(op.arg(0)),
+                                           Integer.parseInt(op.arg(1)),
+                                           MacAddress.valueOf(op.arg(2))));
+            } catch (RuntimeException e) {
+                log.warn("Unable to restore {}: {}", op, e.getMessage());
+            }
+        }
+        if (!rules.isEmpty()) {
+            log.info("Restoring {} routes from journal on {}...", rules.size(), deviceId);
+        }
+        return rules;
+    }
 
     //--------------------------------------------------------------------------
     // UTILITY METHODS
@@ -420,13 +433,14 @@ public class Ipv6RoutingComponent {
     }
 
     /**
-     * Returns a 32 bit bit group ID from the given MAC address.
+     * Returns a 32 bit bit group ID from the given MAC address, outside of the
+     * range used by the pipeliner for the same action profile.
      *
      * @param mac the MAC address
      * @return an integer
      */
     private int macToGroupId(MacAddress mac) {
-        return mac.hashCode() & 0x7fffffff;
+        return mac.hashCode() & 0x7fffffff & ~PIPELINER_GROUP_ID_BIT;
     }
 
     /**
@@ -441,20 +455,4 @@ public class Ipv6RoutingComponent {
                 .orElseThrow(() -> new ItemNotFoundException(
                         "Missing myUSid config for " + deviceId));
     }
-
-    /**
-     * Sets up IPv6 routing on all devices known by ONOS and for which this ONOS
-     * node instance is currently master.
-     */
-    private synchronized void setUpAllDevices() {
-        // Set up host routes
-        stream(deviceService.getAvailableDevices())
-                .map(Device::id)
-                .filter(mastershipService::isLocalMaster)
-                .forEach(deviceId -> {
-                    log.info("*** IPV6 ROUTING - Starting initial set up for {}...", deviceId);
-                    setUpMyStationTable(deviceId);
-                    setUpL2NextHopRules(deviceId);
-                });
-    }
 }
@@ -16,7 +16,9 @@
 
 package org.onosproject.srv6_usid;
 
+import com.google.common.collect.Lists;
 import org.onlab.packet.MacAddress;
+import org.onlab.util.ImmutableByteSequence;
 import org.onosproject.core.ApplicationId;
 import org.onosproject.mastership.MastershipService;
 import org.onosproject.net.ConnectPoint;
@@ -24,12 +26,8 @@ import org.onosproject.net.DeviceId;
 import org.onosproject.net.Host;
 import org.onosproject.net.PortNumber;
 import org.onosproject.net.config.NetworkConfigService;
-import org.onosproject.net.device.DeviceEvent;
-import org.onosproject.net.device.DeviceListener;
 import org.onosproject.net.device.DeviceService;
 import org.onosproject.net.flow.FlowRule;
-import org.onosproject.net.flow.FlowRuleService;
-import org.onosproject.net.flow.criteria.PiCriterion;
 import org.onosproject.net.group.GroupDescription;
 import org.onosproject.net.group.GroupService;
 import org.onosproject.net.host.HostEvent;
@@ -37,25 +35,32 @@ import org.onosproject.net.host.HostListener;
 import org.onosproject.net.host.HostService;
 import org.onosproject.net.intf.Interface;
 import org.onosproject.net.intf.InterfaceService;
-import org.onosproject.net.pi.model.PiActionId;
-import org.onosproject.net.pi.model.PiActionParamId;
-import org.onosproject.net.pi.model.PiMatchFieldId;
-import org.onosproject.net.pi.runtime.PiAction;
-import org.onosproject.net.pi.runtime.PiActionParam;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.onosproject.srv6_usid.common.DeviceSetupStep;
+import org.onosproject.srv6_usid.common.OperationTracer;
+import org.onosproject.srv6_usid.common.OperationTracer.Span;
+import org.onosproject.srv6_usid.common.OperationType;
 import org.onosproject.srv6_usid.common.Srv6DeviceConfig;
 import org.onosproject.srv6_usid.common.Utils;
+import org.onosproject.srv6_usid.common.WriteSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 
-import static org.onosproject.srv6_usid.AppConstants.INITIAL_SETUP_DELAY;
+import static org.onlab.util.ImmutableByteSequence.copyFrom;
+import static org.onosproject.srv6_usid.AppConstants.BROADCAST_GROUP_ID;
+import static org.onosproject.srv6_usid.common.OperationTracer.OUTCOME_FAILED;
+import static org.onosproject.srv6_usid.common.OperationTracer.OUTCOME_OK;
+import static org.onosproject.srv6_usid.common.RuleTemplates.MULTICAST;
+import static org.onosproject.srv6_usid.common.RuleTemplates.UNICAST;
 
 /**
  * App component that configures devices to provide L2 bridging capabilities.
@@ -68,9 +73,9 @@ public class L2BridgingComponent {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
-    private static final int DEFAULT_BROADCAST_GROUP_ID = 255;
+    private static final WriteSource WRITE_SOURCE = WriteSource.of("l2-bridging");
 
-    private final DeviceListener deviceListener = new InternalDeviceListener();
+    private final DeviceSetupStep setupStep = new InternalSetupStep();
     private final HostListener hostListener = new InternalHostListener();
 
     private ApplicationId appId;
@@ -94,9 +99,6 @@ public class L2BridgingComponent {
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     private NetworkConfigService configService;
 
-    @Reference(cardinality = ReferenceCardinality.MANDATORY)
-    private FlowRuleService flowRuleService;
-
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     private GroupService groupService;
 
@@ -106,6 +108,12 @@ public class L2BridgingComponent {
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     private MainComponent mainComponent;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private FlowRuleWriter flowRuleWriter;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceLifecycleComponent deviceLifecycle;
+
     //--------------------------------------------------------------------------
     // COMPONENT ACTIVATION.
     //
@@ -117,35 +125,43 @@ public class L2BridgingComponent {
     protected void activate() {
         appId = mainComponent.getAppId();
 
-        // Register listeners to be informed about device and host events.
-        deviceService.addListener(deviceListener);
+        // Register listeners to be informed about host events.
         hostService.addListener(hostListener);
-        // Schedule set up of existing devices. Needed when reloading the app.
-        mainComponent.scheduleTask(this::setUpAllDevices, INITIAL_SETUP_DELAY);
+        // Set up devices as soon as they are ready, including existing ones
+        // when reloading the app.
+        deviceLifecycle.addSetupStep(setupStep);
 
         log.info("Started");
     }
 
     @Deactivate
     protected void deactivate() {
-        deviceService.removeListener(deviceListener);
         hostService.removeListener(hostListener);
+        deviceLifecycle.removeSetupStep(setupStep);
 
         log.info("Stopped");
     }
 
     /**
      * Sets up everything necessary to support L2 bridging on the given device.
+     * The multicast group is inserted right away, while flow rules are
+     * returned to the caller.
      *
      * @param deviceId the device to set up
+     * @return flow rules to install
      */
-    private void setUpDevice(DeviceId deviceId) {
-        if (isCore(deviceId)) {
-            // Stop here. We support bridging only on leaf/tor switches.
-            return;
+    private List<FlowRule> setUpDevice(DeviceId deviceId) {
+        final List<FlowRule> flowRules = Lists.newArrayList();
+        if (!isCore(deviceId)) {
+            // We support bridging only on leaf/tor switches.
+            insertMulticastGroup(deviceId);
+            flowRules.addAll(buildMulticastFlowRules(deviceId));
         }
-        insertMulticastGroup(deviceId);
-        insertMulticastFlowRules(deviceId);
+        // For all hosts connected to this device...
+        hostService.getConnectedHosts(deviceId).forEach(
+                host -> flowRules.add(buildHostRule(
+                        host, deviceId, host.location().port())));
+        return flowRules;
     }
 
     /**
@@ -173,106 +189,90 @@ public class L2BridgingComponent {
 
         // Forge group object.
         final GroupDescription multicastGroup = Utils.buildMulticastGroup(
-                appId, deviceId, DEFAULT_BROADCAST_GROUP_ID, ports);
+                appId, deviceId, BROADCAST_GROUP_ID, ports);
 
-        // Insert.
-        groupService.addGroup(multicastGroup);
+        // Insert, unless already installed.
+        flowRuleWriter.addGroup(multicastGroup);
     }
 
     /**
-     * Insert flow rules matching matching ethernet destination
+     * Creates flow rules matching matching ethernet destination
      * broadcast/multicast addresses (e.g. ARP requests, NDP Neighbor
      * Solicitation, etc.). Such packets should be processed by the multicast
      * group created before.
      * <p>
-     * This method will be called at component activation for each device
-     * (switch) known by ONOS, and every time a new device-added event is
-     * captured by the InternalDeviceListener defined below.
+     * This method will be called by the set up step defined below, every time
+     * a device becomes ready.
      *
      * @param deviceId device ID where to install the rules
+     * @return multicast flow rules
      */
-    private void insertMulticastFlowRules(DeviceId deviceId) {
+    private List<FlowRule> buildMulticastFlowRules(DeviceId deviceId) {
 
         log.info("Adding L2 multicast rules on {}...", deviceId);
 
-        final PiCriterion macBroadcastCriterion = PiCriterion.builder()
-                .matchTernary(
-                        PiMatchFieldId.of("hdr.ethernet.dst_addr"),
-                        MacAddress.valueOf("ff:ff:ff:ff:ff:ff").toBytes(),
-                        MacAddress.valueOf("ff:ff:ff:ff:ff:ff").toBytes())
-                .build();
+        final byte[] broadcastMac = MacAddress.valueOf("ff:ff:ff:ff:ff:ff").toBytes();
 
         // Match NDP NS - Match ternary 33:33:**:**:**:**
-        final PiCriterion ipv6MulticastCriterion = PiCriterion.builder()
-                .matchTernary(
-                        PiMatchFieldId.of("hdr.ethernet.dst_addr"),
-                        MacAddress.valueOf("33:33:00:00:00:00").toBytes(),
-                        MacAddress.valueOf("ff:ff:00:00:00:00").toBytes())
-                .build();
+        final byte[] ipv6MulticastMac = MacAddress.valueOf("33:33:00:00:00:00").toBytes();
+        final byte[] ipv6MulticastMask = MacAddress.valueOf("ff:ff:00:00:00:00").toBytes();
 
         // Action: set multicast group id (the same used )
-        final PiAction setMcastGroupAction = PiAction.builder()
-                .withId(PiActionId.of("IngressPipeImpl.set_multicast_group"))
-                .withParameter(new PiActionParam(
-                        PiActionParamId.of("gid"),
-                        DEFAULT_BROADCAST_GROUP_ID))
-                .build();
+        final ImmutableByteSequence groupId = copyFrom(BROADCAST_GROUP_ID);
 
         //  Build 2 flow rules.
-        final String tableId = "IngressPipeImpl.multicast";
         // ---- END SOLUTION ----
 
-        final FlowRule rule1 = Utils.buildFlowRule(
-                deviceId, appId, tableId,
-                macBroadcastCriterion, setMcastGroupAction);
+        final FlowRule rule1 = MULTICAST.ternary(
+                deviceId, appId, broadcastMac, broadcastMac, groupId);
 
-        final FlowRule rule2 = Utils.buildFlowRule(
-                deviceId, appId, tableId,
-                ipv6MulticastCriterion, setMcastGroupAction);
+        final FlowRule rule2 = MULTICAST.ternary(
+                deviceId, appId, ipv6MulticastMac, ipv6MulticastMask, groupId);
 
-        // Insert rules.
-        flowRuleService.applyFlowRules(rule1, rule2);
+        return Lists.newArrayList(rule1, rule2);
     }
 
     /**
      * Insert flow rules to forward packets to a given host located at the given
      * device and port.
      * <p>
-     * This method will be called at component activation for each host known by
-     * ONOS, and every time a new host-added event is captured by the
-     * InternalHostListener defined below.
+     * This method will be called every time a new host-added event is captured
+     * by the InternalHostListener defined below.
+     *
+     * @param host     host instance
+     * @param deviceId device where the host is located
+     * @param port     port where the host is attached to
+     * @param source   source of the write
+     */
+    private void learnHost(Host host, DeviceId deviceId, PortNumber port,
+                           WriteSource source) {
+        final Span span = OperationTracer.start(OperationType.HOST_LEARN, deviceId)
+                .table(UNICAST.tableId());
+        try {
+            flowRuleWriter.applyFlowRules(source, buildHostRule(host, deviceId, port));
+            span.entries(1).end(OUTCOME_OK);
+        } finally {
+            span.end(OUTCOME_FAILED);
+        }
+    }
+
+    /**
+     * Creates the flow rule to forward packets to a given host located at the
+     * given device and port.
      *
      * @param host     host instance
      * @param deviceId device where the host is located
      * @param port     port where the host is attached to
+     * @return L2 unicast flow rule
      */
-    private void learnHost(Host host, DeviceId deviceId, PortNumber port) {
+    private FlowRule buildHostRule(Host host, DeviceId deviceId, PortNumber port) {
 
         log.info("Adding L2 unicast rule on {} for host {} (port {})...",
                  deviceId, host.id(), port);
 
-        final String tableId = "IngressPipeImpl.unicast";
-        // Match exactly on the host MAC address.
-        final MacAddress hostMac = host.mac();
-        final PiCriterion hostMacCriterion = PiCriterion.builder()
-                .matchExact(PiMatchFieldId.of("hdr.ethernet.dst_addr"),
-                            hostMac.toBytes())
-                .build();
-
-        // Action: set output port
-        final PiAction l2UnicastAction = PiAction.builder()
-                .withId(PiActionId.of("IngressPipeImpl.set_output_port"))
-                .withParameter(new PiActionParam(
-                        PiActionParamId.of("port_num"),
-                        port.toLong()))
-                .build();
-
-        // Forge flow rule.
-        final FlowRule rule = Utils.buildFlowRule(
-                deviceId, appId, tableId, hostMacCriterion, l2UnicastAction);
-
-        // Insert.
-        flowRuleService.applyFlowRules(rule);
+        // Match exactly on the host MAC address, set output port.
+        return UNICAST.exact(deviceId, appId, host.mac().toBytes(),
+                             copyFrom(port.toLong()));
     }
 
     //--------------------------------------------------------------------------
@@ -282,41 +282,18 @@ public class L2BridgingComponent {
     //--------------------------------------------------------------------------
 
     /**
-     * Listener of device events.
+     * Set up step of L2 bridging.
      */
-    public class InternalDeviceListener implements DeviceListener {
+    private class InternalSetupStep implements DeviceSetupStep {
 
         @Override
-        public boolean isRelevant(DeviceEvent event) {
-            switch (event.type()) {
-                case DEVICE_ADDED:
-                case DEVICE_AVAILABILITY_CHANGED:
-                    break;
-                default:
-                    // Ignore other events.
-                    return false;
-            }
-            // Process only if this controller instance is the master.
-            final DeviceId deviceId = event.subject().id();
-            return mastershipService.isLocalMaster(deviceId);
+        public String name() {
+            return "L2 bridging";
         }
 
         @Override
-        public void event(DeviceEvent event) {
-            final DeviceId deviceId = event.subject().id();
-            if (deviceService.isAvailable(deviceId)) {
-                // A P4Runtime device is considered available in ONOS when there
-                // is a StreamChannel session open and the pipeline
-                // configuration has been set.
-
-                // Events are processed using a thread pool defined in the
-                // MainComponent.
-                mainComponent.getExecutorService().execute(() -> {
-                    log.info("{} event! deviceId={}", event.type(), deviceId);
-
-                    setUpDevice(deviceId);
-                });
-            }
+        public Collection<FlowRule> setUpDevice(DeviceId deviceId) {
+            return L2BridgingComponent.this.setUpDevice(deviceId);
         }
     }
 
@@ -353,12 +330,13 @@ public class L2BridgingComponent {
             // Device and port where the host is located.
             final DeviceId deviceId = host.location().deviceId();
             final PortNumber port = host.location().port();
+            final WriteSource source = WRITE_SOURCE.forEvent("host", event);
 
-            mainComponent.getExecutorService().execute(() -> {
+            mainComponent.getExecutor(deviceId).execute(() -> {
                 log.info("{} event! host={}, deviceId={}, port={}",
                          event.type(), host.id(), deviceId, port);
 
-                learnHost(host, deviceId, port);
+                learnHost(host, deviceId, port, source);
             });
         }
     }
@@ -416,23 +394,4 @@ public class L2BridgingComponent {
                 deviceId, Srv6DeviceConfig.class);
         return cfg != null && cfg.isCore();
     }
-
-    /**
-     * Sets up L2 bridging on all devices known by ONOS and for which this ONOS
-     * node instance is currently master.
-     * <p>
-     * This method is called at component activation.
-     */
-    private void setUpAllDevices() {
-        deviceService.getAvailableDevices().forEach(device -> {
-            if (mastershipService.isLocalMaster(device.id())) {
-                log.info("*** L2 BRIDGING - Starting initial set up for {}...", device.id());
-                setUpDevice(device.id());
-                // For all hosts connected to this device...
-                hostService.getConnectedHosts(device.id()).forEach(
-                        host -> learnHost(host, host.location().deviceId(),
-                                          host.location().port()));
-            }
-        });
-    }
 }
@@ -1,6 +1,8 @@
 package org.onosproject.srv6_usid;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.onlab.util.SharedScheduledExecutors;
 import org.onosproject.cfg.ComponentConfigService;
 import org.onosproject.core.ApplicationId;
@@ -12,34 +14,67 @@ import org.onosproject.net.config.NetworkConfigRegistry;
 import org.onosproject.net.config.basics.SubjectFactories;
 import org.onosproject.net.device.DeviceService;
 import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
 import org.onosproject.net.flow.FlowRuleService;
 import org.onosproject.net.group.Group;
+import org.onosproject.net.group.GroupEvent;
+import org.onosproject.net.group.GroupKey;
+import org.onosproject.net.group.GroupListener;
 import org.onosproject.net.group.GroupService;
+import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.onosproject.srv6_usid.common.KeyedExecutor;
 import org.onosproject.srv6_usid.common.Srv6DeviceConfig;
+import org.onosproject.srv6_usid.common.TaskPriority;
 import org.onosproject.srv6_usid.pipeconf.PipeconfLoader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
+import static org.onlab.util.Tools.getIntegerProperty;
+import static org.onlab.util.Tools.groupedThreads;
+import static org.onlab.util.Tools.isPropertyEnabled;
 import static org.onosproject.srv6_usid.AppConstants.APP_NAME;
-import static org.onosproject.srv6_usid.AppConstants.CLEAN_UP_DELAY;
-import static org.onosproject.srv6_usid.AppConstants.DEFAULT_CLEAN_UP_RETRY_TIMES;
-import static org.onosproject.srv6_usid.common.Utils.sleep;
+import static org.onosproject.srv6_usid.AppConstants.CLEAN_UP_TIMEOUT;
+import static org.onosproject.srv6_usid.AppConstants.DEACTIVATE_CLEAN_UP_TIMEOUT;
+import static org.onosproject.srv6_usid.AppConstants.EXECUTOR_POOL_SIZE;
+import static org.onosproject.srv6_usid.AppConstants.EXECUTOR_POOL_SIZE_DEFAULT;
+import static org.onosproject.srv6_usid.AppConstants.EXECUTOR_SHUTDOWN_TIMEOUT;
+import static org.onosproject.srv6_usid.AppConstants.WARM_RESTART;
+import static org.onosproject.srv6_usid.AppConstants.WARM_RESTART_DEFAULT;
 
 /**
  * A component which among other things registers the Srv6DeviceConfig to the
  * netcfg subsystem.
  */
-@Component(immediate = true, service = MainComponent.class)
+@Component(
+        immediate = true,
+        service = MainComponent.class,
+        property = {
+                WARM_RESTART + ":Boolean=" + WARM_RESTART_DEFAULT,
+                EXECUTOR_POOL_SIZE + ":Integer=" + EXECUTOR_POOL_SIZE_DEFAULT,
+        }
+)
 public class MainComponent {
 
     private static final Logger log =
@@ -77,18 +112,68 @@ public class MainComponent {
                 }
             };
 
+    /** Keep flows and groups at deactivation, and adopt them at activation (warm restart). */
+    private boolean warmRestart = WARM_RESTART_DEFAULT;
+
+    /** Threads running per-device configuration tasks, 0 for one per processor. */
+    private int executorPoolSize = EXECUTOR_POOL_SIZE_DEFAULT;
+
     private ApplicationId appId;
 
-    // For the sake of simplicity and to facilitate reading logs, use a
-    // single-thread executor to serialize all configuration tasks.
+    // Whether flows from previous executions were kept at activation, to be
+    // adopted, see FlowRuleWriter.
+    private boolean adoptingFlows;
+
+    // Single-thread executor for fabric-wide tasks that are not bound to a
+    // specific device.
     private final ExecutorService executorService = Executors.newSingleThreadExecutor();
 
+    // Executor for per-device tasks. Tasks for the same device are serialized,
+    // tasks for different devices run in parallel. More urgent tasks (e.g.
+    // device bring-up) run before less urgent ones (e.g. bulk imports).
+    private KeyedExecutor<DeviceId> deviceExecutor;
+
+    private final GroupListener groupListener = new InternalGroupListener();
+
+    // Groups for which a removal was requested, per device. Futures are
+    // completed when the group removed event is received, and the map of a
+    // device is dropped once empty.
+    private final Map<DeviceId, Map<GroupKey, CompletableFuture<Void>>> pendingGroupRemovals =
+            Maps.newConcurrentMap();
+
+    // Completed when flows and groups from previous executions are removed.
+    // Until then, tasks submitted by the other components are deferred.
+    private CompletableFuture<Void> cleanupFuture;
+    private final List<Runnable> deferredTasks = Lists.newArrayList();
+    private boolean cleanupDone;
+
     @Activate
-    protected void activate() {
+    protected void activate(ComponentContext context) {
         appId = coreService.registerApplication(APP_NAME);
 
-        // Wait to remove flow and groups from previous executions.
-        waitPreviousCleanup();
+        compCfgService.registerProperties(getClass());
+        modified(context);
+
+        deviceExecutor = new KeyedExecutor<>(
+                poolSize(), groupedThreads("srv6-usid", "device-config-%d", log));
+        log.info("Using {} threads for per-device configuration tasks", poolSize());
+
+        groupService.addListener(groupListener);
+
+        adoptingFlows = warmRestart;
+
+        // Remove flow and groups from previous executions, without blocking
+        // activation. Tasks are released once devices confirm the removal.
+        // On warm restart, leave them to be adopted.
+        cleanupFuture = adoptingFlows ? CompletableFuture.completedFuture(null) : cleanUp();
+        SharedScheduledExecutors.newTimeout(() -> {
+            if (cleanupFuture.complete(null)) {
+                log.warn("Clean up of previous execution of {} not confirmed " +
+                                 "after {} ms, proceeding anyway",
+                         appId.name(), CLEAN_UP_TIMEOUT);
+            }
+        }, CLEAN_UP_TIMEOUT, TimeUnit.MILLISECONDS);
+        cleanupFuture.whenComplete((r, e) -> releaseDeferredTasks());
 
         compCfgService.preSetProperty("org.onosproject.net.flow.impl.FlowRuleManager",
                                       "fallbackFlowPollFrequency", "4", false);
@@ -101,11 +186,44 @@ public class MainComponent {
         log.info("Started");
     }
 
+    @Modified
+    protected void modified(ComponentContext context) {
+        final Dictionary<?, ?> properties = context.getProperties();
+        warmRestart = isPropertyEnabled(properties, WARM_RESTART, WARM_RESTART_DEFAULT);
+        executorPoolSize = getIntegerProperty(properties, EXECUTOR_POOL_SIZE,
+                                              EXECUTOR_POOL_SIZE_DEFAULT);
+        if (deviceExecutor != null && deviceExecutor.poolSize() != poolSize()) {
+            deviceExecutor.setPoolSize(poolSize());
+            log.info("Using {} threads for per-device configuration tasks", poolSize());
+        }
+    }
+
     @Deactivate
     protected void deactivate() {
         configRegistry.unregisterConfigFactory(srv6ConfigFactory);
+        compCfgService.unregisterProperties(getClass(), false);
+
+        if (!warmRestart) {
+            // Do not hold the SCR thread until every device confirms: what
+            // is left behind is removed by the clean up at next activation.
+            try {
+                cleanUp().get(DEACTIVATE_CLEAN_UP_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                log.warn("Interrupted while cleaning up", e);
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                log.warn("Unable to confirm clean up of flows and groups", e);
+            } catch (TimeoutException e) {
+                log.info("Clean up of flows and groups not confirmed after {} ms, " +
+                                 "leftovers will be removed at next activation",
+                         DEACTIVATE_CLEAN_UP_TIMEOUT);
+            }
+        }
+        groupService.removeListener(groupListener);
+        pendingGroupRemovals.clear();
 
-        cleanUp();
+        deviceExecutor.shutdown(EXECUTOR_SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+        executorService.shutdown();
 
         log.info("Stopped");
     }
@@ -120,7 +238,23 @@ public class MainComponent {
     }
 
     /**
-     * Returns the executor service managed by this component.
+     * Returns true if the app was activated in warm restart mode, i.e. flows
+     * and groups from the previous execution were kept to be adopted.
+     *
+     * @return true if warm restart is enabled
+     */
+    boolean isWarmRestart() {
+        return adoptingFlows;
+    }
+
+    private int poolSize() {
+        return executorPoolSize > 0 ? executorPoolSize : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Returns the executor service managed by this component, to be used for
+     * fabric-wide tasks. Tasks for a specific device should be submitted to
+     * {@link #getExecutor(DeviceId)} instead.
      *
      * @return executor service
      */
@@ -128,6 +262,31 @@ public class MainComponent {
         return executorService;
     }
 
+    /**
+     * Returns an executor for tasks related to the given device, reacting to
+     * topology changes. Tasks for the same device are executed one at a time,
+     * tasks for different devices might be executed in parallel.
+     *
+     * @param deviceId the device ID
+     * @return executor
+     */
+    public Executor getExecutor(DeviceId deviceId) {
+        return getExecutor(deviceId, TaskPriority.TOPOLOGY_CHANGE);
+    }
+
+    /**
+     * Returns an executor for tasks related to the given device with the
+     * given priority. Pending tasks with higher priority are executed first.
+     *
+     * @param deviceId the device ID
+     * @param priority the task priority
+     * @return executor
+     */
+    public Executor getExecutor(DeviceId deviceId, TaskPriority priority) {
+        return task -> submitAfterCleanup(
+                () -> deviceExecutor.execute(deviceId, priority, task));
+    }
+
     /**
      * Schedules a task for the future using the executor service managed by
      * this component.
@@ -137,55 +296,176 @@ public class MainComponent {
      */
     public void scheduleTask(Runnable task, int delaySeconds) {
         SharedScheduledExecutors.newTimeout(
-                () -> executorService.execute(task),
+                () -> submitAfterCleanup(() -> executorService.execute(task)),
                 delaySeconds, TimeUnit.SECONDS);
     }
 
     /**
-     * Triggers clean up of flows and groups from this app, returns false if no
-     * flows or groups were found, true otherwise.
+     * Returns the number of tasks waiting or running for the given device.
+     *
+     * @param deviceId the device ID
+     * @return queue depth
+     */
+    public int getQueueDepth(DeviceId deviceId) {
+        return deviceExecutor.queueDepth(deviceId);
+    }
+
+    /**
+     * Returns the statistics of the per-device tasks, e.g. queue depth and
+     * task latency.
      *
-     * @return false if no flows or groups were found, true otherwise
+     * @return map of device ID to statistics
      */
-    private boolean cleanUp() {
-        Collection<FlowRule> flows = Lists.newArrayList(
-                flowRuleService.getFlowEntriesById(appId).iterator());
+    public Map<DeviceId, KeyedExecutor.Stats> getExecutorStats() {
+        return deviceExecutor.stats();
+    }
 
-        Collection<Group> groups = Lists.newArrayList();
+    /**
+     * Submits a task now if the clean up of previous executions is complete,
+     * otherwise defers it until then. Deferred tasks are submitted in order.
+     *
+     * @param submission runnable submitting the task to an executor
+     */
+    private void submitAfterCleanup(Runnable submission) {
+        synchronized (deferredTasks) {
+            if (!cleanupDone) {
+                deferredTasks.add(submission);
+                return;
+            }
+        }
+        submission.run();
+    }
+
+    private void releaseDeferredTasks() {
+        synchronized (deferredTasks) {
+            if (cleanupDone) {
+                return;
+            }
+            log.info("Clean up complete, submitting {} deferred tasks",
+                     deferredTasks.size());
+            cleanupDone = true;
+            // Submit while holding the lock to preserve ordering with tasks
+            // submitted concurrently.
+            deferredTasks.forEach(Runnable::run);
+            deferredTasks.clear();
+        }
+    }
+
+    /**
+     * Triggers clean up of flows and groups from this app. Flows are removed
+     * with one batch per device, then the groups of that device are removed
+     * once the device confirms the flow removal (in case flows depend on
+     * groups).
+     *
+     * @return future completed when all devices confirmed the removal
+     */
+    private CompletableFuture<Void> cleanUp() {
+        Map<DeviceId, List<FlowRule>> flows = Lists.newArrayList(
+                flowRuleService.getFlowEntriesById(appId).iterator())
+                .stream()
+                .collect(Collectors.groupingBy(FlowRule::deviceId));
+
+        Map<DeviceId, List<Group>> groups = Maps.newHashMap();
         for (Device device : deviceService.getAvailableDevices()) {
-            groupService.getGroups(device.id(), appId).forEach(groups::add);
+            List<Group> deviceGroups = Lists.newArrayList(
+                    groupService.getGroups(device.id(), appId));
+            if (!deviceGroups.isEmpty()) {
+                groups.put(device.id(), deviceGroups);
+            }
         }
 
         if (flows.isEmpty() && groups.isEmpty()) {
-            return false;
+            return CompletableFuture.completedFuture(null);
         }
 
-        flows.forEach(flowRuleService::removeFlowRules);
-        if (!groups.isEmpty()) {
-            // Wait for flows to be removed in case those depend on groups.
-            sleep(1000);
-            groups.forEach(g -> groupService.removeGroup(
-                    g.deviceId(), g.appCookie(), g.appId()));
-        }
+        log.info("Removing {} flows and {} groups from previous execution of {}...",
+                 flows.values().stream().mapToInt(List::size).sum(),
+                 groups.values().stream().mapToInt(List::size).sum(),
+                 appId.name());
+
+        Set<DeviceId> deviceIds = Sets.union(flows.keySet(), groups.keySet());
 
-        return true;
+        return CompletableFuture.allOf(deviceIds.stream()
+                .map(deviceId -> removeFlows(
+                        deviceId, flows.getOrDefault(deviceId, Collections.emptyList()))
+                        .thenCompose(v -> removeGroups(
+                                deviceId, groups.getOrDefault(deviceId, Collections.emptyList()))))
+                .toArray(CompletableFuture[]::new));
     }
 
-    private void waitPreviousCleanup() {
-        int retry = DEFAULT_CLEAN_UP_RETRY_TIMES;
-        while (retry != 0) {
+    private CompletableFuture<Void> removeFlows(DeviceId deviceId,
+                                                Collection<FlowRule> flows) {
+        if (flows.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+        flows.forEach(ops::remove);
+        flowRuleService.apply(ops.build(new FlowRuleOperationsContext() {
+            @Override
+            public void onSuccess(FlowRuleOperations ops) {
+                future.complete(null);
+            }
 
-            if (!cleanUp()) {
-                return;
+            @Override
+            public void onError(FlowRuleOperations ops) {
+                // Go ahead with the groups, stale flows will be removed by the
+                // flow subsystem anyway.
+                log.warn("Unable to remove some flows from {}", deviceId);
+                future.complete(null);
+            }
+        }));
+        return future;
+    }
+
+    private CompletableFuture<Void> removeGroups(DeviceId deviceId,
+                                                 Collection<Group> groups) {
+        if (groups.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        List<CompletableFuture<Void>> futures = Lists.newArrayList();
+        // Register the futures atomically with respect to the listener,
+        // which drops the map of a device once its last removal completes.
+        pendingGroupRemovals.compute(deviceId, (d, pending) -> {
+            if (pending == null) {
+                pending = Maps.newHashMap();
             }
+            for (Group g : groups) {
+                CompletableFuture<Void> future = pending.computeIfAbsent(
+                        g.appCookie(), k -> new CompletableFuture<>());
+                futures.add(future);
+            }
+            return pending;
+        });
+        groups.forEach(g -> groupService.removeGroup(g.deviceId(), g.appCookie(), g.appId()));
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+    }
 
-            log.info("Waiting to remove flows and groups from " +
-                             "previous execution of {}...",
-                     appId.name());
+    /**
+     * Listener of group events, which tracks the completion of group removals
+     * requested by the clean up.
+     */
+    private class InternalGroupListener implements GroupListener {
 
-            sleep(CLEAN_UP_DELAY);
+        @Override
+        public boolean isRelevant(GroupEvent event) {
+            return event.type() == GroupEvent.Type.GROUP_REMOVED &&
+                    pendingGroupRemovals.containsKey(event.subject().deviceId());
+        }
 
-            --retry;
+        @Override
+        public void event(GroupEvent event) {
+            final Group group = event.subject();
+            final List<CompletableFuture<Void>> removed = Lists.newArrayList();
+            pendingGroupRemovals.computeIfPresent(group.deviceId(), (d, pending) -> {
+                CompletableFuture<Void> future = pending.remove(group.appCookie());
+                if (future != null) {
+                    removed.add(future);
+                }
+                return pending.isEmpty() ? null : pending;
+            });
+            // Complete outside of compute(), dependent stages may call back.
+            removed.forEach(f -> f.complete(null));
         }
     }
 }
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.TableId;
+import org.onosproject.srv6_usid.common.LatencyHistogram;
+import org.onosproject.srv6_usid.common.RateCounter;
+import org.onosproject.srv6_usid.common.WriteSource;
+import org.onosproject.srv6_usid.pipeconf.InterpreterServices;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * App component collecting the metrics of the app, i.e. the latency of the
+ * flow rule writes, per requesting component, device and table, the lag
+ * between the events received by the listeners and the writes they caused,
+ * and the rate of packet-ins and packet-outs.
+ * <p>
+ * Recording is lock-free, so that it can be done on the hot paths. Each
+ * dimension has its own histograms, instead of one per combination of them,
+ * so that memory grows with the number of devices and not faster.
+ */
+@Component(
+        immediate = true,
+        enabled = true,
+        service = MetricsComponent.class
+)
+public class MetricsComponent {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(MetricsComponent.class.getName());
+
+    private final Map<String, LatencyHistogram> writeLatencyByComponent = Maps.newConcurrentMap();
+    private final Map<DeviceId, LatencyHistogram> writeLatencyByDevice = Maps.newConcurrentMap();
+    private final Map<String, LatencyHistogram> writeLatencyByTable = Maps.newConcurrentMap();
+    private final Map<String, LatencyHistogram> eventToWriteLag = Maps.newConcurrentMap();
+
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder failedWrites = new LongAdder();
+
+    private final RateCounter packetsIn = new RateCounter();
+    private final RateCounter packetsInDropped = new RateCounter();
+    private final RateCounter packetsInMalformed = new RateCounter();
+    private final RateCounter packetsOut = new RateCounter();
+
+    @Activate
+    protected void activate() {
+        InterpreterServices.bind(this);
+        log.info("Started");
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        InterpreterServices.unbind(this);
+        writeLatencyByComponent.clear();
+        writeLatencyByDevice.clear();
+        writeLatencyByTable.clear();
+        eventToWriteLag.clear();
+
+        log.info("Stopped");
+    }
+
+    /**
+     * Records a batch of flow rule operations written to a device, when the
+     * device confirms it or reports a failure.
+     *
+     * @param deviceId     the device ID
+     * @param tables       tables of the operations written
+     * @param sources      sources of the operations written
+     * @param latencyNanos time from the write to its confirmation
+     * @param failed       true if the batch failed
+     */
+    public void recordWrite(DeviceId deviceId, Set<TableId> tables, Set<WriteSource> sources,
+                            long latencyNanos, boolean failed) {
+        writes.increment();
+        if (failed) {
+            failedWrites.increment();
+        }
+        histogram(writeLatencyByDevice, deviceId).record(latencyNanos);
+        for (TableId table : tables) {
+            histogram(writeLatencyByTable, table.toString()).record(latencyNanos);
+        }
+        final long nowMillis = System.currentTimeMillis();
+        for (WriteSource source : sources) {
+            histogram(writeLatencyByComponent, source.component()).record(latencyNanos);
+            if (!failed && source.listener() != null) {
+                histogram(eventToWriteLag, source.listener()).record(
+                        TimeUnit.MILLISECONDS.toNanos(nowMillis - source.eventTime()));
+            }
+        }
+    }
+
+    /**
+     * Counts a packet-in seen by the interpreter.
+     *
+     * @param admitted true if admitted, false if dropped by rate limiting
+     */
+    public void packetIn(boolean admitted) {
+        (admitted ? packetsIn : packetsInDropped).increment();
+    }
+
+    /**
+     * Counts a packet-in whose frame could not be parsed.
+     */
+    public void packetInMalformed() {
+        packetsInMalformed.increment();
+    }
+
+    /**
+     * Counts packet-outs built by the interpreter.
+     *
+     * @param count number of packets
+     */
+    public void packetOut(int count) {
+        packetsOut.add(count);
+    }
+
+    /**
+     * Returns the latency of flow rule writes, per component that requested
+     * them. A batch with operations of several components counts for each.
+     *
+     * @return map of component name to latency snapshot
+     */
+    public Map<String, LatencyHistogram.Snapshot> getWriteLatencyByComponent() {
+        return snapshot(writeLatencyByComponent);
+    }
+
+    /**
+     * Returns the latency of flow rule writes, per device.
+     *
+     * @return map of device ID to latency snapshot
+     */
+    public Map<DeviceId, LatencyHistogram.Snapshot> getWriteLatencyByDevice() {
+        return snapshot(writeLatencyByDevice);
+    }
+
+    /**
+     * Returns the latency of flow rule writes, per table. A batch with
+     * operations on several tables counts for each.
+     *
+     * @return map of table ID to latency snapshot
+     */
+    public Map<String, LatencyHistogram.Snapshot> getWriteLatencyByTable() {
+        return snapshot(writeLatencyByTable);
+    }
+
+    /**
+     * Returns the time from the events received by the listeners to the
+     * confirmation of the writes they caused, per listener.
+     *
+     * @return map of listener name to lag snapshot
+     */
+    public Map<String, LatencyHistogram.Snapshot> getEventToWriteLag() {
+        return snapshot(eventToWriteLag);
+    }
+
+    /**
+     * Returns the number of batches written.
+     *
+     * @return batches written
+     */
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    /**
+     * Returns the number of batches that failed.
+     *
+     * @return failed batches
+     */
+    public long getFailedWrites() {
+        return failedWrites.sum();
+    }
+
+    /**
+     * Returns the counter of packet-ins admitted by the interpreter.
+     *
+     * @return rate counter
+     */
+    public RateCounter getPacketsIn() {
+        return packetsIn;
+    }
+
+    /**
+     * Returns the counter of packet-ins dropped by the interpreter.
+     *
+     * @return rate counter
+     */
+    public RateCounter getPacketsInDropped() {
+        return packetsInDropped;
+    }
+
+    /**
+     * Returns the counter of packet-ins whose frame could not be parsed.
+     *
+     * @return rate counter
+     */
+    public RateCounter getPacketsInMalformed() {
+        return packetsInMalformed;
+    }
+
+    /**
+     * Returns the counter of packet-outs built by the interpreter.
+     *
+     * @return rate counter
+     */
+    public RateCounter getPacketsOut() {
+        return packetsOut;
+    }
+
+    private static <K> LatencyHistogram histogram(Map<K, LatencyHistogram> histograms, K key) {
+        final LatencyHistogram histogram = histograms.get(key);
+        return histogram != null ? histogram
+                : histograms.computeIfAbsent(key, k -> new LatencyHistogram());
+    }
+
+    private static <K> Map<K, LatencyHistogram.Snapshot> snapshot(
+            Map<K, LatencyHistogram> histograms) {
+        return histograms.entrySet().stream()
+                .collect(ImmutableMap.toImmutableMap(
+                        Map.Entry::getKey, e -> e.getValue().snapshot()));
+    }
+}
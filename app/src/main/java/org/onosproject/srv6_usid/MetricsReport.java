@@ -0,0 +1,176 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Lists;
+import org.onlab.osgi.ServiceDirectory;
+import org.onosproject.srv6_usid.common.KeyedExecutor;
+import org.onosproject.srv6_usid.common.LatencyHistogram;
+import org.onosproject.srv6_usid.common.PuntType;
+import org.onosproject.srv6_usid.common.RateCounter;
+import org.onosproject.srv6_usid.common.WriteRateLimiter;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Report of the metrics of the app, gathered from the metrics component and
+ * from the statistics kept by the other components, e.g. the executors and
+ * the packet-in admission. Used by the CLI and the REST API.
+ * <p>
+ * The report is a JSON object with a section per kind of metric. Each
+ * section maps a name, e.g. a device ID, to an object of scalar values.
+ * Durations are in milliseconds.
+ */
+public final class MetricsReport {
+
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private MetricsReport() {
+        // Utility class.
+    }
+
+    /**
+     * Returns the report of the current metrics.
+     *
+     * @param services directory of the app components
+     * @param mapper   object mapper
+     * @return JSON report
+     */
+    public static ObjectNode toJson(ServiceDirectory services, ObjectMapper mapper) {
+        final ObjectNode report = mapper.createObjectNode();
+
+        final MetricsComponent metrics = services.get(MetricsComponent.class);
+        histograms(report.putObject("writeLatencyByComponent"), metrics.getWriteLatencyByComponent());
+        histograms(report.putObject("writeLatencyByDevice"), metrics.getWriteLatencyByDevice());
+        histograms(report.putObject("writeLatencyByTable"), metrics.getWriteLatencyByTable());
+        histograms(report.putObject("eventToWriteLag"), metrics.getEventToWriteLag());
+
+        final ObjectNode writes = report.putObject("writeRate");
+        services.get(FlowRuleWriter.class).getWriteStats()
+                .forEach((deviceId, stats) -> writeStats(writes.putObject(deviceId.toString()), stats));
+
+        final ObjectNode executors = report.putObject("executors");
+        services.get(MainComponent.class).getExecutorStats()
+                .forEach((deviceId, stats) -> executorStats(executors.putObject(deviceId.toString()), stats));
+
+        final ObjectNode packets = report.putObject("packets");
+        rate(packets.putObject("in"), metrics.getPacketsIn());
+        rate(packets.putObject("inDropped"), metrics.getPacketsInDropped());
+        rate(packets.putObject("inMalformed"), metrics.getPacketsInMalformed());
+        rate(packets.putObject("out"), metrics.getPacketsOut());
+
+        final PacketInAdmissionComponent admission = services.get(PacketInAdmissionComponent.class);
+        final ObjectNode admitted = report.putObject("admission");
+        puntCounters(admitted, admission.getAcceptedCounters(), "accepted");
+        puntCounters(admitted, admission.getDroppedCounters(), "dropped");
+
+        final ObjectNode dispatch = report.putObject("dispatch");
+        final List<PacketDispatchComponent.Stats> shards =
+                services.get(PacketDispatchComponent.class).getDispatchStats();
+        for (int i = 0; i < shards.size(); i++) {
+            dispatchStats(dispatch.putObject("shard" + i), shards.get(i));
+        }
+
+        return report;
+    }
+
+    /**
+     * Formats the given report as text, with one line per section and per
+     * entry of each section.
+     *
+     * @param report JSON report
+     * @return lines of text
+     */
+    public static List<String> format(ObjectNode report) {
+        final List<String> lines = Lists.newArrayList();
+        report.fields().forEachRemaining(section -> {
+            lines.add(section.getKey() + ":");
+            if (section.getValue().size() == 0) {
+                lines.add("  (none)");
+            }
+            section.getValue().fields().forEachRemaining(entry -> {
+                final List<String> values = Lists.newArrayList();
+                entry.getValue().fields().forEachRemaining(
+                        value -> values.add(value.getKey() + "=" + value.getValue().asText()));
+                lines.add("  " + entry.getKey() + ": " + String.join(", ", values));
+            });
+        });
+        return lines;
+    }
+
+    private static <K> void histograms(ObjectNode node, Map<K, LatencyHistogram.Snapshot> histograms) {
+        histograms.forEach((key, snapshot) -> node.putObject(key.toString())
+                .put("count", snapshot.count())
+                .put("mean", millis(snapshot.meanNanos()))
+                .put("p50", millis(snapshot.percentileNanos(50)))
+                .put("p99", millis(snapshot.percentileNanos(99)))
+                .put("max", millis(snapshot.maxNanos())));
+    }
+
+    private static void writeStats(ObjectNode node, WriteRateLimiter.Stats stats) {
+        node.put("rate", stats.rate())
+                .put("batches", stats.batches())
+                .put("failedBatches", stats.failedBatches())
+                .put("operations", stats.operations())
+                .put("throttled", stats.throttled())
+                .put("avgLatency", millis(stats.avgLatencyNanos()))
+                .put("maxLatency", millis(stats.maxLatencyNanos()));
+    }
+
+    private static void executorStats(ObjectNode node, KeyedExecutor.Stats stats) {
+        node.put("queueDepth", stats.queueDepth())
+                .put("completed", stats.completed())
+                .put("failed", stats.failed())
+                .put("missedDeadlines", stats.missedDeadlines())
+                .put("avgWait", millis(stats.avgWaitNanos()))
+                .put("maxWait", millis(stats.maxWaitNanos()))
+                .put("avgRun", millis(stats.avgRunNanos()))
+                .put("maxRun", millis(stats.maxRunNanos()));
+    }
+
+    private static void rate(ObjectNode node, RateCounter counter) {
+        node.put("total", counter.total())
+                .put("rate", counter.rate());
+    }
+
+    private static <K> void puntCounters(ObjectNode node, Map<K, Map<PuntType, Long>> counters,
+                                         String suffix) {
+        counters.forEach((key, typeCounters) -> {
+            final String name = key.toString();
+            final ObjectNode entry = node.has(name) ? (ObjectNode) node.get(name) : node.putObject(name);
+            typeCounters.forEach((type, count) -> entry.put(type.name() + "." + suffix, count));
+        });
+    }
+
+    private static void dispatchStats(ObjectNode node, PacketDispatchComponent.Stats stats) {
+        node.put("occupancy", stats.occupancy())
+                .put("capacity", stats.capacity())
+                .put("maxOccupancy", stats.maxOccupancy())
+                .put("received", stats.received())
+                .put("dropped", stats.dropped())
+                .put("batches", stats.batches())
+                .put("processed", stats.processed())
+                .put("failures", stats.failures());
+    }
+
+    private static double millis(long nanos) {
+        return nanos / NANOS_PER_MILLI;
+    }
+}
@@ -16,6 +16,9 @@
 
 package org.onosproject.srv6_usid;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.onlab.packet.Ip6Address;
 import org.onlab.packet.IpAddress;
 import org.onlab.packet.MacAddress;
@@ -24,60 +27,56 @@ import org.onosproject.core.ApplicationId;
 import org.onosproject.mastership.MastershipService;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.config.NetworkConfigService;
-import org.onosproject.net.device.DeviceEvent;
-import org.onosproject.net.device.DeviceListener;
 import org.onosproject.net.device.DeviceService;
-import org.onosproject.net.flow.DefaultFlowRule;
-import org.onosproject.net.flow.DefaultTrafficSelector;
-import org.onosproject.net.flow.DefaultTrafficTreatment;
 import org.onosproject.net.flow.FlowRule;
 import org.onosproject.net.flow.FlowRuleOperations;
-import org.onosproject.net.flow.FlowRuleService;
-import org.onosproject.net.flow.TrafficSelector;
-import org.onosproject.net.flow.TrafficTreatment;
-import org.onosproject.net.flow.criteria.PiCriterion;
 import org.onosproject.net.host.InterfaceIpAddress;
 import org.onosproject.net.intf.Interface;
+import org.onosproject.net.intf.InterfaceEvent;
+import org.onosproject.net.intf.InterfaceListener;
 import org.onosproject.net.intf.InterfaceService;
-import org.onosproject.net.pi.model.PiActionId;
-import org.onosproject.net.pi.model.PiActionParamId;
-import org.onosproject.net.pi.model.PiMatchFieldId;
-import org.onosproject.net.pi.model.PiTableId;
-import org.onosproject.net.pi.runtime.PiAction;
-import org.onosproject.net.pi.runtime.PiActionParam;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.onosproject.srv6_usid.common.DeviceSetupStep;
 import org.onosproject.srv6_usid.common.Srv6DeviceConfig;
+import org.onosproject.srv6_usid.common.WriteSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
-import static org.onosproject.srv6_usid.AppConstants.DEFAULT_FLOW_RULE_PRIORITY;
-import static org.onosproject.srv6_usid.AppConstants.INITIAL_SETUP_DELAY;
+import static org.onlab.util.ImmutableByteSequence.copyFrom;
+import static org.onosproject.srv6_usid.common.RuleTemplates.NDP_REPLY;
 
 /**
  * App component that configures devices to generate NDP Neighbor Advertisement
  * packets for all interface IPv6 addresses configured in the netcfg.
+ * <p>
+ * The full set of NDP reply rules is installed when a device becomes
+ * available. Later changes to the interface configuration are applied
+ * incrementally, by adding or removing only the affected target addresses.
  */
 @Component(
         immediate = true,
-        enabled = true
+        enabled = true,
+        service = NdpReplyComponent.class
 )
 public class NdpReplyComponent {
 
     private static final Logger log =
             LoggerFactory.getLogger(NdpReplyComponent.class.getName());
 
-    @Reference(cardinality = ReferenceCardinality.MANDATORY)
-    protected NetworkConfigService configService;
+    private static final WriteSource WRITE_SOURCE = WriteSource.of("ndp-reply");
 
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
-    protected FlowRuleService flowRuleService;
+    protected NetworkConfigService configService;
 
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     protected InterfaceService interfaceService;
@@ -91,67 +90,123 @@ public class NdpReplyComponent {
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     private MainComponent mainComponent;
 
-    private DeviceListener deviceListener = new InternalDeviceListener();
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private FlowRuleWriter flowRuleWriter;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceLifecycleComponent deviceLifecycle;
+
+    private DeviceSetupStep setupStep = new InternalSetupStep();
+    private InterfaceListener interfaceListener = new InternalInterfaceListener();
     private ApplicationId appId;
 
+    // Target addresses for which NDP reply rules have been installed, per
+    // device. Used to compute the diff when the interface config changes.
+    private final Map<DeviceId, Set<Ip6Address>> installedTargets = Maps.newConcurrentMap();
+
     @Activate
     public void activate() {
         appId = mainComponent.getAppId();
 
-        deviceService.addListener(deviceListener);
+        interfaceService.addListener(interfaceListener);
 
-        mainComponent.scheduleTask(this::setUpAllDevices, INITIAL_SETUP_DELAY);
+        deviceLifecycle.addSetupStep(setupStep);
 
         log.info("Started");
     }
 
     @Deactivate
     public void deactivate() {
-        deviceService.removeListener(deviceListener);
+        deviceLifecycle.removeSetupStep(setupStep);
+        interfaceService.removeListener(interfaceListener);
+        installedTargets.clear();
 
         log.info("Stopped");
     }
 
-    private void setUpAllDevices() {
-        deviceService.getAvailableDevices().forEach(device -> {
-            if (mastershipService.isLocalMaster(device.id())) {
-                log.info("*** NDP REPLY - Starting Initial set up for {}...", device.id());
-                setUpDevice(device.id());
-            }
-        });
-    }
-
-    private void setUpDevice(DeviceId deviceId) {
-        Srv6DeviceConfig config = configService.getConfig(deviceId, Srv6DeviceConfig.class);
-        if (config == null) {
-            // Config not available yet
-            throw new ItemNotFoundException("Missing Srv6Config for " + deviceId);
-        }
-
-        final MacAddress deviceMac = config.myStationMac();
+    private Collection<FlowRule> setUpDevice(DeviceId deviceId) {
+        final MacAddress deviceMac = getDeviceMac(deviceId);
 
         // Get all interface for the device
-        final Collection<Interface> interfaces = interfaceService.getInterfaces()
-                .stream()
-                .filter(iface -> iface.connectPoint().deviceId().equals(deviceId))
-                .collect(Collectors.toSet());
+        final Collection<Interface> interfaces = getDeviceInterfaces(deviceId);
 
         if (interfaces.isEmpty()) {
             log.info("{} does not have any IPv6 interface configured",
                      deviceId);
-            return;
+            installedTargets.remove(deviceId);
+            return Collections.emptySet();
         }
 
         log.info("Adding rules to {} to generate NDP NA for {} IPv6 interfaces...",
                  deviceId, interfaces.size());
 
-        final Collection<FlowRule> flowRules = interfaces.stream()
-                .map(this::getIp6Addresses)
-                .flatMap(Collection::stream)
+        final Set<Ip6Address> targets = getTargetAddresses(interfaces);
+
+        final Collection<FlowRule> flowRules = targets.stream()
                 .map(iaddr -> buildNdpReplyFlowRule(deviceId, deviceMac, iaddr))
                 .collect(Collectors.toSet());
 
-        installRules(flowRules);
+        installedTargets.put(deviceId, targets);
+        return flowRules;
+    }
+
+    /**
+     * Brings the NDP reply table of the given device in sync with the
+     * interface configuration, by adding and removing only the target
+     * addresses that changed since the last update. All changes are applied
+     * with a single batch.
+     *
+     * @param deviceId the device ID
+     * @param source   source of the write
+     */
+    private void updateDevice(DeviceId deviceId, WriteSource source) {
+        final MacAddress deviceMac = getDeviceMac(deviceId);
+
+        final Set<Ip6Address> desired = getTargetAddresses(getDeviceInterfaces(deviceId));
+        final Set<Ip6Address> installed = installedTargets.getOrDefault(
+                deviceId, Collections.emptySet());
+
+        final Set<Ip6Address> toAdd = Sets.difference(desired, installed);
+        final Set<Ip6Address> toRemove = Sets.difference(installed, desired);
+
+        if (toAdd.isEmpty() && toRemove.isEmpty()) {
+            return;
+        }
+
+        log.info("Updating NDP reply rules on {}: {} to add, {} to remove...",
+                 deviceId, toAdd.size(), toRemove.size());
+
+        FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+        toRemove.forEach(iaddr -> ops.remove(
+                buildNdpReplyFlowRule(deviceId, deviceMac, iaddr)));
+        toAdd.forEach(iaddr -> ops.add(
+                buildNdpReplyFlowRule(deviceId, deviceMac, iaddr)));
+        flowRuleWriter.apply(source, ops.build());
+
+        installedTargets.put(deviceId, desired);
+    }
+
+    private MacAddress getDeviceMac(DeviceId deviceId) {
+        Srv6DeviceConfig config = configService.getConfig(deviceId, Srv6DeviceConfig.class);
+        if (config == null) {
+            // Config not available yet
+            throw new ItemNotFoundException("Missing Srv6Config for " + deviceId);
+        }
+        return config.myStationMac();
+    }
+
+    private Collection<Interface> getDeviceInterfaces(DeviceId deviceId) {
+        return interfaceService.getInterfaces()
+                .stream()
+                .filter(iface -> iface.connectPoint().deviceId().equals(deviceId))
+                .collect(Collectors.toSet());
+    }
+
+    private Set<Ip6Address> getTargetAddresses(Collection<Interface> interfaces) {
+        return interfaces.stream()
+                .map(this::getIp6Addresses)
+                .flatMap(Collection::stream)
+                .collect(ImmutableSet.toImmutableSet());
     }
 
     private Collection<Ip6Address> getIp6Addresses(Interface iface) {
@@ -163,78 +218,102 @@ public class NdpReplyComponent {
                 .collect(Collectors.toSet());
     }
 
-    private void installRules(Collection<FlowRule> flowRules) {
-        FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
-        flowRules.forEach(ops::add);
-        flowRuleService.apply(ops.build());
+    /**
+     * Installs a rule on the given device to answer NDP Neighbor Solicitations
+     * for the given target address with the given MAC address. Used to let the
+     * data plane reply on behalf of hosts.
+     *
+     * @param deviceId  the device ID
+     * @param targetIp  target IPv6 address
+     * @param targetMac MAC address to advertise for the target
+     */
+    public void insertNdpReplyRule(DeviceId deviceId, Ip6Address targetIp,
+                                   MacAddress targetMac) {
+        flowRuleWriter.applyFlowRules(
+                WRITE_SOURCE, buildNdpReplyFlowRule(deviceId, targetMac, targetIp));
+    }
+
+    /**
+     * Removes a rule previously installed with
+     * {@link #insertNdpReplyRule(DeviceId, Ip6Address, MacAddress)}.
+     *
+     * @param deviceId  the device ID
+     * @param targetIp  target IPv6 address
+     * @param targetMac MAC address advertised for the target
+     */
+    public void removeNdpReplyRule(DeviceId deviceId, Ip6Address targetIp,
+                                   MacAddress targetMac) {
+        flowRuleWriter.removeFlowRules(
+                WRITE_SOURCE, buildNdpReplyFlowRule(deviceId, targetMac, targetIp));
     }
 
     private FlowRule buildNdpReplyFlowRule(DeviceId deviceId,
                                            MacAddress deviceMac,
                                            Ip6Address targetIp) {
-        PiCriterion match = PiCriterion.builder()
-                .matchExact(PiMatchFieldId.of("hdr.ndp.target_addr"), targetIp.toOctets())
-                .build();
-
-        PiActionParam paramRouterMac = new PiActionParam(
-                PiActionParamId.of("target_mac"), deviceMac.toBytes());
-        PiAction action = PiAction.builder()
-                .withId(PiActionId.of("IngressPipeImpl.ndp_ns_to_na"))
-                .withParameter(paramRouterMac)
-                .build();
-
-        TrafficSelector selector = DefaultTrafficSelector.builder()
-                .matchPi(match)
-                .build();
-
-        TrafficTreatment treatment = DefaultTrafficTreatment.builder()
-                .piTableAction(action)
-                .build();
-
-        return DefaultFlowRule.builder()
-                .forDevice(deviceId)
-                .forTable(PiTableId.of("IngressPipeImpl.ndp_reply_table"))
-                .fromApp(appId)
-                .makePermanent()
-                .withSelector(selector)
-                .withTreatment(treatment)
-                .withPriority(DEFAULT_FLOW_RULE_PRIORITY)
-                .build();
+        return NDP_REPLY.exact(deviceId, appId, targetIp.toOctets(),
+                               copyFrom(deviceMac.toBytes()));
+    }
+
+    /**
+     * Set up step installing the full set of NDP reply rules.
+     */
+    private class InternalSetupStep implements DeviceSetupStep {
+
+        @Override
+        public String name() {
+            return "NDP reply";
+        }
+
+        @Override
+        public Collection<FlowRule> setUpDevice(DeviceId deviceId) {
+            return NdpReplyComponent.this.setUpDevice(deviceId);
+        }
     }
 
     /**
-     * Listener of device events.
+     * Listener of interface events, which triggers an incremental update of
+     * the NDP reply table of the devices where the interface is located.
      */
-    public class InternalDeviceListener implements DeviceListener {
+    public class InternalInterfaceListener implements InterfaceListener {
 
         @Override
-        public boolean isRelevant(DeviceEvent event) {
+        public boolean isRelevant(InterfaceEvent event) {
             switch (event.type()) {
-                case DEVICE_ADDED:
-                case DEVICE_AVAILABILITY_CHANGED:
+                case INTERFACE_ADDED:
+                case INTERFACE_UPDATED:
+                case INTERFACE_REMOVED:
                     break;
                 default:
                     // Ignore other events.
                     return false;
             }
-            // Process only if this controller instance is the master.
-            final DeviceId deviceId = event.subject().id();
-            return mastershipService.isLocalMaster(deviceId);
+            // Process only if this controller instance is the master for at
+            // least one of the devices involved.
+            return affectedDevices(event).stream()
+                    .anyMatch(mastershipService::isLocalMaster);
         }
 
         @Override
-        public void event(DeviceEvent event) {
-            final DeviceId deviceId = event.subject().id();
-            if (deviceService.isAvailable(deviceId)) {
-                // A P4Runtime device is considered available in ONOS when there
-                // is a StreamChannel session open and the pipeline
-                // configuration has been set.
-                mainComponent.getExecutorService().execute(() -> {
-                    log.info("{} event! deviceId={}", event.type(), deviceId);
-
-                    setUpDevice(deviceId);
-                });
+        public void event(InterfaceEvent event) {
+            final WriteSource source = WRITE_SOURCE.forEvent("interface", event);
+            affectedDevices(event).stream()
+                    .filter(mastershipService::isLocalMaster)
+                    .filter(deviceService::isAvailable)
+                    .forEach(deviceId -> mainComponent.getExecutor(deviceId).execute(() -> {
+                        log.info("{} event! deviceId={}", event.type(), deviceId);
+
+                        updateDevice(deviceId, source);
+                    }));
+        }
+
+        private Set<DeviceId> affectedDevices(InterfaceEvent event) {
+            // An update might move an interface to a different device.
+            final Set<DeviceId> deviceIds = Sets.newHashSet(
+                    event.subject().connectPoint().deviceId());
+            if (event.prevSubject() != null) {
+                deviceIds.add(event.prevSubject().connectPoint().deviceId());
             }
+            return deviceIds;
         }
     }
 }
@@ -0,0 +1,402 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.RateLimiter;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.ICMP6;
+import org.onlab.packet.IPv6;
+import org.onlab.packet.Ip6Address;
+import org.onlab.packet.IpAddress;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.ndp.NeighborAdvertisement;
+import org.onlab.packet.ndp.NeighborSolicitation;
+import org.onosproject.mastership.MastershipService;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.host.HostEvent;
+import org.onosproject.net.host.HostListener;
+import org.onosproject.net.host.HostService;
+import org.onosproject.net.intf.InterfaceService;
+import org.onosproject.net.packet.DefaultOutboundPacket;
+import org.onosproject.net.packet.InboundPacket;
+import org.onosproject.net.packet.PacketService;
+import org.onosproject.srv6_usid.common.PacketBatchProcessor;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.onosproject.srv6_usid.common.TaskPriority.BULK;
+
+/**
+ * App component that answers NDP Neighbor Solicitations for known hosts from
+ * the controller, i.e. for those targets that are not interface addresses and
+ * thus not handled by the ndp_reply_table in the data plane.
+ * <p>
+ * Host MAC addresses are kept in a bounded cache populated from the host
+ * service. Punted solicitations are rate-limited per device and source MAC.
+ * Targets that are requested frequently on a device are promoted to
+ * ndp_reply_table entries, so that they are answered by the switch.
+ */
+@Component(
+        immediate = true,
+        enabled = true
+)
+public class NdpResponderComponent {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(NdpResponderComponent.class.getName());
+
+    private static final int HOST_CACHE_SIZE = 10000;
+    private static final int HOST_CACHE_TTL = 5; // Minutes.
+
+    private static final double PUNT_RATE_PER_SOURCE = 10.0; // Packets per second.
+    private static final int PUNT_LIMITER_IDLE_TIMEOUT = 60; // Seconds.
+
+    private static final int PROMOTION_THRESHOLD = 20; // Requests per window.
+    private static final int PROMOTION_WINDOW = 10; // Seconds.
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected PacketService packetService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected HostService hostService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected InterfaceService interfaceService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected MastershipService mastershipService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private NdpReplyComponent ndpReplyComponent;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MainComponent mainComponent;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private PacketDispatchComponent packetDispatcher;
+
+    private final PacketBatchProcessor packetProcessor = new InternalPacketProcessor();
+    private final HostListener hostListener = new InternalHostListener();
+
+    // IPv6 address to MAC address of known hosts.
+    private final Cache<Ip6Address, MacAddress> hostMacCache = CacheBuilder.newBuilder()
+            .maximumSize(HOST_CACHE_SIZE)
+            .expireAfterWrite(HOST_CACHE_TTL, TimeUnit.MINUTES)
+            .build();
+
+    // Punt rate limiters, one for each device and source MAC.
+    private final LoadingCache<DeviceKey<MacAddress>, RateLimiter> puntLimiters =
+            CacheBuilder.newBuilder()
+                    .expireAfterAccess(PUNT_LIMITER_IDLE_TIMEOUT, TimeUnit.SECONDS)
+                    .build(CacheLoader.from(() -> RateLimiter.create(PUNT_RATE_PER_SOURCE)));
+
+    // Number of solicitations answered in the current window, for each device
+    // and target address.
+    private final LoadingCache<DeviceKey<Ip6Address>, AtomicInteger> requestCounters =
+            CacheBuilder.newBuilder()
+                    .expireAfterWrite(PROMOTION_WINDOW, TimeUnit.SECONDS)
+                    .build(CacheLoader.from(() -> new AtomicInteger()));
+
+    // Targets promoted to the data plane, with the MAC address advertised.
+    private final Map<DeviceKey<Ip6Address>, MacAddress> promotedTargets =
+            Maps.newConcurrentMap();
+
+    @Activate
+    protected void activate() {
+        hostService.addListener(hostListener);
+        packetDispatcher.addProcessor(packetProcessor);
+
+        log.info("Started");
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        packetDispatcher.removeProcessor(packetProcessor);
+        hostService.removeListener(hostListener);
+
+        hostMacCache.invalidateAll();
+        puntLimiters.invalidateAll();
+        requestCounters.invalidateAll();
+        promotedTargets.clear();
+
+        log.info("Stopped");
+    }
+
+    /**
+     * Returns the MAC address of the host with the given IPv6 address, if
+     * known.
+     *
+     * @param ip the IPv6 address
+     * @return optional MAC address
+     */
+    private Optional<MacAddress> lookupHostMac(Ip6Address ip) {
+        MacAddress mac = hostMacCache.getIfPresent(ip);
+        if (mac == null) {
+            mac = hostService.getHostsByIp(ip).stream()
+                    .map(Host::mac)
+                    .findFirst()
+                    .orElse(null);
+            if (mac != null) {
+                hostMacCache.put(ip, mac);
+            }
+        }
+        return Optional.ofNullable(mac);
+    }
+
+    /**
+     * Counts a solicitation answered by the controller and, once the target
+     * is requested often enough on the device, promotes it to an entry of the
+     * NDP reply table.
+     *
+     * @param deviceId  the device ID
+     * @param targetIp  target IPv6 address
+     * @param targetMac MAC address of the target
+     */
+    private void countAndPromote(DeviceId deviceId, Ip6Address targetIp,
+                                 MacAddress targetMac) {
+        final DeviceKey<Ip6Address> key = new DeviceKey<>(deviceId, targetIp);
+        if (promotedTargets.containsKey(key)) {
+            return;
+        }
+        if (requestCounters.getUnchecked(key).incrementAndGet() < PROMOTION_THRESHOLD) {
+            return;
+        }
+        if (promotedTargets.putIfAbsent(key, targetMac) != null) {
+            return;
+        }
+        requestCounters.invalidate(key);
+
+        mainComponent.getExecutor(deviceId, BULK).execute(() -> {
+            log.info("Promoting NDP target {} ({}) to the data plane of {}...",
+                     targetIp, targetMac, deviceId);
+            ndpReplyComponent.insertNdpReplyRule(deviceId, targetIp, targetMac);
+        });
+    }
+
+    /**
+     * Forgets everything known about the given IPv6 address, removing any
+     * NDP reply rule previously promoted for it.
+     *
+     * @param ip the IPv6 address
+     */
+    private void invalidateTarget(Ip6Address ip) {
+        hostMacCache.invalidate(ip);
+
+        promotedTargets.entrySet().removeIf(entry -> {
+            final DeviceKey<Ip6Address> key = entry.getKey();
+            if (!key.value().equals(ip)) {
+                return false;
+            }
+            if (mastershipService.isLocalMaster(key.deviceId())) {
+                final MacAddress mac = entry.getValue();
+                mainComponent.getExecutor(key.deviceId()).execute(() -> {
+                    log.info("Removing promoted NDP target {} from {}...",
+                             ip, key.deviceId());
+                    ndpReplyComponent.removeNdpReplyRule(key.deviceId(), ip, mac);
+                });
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Returns the Neighbor Solicitation carried by the given frame, or null
+     * if the frame is not one.
+     *
+     * @param ethPkt Ethernet frame
+     * @return Neighbor Solicitation or null
+     */
+    private static NeighborSolicitation solicitation(Ethernet ethPkt) {
+        if (ethPkt.getEtherType() != Ethernet.TYPE_IPV6) {
+            return null;
+        }
+        final IPv6 ipv6Pkt = (IPv6) ethPkt.getPayload();
+        if (ipv6Pkt.getNextHeader() != IPv6.PROTOCOL_ICMP6) {
+            return null;
+        }
+        final ICMP6 icmp6Pkt = (ICMP6) ipv6Pkt.getPayload();
+        if (icmp6Pkt.getIcmpType() != ICMP6.NEIGHBOR_SOLICITATION) {
+            return null;
+        }
+        return (NeighborSolicitation) icmp6Pkt.getPayload();
+    }
+
+    /**
+     * Packet processor answering NDP Neighbor Solicitations for known hosts.
+     * Solicitations for unknown targets are left to the other processors.
+     */
+    private class InternalPacketProcessor implements PacketBatchProcessor {
+
+        @Override
+        public Claim claim(InboundPacket packet) {
+            final Ethernet ethPkt = packet.parsed();
+            if (ethPkt == null) {
+                return Claim.NONE;
+            }
+            final NeighborSolicitation nsPkt = solicitation(ethPkt);
+            if (nsPkt == null) {
+                return Claim.NONE;
+            }
+
+            final DeviceId deviceId = packet.receivedFrom().deviceId();
+            final MacAddress srcMac = ethPkt.getSourceMAC();
+            if (!puntLimiters.getUnchecked(new DeviceKey<>(deviceId, srcMac))
+                    .tryAcquire()) {
+                // Source is over its punt budget, drop silently.
+                return Claim.DROP;
+            }
+
+            final Ip6Address targetIp = Ip6Address.valueOf(nsPkt.getTargetAddress());
+            if (!interfaceService.getInterfacesByIp(targetIp).isEmpty()) {
+                // Already answered by the data plane.
+                return Claim.NONE;
+            }
+            final Optional<MacAddress> targetMac = lookupHostMac(targetIp);
+            if (!targetMac.isPresent() || targetMac.get().equals(srcMac)) {
+                return Claim.NONE;
+            }
+            return Claim.PROCESS;
+        }
+
+        @Override
+        public void process(List<InboundPacket> batch) {
+            batch.forEach(this::process);
+        }
+
+        private void process(InboundPacket packet) {
+            // Claimed, thus a well-formed solicitation, parsed already.
+            final Ethernet ethPkt = packet.parsed();
+            final NeighborSolicitation nsPkt = solicitation(ethPkt);
+            final ConnectPoint receivedFrom = packet.receivedFrom();
+            final DeviceId deviceId = receivedFrom.deviceId();
+
+            final Ip6Address targetIp = Ip6Address.valueOf(nsPkt.getTargetAddress());
+            final Optional<MacAddress> targetMac = lookupHostMac(targetIp);
+            if (!targetMac.isPresent()) {
+                // Host removed meanwhile.
+                return;
+            }
+
+            final Ethernet reply = NeighborAdvertisement.buildNdpAdv(
+                    targetIp, targetMac.get(), ethPkt);
+            packetService.emit(new DefaultOutboundPacket(
+                    deviceId,
+                    DefaultTrafficTreatment.builder()
+                            .setOutput(receivedFrom.port()).build(),
+                    ByteBuffer.wrap(reply.serialize())));
+
+            countAndPromote(deviceId, targetIp, targetMac.get());
+        }
+    }
+
+    /**
+     * Listener of host events, which keeps the host MAC cache and the
+     * promoted targets consistent with the host store.
+     */
+    private class InternalHostListener implements HostListener {
+
+        @Override
+        public boolean isRelevant(HostEvent event) {
+            switch (event.type()) {
+                case HOST_REMOVED:
+                case HOST_UPDATED:
+                case HOST_MOVED:
+                    return true;
+                default:
+                    // Newly added hosts are looked up on demand.
+                    return false;
+            }
+        }
+
+        @Override
+        public void event(HostEvent event) {
+            invalidateHost(event.subject());
+            if (event.prevSubject() != null) {
+                invalidateHost(event.prevSubject());
+            }
+        }
+
+        private void invalidateHost(Host host) {
+            host.ipAddresses().stream()
+                    .filter(IpAddress::isIp6)
+                    .map(IpAddress::getIp6Address)
+                    .forEach(NdpResponderComponent.this::invalidateTarget);
+        }
+    }
+
+    /**
+     * Cache key made of a device ID and a per-device value.
+     *
+     * @param <T> type of the value
+     */
+    private static final class DeviceKey<T> {
+
+        private final DeviceId deviceId;
+        private final T value;
+
+        DeviceKey(DeviceId deviceId, T value) {
+            this.deviceId = deviceId;
+            this.value = value;
+        }
+
+        DeviceId deviceId() {
+            return deviceId;
+        }
+
+        T value() {
+            return value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final DeviceKey<?> that = (DeviceKey<?>) o;
+            return deviceId.equals(that.deviceId) && value.equals(that.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(deviceId, value);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import org.onlab.util.SharedScheduledExecutors;
+import org.onosproject.cfg.ComponentConfigService;
+import org.onosproject.net.DeviceId;
+import org.onosproject.srv6_usid.common.NorthboundJournal;
+import org.onosproject.srv6_usid.common.NorthboundJournal.Op;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.onlab.util.Tools.get;
+import static org.onosproject.srv6_usid.AppConstants.JOURNAL_CAPACITY;
+import static org.onosproject.srv6_usid.AppConstants.JOURNAL_COMPACTION_THRESHOLD;
+import static org.onosproject.srv6_usid.AppConstants.JOURNAL_DEFAULT_DIR;
+import static org.onosproject.srv6_usid.AppConstants.JOURNAL_DIR;
+import static org.onosproject.srv6_usid.AppConstants.JOURNAL_DIR_DEFAULT;
+import static org.onosproject.srv6_usid.AppConstants.JOURNAL_FLUSH_INTERVAL;
+
+/**
+ * App component that keeps the journal of the northbound operations of the
+ * app (see {@link NorthboundJournal}), so that they survive a restart of the
+ * controller.
+ * <p>
+ * Components record their operations here, and get them back when setting up
+ * a device, so that they are installed again with the other rules of the
+ * device. The journal is stored in the directory given by the journalDir
+ * component property, by default srv6_usid in the Karaf data directory.
+ */
+@Component(
+        immediate = true,
+        enabled = true,
+        service = NorthboundJournalComponent.class,
+        property = {
+                JOURNAL_DIR + "=" + JOURNAL_DIR_DEFAULT,
+        }
+)
+public class NorthboundJournalComponent {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(NorthboundJournalComponent.class.getName());
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private ComponentConfigService cfgService;
+
+    /** Directory of the journal, empty for srv6_usid in the Karaf data directory. */
+    private String journalDir = JOURNAL_DIR_DEFAULT;
+
+    private NorthboundJournal journal;
+    private Path openDir;
+    private ScheduledFuture<?> flushTask;
+
+    @Activate
+    protected void activate(ComponentContext context) {
+        cfgService.registerProperties(getClass());
+        modified(context);
+
+        flushTask = SharedScheduledExecutors.scheduleAtFixedRate(
+                this::flush, JOURNAL_FLUSH_INTERVAL, JOURNAL_FLUSH_INTERVAL, TimeUnit.SECONDS);
+
+        log.info("Started");
+    }
+
+    @Modified
+    protected synchronized void modified(ComponentContext context) {
+        journalDir = Strings.nullToEmpty(get(context.getProperties(), JOURNAL_DIR));
+        final Path dir = journalDir();
+        if (journal != null && Objects.equals(dir, openDir)) {
+            return;
+        }
+        // Operations in effect are those of the new directory from now on.
+        closeJournal();
+        if (dir == null) {
+            log.warn("Journal disabled as no directory is set, northbound " +
+                             "operations will be lost at restart");
+            return;
+        }
+        try {
+            final long start = System.nanoTime();
+            journal = NorthboundJournal.open(dir, JOURNAL_CAPACITY);
+            openDir = dir;
+            log.info("Recovered {} northbound operations from {} in {} ms", journal.size(), dir,
+                     TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (IOException | RuntimeException e) {
+            log.error("Unable to open journal in {}, northbound operations will be lost at restart",
+                      dir, e);
+        }
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        cfgService.unregisterProperties(getClass(), false);
+        flushTask.cancel(false);
+        synchronized (this) {
+            closeJournal();
+        }
+
+        log.info("Stopped");
+    }
+
+    private void closeJournal() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            log.warn("Unable to close journal", e);
+        }
+        journal = null;
+        openDir = null;
+    }
+
+    /**
+     * Records the given northbound operation. Errors are logged, as the
+     * operation has been validated and is applied to the devices anyway.
+     *
+     * @param op the operation
+     */
+    public synchronized void record(Op op) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.append(op);
+        } catch (IOException e) {
+            log.error("Unable to record {}, it will be lost at restart", op, e);
+        }
+    }
+
+    /**
+     * Returns the northbound operations in effect for the given device.
+     *
+     * @param deviceId the device ID
+     * @return list of operations, empty if the journal is disabled
+     */
+    public synchronized List<Op> getOps(DeviceId deviceId) {
+        return journal == null ? ImmutableList.of() : journal.operations(deviceId);
+    }
+
+    /**
+     * Returns the number of northbound operations in effect.
+     *
+     * @return number of operations
+     */
+    public synchronized int getSize() {
+        return journal == null ? 0 : journal.size();
+    }
+
+    private synchronized void flush() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            if (journal.usage() > JOURNAL_COMPACTION_THRESHOLD) {
+                journal.compact();
+                log.debug("Compacted journal, {} operations", journal.size());
+            } else {
+                journal.force();
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Unable to compact journal", e);
+        }
+    }
+
+    private Path journalDir() {
+        if (!journalDir.isEmpty()) {
+            return Paths.get(journalDir);
+        }
+        final String karafData = System.getProperty("karaf.data");
+        return karafData == null ? null : Paths.get(karafData, JOURNAL_DEFAULT_DIR);
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.onosproject.cfg.ComponentConfigService;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.packet.InboundPacket;
+import org.onosproject.net.packet.PacketContext;
+import org.onosproject.net.packet.PacketProcessor;
+import org.onosproject.net.packet.PacketService;
+import org.onosproject.srv6_usid.common.DropOldestRingBuffer;
+import org.onosproject.srv6_usid.common.PacketBatchProcessor;
+import org.onosproject.srv6_usid.common.PacketBatchProcessor.Claim;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.onlab.util.Tools.getIntegerProperty;
+import static org.onlab.util.Tools.groupedThreads;
+import static org.onosproject.srv6_usid.AppConstants.EXECUTOR_SHUTDOWN_TIMEOUT;
+import static org.onosproject.srv6_usid.AppConstants.PACKET_DISPATCH_BATCH_SIZE;
+import static org.onosproject.srv6_usid.AppConstants.PACKET_DISPATCH_SHARDS;
+import static org.onosproject.srv6_usid.AppConstants.PACKET_DISPATCH_SHARDS_DEFAULT;
+import static org.onosproject.srv6_usid.AppConstants.PACKET_QUEUE_CAPACITY;
+import static org.onosproject.srv6_usid.AppConstants.PACKET_QUEUE_CAPACITY_DEFAULT;
+
+/**
+ * App component that takes packet-ins off the threads receiving them from
+ * the devices, and hands them over in batches to the packet processors of the
+ * app (see {@link PacketBatchProcessor}).
+ * <p>
+ * Whether the app owns a packet is decided synchronously, while the ONOS
+ * packet processors run: claimed packets are blocked right away, so that the
+ * processors with lower priority do not handle them too. Only the inbound
+ * packet, not the packet context, is queued.
+ * <p>
+ * Packets are queued on a bounded ring buffer per shard, devices being
+ * assigned to shards by hash. Each shard is drained by its own thread, so a
+ * burst from a device delays at most the devices of the same shard, and when
+ * a queue is full its oldest packets are dropped, as they are the most likely
+ * to be stale.
+ */
+@Component(
+        immediate = true,
+        enabled = true,
+        service = PacketDispatchComponent.class,
+        property = {
+                PACKET_DISPATCH_SHARDS + ":Integer=" + PACKET_DISPATCH_SHARDS_DEFAULT,
+                PACKET_QUEUE_CAPACITY + ":Integer=" + PACKET_QUEUE_CAPACITY_DEFAULT,
+        }
+)
+public class PacketDispatchComponent {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(PacketDispatchComponent.class.getName());
+
+    // Run after advisors (e.g. the host location provider), so that hosts are
+    // still learned from packets handled by the app.
+    private static final int PROCESSOR_PRIORITY = 2;
+
+    // Max time a shard thread sleeps without checking its queue, in case a
+    // wake up is missed.
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected PacketService packetService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected ComponentConfigService cfgService;
+
+    /** Number of packet-in queues, each with its own thread, 0 for one per processor up to 4. */
+    private int packetDispatchShards = PACKET_DISPATCH_SHARDS_DEFAULT;
+
+    /** Max number of packet-ins queued per shard, the oldest are dropped when full. */
+    private int packetQueueCapacity = PACKET_QUEUE_CAPACITY_DEFAULT;
+
+    private final PacketProcessor packetProcessor = new InternalPacketProcessor();
+
+    private final List<PacketBatchProcessor> processors = new CopyOnWriteArrayList<>();
+
+    private final ThreadFactory threadFactory = groupedThreads(
+            "srv6-usid", "packet-dispatch-%d", log);
+
+    private volatile List<Shard> shards = ImmutableList.of();
+    // Capacity requested for the queues of the shards.
+    private int shardCapacity;
+
+    @Activate
+    protected void activate(ComponentContext context) {
+        cfgService.registerProperties(getClass());
+        modified(context);
+
+        packetService.addProcessor(packetProcessor,
+                                   PacketProcessor.director(PROCESSOR_PRIORITY));
+
+        log.info("Started");
+    }
+
+    @Modified
+    protected synchronized void modified(ComponentContext context) {
+        final Dictionary<?, ?> properties = context.getProperties();
+        packetDispatchShards = getIntegerProperty(properties, PACKET_DISPATCH_SHARDS,
+                                                  PACKET_DISPATCH_SHARDS_DEFAULT);
+        packetQueueCapacity = getIntegerProperty(properties, PACKET_QUEUE_CAPACITY,
+                                                 PACKET_QUEUE_CAPACITY_DEFAULT);
+        final int numShards = packetDispatchShards > 0 ? packetDispatchShards
+                : Math.min(4, Runtime.getRuntime().availableProcessors());
+        final int capacity = Math.max(1, packetQueueCapacity);
+        if (shards.size() == numShards && shardCapacity == capacity) {
+            return;
+        }
+        // Packets still queued on the previous shards are dropped.
+        final List<Shard> newShards = Lists.newArrayListWithCapacity(numShards);
+        for (int i = 0; i < numShards; i++) {
+            newShards.add(new Shard(capacity, threadFactory));
+        }
+        final List<Shard> oldShards = shards;
+        shards = ImmutableList.copyOf(newShards);
+        shardCapacity = capacity;
+        stopShards(oldShards);
+        log.info("Dispatching packet-ins on {} shards of {} packets",
+                 numShards, shards.get(0).ring.capacity());
+    }
+
+    @Deactivate
+    protected synchronized void deactivate() {
+        cfgService.unregisterProperties(getClass(), false);
+        packetService.removeProcessor(packetProcessor);
+
+        stopShards(shards);
+        shards = ImmutableList.of();
+        processors.clear();
+
+        log.info("Stopped");
+    }
+
+    private void stopShards(List<Shard> toStop) {
+        toStop.forEach(Shard::stop);
+        for (Shard shard : toStop) {
+            try {
+                shard.thread.join(TimeUnit.SECONDS.toMillis(EXECUTOR_SHUTDOWN_TIMEOUT));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Adds a processor of packet-ins.
+     *
+     * @param processor the processor
+     */
+    public void addProcessor(PacketBatchProcessor processor) {
+        processors.add(processor);
+    }
+
+    /**
+     * Removes a processor of packet-ins. Batches being processed might still
+     * be handed over to it.
+     *
+     * @param processor the processor
+     */
+    public void removeProcessor(PacketBatchProcessor processor) {
+        processors.remove(processor);
+    }
+
+    /**
+     * Returns the statistics of each shard, e.g. queue occupancy and dropped
+     * packets.
+     *
+     * @return list of statistics, indexed by shard
+     */
+    public List<Stats> getDispatchStats() {
+        return shards.stream()
+                .map(Shard::stats)
+                .collect(ImmutableList.toImmutableList());
+    }
+
+    private Shard shardOf(DeviceId deviceId) {
+        final List<Shard> current = shards;
+        if (current.isEmpty()) {
+            // Deactivated.
+            return null;
+        }
+        return current.get(Math.floorMod(deviceId.hashCode(), current.size()));
+    }
+
+    /**
+     * Packet-in claimed for processing, with the processors that claimed it.
+     */
+    private static final class ClaimedPacket {
+
+        private final InboundPacket packet;
+        private final List<PacketBatchProcessor> owners;
+
+        private ClaimedPacket(InboundPacket packet, List<PacketBatchProcessor> owners) {
+            this.packet = packet;
+            this.owners = owners;
+        }
+    }
+
+    /**
+     * Queue of packet-ins for a subset of the devices, with the thread
+     * draining it.
+     */
+    private final class Shard implements Runnable {
+
+        private final DropOldestRingBuffer<ClaimedPacket> ring;
+        private final Thread thread;
+
+        private volatile boolean running = true;
+        private volatile boolean idle;
+
+        // Written by the shard thread only.
+        private volatile long batches;
+        private volatile long packets;
+        private volatile long failures;
+        private volatile int maxOccupancy;
+
+        private Shard(int capacity, ThreadFactory threadFactory) {
+            this.ring = new DropOldestRingBuffer<>(capacity);
+            this.thread = threadFactory.newThread(this);
+            this.thread.start();
+        }
+
+        private void offer(ClaimedPacket claimed) {
+            if (!ring.offer(claimed)) {
+                log.debug("Packet-in queue of {} is full, dropping oldest packet...",
+                          claimed.packet.receivedFrom().deviceId());
+            }
+            if (idle) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        private void stop() {
+            running = false;
+            LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            final List<ClaimedPacket> batch =
+                    Lists.newArrayListWithCapacity(PACKET_DISPATCH_BATCH_SIZE);
+            while (running) {
+                final int occupancy = ring.size();
+                if (occupancy > maxOccupancy) {
+                    maxOccupancy = occupancy;
+                }
+                if (ring.drain(batch, PACKET_DISPATCH_BATCH_SIZE) == 0) {
+                    // Announce before checking again, so that producers
+                    // either see the flag or their packet is seen here.
+                    idle = true;
+                    if (ring.isEmpty()) {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    } else {
+                        // A producer is publishing its packet.
+                        Thread.yield();
+                    }
+                    idle = false;
+                    continue;
+                }
+                dispatch(batch);
+                batch.clear();
+            }
+        }
+
+        private void dispatch(List<ClaimedPacket> batch) {
+            // Packets of each processor, in order of arrival.
+            final Map<PacketBatchProcessor, List<InboundPacket>> byProcessor =
+                    new IdentityHashMap<>();
+            for (ClaimedPacket claimed : batch) {
+                for (PacketBatchProcessor owner : claimed.owners) {
+                    byProcessor.computeIfAbsent(owner, p -> Lists.newArrayList())
+                            .add(claimed.packet);
+                }
+            }
+            for (PacketBatchProcessor processor : processors) {
+                final List<InboundPacket> owned = byProcessor.get(processor);
+                if (owned == null) {
+                    continue;
+                }
+                try {
+                    processor.process(Collections.unmodifiableList(owned));
+                } catch (RuntimeException e) {
+                    failures++;
+                    log.warn("Exception while processing packet-ins", e);
+                }
+            }
+            batches++;
+            packets += batch.size();
+        }
+
+        private Stats stats() {
+            return new Stats(ring.capacity(), ring.size(), maxOccupancy,
+                             ring.offered(), ring.dropped(), batches, packets,
+                             failures);
+        }
+    }
+
+    /**
+     * Statistics of a dispatch shard.
+     */
+    public static final class Stats {
+
+        private final int capacity;
+        private final int occupancy;
+        private final int maxOccupancy;
+        private final long received;
+        private final long dropped;
+        private final long batches;
+        private final long processed;
+        private final long failures;
+
+        private Stats(int capacity, int occupancy, int maxOccupancy, long received,
+                      long dropped, long batches, long processed, long failures) {
+            this.capacity = capacity;
+            this.occupancy = occupancy;
+            this.maxOccupancy = maxOccupancy;
+            this.received = received;
+            this.dropped = dropped;
+            this.batches = batches;
+            this.processed = processed;
+            this.failures = failures;
+        }
+
+        /**
+         * Returns the capacity of the queue.
+         *
+         * @return capacity
+         */
+        public int capacity() {
+            return capacity;
+        }
+
+        /**
+         * Returns the number of packets in the queue.
+         *
+         * @return occupancy
+         */
+        public int occupancy() {
+            return occupancy;
+        }
+
+        /**
+         * Returns the max number of packets seen in the queue.
+         *
+         * @return max occupancy
+         */
+        public int maxOccupancy() {
+            return maxOccupancy;
+        }
+
+        /**
+         * Returns the number of packets queued.
+         *
+         * @return received packets
+         */
+        public long received() {
+            return received;
+        }
+
+        /**
+         * Returns the number of packets dropped because the queue was full.
+         *
+         * @return dropped packets
+         */
+        public long dropped() {
+            return dropped;
+        }
+
+        /**
+         * Returns the number of batches handed over to the processors.
+         *
+         * @return batches
+         */
+        public long batches() {
+            return batches;
+        }
+
+        /**
+         * Returns the number of packets handed over to the processors.
+         *
+         * @return processed packets
+         */
+        public long processed() {
+            return processed;
+        }
+
+        /**
+         * Returns the number of times a processor threw an exception.
+         *
+         * @return failures
+         */
+        public long failures() {
+            return failures;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "occupancy=%d/%d, maxOccupancy=%d, received=%d, dropped=%d, " +
+                            "batches=%d, processed=%d, failures=%d",
+                    occupancy, capacity, maxOccupancy, received, dropped,
+                    batches, processed, failures);
+        }
+    }
+
+    /**
+     * Packet processor offering packet-ins not handled yet to the processors
+     * of the app, blocking those claimed and queueing those to process.
+     */
+    private class InternalPacketProcessor implements PacketProcessor {
+
+        @Override
+        public void process(PacketContext context) {
+            if (context.isHandled() || processors.isEmpty()) {
+                return;
+            }
+            final InboundPacket packet = context.inPacket();
+            boolean claimed = false;
+            List<PacketBatchProcessor> owners = null;
+            for (PacketBatchProcessor processor : processors) {
+                final Claim claim;
+                try {
+                    claim = processor.claim(packet);
+                } catch (RuntimeException e) {
+                    log.warn("Exception while classifying packet-in", e);
+                    continue;
+                }
+                if (claim == Claim.NONE) {
+                    continue;
+                }
+                claimed = true;
+                if (claim == Claim.PROCESS) {
+                    if (owners == null) {
+                        owners = Lists.newArrayListWithCapacity(1);
+                    }
+                    owners.add(processor);
+                }
+            }
+            if (!claimed) {
+                return;
+            }
+            // Now, while the packet service iterates over the processors.
+            context.block();
+            if (owners == null) {
+                return;
+            }
+            final Shard shard = shardOf(packet.receivedFrom().deviceId());
+            if (shard != null) {
+                shard.offer(new ClaimedPacket(packet, owners));
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.RateLimiter;
+import org.onosproject.cfg.ComponentConfigService;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.srv6_usid.common.PuntType;
+import org.onosproject.srv6_usid.pipeconf.InterpreterServices;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Dictionary;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.onlab.util.Tools.getIntegerProperty;
+import static org.onosproject.srv6_usid.AppConstants.PUNT_RATE_BDDP;
+import static org.onosproject.srv6_usid.AppConstants.PUNT_RATE_BDDP_DEFAULT;
+import static org.onosproject.srv6_usid.AppConstants.PUNT_RATE_LLDP;
+import static org.onosproject.srv6_usid.AppConstants.PUNT_RATE_LLDP_DEFAULT;
+import static org.onosproject.srv6_usid.AppConstants.PUNT_RATE_NDP_NA;
+import static org.onosproject.srv6_usid.AppConstants.PUNT_RATE_NDP_NA_DEFAULT;
+import static org.onosproject.srv6_usid.AppConstants.PUNT_RATE_NDP_NS;
+import static org.onosproject.srv6_usid.AppConstants.PUNT_RATE_NDP_NS_DEFAULT;
+import static org.onosproject.srv6_usid.AppConstants.PUNT_RATE_OTHER;
+import static org.onosproject.srv6_usid.AppConstants.PUNT_RATE_OTHER_DEFAULT;
+
+/**
+ * App component that limits the rate of packet-ins admitted to the ONOS
+ * packet service, per device and per type of packet (see {@link PuntType}).
+ * Packets in excess are dropped by the interpreter before being parsed, so
+ * that a host flooding the controller (e.g. with NS) cannot starve link
+ * discovery, nor delay other work.
+ * <p>
+ * Rates default to {@link PuntType#defaultRate()} packets per second and can
+ * be changed at runtime with a component property per type, e.g.
+ * puntRateNdpNs.
+ */
+@Component(
+        immediate = true,
+        enabled = true,
+        service = PacketInAdmissionComponent.class,
+        property = {
+                PUNT_RATE_LLDP + ":Integer=" + PUNT_RATE_LLDP_DEFAULT,
+                PUNT_RATE_BDDP + ":Integer=" + PUNT_RATE_BDDP_DEFAULT,
+                PUNT_RATE_NDP_NS + ":Integer=" + PUNT_RATE_NDP_NS_DEFAULT,
+                PUNT_RATE_NDP_NA + ":Integer=" + PUNT_RATE_NDP_NA_DEFAULT,
+                PUNT_RATE_OTHER + ":Integer=" + PUNT_RATE_OTHER_DEFAULT,
+        }
+)
+public class PacketInAdmissionComponent {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(PacketInAdmissionComponent.class.getName());
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceService deviceService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private ComponentConfigService cfgService;
+
+    /** LLDP packet-ins admitted per second and device. */
+    private int puntRateLldp = PUNT_RATE_LLDP_DEFAULT;
+
+    /** BDDP packet-ins admitted per second and device. */
+    private int puntRateBddp = PUNT_RATE_BDDP_DEFAULT;
+
+    /** NDP Neighbor Solicitation packet-ins admitted per second and device. */
+    private int puntRateNdpNs = PUNT_RATE_NDP_NS_DEFAULT;
+
+    /** NDP Neighbor Advertisement packet-ins admitted per second and device. */
+    private int puntRateNdpNa = PUNT_RATE_NDP_NA_DEFAULT;
+
+    /** Other packet-ins admitted per second and device. */
+    private int puntRateOther = PUNT_RATE_OTHER_DEFAULT;
+
+    private final DeviceListener deviceListener = new InternalDeviceListener();
+
+    private final Map<PuntType, Integer> rates = Maps.newConcurrentMap();
+
+    private final Map<DeviceId, DeviceBuckets> buckets = Maps.newConcurrentMap();
+
+    @Activate
+    protected void activate(ComponentContext context) {
+        cfgService.registerProperties(getClass());
+        modified(context);
+
+        deviceService.addListener(deviceListener);
+        InterpreterServices.bind(this);
+
+        log.info("Started");
+    }
+
+    @Modified
+    protected synchronized void modified(ComponentContext context) {
+        final Dictionary<?, ?> properties = context.getProperties();
+        puntRateLldp = getIntegerProperty(properties, PUNT_RATE_LLDP, PUNT_RATE_LLDP_DEFAULT);
+        puntRateBddp = getIntegerProperty(properties, PUNT_RATE_BDDP, PUNT_RATE_BDDP_DEFAULT);
+        puntRateNdpNs = getIntegerProperty(properties, PUNT_RATE_NDP_NS, PUNT_RATE_NDP_NS_DEFAULT);
+        puntRateNdpNa = getIntegerProperty(properties, PUNT_RATE_NDP_NA, PUNT_RATE_NDP_NA_DEFAULT);
+        puntRateOther = getIntegerProperty(properties, PUNT_RATE_OTHER, PUNT_RATE_OTHER_DEFAULT);
+
+        final Map<PuntType, Integer> newRates = new EnumMap<>(PuntType.class);
+        newRates.put(PuntType.LLDP, puntRateLldp);
+        newRates.put(PuntType.BDDP, puntRateBddp);
+        newRates.put(PuntType.NDP_NS, puntRateNdpNs);
+        newRates.put(PuntType.NDP_NA, puntRateNdpNa);
+        newRates.put(PuntType.OTHER, puntRateOther);
+        // Rates must be positive.
+        newRates.replaceAll((type, rate) -> Math.max(1, rate));
+        rates.putAll(newRates);
+        // Devices seen so far keep their counters.
+        buckets.values().forEach(deviceBuckets -> deviceBuckets.limiters.forEach(
+                (type, limiter) -> limiter.setRate(newRates.get(type))));
+        log.info("Admitting packet-ins at {} pps per device", newRates);
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        InterpreterServices.unbind(this);
+        cfgService.unregisterProperties(getClass(), false);
+        deviceService.removeListener(deviceListener);
+        buckets.clear();
+
+        log.info("Stopped");
+    }
+
+    /**
+     * Returns true if the given packet-in can be admitted, false if it
+     * should be dropped.
+     *
+     * @param deviceId the device that sent the packet-in
+     * @param frame    Ethernet frame, from position 0
+     * @return true if admitted
+     */
+    public boolean admit(DeviceId deviceId, ByteBuffer frame) {
+        final PuntType type = PuntType.of(frame);
+        final DeviceBuckets deviceBuckets = buckets.computeIfAbsent(
+                deviceId, d -> new DeviceBuckets());
+        if (deviceBuckets.limiters.get(type).tryAcquire()) {
+            deviceBuckets.accepted.get(type).incrementAndGet();
+            return true;
+        }
+        if (deviceBuckets.dropped.get(type).getAndIncrement() == 0) {
+            log.warn("Too many {} packet-ins from {}, dropping...", type, deviceId);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of packet-ins accepted, per device and type.
+     *
+     * @return map of device ID to counters
+     */
+    public Map<DeviceId, Map<PuntType, Long>> getAcceptedCounters() {
+        return counters(true);
+    }
+
+    /**
+     * Returns the number of packet-ins dropped, per device and type.
+     *
+     * @return map of device ID to counters
+     */
+    public Map<DeviceId, Map<PuntType, Long>> getDroppedCounters() {
+        return counters(false);
+    }
+
+    private Map<DeviceId, Map<PuntType, Long>> counters(boolean accepted) {
+        final ImmutableMap.Builder<DeviceId, Map<PuntType, Long>> builder = ImmutableMap.builder();
+        buckets.forEach((deviceId, deviceBuckets) -> {
+            final Map<PuntType, Long> counters = new EnumMap<>(PuntType.class);
+            (accepted ? deviceBuckets.accepted : deviceBuckets.dropped)
+                    .forEach((type, counter) -> counters.put(type, counter.get()));
+            builder.put(deviceId, counters);
+        });
+        return builder.build();
+    }
+
+    /**
+     * Token buckets and counters of a device.
+     */
+    private final class DeviceBuckets {
+
+        private final Map<PuntType, RateLimiter> limiters = new EnumMap<>(PuntType.class);
+        private final Map<PuntType, AtomicLong> accepted = new EnumMap<>(PuntType.class);
+        private final Map<PuntType, AtomicLong> dropped = new EnumMap<>(PuntType.class);
+
+        private DeviceBuckets() {
+            for (PuntType type : PuntType.values()) {
+                limiters.put(type, RateLimiter.create(rates.get(type)));
+                accepted.put(type, new AtomicLong());
+                dropped.put(type, new AtomicLong());
+            }
+        }
+    }
+
+    /**
+     * Listener of device events, which forgets removed devices.
+     */
+    private class InternalDeviceListener implements DeviceListener {
+
+        @Override
+        public boolean isRelevant(DeviceEvent event) {
+            return event.type() == DeviceEvent.Type.DEVICE_REMOVED;
+        }
+
+        @Override
+        public void event(DeviceEvent event) {
+            buckets.remove(event.subject().id());
+        }
+    }
+}
@@ -17,42 +17,54 @@ package org.onosproject.srv6_usid;
 
 import com.google.common.collect.Lists;
 import org.onlab.packet.Ip6Address;
+import org.onlab.util.ImmutableByteSequence;
 import org.onosproject.core.ApplicationId;
 import org.onosproject.mastership.MastershipService;
-import org.onosproject.net.Device;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.config.NetworkConfigService;
-import org.onosproject.net.device.DeviceEvent;
-import org.onosproject.net.device.DeviceListener;
 import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.flow.FlowEntry;
 import org.onosproject.net.flow.FlowRule;
 import org.onosproject.net.flow.FlowRuleOperations;
 import org.onosproject.net.flow.FlowRuleService;
-import org.onosproject.net.flow.criteria.PiCriterion;
-import org.onosproject.net.pi.model.PiActionId;
-import org.onosproject.net.pi.model.PiActionParamId;
-import org.onosproject.net.pi.model.PiMatchFieldId;
-import org.onosproject.net.pi.model.PiTableId;
-import org.onosproject.net.pi.runtime.PiAction;
-import org.onosproject.net.pi.runtime.PiActionParam;
-import org.onosproject.net.pi.runtime.PiTableAction;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.onosproject.srv6_usid.common.DeviceSetupStep;
+import org.onosproject.srv6_usid.common.NorthboundJournal.Kind;
+import org.onosproject.srv6_usid.common.NorthboundJournal.Op;
+import org.onosproject.srv6_usid.common.OperationTracer;
+import org.onosproject.srv6_usid.common.OperationTracer.Span;
+import org.onosproject.srv6_usid.common.OperationType;
+import org.onosproject.srv6_usid.common.RuleTemplate;
 import org.onosproject.srv6_usid.common.Srv6DeviceConfig;
-import org.onosproject.srv6_usid.common.Utils;
+import org.onosproject.srv6_usid.common.WriteSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.onlab.packet.MacAddress;
 
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 import static com.google.common.collect.Streams.stream;
-import static org.onosproject.srv6_usid.AppConstants.INITIAL_SETUP_DELAY;
+import static org.onlab.util.ImmutableByteSequence.copyFrom;
+import static org.onosproject.srv6_usid.common.OperationTracer.OUTCOME_FAILED;
+import static org.onosproject.srv6_usid.common.OperationTracer.OUTCOME_OK;
+import static org.onosproject.srv6_usid.common.OperationTracer.OUTCOME_SKIPPED;
+import static org.onosproject.srv6_usid.common.RuleTemplates.SRV6_ENCAP_TABLE;
+import static org.onosproject.srv6_usid.common.RuleTemplates.SRV6_END;
+import static org.onosproject.srv6_usid.common.RuleTemplates.SRV6_END_DX6;
+import static org.onosproject.srv6_usid.common.RuleTemplates.SRV6_USID_UA;
+import static org.onosproject.srv6_usid.common.RuleTemplates.SRV6_USID_UN;
+import static org.onosproject.srv6_usid.common.RuleTemplates.XCONNECT;
+import static org.onosproject.srv6_usid.common.RuleTemplates.usidEncap;
+import static org.onosproject.srv6_usid.common.TaskPriority.BULK;
 
 /**
  * Application which handles SRv6 segment routing.
@@ -66,6 +78,8 @@ public class Srv6Component {
 
     private static final Logger log = LoggerFactory.getLogger(Srv6Component.class);
 
+    private static final WriteSource WRITE_SOURCE = WriteSource.of("srv6");
+
     //--------------------------------------------------------------------------
     // ONOS CORE SERVICE BINDING
     //
@@ -88,7 +102,16 @@ public class Srv6Component {
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     private MainComponent mainComponent;
 
-    private final DeviceListener deviceListener = new Srv6Component.InternalDeviceListener();
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private FlowRuleWriter flowRuleWriter;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceLifecycleComponent deviceLifecycle;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private NorthboundJournalComponent journal;
+
+    private final DeviceSetupStep setupStep = new InternalSetupStep();
 
     private ApplicationId appId;
 
@@ -103,77 +126,40 @@ public class Srv6Component {
     protected void activate() {
         appId = mainComponent.getAppId();
 
-        // Register listeners to be informed about device and host events.
-        deviceService.addListener(deviceListener);
-
-        // Schedule set up for all devices.
-        mainComponent.scheduleTask(this::setUpAllDevices, INITIAL_SETUP_DELAY);
+        // Set up devices as soon as they are ready.
+        deviceLifecycle.addSetupStep(setupStep);
 
         log.info("Started");
     }
 
     @Deactivate
     protected void deactivate() {
-        deviceService.removeListener(deviceListener);
+        deviceLifecycle.removeSetupStep(setupStep);
 
         log.info("Stopped");
     }
 
     /**
-     * Populate the My micro SID table from the network configuration for the
-     * specified device.
+     * Returns the rules of the My micro SID table, built from the network
+     * configuration for the specified device.
      *
      * @param deviceId the device Id
+     * @return flow rules for the My micro SID table
      */
-    private void setUpMyUSidTable(DeviceId deviceId) {
-        //TODO: add to the listenet
+    private List<FlowRule> buildMyUSidRules(DeviceId deviceId) {
         Ip6Address myUSid = getMyUSid(deviceId);
         Ip6Address myUDX = getMyUDX(deviceId);
 
         log.info("Adding two myUSid rules on {} (sid {})...", deviceId, myUSid);
 
-        String tableId = "IngressPipeImpl.srv6_localsid_table";
-
-        PiCriterion match = PiCriterion.builder()
-                .matchLpm(
-                        PiMatchFieldId.of("hdr.ipv6.dst_addr"),
-                        myUSid.toOctets(), 48)
-                .build();
-
-        PiTableAction action = PiAction.builder()
-                .withId(PiActionId.of("IngressPipeImpl.srv6_usid_un"))
-                .build();
-
-        FlowRule myStationRule = Utils.buildFlowRule(
-                deviceId, appId, tableId, match, action);
-
-        flowRuleService.applyFlowRules(myStationRule);
-
-        match = PiCriterion.builder()
-                .matchLpm(
-                        PiMatchFieldId.of("hdr.ipv6.dst_addr"),
-                        myUSid.toOctets(), 64)
-                .build();
-        action = PiAction.builder()
-                .withId(PiActionId.of("IngressPipeImpl.srv6_end"))
-                .build();
-        myStationRule = Utils.buildFlowRule(
-                 deviceId, appId, tableId, match, action);
-        flowRuleService.applyFlowRules(myStationRule);
+        List<FlowRule> myStationRules = Lists.newArrayList();
+        myStationRules.add(SRV6_USID_UN.lpm(deviceId, appId, myUSid.toOctets(), 48));
+        myStationRules.add(SRV6_END.lpm(deviceId, appId, myUSid.toOctets(), 64));
 
         if (myUDX != null) {
-            match = PiCriterion.builder()
-                .matchLpm(
-                        PiMatchFieldId.of("hdr.ipv6.dst_addr"),
-                        myUDX.toOctets(), 64)
-                .build();
-            action = PiAction.builder()
-                .withId(PiActionId.of("IngressPipeImpl.srv6_end_dx6"))
-                .build();
-            myStationRule = Utils.buildFlowRule(
-                 deviceId, appId, tableId, match, action);
-            flowRuleService.applyFlowRules(myStationRule);
+            myStationRules.add(SRV6_END_DX6.lpm(deviceId, appId, myUDX.toOctets(), 64));
         }
+        return myStationRules;
     }
 
     /*
@@ -183,53 +169,29 @@ public class Srv6Component {
                                     Ip6Address nextHopIpv6, MacAddress nextHopMac) {
         log.info("Adding a uAInstruction on {}...", routerId);
 
-        final String uATableId = "IngressPipeImpl.srv6_localsid_table";
-        final String uAActionName = "IngressPipeImpl.srv6_usid_ua";
-
-        final String xconnTableId = "IngressPipeImpl.xconnect_table";
-        final String xconnActionName = "IngressPipeImpl.xconnect_act";
+        final Span span = OperationTracer.start(OperationType.POLICY_INSTALL, routerId);
+        try {
+            final List<FlowRule> rules = buildUARules(
+                    routerId, uAInstruction, nextHopIpv6, nextHopMac);
+            journal.record(Op.of(Kind.UA_INSTRUCTION, routerId, uAInstruction, nextHopIpv6, nextHopMac));
+            mainComponent.getExecutor(routerId, BULK).execute(
+                    () -> flowRuleWriter.applyFlowRules(WRITE_SOURCE, BULK, rules));
+            span.entries(rules.size()).end(OUTCOME_OK);
+        } finally {
+            span.end(OUTCOME_FAILED);
+        }
+    }
 
+    private List<FlowRule> buildUARules(DeviceId routerId, Ip6Address uAInstruction,
+                                        Ip6Address nextHopIpv6, MacAddress nextHopMac) {
         final int mask = 64;
 
-        PiCriterion match = PiCriterion.builder()
-                .matchLpm(
-                        PiMatchFieldId.of("hdr.ipv6.dst_addr"),
-                        uAInstruction.toOctets(),
-                        mask)
-                .build();
-
-        PiAction action = PiAction.builder()
-                    .withId(PiActionId.of(uAActionName))
-                    .withParameter(new PiActionParam(
-                            // Action param name.
-                            PiActionParamId.of("next_hop"),
-                            // Action param value.
-                            nextHopIpv6.toOctets()))
-                    .build();
-
-        flowRuleService.applyFlowRules(Utils
-                 .buildFlowRule(routerId, appId, uATableId, match, action));
-
-
-        match = PiCriterion.builder()
-                    .matchLpm(
-                                PiMatchFieldId.of("local_metadata.ua_next_hop"),
-                                nextHopIpv6.toOctets(),
-                                mask)
-                    .build();
-
-        action = PiAction.builder()
-                    .withId(PiActionId.of(xconnActionName))
-                    .withParameter(new PiActionParam(
-                                    PiActionParamId.of("next_hop"),
-                                    nextHopMac.toBytes()))
-                    .build();
-
-        flowRuleService.applyFlowRules(Utils
-                    .buildFlowRule(routerId, appId, xconnTableId, match, action));
-    }    
-
-
+        return Lists.newArrayList(
+                SRV6_USID_UA.lpm(routerId, appId, uAInstruction.toOctets(), mask,
+                                 copyFrom(nextHopIpv6.toOctets())),
+                XCONNECT.lpm(routerId, appId, nextHopIpv6.toOctets(), mask,
+                             copyFrom(nextHopMac.toBytes())));
+    }
 
     /**
      * Insert a micro SID encap insert policy that will inject an IPv6 in IPv6 header for
@@ -243,34 +205,33 @@ public class Srv6Component {
     public void insertSrv6InsertRule(DeviceId deviceId, Ip6Address destIp, int prefixLength,
                                      List<Ip6Address> segmentList) {
 
-        String tableId = "IngressPipeImpl.srv6_encap";
-        Ip6Address myUSid= getMyUSid(deviceId);
-        
-        PiCriterion match = PiCriterion.builder()
-                .matchLpm(PiMatchFieldId.of("hdr.ipv6.dst_addr"), destIp.toOctets(), prefixLength)
-                .build();
-
-        List<PiActionParam> actionParams = Lists.newArrayList();
-
-        PiActionParamId paramId = PiActionParamId.of("src_addr");
-        PiActionParam param = new PiActionParam(paramId, myUSid.toOctets());
-        actionParams.add(param);
-
-        for (int i = 0; i < segmentList.size()-1; i++) {
-            paramId = PiActionParamId.of("s" + (i + 1));
-            param = new PiActionParam(paramId, segmentList.get(i).toOctets());
-            actionParams.add(param);
+        final Span span = OperationTracer.start(OperationType.POLICY_INSTALL, deviceId);
+        try {
+            final FlowRule rule = buildSrv6InsertRule(deviceId, destIp, prefixLength, segmentList);
+            final List<Object> args = Lists.newArrayList(destIp, prefixLength);
+            args.addAll(segmentList);
+            journal.record(Op.of(Kind.SRV6_POLICY, deviceId, args));
+            mainComponent.getExecutor(deviceId, BULK).execute(
+                    () -> flowRuleWriter.applyFlowRules(
+                            WRITE_SOURCE, BULK, Collections.singletonList(rule)));
+            span.table(rule.table()).entries(1).end(OUTCOME_OK);
+        } finally {
+            span.end(OUTCOME_FAILED);
         }
+    }
 
-        PiAction action = PiAction.builder()
-                .withId(PiActionId.of("IngressPipeImpl.usid_encap_" + (segmentList.size() - 1)))
-                .withParameters(actionParams)
-                .build();
+    private FlowRule buildSrv6InsertRule(DeviceId deviceId, Ip6Address destIp, int prefixLength,
+                                         List<Ip6Address> segmentList) {
+        final RuleTemplate template = usidEncap(segmentList.size() - 1);
+        Ip6Address myUSid = getMyUSid(deviceId);
 
-        final FlowRule rule = Utils.buildFlowRule(
-                deviceId, appId, tableId, match, action);
+        final ImmutableByteSequence[] params = new ImmutableByteSequence[segmentList.size()];
+        params[0] = copyFrom(myUSid.toOctets());
+        for (int i = 0; i < segmentList.size() - 1; i++) {
+            params[i + 1] = copyFrom(segmentList.get(i).toOctets());
+        }
 
-        flowRuleService.applyFlowRules(rule);
+        return template.lpm(deviceId, appId, destIp.toOctets(), prefixLength, params);
     }
 
     /**
@@ -279,80 +240,89 @@ public class Srv6Component {
      * @param deviceId device ID
      */
     public void clearSrv6InsertRules(DeviceId deviceId) {
-        String tableId = "IngressPipeImpl.srv6_encap";
-
-        FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
-        stream(flowRuleService.getFlowEntries(deviceId))
-                .filter(fe -> fe.appId() == appId.id())
-                .filter(fe -> fe.table().equals(PiTableId.of(tableId)))
-                .forEach(ops::remove);
-        flowRuleService.apply(ops.build());
+        journal.record(Op.of(Kind.CLEAR_SRV6_POLICIES, deviceId));
+        // After the policies inserted before, which are bulk tasks too.
+        mainComponent.getExecutor(deviceId, BULK).execute(() -> {
+            final Span span = OperationTracer.start(OperationType.CLEANUP, deviceId)
+                    .table(SRV6_ENCAP_TABLE);
+            try {
+                FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+                final List<FlowEntry> entries = stream(flowRuleService.getFlowEntries(deviceId))
+                        .filter(fe -> fe.appId() == appId.id())
+                        .filter(fe -> fe.table().equals(SRV6_ENCAP_TABLE))
+                        .collect(Collectors.toList());
+                entries.forEach(ops::remove);
+                flowRuleWriter.apply(WRITE_SOURCE, ops.build(), BULK);
+                span.entries(entries.size()).end(entries.isEmpty() ? OUTCOME_SKIPPED : OUTCOME_OK);
+            } finally {
+                span.end(OUTCOME_FAILED);
+            }
+        });
     }
 
     // ---------- END METHODS TO COMPLETE ----------------
 
     //--------------------------------------------------------------------------
-    // EVENT LISTENERS
-    //
-    // Events are processed only if isRelevant() returns true.
+    // DEVICE SET UP
     //--------------------------------------------------------------------------
 
     /**
-     * Listener of device events.
+     * Builds the rules of the SRv6 policies and uA instructions recorded in
+     * the journal for the given device, e.g. to restore them after a restart.
+     *
+     * @param deviceId the device ID
+     * @return flow rules
+     */
+    private List<FlowRule> buildJournaledRules(DeviceId deviceId) {
+        final List<FlowRule> rules = Lists.newArrayList();
+        for (Op op : journal.getOps(deviceId)) {
+            try {
+                if (op.kind() == Kind.UA_INSTRUCTION) {
+                    rules.addAll(buildUARules(
+                            deviceId, Ip6Address.valueOf(op.arg(0)), Ip6Address.valueOf(op.arg(1)),
+                            MacAddress.valueOf(op.arg(2))));
+                } else if (op.kind() == Kind.SRV6_POLICY) {
+                    final List<Ip6Address> segmentList = op.args().subList(2, op.args().size())
+                            .stream()
+                            .map(Ip6Address::valueOf)
+                            .collect(Collectors.toList());
+                    rules.add(buildSrv6InsertRule(
+                            deviceId, Ip6Address.valueOf(op.arg(0)), Integer.parseInt(op.arg(1)),
+                            segmentList));
+                }
+            } catch (RuntimeException e) {
+                log.warn("Unable to restore {}: {}", op, e.getMessage());
+            }
+        }
+        if (!rules.isEmpty()) {
+            log.info("Restoring {} SRv6 rules from journal on {}...", rules.size(), deviceId);
+        }
+        return rules;
+    }
+
+    /**
+     * Set up step populating the My micro SID table, and restoring the
+     * policies recorded in the journal.
      */
-    public class InternalDeviceListener implements DeviceListener {
+    private class InternalSetupStep implements DeviceSetupStep {
 
         @Override
-        public boolean isRelevant(DeviceEvent event) {
-            switch (event.type()) {
-                case DEVICE_ADDED:
-                case DEVICE_AVAILABILITY_CHANGED:
-                    break;
-                default:
-                    // Ignore other events.
-                    return false;
-            }
-            // Process only if this controller instance is the master.
-            final DeviceId deviceId = event.subject().id();
-            return mastershipService.isLocalMaster(deviceId);
+        public String name() {
+            return "SRv6 My micro SID";
         }
 
         @Override
-        public void event(DeviceEvent event) {
-            final DeviceId deviceId = event.subject().id();
-            if (deviceService.isAvailable(deviceId)) {
-                // A P4Runtime device is considered available in ONOS when there
-                // is a StreamChannel session open and the pipeline
-                // configuration has been set.
-                mainComponent.getExecutorService().execute(() -> {
-                    log.info("{} event! deviceId={}", event.type(), deviceId);
-
-                    setUpMyUSidTable(event.subject().id());
-                });
-            }
+        public Collection<FlowRule> setUpDevice(DeviceId deviceId) {
+            final List<FlowRule> rules = buildMyUSidRules(deviceId);
+            rules.addAll(buildJournaledRules(deviceId));
+            return rules;
         }
     }
 
-
     //--------------------------------------------------------------------------
     // UTILITY METHODS
     //--------------------------------------------------------------------------
 
-    /**
-     * Sets up SRv6 My SID table on all devices known by ONOS and for which this
-     * ONOS node instance is currently master.
-     */
-    private synchronized void setUpAllDevices() {
-        // Set up host routes
-        stream(deviceService.getAvailableDevices())
-                .map(Device::id)
-                .filter(mastershipService::isLocalMaster)
-                .forEach(deviceId -> {
-                    log.info("*** SRV6 - Starting initial set up for {}...", deviceId);
-                    this.setUpMyUSidTable(deviceId);
-                });
-    }
-
     /**
      * Returns the Srv6 config for the given device.
      *
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.cli;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.onlab.osgi.DefaultServiceDirectory;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.srv6_usid.MetricsReport;
+
+/**
+ * SRv6 Metrics Command
+ */
+@Service
+@Command(scope = "onos", name = "srv6-metrics",
+         description = "Shows the write latencies, event-to-write lags, executor " +
+                 "and packet-in/out statistics of the SRv6 app")
+public class MetricsCommand extends AbstractShellCommand {
+
+    @Override
+    protected void doExecute() {
+        ObjectNode report = MetricsReport.toJson(new DefaultServiceDirectory(), mapper());
+        if (outputJson()) {
+            print("%s", report);
+            return;
+        }
+        MetricsReport.format(report).forEach(line -> print("%s", line));
+    }
+
+}
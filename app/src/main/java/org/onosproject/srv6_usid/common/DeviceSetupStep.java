@@ -0,0 +1,46 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.common;
+
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.FlowRule;
+
+import java.util.Collection;
+
+/**
+ * Step of the set up of a device, contributed by an app component. Steps are
+ * run by the device lifecycle component once the device is ready, and the
+ * flow rules of all steps are written to the device with a single batch.
+ */
+public interface DeviceSetupStep {
+
+    /**
+     * Returns the name of this step, used for logging.
+     *
+     * @return step name
+     */
+    String name();
+
+    /**
+     * Returns the flow rules needed by this step on the given device. Groups
+     * and other state not expressed as flow rules can be installed directly.
+     *
+     * @param deviceId the device ID
+     * @return flow rules to install
+     */
+    Collection<FlowRule> setUpDevice(DeviceId deviceId);
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.common;
+
+import com.google.common.math.IntMath;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Bounded, lock-free ring buffer with multiple producers and a single
+ * consumer. When full, new elements overwrite the oldest ones, so producers
+ * never block nor fail.
+ * <p>
+ * Producers claim a sequence number with a single atomic increment and
+ * publish the element in the slot of that sequence, unless a newer element
+ * is already there. The consumer reads slots in sequence order, skipping
+ * those overwritten by newer elements.
+ *
+ * @param <T> type of the elements
+ */
+public final class DropOldestRingBuffer<T> {
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<Slot<T>> slots;
+
+    // Next sequence to claim, i.e. number of elements offered so far.
+    private final AtomicLong tail = new AtomicLong();
+
+    // Written by the consumer only.
+    private volatile long head;
+    private volatile long dropped;
+
+    /**
+     * Creates a new ring buffer.
+     *
+     * @param capacity minimum capacity, rounded up to a power of 2
+     */
+    public DropOldestRingBuffer(int capacity) {
+        checkArgument(capacity > 0 && capacity <= 1 << 30, "Invalid capacity");
+        this.capacity = IntMath.ceilingPowerOfTwo(capacity);
+        this.mask = this.capacity - 1;
+        this.slots = new AtomicReferenceArray<>(this.capacity);
+    }
+
+    /**
+     * Adds the given element, overwriting the oldest one if the buffer is
+     * full. Can be called by any thread.
+     *
+     * @param element the element
+     * @return false if the oldest element was overwritten, true otherwise
+     */
+    public boolean offer(T element) {
+        checkNotNull(element);
+        final long seq = tail.getAndIncrement();
+        final int index = index(seq);
+        final Slot<T> slot = new Slot<>(seq, element);
+        while (true) {
+            final Slot<T> current = slots.get(index);
+            if (current != null && current.seq > seq) {
+                // A producer lapped this one while it was preempted. Never
+                // replace a newer element, or the consumer would wait for
+                // it forever. This element counts as dropped.
+                return false;
+            }
+            if (slots.compareAndSet(index, current, slot)) {
+                break;
+            }
+        }
+        return seq - head < capacity;
+    }
+
+    /**
+     * Moves up to the given number of elements to the given collection, in
+     * the order they were offered. Must be called by the consumer thread
+     * only.
+     *
+     * @param into collection where elements are added
+     * @param max  maximum number of elements to move
+     * @return number of elements moved
+     */
+    public int drain(Collection<? super T> into, int max) {
+        long h = head;
+        int count = 0;
+        while (count < max) {
+            final long t = tail.get();
+            if (h >= t) {
+                break;
+            }
+            if (t - h > capacity) {
+                // Elements up to here have been, or are being, overwritten.
+                dropped += t - capacity - h;
+                h = t - capacity;
+            }
+            final int index = index(h);
+            final Slot<T> slot = slots.get(index);
+            if (slot == null || slot.seq < h) {
+                // Claimed by a producer, but not published yet.
+                break;
+            }
+            if (slot.seq > h) {
+                // Overwritten by a newer element.
+                dropped++;
+                h++;
+                continue;
+            }
+            // Clear the slot, unless overwritten meanwhile, to not retain
+            // elements already consumed.
+            slots.compareAndSet(index, slot, null);
+            into.add(slot.element);
+            count++;
+            h++;
+        }
+        head = h;
+        return count;
+    }
+
+    /**
+     * Returns the number of elements waiting to be consumed.
+     *
+     * @return number of elements
+     */
+    public int size() {
+        return (int) Math.max(0, Math.min(tail.get() - head, capacity));
+    }
+
+    /**
+     * Returns true if there are no elements waiting to be consumed.
+     *
+     * @return true if empty
+     */
+    public boolean isEmpty() {
+        return tail.get() <= head;
+    }
+
+    /**
+     * Returns the capacity of this buffer.
+     *
+     * @return capacity
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of elements offered so far.
+     *
+     * @return offered elements
+     */
+    public long offered() {
+        return tail.get();
+    }
+
+    /**
+     * Returns the number of elements overwritten before being consumed.
+     *
+     * @return dropped elements
+     */
+    public long dropped() {
+        return dropped;
+    }
+
+    private int index(long seq) {
+        return (int) seq & mask;
+    }
+
+    private static final class Slot<T> {
+
+        private final long seq;
+        private final T element;
+
+        Slot(long seq, T element) {
+            this.seq = seq;
+            this.element = element;
+        }
+    }
+}
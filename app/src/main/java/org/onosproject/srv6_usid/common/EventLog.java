@@ -0,0 +1,683 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.common;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.onlab.packet.ChassisId;
+import org.onlab.packet.IpAddress;
+import org.onlab.packet.IpPrefix;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.VlanId;
+import org.onosproject.event.Event;
+import org.onosproject.mastership.MastershipEvent;
+import org.onosproject.mastership.MastershipInfo;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultDevice;
+import org.onosproject.net.DefaultHost;
+import org.onosproject.net.DefaultLink;
+import org.onosproject.net.DefaultPort;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.HostId;
+import org.onosproject.net.HostLocation;
+import org.onosproject.net.Link;
+import org.onosproject.net.Port;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.config.NetworkConfigEvent;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.host.HostEvent;
+import org.onosproject.net.host.InterfaceIpAddress;
+import org.onosproject.net.intf.Interface;
+import org.onosproject.net.intf.InterfaceEvent;
+import org.onosproject.net.link.LinkEvent;
+import org.onosproject.net.provider.ProviderId;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact binary log of the events received by the app listeners and of the
+ * resulting writes of flow rules and groups, to replay incidents offline.
+ * <p>
+ * The log starts with a header, then the state of the network when the
+ * recording started (as added events), then the events and writes as they
+ * happened. Each record starts with its type and the time elapsed since the
+ * previous record, in microseconds. Strings (e.g. device IDs) are written
+ * once and then referred to by index, and integers are variable-length.
+ */
+public final class EventLog {
+
+    private static final int MAGIC = 0x53364556; // "S6EV"
+    private static final int VERSION = 1;
+
+    private static final int DEVICE = 1;
+    private static final int LINK = 2;
+    private static final int HOST = 3;
+    private static final int INTERFACE = 4;
+    private static final int CONFIG = 5;
+    private static final int MASTERSHIP = 6;
+    private static final int WRITE = 7;
+    private static final int SNAPSHOT_END = 8;
+
+    private static final ProviderId PROVIDER_ID =
+            new ProviderId("replay", "org.onosproject.srv6_usid");
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    // Hide default constructor.
+    private EventLog() {
+    }
+
+    /**
+     * Kinds of writes made on the devices.
+     */
+    public enum WriteKind {
+        FLOW_ADDED, FLOW_REMOVED, GROUP_ADDED, GROUP_UPDATED, GROUP_REMOVED
+    }
+
+    /**
+     * A flow rule or group written on a device.
+     */
+    public static final class Write {
+
+        private final WriteKind kind;
+        private final DeviceId deviceId;
+        private final String target;
+
+        /**
+         * Creates a new write.
+         *
+         * @param kind     kind of write
+         * @param deviceId the device ID
+         * @param target   table of the flow rule, or ID of the group
+         */
+        public Write(WriteKind kind, DeviceId deviceId, String target) {
+            this.kind = kind;
+            this.deviceId = deviceId;
+            this.target = target;
+        }
+
+        public WriteKind kind() {
+            return kind;
+        }
+
+        public DeviceId deviceId() {
+            return deviceId;
+        }
+
+        public String target() {
+            return target;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Write)) {
+                return false;
+            }
+            final Write that = (Write) o;
+            return kind == that.kind && deviceId.equals(that.deviceId) &&
+                    target.equals(that.target);
+        }
+
+        @Override
+        public int hashCode() {
+            return (kind.hashCode() * 31 + deviceId.hashCode()) * 31 + target.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return kind + " " + deviceId + " " + target;
+        }
+    }
+
+    /**
+     * Record read from a log: either an event or a write.
+     */
+    public static final class Entry {
+
+        private final long micros;
+        private final boolean snapshot;
+        private final Event<?, ?> event;
+        private final Write write;
+        private final boolean available;
+        private final List<Port> ports;
+
+        private Entry(long micros, boolean snapshot, Event<?, ?> event, Write write,
+                      boolean available, List<Port> ports) {
+            this.micros = micros;
+            this.snapshot = snapshot;
+            this.event = event;
+            this.write = write;
+            this.available = available;
+            this.ports = ports;
+        }
+
+        /**
+         * Returns the time of this record since the start of the recording.
+         *
+         * @return time in microseconds
+         */
+        public long micros() {
+            return micros;
+        }
+
+        /**
+         * Returns true if this record describes the state of the network when
+         * the recording started.
+         *
+         * @return true if part of the snapshot
+         */
+        public boolean isSnapshot() {
+            return snapshot;
+        }
+
+        /**
+         * Returns the event, one of DeviceEvent, LinkEvent, HostEvent,
+         * InterfaceEvent, NetworkConfigEvent (of Srv6DeviceConfig) and
+         * MastershipEvent.
+         *
+         * @return event, or null if a write
+         */
+        public Event<?, ?> event() {
+            return event;
+        }
+
+        /**
+         * Returns the write.
+         *
+         * @return write, or null if an event
+         */
+        public Write write() {
+            return write;
+        }
+
+        /**
+         * Returns, for device events, whether the device was available, and
+         * for mastership events, whether this instance was master.
+         *
+         * @return true if available or master
+         */
+        public boolean available() {
+            return available;
+        }
+
+        /**
+         * Returns the ports of the device of a DEVICE_ADDED event.
+         *
+         * @return list of ports, empty for other records
+         */
+        public List<Port> ports() {
+            return ports;
+        }
+    }
+
+    /**
+     * Writer of a log. Methods are thread-safe, records are written in the
+     * order the methods are called.
+     */
+    public static final class Writer implements Closeable {
+
+        private final DataOutputStream out;
+        private final Map<String, Integer> strings = Maps.newHashMap();
+        private long lastNanos = System.nanoTime();
+
+        /**
+         * Creates a new writer and writes the header of the log.
+         *
+         * @param out the stream, closed with this writer
+         * @throws IOException if the header cannot be written
+         */
+        public Writer(OutputStream out) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(out));
+            this.out.writeInt(MAGIC);
+            this.out.writeByte(VERSION);
+            this.out.writeLong(System.currentTimeMillis());
+        }
+
+        /**
+         * Writes a device or port event.
+         *
+         * @param event     the event
+         * @param available whether the device is available
+         * @param ports     ports of the device, for DEVICE_ADDED events
+         * @throws IOException if the record cannot be written
+         */
+        public synchronized void device(DeviceEvent event, boolean available, List<Port> ports)
+                throws IOException {
+            header(DEVICE);
+            final Device device = event.subject();
+            out.writeByte(event.type().ordinal());
+            string(device.id().toString());
+            out.writeBoolean(available);
+            out.writeByte(device.type().ordinal());
+            string(device.manufacturer());
+            string(device.hwVersion());
+            string(device.swVersion());
+            string(device.serialNumber());
+            if (event.port() != null) {
+                varint(1);
+                port(event.port());
+            } else {
+                varint(ports.size());
+                for (Port port : ports) {
+                    port(port);
+                }
+            }
+        }
+
+        /**
+         * Writes a link event.
+         *
+         * @param event the event
+         * @throws IOException if the record cannot be written
+         */
+        public synchronized void link(LinkEvent event) throws IOException {
+            header(LINK);
+            final Link link = event.subject();
+            out.writeByte(event.type().ordinal());
+            connectPoint(link.src());
+            connectPoint(link.dst());
+            out.writeByte(link.type().ordinal());
+            out.writeByte(link.state().ordinal());
+        }
+
+        /**
+         * Writes a host event.
+         *
+         * @param event the event
+         * @throws IOException if the record cannot be written
+         */
+        public synchronized void host(HostEvent event) throws IOException {
+            header(HOST);
+            final Host host = event.subject();
+            out.writeByte(event.type().ordinal());
+            out.write(host.mac().toBytes());
+            out.writeShort(host.vlan().toShort());
+            connectPoint(host.location());
+            varint(host.ipAddresses().size());
+            for (IpAddress ip : host.ipAddresses()) {
+                ip(ip);
+            }
+        }
+
+        /**
+         * Writes an interface event.
+         *
+         * @param event the event
+         * @throws IOException if the record cannot be written
+         */
+        public synchronized void intf(InterfaceEvent event) throws IOException {
+            header(INTERFACE);
+            final Interface intf = event.subject();
+            out.writeByte(event.type().ordinal());
+            string(intf.name());
+            connectPoint(intf.connectPoint());
+            out.write(intf.mac().toBytes());
+            out.writeShort(intf.vlan().toShort());
+            varint(intf.ipAddressesList().size());
+            for (InterfaceIpAddress address : intf.ipAddressesList()) {
+                ip(address.ipAddress());
+                out.writeByte(address.subnetAddress().prefixLength());
+            }
+        }
+
+        /**
+         * Writes an event of the Srv6DeviceConfig of a device.
+         *
+         * @param event the event
+         * @throws IOException if the record cannot be written
+         */
+        public synchronized void config(NetworkConfigEvent event) throws IOException {
+            header(CONFIG);
+            out.writeByte(event.type().ordinal());
+            string(event.subject().toString());
+            final boolean hasConfig = event.config().isPresent();
+            out.writeBoolean(hasConfig);
+            if (hasConfig) {
+                out.writeUTF(event.config().get().node().toString());
+            }
+        }
+
+        /**
+         * Writes a mastership event.
+         *
+         * @param event         the event
+         * @param isLocalMaster whether this instance is master of the device
+         * @throws IOException if the record cannot be written
+         */
+        public synchronized void mastership(MastershipEvent event, boolean isLocalMaster)
+                throws IOException {
+            header(MASTERSHIP);
+            out.writeByte(event.type().ordinal());
+            string(event.subject().toString());
+            out.writeBoolean(isLocalMaster);
+        }
+
+        /**
+         * Writes a flow rule or group write.
+         *
+         * @param write the write
+         * @throws IOException if the record cannot be written
+         */
+        public synchronized void write(Write write) throws IOException {
+            header(WRITE);
+            out.writeByte(write.kind.ordinal());
+            string(write.deviceId.toString());
+            string(write.target);
+        }
+
+        /**
+         * Marks the end of the state of the network when the recording
+         * started.
+         *
+         * @throws IOException if the record cannot be written
+         */
+        public synchronized void endSnapshot() throws IOException {
+            header(SNAPSHOT_END);
+        }
+
+        /**
+         * Flushes the buffered records to the stream.
+         *
+         * @throws IOException if the records cannot be written
+         */
+        public synchronized void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+
+        private void header(int recordType) throws IOException {
+            final long now = System.nanoTime();
+            out.writeByte(recordType);
+            varint((now - lastNanos) / 1000);
+            // Keep the sub-microsecond remainder, so that times do not drift.
+            lastNanos = now - (now - lastNanos) % 1000;
+        }
+
+        private void varint(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                out.writeByte((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte((int) value);
+        }
+
+        private void string(String value) throws IOException {
+            final String s = value == null ? "" : value;
+            final Integer index = strings.get(s);
+            if (index != null) {
+                varint(index + 1);
+                return;
+            }
+            strings.put(s, strings.size());
+            varint(0);
+            out.writeUTF(s);
+        }
+
+        private void port(Port port) throws IOException {
+            varint(port.number().toLong());
+            out.writeBoolean(port.isEnabled());
+        }
+
+        private void connectPoint(ConnectPoint cp) throws IOException {
+            string(cp.elementId().toString());
+            varint(cp.port().toLong());
+        }
+
+        private void ip(IpAddress ip) throws IOException {
+            final byte[] bytes = ip.toOctets();
+            out.writeByte(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Reader of a log.
+     */
+    public static final class Reader implements Closeable {
+
+        private final DataInputStream in;
+        private final List<String> strings = Lists.newArrayList();
+        private final long startMillis;
+        private long micros;
+        private boolean snapshot = true;
+
+        /**
+         * Creates a new reader and reads the header of the log.
+         *
+         * @param in the stream, closed with this reader
+         * @throws IOException if the stream is not a log of a supported version
+         */
+        public Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(in));
+            if (this.in.readInt() != MAGIC) {
+                throw new IOException("Not an event log");
+            }
+            final int version = this.in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported event log version " + version);
+            }
+            this.startMillis = this.in.readLong();
+        }
+
+        /**
+         * Returns the wall-clock time when the recording started.
+         *
+         * @return milliseconds since the epoch
+         */
+        public long startMillis() {
+            return startMillis;
+        }
+
+        /**
+         * Reads the next record.
+         *
+         * @return entry, or null at the end of the log
+         * @throws IOException if the log is corrupted
+         */
+        public Entry next() throws IOException {
+            while (true) {
+                final int recordType = in.read();
+                if (recordType < 0) {
+                    return null;
+                }
+                try {
+                    micros += varint();
+                    if (recordType == SNAPSHOT_END) {
+                        snapshot = false;
+                        continue;
+                    }
+                    return entry(recordType);
+                } catch (EOFException e) {
+                    // Truncated by a crash while writing the last record.
+                    return null;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private Entry entry(int recordType) throws IOException {
+            switch (recordType) {
+                case DEVICE:
+                    return device();
+                case LINK:
+                    return event(new LinkEvent(LinkEvent.Type.values()[in.readUnsignedByte()],
+                                               DefaultLink.builder()
+                                                       .providerId(PROVIDER_ID)
+                                                       .src(connectPoint())
+                                                       .dst(connectPoint())
+                                                       .type(Link.Type.values()[in.readUnsignedByte()])
+                                                       .state(Link.State.values()[in.readUnsignedByte()])
+                                                       .build()), false);
+                case HOST:
+                    return host();
+                case INTERFACE:
+                    return intf();
+                case CONFIG:
+                    return config();
+                case MASTERSHIP:
+                    final MastershipEvent.Type type =
+                            MastershipEvent.Type.values()[in.readUnsignedByte()];
+                    final DeviceId deviceId = DeviceId.deviceId(string());
+                    return event(new MastershipEvent(type, deviceId, new MastershipInfo()),
+                                 in.readBoolean());
+                case WRITE:
+                    final WriteKind kind = WriteKind.values()[in.readUnsignedByte()];
+                    return new Entry(micros, snapshot, null,
+                                     new Write(kind, DeviceId.deviceId(string()), string()),
+                                     false, ImmutableList.of());
+                default:
+                    throw new IOException("Unknown record type " + recordType);
+            }
+        }
+
+        private Entry device() throws IOException {
+            final DeviceEvent.Type type = DeviceEvent.Type.values()[in.readUnsignedByte()];
+            final DeviceId deviceId = DeviceId.deviceId(string());
+            final boolean available = in.readBoolean();
+            final Device device = new DefaultDevice(
+                    PROVIDER_ID, deviceId, Device.Type.values()[in.readUnsignedByte()],
+                    string(), string(), string(), string(), new ChassisId());
+            final int numPorts = (int) varint();
+            final List<Port> ports = Lists.newArrayListWithCapacity(numPorts);
+            for (int i = 0; i < numPorts; i++) {
+                ports.add(new DefaultPort(device, PortNumber.portNumber(varint()), in.readBoolean()));
+            }
+            final DeviceEvent event = type == DeviceEvent.Type.PORT_ADDED ||
+                    type == DeviceEvent.Type.PORT_UPDATED || type == DeviceEvent.Type.PORT_REMOVED
+                    ? new DeviceEvent(type, device, ports.get(0))
+                    : new DeviceEvent(type, device);
+            return new Entry(micros, snapshot, event, null, available, ImmutableList.copyOf(ports));
+        }
+
+        private Entry host() throws IOException {
+            final HostEvent.Type type = HostEvent.Type.values()[in.readUnsignedByte()];
+            final MacAddress mac = MacAddress.valueOf(bytes(MacAddress.MAC_ADDRESS_LENGTH));
+            final VlanId vlan = VlanId.vlanId(in.readShort());
+            final ConnectPoint location = connectPoint();
+            final int numIps = (int) varint();
+            final Set<IpAddress> ips = Sets.newHashSetWithExpectedSize(numIps);
+            for (int i = 0; i < numIps; i++) {
+                ips.add(ip());
+            }
+            return event(new HostEvent(type, new DefaultHost(
+                    PROVIDER_ID, HostId.hostId(mac, vlan), mac, vlan,
+                    new HostLocation(location, 0), ImmutableSet.copyOf(ips))), false);
+        }
+
+        private Entry intf() throws IOException {
+            final InterfaceEvent.Type type = InterfaceEvent.Type.values()[in.readUnsignedByte()];
+            final String name = string();
+            final ConnectPoint cp = connectPoint();
+            final MacAddress mac = MacAddress.valueOf(bytes(MacAddress.MAC_ADDRESS_LENGTH));
+            final VlanId vlan = VlanId.vlanId(in.readShort());
+            final int numIps = (int) varint();
+            final List<InterfaceIpAddress> ips = Lists.newArrayListWithCapacity(numIps);
+            for (int i = 0; i < numIps; i++) {
+                final IpAddress ip = ip();
+                ips.add(new InterfaceIpAddress(ip, IpPrefix.valueOf(ip, in.readUnsignedByte())));
+            }
+            return event(new InterfaceEvent(type, new Interface(name, cp, ips, mac, vlan)), false);
+        }
+
+        private Entry config() throws IOException {
+            final NetworkConfigEvent.Type type =
+                    NetworkConfigEvent.Type.values()[in.readUnsignedByte()];
+            final DeviceId deviceId = DeviceId.deviceId(string());
+            Srv6DeviceConfig config = null;
+            if (in.readBoolean()) {
+                config = new Srv6DeviceConfig();
+                config.init(deviceId, Srv6DeviceConfig.CONFIG_KEY,
+                            (ObjectNode) MAPPER.readTree(in.readUTF()), MAPPER, c -> { });
+            }
+            return event(new NetworkConfigEvent(type, deviceId, config, null,
+                                                Srv6DeviceConfig.class), false);
+        }
+
+        private Entry event(Event<?, ?> event, boolean available) {
+            return new Entry(micros, snapshot, event, null, available, ImmutableList.of());
+        }
+
+        private long varint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < Long.SIZE; shift += 7) {
+                final int b = in.readUnsignedByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed variable-length integer");
+        }
+
+        private String string() throws IOException {
+            final int index = (int) varint();
+            if (index > 0) {
+                if (index > strings.size()) {
+                    throw new IOException("Unknown string index " + index);
+                }
+                return strings.get(index - 1);
+            }
+            final String s = in.readUTF();
+            strings.add(s);
+            return s;
+        }
+
+        private byte[] bytes(int length) throws IOException {
+            final byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return bytes;
+        }
+
+        private ConnectPoint connectPoint() throws IOException {
+            return new ConnectPoint(DeviceId.deviceId(string()), PortNumber.portNumber(varint()));
+        }
+
+        private IpAddress ip() throws IOException {
+            final byte[] bytes = bytes(in.readUnsignedByte());
+            return IpAddress.valueOf(bytes.length == 4 ? IpAddress.Version.INET
+                                             : IpAddress.Version.INET6, bytes);
+        }
+    }
+}
@@ -0,0 +1,542 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.common;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Executor that runs tasks submitted for the same key one at a time, while
+ * tasks for different keys run in parallel on a shared pool of threads.
+ * <p>
+ * Tasks for the same key are executed in submission order. Each task has a
+ * {@link TaskPriority} and an optional deadline, used to choose between keys:
+ * every time a thread completes a task it picks the key holding the most
+ * urgent task, by priority, then by earliest deadline, then in submission
+ * order, so bulk work is preempted at task (batch) boundaries. A key runs its
+ * earlier tasks first, whatever their priority, so that an urgent task never
+ * overtakes an earlier task it could conflict with. Bulk tasks never occupy
+ * all the threads of the pool, to keep latency-critical work fast no matter
+ * how much bulk work is queued.
+ *
+ * @param <K> type of the key, e.g. a device ID
+ */
+public final class KeyedExecutor<K> {
+
+    private static final Logger log = LoggerFactory.getLogger(KeyedExecutor.class);
+
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private static final Comparator<Task> TASK_ORDER = Comparator
+            .comparing((Task t) -> t.priority)
+            .thenComparingLong(t -> t.deadlineNanos)
+            .thenComparingLong(t -> t.seq);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition taskAvailable = lock.newCondition();
+
+    // All the following are guarded by lock.
+    private final Map<K, KeyQueue> queues = Maps.newHashMap();
+    // Queues that are not empty and not being drained, ordered by their most
+    // urgent task.
+    private final TreeSet<KeyQueue> ready = new TreeSet<>(
+            Comparator.comparing(KeyQueue::mostUrgent, TASK_ORDER));
+    private long nextSeq;
+    private int bulkRunning;
+    private boolean shutdown;
+    private int poolSize;
+    private final List<Thread> workers = Lists.newArrayList();
+
+    private final ThreadFactory threadFactory;
+
+    /**
+     * Creates a new keyed executor.
+     *
+     * @param poolSize      number of threads of the shared pool
+     * @param threadFactory factory of the pool threads
+     */
+    public KeyedExecutor(int poolSize, ThreadFactory threadFactory) {
+        this.threadFactory = checkNotNull(threadFactory);
+        setPoolSize(poolSize);
+    }
+
+    /**
+     * Changes the number of threads of the shared pool. When shrinking,
+     * threads in excess exit once done with their current task.
+     *
+     * @param newPoolSize number of threads
+     */
+    public void setPoolSize(int newPoolSize) {
+        checkArgument(newPoolSize > 0, "Pool size must be positive");
+        lock.lock();
+        try {
+            if (shutdown) {
+                return;
+            }
+            poolSize = newPoolSize;
+            while (workers.size() < poolSize) {
+                final Thread worker = threadFactory.newThread(this::work);
+                workers.add(worker);
+                worker.start();
+            }
+            taskAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of threads of the shared pool.
+     *
+     * @return pool size
+     */
+    public int poolSize() {
+        lock.lock();
+        try {
+            return poolSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Submits a task with topology change priority and no deadline.
+     *
+     * @param key  task key
+     * @param task task runnable
+     */
+    public void execute(K key, Runnable task) {
+        execute(key, TaskPriority.TOPOLOGY_CHANGE, task);
+    }
+
+    /**
+     * Submits a task with the given priority and no deadline.
+     *
+     * @param key      task key
+     * @param priority task priority
+     * @param task     task runnable
+     */
+    public void execute(K key, TaskPriority priority, Runnable task) {
+        enqueue(key, priority, NO_DEADLINE, task);
+    }
+
+    /**
+     * Submits a task with the given priority that should start within the
+     * given deadline. Among keys with tasks of the same priority, the one with
+     * the earliest deadline runs first. Tasks starting after their deadline
+     * are still executed, but counted as missed deadlines.
+     *
+     * @param key      task key
+     * @param priority task priority
+     * @param deadline max time before the task should start
+     * @param unit     time unit of the deadline
+     * @param task     task runnable
+     */
+    public void execute(K key, TaskPriority priority, long deadline,
+                        TimeUnit unit, Runnable task) {
+        enqueue(key, priority, System.nanoTime() + unit.toNanos(deadline), task);
+    }
+
+    /**
+     * Returns an executor that submits tasks for the given key with the given
+     * priority.
+     *
+     * @param key      task key
+     * @param priority task priority
+     * @return executor
+     */
+    public Executor executor(K key, TaskPriority priority) {
+        return task -> execute(key, priority, task);
+    }
+
+    private void enqueue(K key, TaskPriority priority, long deadlineNanos,
+                         Runnable runnable) {
+        checkNotNull(key);
+        checkNotNull(priority);
+        checkNotNull(runnable);
+        lock.lock();
+        try {
+            if (shutdown) {
+                throw new RejectedExecutionException("Executor is shut down");
+            }
+            final KeyQueue queue = queues.computeIfAbsent(key, k -> new KeyQueue());
+            final Task task = new Task(runnable, priority, deadlineNanos,
+                                       nextSeq++, System.nanoTime());
+            // A queue is in the ready set if not empty and not running.
+            // Re-insert it to keep the set sorted by its most urgent task.
+            if (!queue.running && !queue.isEmpty()) {
+                ready.remove(queue);
+            }
+            queue.add(task);
+            if (!queue.running) {
+                ready.add(queue);
+            }
+            taskAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of tasks waiting or running for the given key.
+     *
+     * @param key task key
+     * @return queue depth
+     */
+    public int queueDepth(K key) {
+        lock.lock();
+        try {
+            KeyQueue queue = queues.get(key);
+            return queue == null ? 0 : queue.depth();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the statistics of all keys seen so far.
+     *
+     * @return map of key to statistics
+     */
+    public Map<K, Stats> stats() {
+        lock.lock();
+        try {
+            ImmutableMap.Builder<K, Stats> builder = ImmutableMap.builder();
+            queues.forEach((key, queue) -> builder.put(key, queue.stats()));
+            return builder.build();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting tasks, discards the queued ones and waits for the
+     * running ones to complete, up to the given timeout.
+     *
+     * @param timeout max time to wait
+     * @param unit    time unit of the timeout
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        final List<Thread> running;
+        lock.lock();
+        try {
+            shutdown = true;
+            ready.clear();
+            queues.clear();
+            running = Lists.newArrayList(workers);
+            taskAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            for (Thread worker : running) {
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                worker.join(Math.max(1, left));
+                if (worker.isAlive()) {
+                    worker.interrupt();
+                }
+            }
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while waiting for tasks to complete", e);
+            running.forEach(Thread::interrupt);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void work() {
+        while (true) {
+            final KeyQueue queue;
+            final Task task;
+            lock.lock();
+            try {
+                KeyQueue next;
+                while (true) {
+                    if (shutdown) {
+                        return;
+                    }
+                    if (workers.size() > poolSize) {
+                        // The pool was shrunk.
+                        workers.remove(Thread.currentThread());
+                        return;
+                    }
+                    next = nextQueue();
+                    if (next != null) {
+                        break;
+                    }
+                    taskAvailable.await();
+                }
+                ready.remove(next);
+                queue = next;
+                task = queue.poll();
+                queue.running = true;
+                if (task.priority == TaskPriority.BULK) {
+                    bulkRunning++;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            queue.runTask(task);
+
+            lock.lock();
+            try {
+                queue.running = false;
+                if (task.priority == TaskPriority.BULK) {
+                    bulkRunning--;
+                }
+                if (!shutdown && !queue.isEmpty()) {
+                    ready.add(queue);
+                }
+                // Wake up a thread that might be waiting because of the bulk
+                // limit or because this key was busy.
+                taskAvailable.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Must be called with lock held.
+    private KeyQueue nextQueue() {
+        if (shutdown || ready.isEmpty()) {
+            return null;
+        }
+        final KeyQueue first = ready.first();
+        // Leave at least one thread free for latency-critical work.
+        if (first.mostUrgent().priority == TaskPriority.BULK
+                && bulkRunning >= Math.max(1, poolSize - 1)) {
+            // Only bulk work left, and enough threads are busy with it.
+            return null;
+        }
+        return first;
+    }
+
+    /**
+     * Queue of tasks for a single key.
+     */
+    private final class KeyQueue {
+
+        // Guarded by the executor lock. The same tasks, in submission order
+        // and by urgency.
+        private final Queue<Task> tasks = new ArrayDeque<>();
+        private final TreeSet<Task> byUrgency = new TreeSet<>(TASK_ORDER);
+        private boolean running;
+
+        // Updated only by the thread running a task of this key.
+        private volatile long completed;
+        private volatile long failed;
+        private volatile long missedDeadlines;
+        private volatile long totalWaitNanos;
+        private volatile long totalRunNanos;
+        private volatile long maxWaitNanos;
+        private volatile long maxRunNanos;
+
+        void add(Task task) {
+            tasks.add(task);
+            byUrgency.add(task);
+        }
+
+        Task poll() {
+            final Task task = tasks.poll();
+            byUrgency.remove(task);
+            return task;
+        }
+
+        boolean isEmpty() {
+            return tasks.isEmpty();
+        }
+
+        Task mostUrgent() {
+            return byUrgency.first();
+        }
+
+        int depth() {
+            return tasks.size() + (running ? 1 : 0);
+        }
+
+        void runTask(Task task) {
+            final long start = System.nanoTime();
+            final long wait = start - task.submitNanos;
+            if (start > task.deadlineNanos) {
+                missedDeadlines++;
+                log.debug("{} task started {} ms after its deadline",
+                          task.priority,
+                          TimeUnit.NANOSECONDS.toMillis(start - task.deadlineNanos));
+            }
+            try {
+                task.runnable.run();
+            } catch (RuntimeException e) {
+                failed++;
+                log.error("Uncaught exception in task", e);
+            } finally {
+                final long run = System.nanoTime() - start;
+                completed++;
+                totalWaitNanos += wait;
+                totalRunNanos += run;
+                maxWaitNanos = Math.max(maxWaitNanos, wait);
+                maxRunNanos = Math.max(maxRunNanos, run);
+            }
+        }
+
+        Stats stats() {
+            return new Stats(depth(), completed, failed, missedDeadlines,
+                             totalWaitNanos, totalRunNanos,
+                             maxWaitNanos, maxRunNanos);
+        }
+    }
+
+    private static final class Task {
+
+        private final Runnable runnable;
+        private final TaskPriority priority;
+        private final long deadlineNanos;
+        private final long seq;
+        private final long submitNanos;
+
+        Task(Runnable runnable, TaskPriority priority, long deadlineNanos,
+             long seq, long submitNanos) {
+            this.runnable = runnable;
+            this.priority = priority;
+            this.deadlineNanos = deadlineNanos;
+            this.seq = seq;
+            this.submitNanos = submitNanos;
+        }
+    }
+
+    /**
+     * Statistics of the tasks executed for a key.
+     */
+    public static final class Stats {
+
+        private final int queueDepth;
+        private final long completed;
+        private final long failed;
+        private final long missedDeadlines;
+        private final long totalWaitNanos;
+        private final long totalRunNanos;
+        private final long maxWaitNanos;
+        private final long maxRunNanos;
+
+        private Stats(int queueDepth, long completed, long failed,
+                      long missedDeadlines, long totalWaitNanos,
+                      long totalRunNanos, long maxWaitNanos, long maxRunNanos) {
+            this.queueDepth = queueDepth;
+            this.completed = completed;
+            this.failed = failed;
+            this.missedDeadlines = missedDeadlines;
+            this.totalWaitNanos = totalWaitNanos;
+            this.totalRunNanos = totalRunNanos;
+            this.maxWaitNanos = maxWaitNanos;
+            this.maxRunNanos = maxRunNanos;
+        }
+
+        /**
+         * Returns the number of tasks waiting or running.
+         *
+         * @return queue depth
+         */
+        public int queueDepth() {
+            return queueDepth;
+        }
+
+        /**
+         * Returns the number of tasks completed, including failed ones.
+         *
+         * @return completed tasks
+         */
+        public long completed() {
+            return completed;
+        }
+
+        /**
+         * Returns the number of tasks that threw an exception.
+         *
+         * @return failed tasks
+         */
+        public long failed() {
+            return failed;
+        }
+
+        /**
+         * Returns the number of tasks started after their deadline.
+         *
+         * @return missed deadlines
+         */
+        public long missedDeadlines() {
+            return missedDeadlines;
+        }
+
+        /**
+         * Returns the average time spent by tasks in the queue.
+         *
+         * @return average wait time in nanoseconds
+         */
+        public long avgWaitNanos() {
+            return completed == 0 ? 0 : totalWaitNanos / completed;
+        }
+
+        /**
+         * Returns the average run time of tasks.
+         *
+         * @return average run time in nanoseconds
+         */
+        public long avgRunNanos() {
+            return completed == 0 ? 0 : totalRunNanos / completed;
+        }
+
+        /**
+         * Returns the max time spent by a task in the queue.
+         *
+         * @return max wait time in nanoseconds
+         */
+        public long maxWaitNanos() {
+            return maxWaitNanos;
+        }
+
+        /**
+         * Returns the max run time of a task.
+         *
+         * @return max run time in nanoseconds
+         */
+        public long maxRunNanos() {
+            return maxRunNanos;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latencies, with buckets of exponentially growing
+ * width. Recording costs a few atomic increments, so it can be done on hot
+ * paths; percentiles are approximated by the upper bound of their bucket.
+ */
+public final class LatencyHistogram {
+
+    // Bucket 0 counts values under 1 microsecond, bucket i values in
+    // [2^(i-1), 2^i) microseconds. The last one also counts larger values.
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sumNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos latency in nanoseconds, negative values count as 0
+     */
+    public void record(long nanos) {
+        final long value = Math.max(0, nanos);
+        final long micros = TimeUnit.NANOSECONDS.toMicros(value);
+        counts.incrementAndGet(Math.min(BUCKETS - 1, Long.SIZE - Long.numberOfLeadingZeros(micros)));
+        sumNanos.add(value);
+        long max = maxNanos.get();
+        while (value > max && !maxNanos.compareAndSet(max, value)) {
+            max = maxNanos.get();
+        }
+    }
+
+    /**
+     * Returns a snapshot of this histogram. Values recorded concurrently may
+     * or may not be included.
+     *
+     * @return snapshot
+     */
+    public Snapshot snapshot() {
+        final long[] snapshotCounts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshotCounts[i] = counts.get(i);
+            count += snapshotCounts[i];
+        }
+        return new Snapshot(snapshotCounts, count, sumNanos.sum(), maxNanos.get());
+    }
+
+    /**
+     * Immutable view of a histogram.
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sumNanos;
+        private final long maxNanos;
+
+        private Snapshot(long[] counts, long count, long sumNanos, long maxNanos) {
+            this.counts = counts;
+            this.count = count;
+            this.sumNanos = sumNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        /**
+         * Returns the number of values recorded.
+         *
+         * @return count
+         */
+        public long count() {
+            return count;
+        }
+
+        /**
+         * Returns the mean of the values recorded.
+         *
+         * @return mean in nanoseconds
+         */
+        public long meanNanos() {
+            return count == 0 ? 0 : sumNanos / count;
+        }
+
+        /**
+         * Returns the max value recorded.
+         *
+         * @return max in nanoseconds
+         */
+        public long maxNanos() {
+            return maxNanos;
+        }
+
+        /**
+         * Returns an upper bound of the given percentile, i.e. the upper bound
+         * of the bucket where it falls, capped by the max value.
+         *
+         * @param percentile percentile, from 0 to 100
+         * @return percentile in nanoseconds
+         */
+        public long percentileNanos(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(maxNanos, TimeUnit.MICROSECONDS.toNanos(1L << i));
+                }
+            }
+            return maxNanos;
+        }
+    }
+}
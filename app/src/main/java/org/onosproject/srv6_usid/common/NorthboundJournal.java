@@ -0,0 +1,576 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.common;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import org.onosproject.net.DeviceId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Crash-safe journal of the northbound operations of the app (e.g. SRv6
+ * policies and routes), which otherwise exist only on the devices.
+ * <p>
+ * Operations are appended to a memory-mapped file, so an append is a copy to
+ * memory and survives a crash of the controller process; the file is forced
+ * to disk periodically by the owner, see {@link #force()}. The journal
+ * follows a snapshot of the operations in effect. When compacted, the current
+ * operations are written to a new snapshot, atomically replacing the previous
+ * one, and the journal is cleared.
+ * <p>
+ * Each journal record is its length, the CRC32 of its payload and the
+ * payload. The length is written last, so a record torn by a crash reads as
+ * the end of the journal. The journal and snapshot headers carry a
+ * generation, incremented at each compaction, so that records already in the
+ * snapshot are not applied again if a crash interrupts the compaction.
+ * <p>
+ * Operations on the same target (e.g. a route for the same prefix on the same
+ * device) replace each other, so the journal only keeps the latest one.
+ */
+public final class NorthboundJournal implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(NorthboundJournal.class);
+
+    private static final int MAGIC = 0x53364e4a; // "S6NJ"
+    private static final int VERSION = 1;
+
+    static final String JOURNAL_FILE = "journal.log";
+    static final String SNAPSHOT_FILE = "snapshot.bin";
+
+    // Magic, version and generation.
+    private static final int HEADER_SIZE = 16;
+    private static final int GENERATION_OFFSET = 8;
+    // Length and CRC.
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+    private static final byte[] ZEROS = new byte[8 * 1024];
+
+    private final Path dir;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+
+    // Operations in effect, per device and target.
+    private final Map<DeviceId, Map<String, Op>> operations = Maps.newHashMap();
+    private int size;
+
+    private long generation;
+    private int position;
+
+    private NorthboundJournal(Path dir, FileChannel channel, MappedByteBuffer buffer) {
+        this.dir = dir;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.capacity = buffer.capacity();
+    }
+
+    /**
+     * Opens the journal in the given directory, creating it if needed, and
+     * recovers the operations in effect from the snapshot and the journal.
+     *
+     * @param dir      directory of the journal
+     * @param capacity size of the journal file in bytes, used if the file is
+     *                 created or smaller
+     * @return the journal
+     * @throws IOException if the journal cannot be opened, or the snapshot is
+     *                     corrupted
+     */
+    public static NorthboundJournal open(Path dir, int capacity) throws IOException {
+        checkArgument(capacity >= HEADER_SIZE + MAX_RECORD_SIZE, "Journal capacity too small");
+        Files.createDirectories(dir);
+        final FileChannel channel = FileChannel.open(dir.resolve(JOURNAL_FILE), CREATE, READ, WRITE);
+        final NorthboundJournal journal;
+        try {
+            final long mapSize = Math.max(channel.size(), capacity);
+            checkArgument(mapSize <= Integer.MAX_VALUE, "Journal file too large");
+            // Grows the file if needed, new bytes read as zeros.
+            journal = new NorthboundJournal(
+                    dir, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, mapSize));
+            journal.recover();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    private void recover() throws IOException {
+        final long snapshotGeneration = readSnapshot();
+        final int magic = buffer.getInt(0);
+        if (magic == 0) {
+            writeHeader(snapshotGeneration);
+            generation = snapshotGeneration;
+            position = HEADER_SIZE;
+            return;
+        }
+        if (magic != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a journal of version " + VERSION + ": " + dir.resolve(JOURNAL_FILE));
+        }
+        final long journalGeneration = buffer.getLong(GENERATION_OFFSET);
+        if (journalGeneration >= snapshotGeneration) {
+            if (journalGeneration > snapshotGeneration) {
+                log.warn("Snapshot of generation {} older than journal of generation {}, " +
+                                 "operations might be missing", snapshotGeneration, journalGeneration);
+            }
+            generation = journalGeneration;
+            position = scan(this::apply);
+        } else {
+            // Compaction interrupted after the snapshot was written, the
+            // records are already in the snapshot.
+            zero(HEADER_SIZE, scan(op -> { }));
+            writeHeader(snapshotGeneration);
+            generation = snapshotGeneration;
+            position = HEADER_SIZE;
+        }
+        // Clear what is left of a record torn by a crash, so that it cannot
+        // be mistaken for a record once overwritten in part.
+        zero(position, Math.min(capacity, position + RECORD_HEADER_SIZE + MAX_RECORD_SIZE));
+    }
+
+    /**
+     * Appends the given operation and applies it to the operations in
+     * effect. The journal is compacted first if full.
+     *
+     * @param op the operation
+     * @throws IOException if the operation cannot be appended
+     */
+    public synchronized void append(Op op) throws IOException {
+        final byte[] payload = encode(op);
+        if (payload.length > MAX_RECORD_SIZE) {
+            throw new IOException("Operation too large: " + payload.length + " bytes");
+        }
+        if (position + RECORD_HEADER_SIZE + payload.length > capacity) {
+            compact();
+        }
+        buffer.position(position + RECORD_HEADER_SIZE);
+        buffer.put(payload);
+        buffer.putInt(position + 4, crc(payload));
+        buffer.putInt(position, payload.length);
+        position += RECORD_HEADER_SIZE + payload.length;
+        apply(op);
+    }
+
+    /**
+     * Returns the operations in effect for the given device, in the order
+     * they were first applied.
+     *
+     * @param deviceId the device ID
+     * @return list of operations
+     */
+    public synchronized List<Op> operations(DeviceId deviceId) {
+        final Map<String, Op> deviceOps = operations.get(deviceId);
+        return deviceOps == null ? ImmutableList.of() : ImmutableList.copyOf(deviceOps.values());
+    }
+
+    /**
+     * Returns the number of operations in effect.
+     *
+     * @return number of operations
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the fraction of the journal file used by records.
+     *
+     * @return usage, from 0 to 1
+     */
+    public synchronized double usage() {
+        return (double) (position - HEADER_SIZE) / (capacity - HEADER_SIZE);
+    }
+
+    /**
+     * Returns the generation of the journal, incremented at each compaction.
+     *
+     * @return generation
+     */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Writes the operations in effect to a new snapshot and clears the
+     * journal.
+     *
+     * @throws IOException if the snapshot cannot be written, in which case
+     *                     the journal is left as is
+     */
+    public synchronized void compact() throws IOException {
+        final long newGeneration = generation + 1;
+        final Path snapshot = dir.resolve(SNAPSHOT_FILE);
+        final Path tmp = dir.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, CREATE, TRUNCATE_EXISTING, WRITE)) {
+            final DataOutputStream data = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(out)));
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeLong(newGeneration);
+            data.writeInt(size);
+            for (Map<String, Op> deviceOps : operations.values()) {
+                for (Op op : deviceOps.values()) {
+                    final byte[] payload = encode(op);
+                    data.writeInt(payload.length);
+                    data.writeInt(crc(payload));
+                    data.write(payload);
+                }
+            }
+            data.flush();
+            out.force(true);
+        }
+        Files.move(tmp, snapshot, ATOMIC_MOVE, REPLACE_EXISTING);
+        forceDirectory();
+
+        // The records are in the snapshot now. Clear them before moving to
+        // the new generation, so that a crash in between leaves a journal of
+        // the previous generation, which is ignored.
+        zero(HEADER_SIZE, position);
+        buffer.force();
+        writeHeader(newGeneration);
+        buffer.force();
+        generation = newGeneration;
+        position = HEADER_SIZE;
+    }
+
+    /**
+     * Forces the records appended so far to disk.
+     */
+    public synchronized void force() {
+        buffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    private long readSnapshot() throws IOException {
+        final Path snapshot = dir.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(snapshot)) {
+            return 0;
+        }
+        try (DataInputStream data = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(snapshot)))) {
+            if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+                throw new IOException("Not a journal snapshot of version " + VERSION + ": " + snapshot);
+            }
+            final long snapshotGeneration = data.readLong();
+            final int count = data.readInt();
+            for (int i = 0; i < count; i++) {
+                final int length = data.readInt();
+                final int crc = data.readInt();
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    throw new IOException("Corrupted snapshot: " + snapshot);
+                }
+                final byte[] payload = new byte[length];
+                data.readFully(payload);
+                if (crc(payload) != crc) {
+                    throw new IOException("Corrupted snapshot: " + snapshot);
+                }
+                apply(decode(payload));
+            }
+            return snapshotGeneration;
+        }
+    }
+
+    /**
+     * Reads the journal records, passing them to the given consumer, and
+     * returns the position after the last valid one.
+     */
+    private int scan(Consumer<Op> consumer) {
+        int pos = HEADER_SIZE;
+        while (pos + RECORD_HEADER_SIZE <= capacity) {
+            final int length = buffer.getInt(pos);
+            if (length <= 0 || length > MAX_RECORD_SIZE ||
+                    length > capacity - pos - RECORD_HEADER_SIZE) {
+                break;
+            }
+            final byte[] payload = new byte[length];
+            buffer.position(pos + RECORD_HEADER_SIZE);
+            buffer.get(payload);
+            if (crc(payload) != buffer.getInt(pos + 4)) {
+                break;
+            }
+            final Op op;
+            try {
+                op = decode(payload);
+            } catch (IOException | RuntimeException e) {
+                break;
+            }
+            consumer.accept(op);
+            pos += RECORD_HEADER_SIZE + length;
+        }
+        return pos;
+    }
+
+    private void apply(Op op) {
+        final Map<String, Op> deviceOps = operations.computeIfAbsent(
+                op.deviceId(), d -> Maps.newLinkedHashMap());
+        if (op.kind() == Kind.CLEAR_SRV6_POLICIES) {
+            final Iterator<Op> it = deviceOps.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().kind() == Kind.SRV6_POLICY) {
+                    it.remove();
+                    size--;
+                }
+            }
+        } else if (deviceOps.put(op.target(), op) == null) {
+            size++;
+        }
+        if (deviceOps.isEmpty()) {
+            operations.remove(op.deviceId());
+        }
+    }
+
+    private void writeHeader(long headerGeneration) {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putLong(GENERATION_OFFSET, headerGeneration);
+    }
+
+    private void zero(int from, int to) {
+        buffer.position(from);
+        int remaining = to - from;
+        while (remaining > 0) {
+            final int chunk = Math.min(remaining, ZEROS.length);
+            buffer.put(ZEROS, 0, chunk);
+            remaining -= chunk;
+        }
+    }
+
+    private void forceDirectory() {
+        // Makes the rename durable. Not supported on all platforms, in which
+        // case the rename is durable once the file system commits it.
+        try (FileChannel dirChannel = FileChannel.open(dir, READ)) {
+            dirChannel.force(true);
+        } catch (IOException e) {
+            log.debug("Unable to force directory {}: {}", dir, e.getMessage());
+        }
+    }
+
+    private static int crc(byte[] payload) {
+        final CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encode(Op op) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(op.kind().ordinal());
+        out.writeUTF(op.deviceId().toString());
+        out.writeByte(op.args().size());
+        for (String arg : op.args()) {
+            out.writeUTF(arg);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Op decode(byte[] payload) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        final int kind = in.readUnsignedByte();
+        if (kind >= Kind.values().length) {
+            throw new IOException("Unknown operation " + kind);
+        }
+        final DeviceId deviceId = DeviceId.deviceId(in.readUTF());
+        final int count = in.readUnsignedByte();
+        final ImmutableList.Builder<String> args = ImmutableList.builder();
+        for (int i = 0; i < count; i++) {
+            args.add(in.readUTF());
+        }
+        return new Op(Kind.values()[kind], deviceId, args.build());
+    }
+
+    /**
+     * Kinds of northbound operations. Do not reorder, the ordinal is stored.
+     */
+    public enum Kind {
+
+        /**
+         * SRv6 encap policy, with the destination address, the prefix length
+         * and the segments as arguments.
+         */
+        SRV6_POLICY(2),
+
+        /**
+         * uA instruction, with the instruction, the next hop address and the
+         * next hop MAC address as arguments.
+         */
+        UA_INSTRUCTION(1),
+
+        /**
+         * IPv6 route, with the prefix address, the prefix length and the next
+         * hop MAC address as arguments.
+         */
+        ROUTE(2),
+
+        /**
+         * Removal of all the SRv6 policies of a device, without arguments.
+         */
+        CLEAR_SRV6_POLICIES(0);
+
+        // Number of leading arguments identifying the target of the
+        // operation on the device.
+        private final int targetArgs;
+
+        Kind(int targetArgs) {
+            this.targetArgs = targetArgs;
+        }
+    }
+
+    /**
+     * A northbound operation, with its arguments as strings.
+     */
+    public static final class Op {
+
+        private final Kind kind;
+        private final DeviceId deviceId;
+        private final List<String> args;
+
+        private Op(Kind kind, DeviceId deviceId, List<String> args) {
+            checkArgument(args.size() >= kind.targetArgs && args.size() <= 0xFF,
+                          "Invalid number of arguments for %s", kind);
+            this.kind = kind;
+            this.deviceId = checkNotNull(deviceId);
+            this.args = args;
+        }
+
+        /**
+         * Returns a new operation.
+         *
+         * @param kind     kind of operation
+         * @param deviceId the device ID
+         * @param args     arguments, converted to strings
+         * @return operation
+         */
+        public static Op of(Kind kind, DeviceId deviceId, Object... args) {
+            final ImmutableList.Builder<String> strings = ImmutableList.builder();
+            for (Object arg : args) {
+                strings.add(arg.toString());
+            }
+            return new Op(kind, deviceId, strings.build());
+        }
+
+        /**
+         * Returns a new operation.
+         *
+         * @param kind     kind of operation
+         * @param deviceId the device ID
+         * @param args     arguments, converted to strings
+         * @return operation
+         */
+        public static Op of(Kind kind, DeviceId deviceId, Collection<?> args) {
+            return of(kind, deviceId, args.toArray());
+        }
+
+        /**
+         * Returns the kind of operation.
+         *
+         * @return kind
+         */
+        public Kind kind() {
+            return kind;
+        }
+
+        /**
+         * Returns the device ID.
+         *
+         * @return device ID
+         */
+        public DeviceId deviceId() {
+            return deviceId;
+        }
+
+        /**
+         * Returns the arguments.
+         *
+         * @return list of arguments
+         */
+        public List<String> args() {
+            return args;
+        }
+
+        /**
+         * Returns the argument at the given index.
+         *
+         * @param index index of the argument
+         * @return argument
+         */
+        public String arg(int index) {
+            return args.get(index);
+        }
+
+        private String target() {
+            return kind + " " + String.join(" ", args.subList(0, kind.targetArgs));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Op)) {
+                return false;
+            }
+            final Op that = (Op) o;
+            return kind == that.kind && deviceId.equals(that.deviceId) && args.equals(that.args);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(kind, deviceId, args);
+        }
+
+        @Override
+        public String toString() {
+            return kind + "@" + deviceId + args;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.common;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.onosproject.net.DeviceId;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * JDK Flight Recorder event types of the operations of the app. Only loaded
+ * by {@link OperationTracer} when JFR is available.
+ */
+final class OperationEvents {
+
+    private static final Map<OperationType, Supplier<OperationEvent>> FACTORIES =
+            new EnumMap<>(OperationType.class);
+
+    // One instance per type, only to check if the type is enabled without
+    // allocating an event.
+    private static final Map<OperationType, OperationEvent> PROBES =
+            new EnumMap<>(OperationType.class);
+
+    static {
+        FACTORIES.put(OperationType.DEVICE_SETUP, DeviceSetupEvent::new);
+        FACTORIES.put(OperationType.POLICY_INSTALL, PolicyInstallEvent::new);
+        FACTORIES.put(OperationType.ROUTE_INSTALL, RouteInstallEvent::new);
+        FACTORIES.put(OperationType.HOST_LEARN, HostLearnEvent::new);
+        FACTORIES.put(OperationType.PACKET_IN_MAPPING, PacketInMappingEvent::new);
+        FACTORIES.put(OperationType.CLEANUP, CleanupEvent::new);
+        FACTORIES.forEach((type, factory) -> PROBES.put(type, factory.get()));
+    }
+
+    private OperationEvents() {
+        // Utility class.
+    }
+
+    static OperationTracer.Span start(OperationType type, DeviceId deviceId) {
+        if (!PROBES.get(type).isEnabled()) {
+            return OperationTracer.Span.NOOP;
+        }
+        final OperationEvent event = FACTORIES.get(type).get();
+        event.deviceId = deviceId == null ? null : deviceId.toString();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Base of the operation events.
+     */
+    @Category({"ONOS", "SRv6 uSID"})
+    @StackTrace(false)
+    abstract static class OperationEvent extends Event implements OperationTracer.Span {
+
+        @Label("Device")
+        String deviceId;
+
+        @Label("Table")
+        String table;
+
+        @Label("Entries")
+        @Description("Number of entries, e.g. flow rules, of the operation")
+        int entries;
+
+        @Label("Outcome")
+        String outcome;
+
+        @Override
+        public OperationTracer.Span table(Object tableId) {
+            this.table = tableId == null ? null : tableId.toString();
+            return this;
+        }
+
+        @Override
+        public OperationTracer.Span entries(int count) {
+            this.entries = count;
+            return this;
+        }
+
+        @Override
+        public void end(String result) {
+            if (outcome != null) {
+                return;
+            }
+            outcome = result;
+            if (shouldCommit()) {
+                commit();
+            }
+        }
+    }
+
+    @Name("org.onosproject.srv6_usid.DeviceSetup")
+    @Label("Device Setup")
+    static final class DeviceSetupEvent extends OperationEvent {
+    }
+
+    @Name("org.onosproject.srv6_usid.PolicyInstall")
+    @Label("Policy Install")
+    static final class PolicyInstallEvent extends OperationEvent {
+    }
+
+    @Name("org.onosproject.srv6_usid.RouteInstall")
+    @Label("Route Install")
+    static final class RouteInstallEvent extends OperationEvent {
+    }
+
+    @Name("org.onosproject.srv6_usid.HostLearn")
+    @Label("Host Learn")
+    static final class HostLearnEvent extends OperationEvent {
+    }
+
+    @Name("org.onosproject.srv6_usid.PacketInMapping")
+    @Label("Packet-in Mapping")
+    static final class PacketInMappingEvent extends OperationEvent {
+    }
+
+    @Name("org.onosproject.srv6_usid.Cleanup")
+    @Label("Cleanup")
+    static final class CleanupEvent extends OperationEvent {
+    }
+}
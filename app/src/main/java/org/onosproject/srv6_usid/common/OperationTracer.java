@@ -0,0 +1,144 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.common;
+
+import org.onosproject.net.DeviceId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Traces the units of work of the app (see {@link OperationType}) as JDK
+ * Flight Recorder events, so that a recording of ONOS shows which operation
+ * of the app causes latency spikes or allocation pressure. Events carry the
+ * device, the table, the number of entries and the outcome of the operation.
+ * <p>
+ * Tracing costs a branch when the event type is not enabled in a recording,
+ * and nothing at all when JFR is not available to the bundle, i.e. when the
+ * jdk.jfr package is not exported by the framework.
+ * <p>
+ * Typical use, where the span ends as failed if an exception is thrown:
+ * <pre>
+ *     final Span span = OperationTracer.start(ROUTE_INSTALL, deviceId);
+ *     try {
+ *         ...
+ *         span.table(tableId).entries(rules.size()).end(OUTCOME_OK);
+ *     } finally {
+ *         span.end(OUTCOME_FAILED);
+ *     }
+ * </pre>
+ */
+public final class OperationTracer {
+
+    private static final Logger log = LoggerFactory.getLogger(OperationTracer.class);
+
+    /**
+     * The operation completed.
+     */
+    public static final String OUTCOME_OK = "ok";
+
+    /**
+     * The operation had nothing to do.
+     */
+    public static final String OUTCOME_SKIPPED = "skipped";
+
+    /**
+     * The operation was refused, e.g. a packet-in dropped by admission
+     * control.
+     */
+    public static final String OUTCOME_DROPPED = "dropped";
+
+    /**
+     * The operation failed.
+     */
+    public static final String OUTCOME_FAILED = "failed";
+
+    private static final boolean JFR_AVAILABLE = isJfrAvailable();
+
+    private OperationTracer() {
+        // Utility class.
+    }
+
+    /**
+     * Starts tracing an operation on the given device.
+     *
+     * @param type     type of operation
+     * @param deviceId the device ID
+     * @return span to end when the operation is over
+     */
+    public static Span start(OperationType type, DeviceId deviceId) {
+        return JFR_AVAILABLE ? OperationEvents.start(type, deviceId) : Span.NOOP;
+    }
+
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, OperationTracer.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            log.info("JDK Flight Recorder not available, operations are not traced");
+            return false;
+        }
+    }
+
+    /**
+     * Operation being traced. Ending a span more than once has no effect.
+     */
+    public interface Span {
+
+        /**
+         * Span of an operation not traced.
+         */
+        Span NOOP = new Span() {
+            @Override
+            public Span table(Object table) {
+                return this;
+            }
+
+            @Override
+            public Span entries(int entries) {
+                return this;
+            }
+
+            @Override
+            public void end(String outcome) {
+                // Not traced.
+            }
+        };
+
+        /**
+         * Sets the table of the operation, if it involves a single one.
+         *
+         * @param table table ID
+         * @return this span
+         */
+        Span table(Object table);
+
+        /**
+         * Sets the number of entries of the operation, e.g. flow rules.
+         *
+         * @param entries number of entries
+         * @return this span
+         */
+        Span entries(int entries);
+
+        /**
+         * Ends the operation and records its event.
+         *
+         * @param outcome outcome of the operation, e.g. {@link #OUTCOME_OK}
+         */
+        void end(String outcome);
+    }
+}
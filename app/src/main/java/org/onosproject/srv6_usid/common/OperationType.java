@@ -0,0 +1,54 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.common;
+
+/**
+ * Units of work of the app traced as JDK Flight Recorder events, see
+ * {@link OperationTracer}.
+ */
+public enum OperationType {
+
+    /**
+     * Set up of a device, i.e. the rules computed by all set up steps.
+     */
+    DEVICE_SETUP,
+
+    /**
+     * Install of an SRv6 policy or uA instruction.
+     */
+    POLICY_INSTALL,
+
+    /**
+     * Install of IPv6 routes or L2 next hops.
+     */
+    ROUTE_INSTALL,
+
+    /**
+     * Install of the bridging rule of a host.
+     */
+    HOST_LEARN,
+
+    /**
+     * Mapping of a packet-in by the interpreter.
+     */
+    PACKET_IN_MAPPING,
+
+    /**
+     * Removal of stale or cleared rules.
+     */
+    CLEANUP
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.common;
+
+import org.onosproject.net.packet.InboundPacket;
+
+import java.util.List;
+
+/**
+ * Processor of packet-ins, contributed by an app component. Each packet-in is
+ * first offered to {@link #claim(InboundPacket)} on the thread receiving it,
+ * while the ONOS packet processors are running: packets claimed by a
+ * processor are blocked there, so that the processors with lower priority
+ * (e.g. reactive forwarding) do not handle them as well. Packets to process
+ * are then handed over by the packet dispatch component in batches, on
+ * threads of the app rather than on those receiving packets from the
+ * devices.
+ * <p>
+ * All packets of a batch come from devices of the same dispatch shard, and
+ * packets of the same device are always processed in order, by the same
+ * thread. Only the inbound packet is handed over, as the packet context is
+ * no longer valid once the ONOS packet processors returned.
+ */
+public interface PacketBatchProcessor {
+
+    /**
+     * Outcome of the classification of a packet-in.
+     */
+    enum Claim {
+        /**
+         * Not a packet of this processor, left to the other processors.
+         */
+        NONE,
+
+        /**
+         * Owned by this processor, blocked and dropped, e.g. when over a
+         * rate limit.
+         */
+        DROP,
+
+        /**
+         * Owned by this processor, blocked and queued for processing.
+         */
+        PROCESS
+    }
+
+    /**
+     * Classifies a packet-in. Called for every packet-in not handled yet, on
+     * the thread receiving it, so it must be cheap and thread-safe.
+     *
+     * @param packet inbound packet
+     * @return claim of this processor on the packet
+     */
+    Claim claim(InboundPacket packet);
+
+    /**
+     * Processes a batch of packet-ins claimed with {@link Claim#PROCESS}.
+     *
+     * @param batch inbound packets, in order of arrival
+     */
+    void process(List<InboundPacket> batch);
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.common;
+
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.ICMP6;
+import org.onlab.packet.IPv6;
+
+import java.nio.ByteBuffer;
+
+import static org.onosproject.srv6_usid.AppConstants.PUNT_RATE_BDDP;
+import static org.onosproject.srv6_usid.AppConstants.PUNT_RATE_BDDP_DEFAULT;
+import static org.onosproject.srv6_usid.AppConstants.PUNT_RATE_LLDP;
+import static org.onosproject.srv6_usid.AppConstants.PUNT_RATE_LLDP_DEFAULT;
+import static org.onosproject.srv6_usid.AppConstants.PUNT_RATE_NDP_NA;
+import static org.onosproject.srv6_usid.AppConstants.PUNT_RATE_NDP_NA_DEFAULT;
+import static org.onosproject.srv6_usid.AppConstants.PUNT_RATE_NDP_NS;
+import static org.onosproject.srv6_usid.AppConstants.PUNT_RATE_NDP_NS_DEFAULT;
+import static org.onosproject.srv6_usid.AppConstants.PUNT_RATE_OTHER;
+import static org.onosproject.srv6_usid.AppConstants.PUNT_RATE_OTHER_DEFAULT;
+
+/**
+ * Types of packets punted to the controller, each admitted at its own rate.
+ */
+public enum PuntType {
+
+    /**
+     * Link discovery (LLDP).
+     */
+    LLDP(PUNT_RATE_LLDP, PUNT_RATE_LLDP_DEFAULT),
+
+    /**
+     * Broadcast link discovery (BDDP).
+     */
+    BDDP(PUNT_RATE_BDDP, PUNT_RATE_BDDP_DEFAULT),
+
+    /**
+     * NDP Neighbor Solicitation.
+     */
+    NDP_NS(PUNT_RATE_NDP_NS, PUNT_RATE_NDP_NS_DEFAULT),
+
+    /**
+     * NDP Neighbor Advertisement.
+     */
+    NDP_NA(PUNT_RATE_NDP_NA, PUNT_RATE_NDP_NA_DEFAULT),
+
+    /**
+     * Any other packet.
+     */
+    OTHER(PUNT_RATE_OTHER, PUNT_RATE_OTHER_DEFAULT);
+
+    // Offsets in an untagged Ethernet frame with an IPv6 header without
+    // extension headers.
+    private static final int ETH_TYPE_OFFSET = 12;
+    private static final int IPV6_NEXT_HEADER_OFFSET = 14 + 6;
+    private static final int ICMP6_TYPE_OFFSET = 14 + 40;
+
+    private final String rateProperty;
+    private final int defaultRate;
+
+    PuntType(String rateProperty, int defaultRate) {
+        this.rateProperty = rateProperty;
+        this.defaultRate = defaultRate;
+    }
+
+    /**
+     * Returns the name of the component property setting the number of
+     * packets of this type admitted per second and per device.
+     *
+     * @return property name
+     */
+    public String rateProperty() {
+        return rateProperty;
+    }
+
+    /**
+     * Returns the default number of packets of this type admitted per second
+     * and per device.
+     *
+     * @return default rate
+     */
+    public int defaultRate() {
+        return defaultRate;
+    }
+
+    /**
+     * Returns the type of the given Ethernet frame, reading only the few bytes
+     * needed instead of parsing it.
+     *
+     * @param frame Ethernet frame, from position 0
+     * @return punt type
+     */
+    public static PuntType of(ByteBuffer frame) {
+        if (frame.limit() < ETH_TYPE_OFFSET + 2) {
+            return OTHER;
+        }
+        final short ethType = frame.getShort(ETH_TYPE_OFFSET);
+        if (ethType == Ethernet.TYPE_LLDP) {
+            return LLDP;
+        }
+        if (ethType == Ethernet.TYPE_BSN) {
+            return BDDP;
+        }
+        if (ethType == Ethernet.TYPE_IPV6 && frame.limit() > ICMP6_TYPE_OFFSET &&
+                frame.get(IPV6_NEXT_HEADER_OFFSET) == IPv6.PROTOCOL_ICMP6) {
+            final byte icmpType = frame.get(ICMP6_TYPE_OFFSET);
+            if (icmpType == ICMP6.NEIGHBOR_SOLICITATION) {
+                return NDP_NS;
+            }
+            if (icmpType == ICMP6.NEIGHBOR_ADVERTISEMENT) {
+                return NDP_NA;
+            }
+        }
+        return OTHER;
+    }
+}
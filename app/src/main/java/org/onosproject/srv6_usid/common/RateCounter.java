@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free counter of occurrences, e.g. packets, which also gives their
+ * recent rate.
+ * <p>
+ * Occurrences are counted in one-second slots of a small ring, and the rate
+ * is averaged over the last complete seconds. When a slot is reused for a new
+ * second, occurrences added concurrently by other threads might be lost; the
+ * rate is an approximation, the total is exact.
+ */
+public final class RateCounter {
+
+    private static final int SLOTS = 8;
+    private static final int WINDOW_SECONDS = 5;
+
+    private final LongAdder total = new LongAdder();
+    private final AtomicLongArray slotCounts = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray slotSeconds = new AtomicLongArray(SLOTS);
+
+    /**
+     * Counts one occurrence.
+     */
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Counts the given number of occurrences.
+     *
+     * @param n number of occurrences
+     */
+    public void add(long n) {
+        total.add(n);
+        final long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+        final int slot = (int) (second & (SLOTS - 1));
+        final long slotSecond = slotSeconds.get(slot);
+        if (slotSecond != second && slotSeconds.compareAndSet(slot, slotSecond, second)) {
+            slotCounts.set(slot, n);
+            return;
+        }
+        slotCounts.addAndGet(slot, n);
+    }
+
+    /**
+     * Returns the number of occurrences counted so far.
+     *
+     * @return total
+     */
+    public long total() {
+        return total.sum();
+    }
+
+    /**
+     * Returns the average rate over the last complete seconds.
+     *
+     * @return occurrences per second
+     */
+    public double rate() {
+        final long now = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+        long count = 0;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            final long age = now - slotSeconds.get(slot);
+            if (age >= 1 && age <= WINDOW_SECONDS) {
+                count += slotCounts.get(slot);
+            }
+        }
+        return (double) count / WINDOW_SECONDS;
+    }
+}
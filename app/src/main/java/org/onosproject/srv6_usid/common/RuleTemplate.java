@@ -0,0 +1,248 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.common;
+
+import org.onlab.util.ImmutableByteSequence;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flow.criteria.PiCriterion;
+import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiActionModel;
+import org.onosproject.net.pi.model.PiActionParamId;
+import org.onosproject.net.pi.model.PiMatchFieldId;
+import org.onosproject.net.pi.model.PiMatchFieldModel;
+import org.onosproject.net.pi.model.PiMatchType;
+import org.onosproject.net.pi.model.PiPipelineModel;
+import org.onosproject.net.pi.model.PiTableId;
+import org.onosproject.net.pi.model.PiTableModel;
+import org.onosproject.net.pi.runtime.PiAction;
+import org.onosproject.net.pi.runtime.PiActionParam;
+
+import java.util.List;
+import java.util.Optional;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static java.lang.String.format;
+import static org.onosproject.srv6_usid.AppConstants.DEFAULT_FLOW_RULE_PRIORITY;
+
+/**
+ * Template of the flow rules of a table with a single match field, all with
+ * the same action. Identifiers are resolved once, when the template is
+ * created, so that building a rule only fills in the match and parameter
+ * values. Templates are validated against the pipeline model when the
+ * pipeconf is loaded (see {@link RuleTemplates}).
+ */
+public final class RuleTemplate {
+
+    private final PiTableId tableId;
+    private final PiMatchFieldId fieldId;
+    private final PiMatchType matchType;
+    private final PiActionId actionId;
+    private final PiActionParamId[] paramIds;
+
+    // Shared by all rules, for actions without parameters.
+    private final PiAction fixedAction;
+    private final TrafficTreatment fixedTreatment;
+
+    private RuleTemplate(PiTableId tableId, PiMatchFieldId fieldId, PiMatchType matchType,
+                         PiActionId actionId, PiActionParamId[] paramIds) {
+        this.tableId = tableId;
+        this.fieldId = fieldId;
+        this.matchType = matchType;
+        this.actionId = actionId;
+        this.paramIds = paramIds;
+        if (paramIds.length == 0) {
+            this.fixedAction = PiAction.builder().withId(actionId).build();
+            this.fixedTreatment = DefaultTrafficTreatment.builder()
+                    .piTableAction(fixedAction).build();
+        } else {
+            this.fixedAction = null;
+            this.fixedTreatment = null;
+        }
+    }
+
+    /**
+     * Returns a new template.
+     *
+     * @param table     table name, from the P4Info
+     * @param field     match field name
+     * @param matchType match type of the field
+     * @param action    action name
+     * @param params    action parameter names, in order
+     * @return rule template
+     */
+    public static RuleTemplate of(String table, String field, PiMatchType matchType,
+                                  String action, String... params) {
+        final PiActionParamId[] paramIds = new PiActionParamId[params.length];
+        for (int i = 0; i < params.length; i++) {
+            paramIds[i] = PiActionParamId.of(params[i]);
+        }
+        return new RuleTemplate(PiTableId.of(table), PiMatchFieldId.of(field), matchType,
+                                PiActionId.of(action), paramIds);
+    }
+
+    /**
+     * Returns the ID of the table of this template.
+     *
+     * @return table ID
+     */
+    public PiTableId tableId() {
+        return tableId;
+    }
+
+    /**
+     * Returns the ID of the action of this template.
+     *
+     * @return action ID
+     */
+    public PiActionId actionId() {
+        return actionId;
+    }
+
+    /**
+     * Builds a rule of an exact match table.
+     *
+     * @param deviceId the device ID
+     * @param appId    the application ID
+     * @param value    match value
+     * @param params   action parameter values, in order
+     * @return flow rule
+     */
+    public FlowRule exact(DeviceId deviceId, ApplicationId appId, byte[] value,
+                          ImmutableByteSequence... params) {
+        checkState(matchType == PiMatchType.EXACT, "%s is not an exact match", fieldId);
+        return build(deviceId, appId, PiCriterion.builder()
+                .matchExact(fieldId, value).build(), params);
+    }
+
+    /**
+     * Builds a rule of a longest prefix match table.
+     *
+     * @param deviceId     the device ID
+     * @param appId        the application ID
+     * @param value        match value
+     * @param prefixLength prefix length
+     * @param params       action parameter values, in order
+     * @return flow rule
+     */
+    public FlowRule lpm(DeviceId deviceId, ApplicationId appId, byte[] value,
+                        int prefixLength, ImmutableByteSequence... params) {
+        checkState(matchType == PiMatchType.LPM, "%s is not an LPM match", fieldId);
+        return build(deviceId, appId, PiCriterion.builder()
+                .matchLpm(fieldId, value, prefixLength).build(), params);
+    }
+
+    /**
+     * Builds a rule of a ternary match table.
+     *
+     * @param deviceId the device ID
+     * @param appId    the application ID
+     * @param value    match value
+     * @param mask     match mask
+     * @param params   action parameter values, in order
+     * @return flow rule
+     */
+    public FlowRule ternary(DeviceId deviceId, ApplicationId appId, byte[] value,
+                            byte[] mask, ImmutableByteSequence... params) {
+        checkState(matchType == PiMatchType.TERNARY, "%s is not a ternary match", fieldId);
+        return build(deviceId, appId, PiCriterion.builder()
+                .matchTernary(fieldId, value, mask).build(), params);
+    }
+
+    /**
+     * Builds the action of this template with the given parameter values.
+     *
+     * @param params action parameter values, in order
+     * @return PI action
+     */
+    public PiAction action(ImmutableByteSequence... params) {
+        checkArgument(params.length == paramIds.length,
+                      "%s takes %s parameters, %s given",
+                      actionId, paramIds.length, params.length);
+        if (fixedAction != null) {
+            return fixedAction;
+        }
+        final PiAction.Builder builder = PiAction.builder().withId(actionId);
+        for (int i = 0; i < params.length; i++) {
+            builder.withParameter(new PiActionParam(paramIds[i], params[i]));
+        }
+        return builder.build();
+    }
+
+    private FlowRule build(DeviceId deviceId, ApplicationId appId, PiCriterion match,
+                           ImmutableByteSequence[] params) {
+        final TrafficTreatment treatment = fixedTreatment != null && params.length == 0
+                ? fixedTreatment
+                : DefaultTrafficTreatment.builder().piTableAction(action(params)).build();
+        return DefaultFlowRule.builder()
+                .forDevice(deviceId)
+                .forTable(tableId)
+                .fromApp(appId)
+                .withPriority(DEFAULT_FLOW_RULE_PRIORITY)
+                .makePermanent()
+                .withSelector(DefaultTrafficSelector.builder().matchPi(match).build())
+                .withTreatment(treatment)
+                .build();
+    }
+
+    /**
+     * Checks this template against the given pipeline model, adding a
+     * description of each mismatch to the given list.
+     *
+     * @param model  pipeline model
+     * @param errors list where errors are added
+     */
+    void validate(PiPipelineModel model, List<String> errors) {
+        final Optional<PiTableModel> table = model.table(tableId);
+        if (!table.isPresent()) {
+            errors.add(format("table %s not found", tableId));
+            return;
+        }
+        final Optional<PiMatchFieldModel> field = table.get().matchField(fieldId);
+        if (!field.isPresent()) {
+            errors.add(format("match field %s not found in %s", fieldId, tableId));
+        } else if (field.get().matchType() != matchType) {
+            errors.add(format("match field %s of %s is %s, not %s",
+                              fieldId, tableId, field.get().matchType(), matchType));
+        }
+        final Optional<PiActionModel> action = table.get().action(actionId);
+        if (!action.isPresent()) {
+            errors.add(format("action %s not found in %s", actionId, tableId));
+            return;
+        }
+        if (action.get().params().size() != paramIds.length) {
+            errors.add(format("action %s has %s parameters, not %s",
+                              actionId, action.get().params().size(), paramIds.length));
+        }
+        for (PiActionParamId paramId : paramIds) {
+            if (!action.get().param(paramId).isPresent()) {
+                errors.add(format("parameter %s not found in %s", paramId, actionId));
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return format("%s(%s) -> %s", tableId, fieldId, actionId);
+    }
+}
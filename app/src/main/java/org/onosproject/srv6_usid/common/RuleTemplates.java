@@ -0,0 +1,186 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.common;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiActionProfileId;
+import org.onosproject.net.pi.model.PiPipelineModel;
+import org.onosproject.net.pi.model.PiTableId;
+
+import java.util.List;
+
+import static org.onosproject.net.pi.model.PiMatchType.EXACT;
+import static org.onosproject.net.pi.model.PiMatchType.LPM;
+import static org.onosproject.net.pi.model.PiMatchType.TERNARY;
+
+/**
+ * Registry of the P4 identifiers and rule templates used by the app, from the
+ * P4Info of main.p4.
+ */
+public final class RuleTemplates {
+
+    // Tables without a template, e.g. only ordered by the flow rule writer.
+    public static final PiTableId ROUTING_V4_TABLE = PiTableId.of("IngressPipeImpl.routing_v4");
+    public static final PiTableId SRV6_ENCAP_V4_TABLE = PiTableId.of("IngressPipeImpl.srv6_encap_v4");
+
+    // ACL, programmed through flow objectives only.
+    public static final PiTableId ACL_TABLE = PiTableId.of("IngressPipeImpl.acl");
+    public static final PiActionId CLONE_TO_CPU = PiActionId.of("IngressPipeImpl.clone_to_cpu");
+
+    // Action of the unicast, multicast and ACL tables dropping packets.
+    public static final PiActionId DROP = PiActionId.of("IngressPipeImpl.drop");
+
+    // Action selector of the routing_v6 table.
+    public static final PiActionProfileId ECMP_SELECTOR =
+            PiActionProfileId.of("IngressPipeImpl.ip6_ecmp_selector");
+
+    /**
+     * My station: packets to the router MAC are routed.
+     */
+    public static final RuleTemplate L2_FIREWALL = RuleTemplate.of(
+            "IngressPipeImpl.l2_firewall", "hdr.ethernet.dst_addr", EXACT,
+            "NoAction");
+
+    /**
+     * L2 unicast, to a host or to the next hop of a route.
+     */
+    public static final RuleTemplate UNICAST = RuleTemplate.of(
+            "IngressPipeImpl.unicast", "hdr.ethernet.dst_addr", EXACT,
+            "IngressPipeImpl.set_output_port", "port_num");
+
+    /**
+     * L2 broadcast and multicast.
+     */
+    public static final RuleTemplate MULTICAST = RuleTemplate.of(
+            "IngressPipeImpl.multicast", "hdr.ethernet.dst_addr", TERNARY,
+            "IngressPipeImpl.set_multicast_group", "gid");
+
+    /**
+     * IPv6 route.
+     */
+    public static final RuleTemplate ROUTING_V6 = RuleTemplate.of(
+            "IngressPipeImpl.routing_v6", "hdr.ipv6.dst_addr", LPM,
+            "IngressPipeImpl.set_next_hop", "next_hop");
+
+    /**
+     * NDP Neighbor Solicitations answered by the switch.
+     */
+    public static final RuleTemplate NDP_REPLY = RuleTemplate.of(
+            "IngressPipeImpl.ndp_reply_table", "hdr.ndp.target_addr", EXACT,
+            "IngressPipeImpl.ndp_ns_to_na", "target_mac");
+
+    /**
+     * Local SIDs: uN, End, End.DX6 and uA instructions.
+     */
+    public static final RuleTemplate SRV6_USID_UN = RuleTemplate.of(
+            "IngressPipeImpl.srv6_localsid_table", "hdr.ipv6.dst_addr", LPM,
+            "IngressPipeImpl.srv6_usid_un");
+    public static final RuleTemplate SRV6_END = RuleTemplate.of(
+            "IngressPipeImpl.srv6_localsid_table", "hdr.ipv6.dst_addr", LPM,
+            "IngressPipeImpl.srv6_end");
+    public static final RuleTemplate SRV6_END_DX6 = RuleTemplate.of(
+            "IngressPipeImpl.srv6_localsid_table", "hdr.ipv6.dst_addr", LPM,
+            "IngressPipeImpl.srv6_end_dx6");
+    public static final RuleTemplate SRV6_USID_UA = RuleTemplate.of(
+            "IngressPipeImpl.srv6_localsid_table", "hdr.ipv6.dst_addr", LPM,
+            "IngressPipeImpl.srv6_usid_ua", "next_hop");
+
+    /**
+     * Next hop MAC of uA instructions.
+     */
+    public static final RuleTemplate XCONNECT = RuleTemplate.of(
+            "IngressPipeImpl.xconnect_table", "local_metadata.ua_next_hop", LPM,
+            "IngressPipeImpl.xconnect_act", "next_hop");
+
+    /**
+     * Encapsulation with a list of micro SIDs, indexed by the number of
+     * micro SID containers (from 1).
+     */
+    private static final List<RuleTemplate> USID_ENCAP = ImmutableList.of(
+            RuleTemplate.of("IngressPipeImpl.srv6_encap", "hdr.ipv6.dst_addr", LPM,
+                            "IngressPipeImpl.usid_encap_1", "src_addr", "s1"),
+            RuleTemplate.of("IngressPipeImpl.srv6_encap", "hdr.ipv6.dst_addr", LPM,
+                            "IngressPipeImpl.usid_encap_2", "src_addr", "s1", "s2"));
+
+    public static final PiTableId SRV6_ENCAP_TABLE = USID_ENCAP.get(0).tableId();
+
+    private static final List<RuleTemplate> ALL = ImmutableList.<RuleTemplate>builder()
+            .add(L2_FIREWALL, UNICAST, MULTICAST, ROUTING_V6, NDP_REPLY,
+                 SRV6_USID_UN, SRV6_END, SRV6_END_DX6, SRV6_USID_UA, XCONNECT)
+            .addAll(USID_ENCAP)
+            .build();
+
+    // Hide default constructor.
+    private RuleTemplates() {
+    }
+
+    /**
+     * Returns the template of the encapsulation with the given number of
+     * micro SID containers.
+     *
+     * @param containers number of containers
+     * @return rule template
+     * @throws IllegalArgumentException if not supported by the pipeline
+     */
+    public static RuleTemplate usidEncap(int containers) {
+        if (containers < 1 || containers > USID_ENCAP.size()) {
+            throw new IllegalArgumentException(
+                    "Unsupported number of micro SID containers: " + containers);
+        }
+        return USID_ENCAP.get(containers - 1);
+    }
+
+    /**
+     * Checks all templates against the given pipeline model, e.g. for typos in
+     * table or action names.
+     *
+     * @param model pipeline model
+     * @throws IllegalStateException if some templates do not match the model
+     */
+    public static void validate(PiPipelineModel model) {
+        final List<String> errors = Lists.newArrayList();
+        ALL.forEach(template -> template.validate(model, errors));
+        for (PiTableId tableId : ImmutableList.of(ROUTING_V4_TABLE, SRV6_ENCAP_V4_TABLE, ACL_TABLE)) {
+            if (!model.table(tableId).isPresent()) {
+                errors.add("table " + tableId + " not found");
+            }
+        }
+        checkAction(model, ACL_TABLE, CLONE_TO_CPU, errors);
+        for (PiTableId tableId : ImmutableList.of(ACL_TABLE, UNICAST.tableId(), MULTICAST.tableId())) {
+            checkAction(model, tableId, DROP, errors);
+        }
+        if (!model.actionProfiles(ECMP_SELECTOR).isPresent()) {
+            errors.add("action profile " + ECMP_SELECTOR + " not found");
+        }
+        if (!errors.isEmpty()) {
+            throw new IllegalStateException(
+                    "Rule templates do not match the P4 program: " + String.join("; ", errors));
+        }
+    }
+
+    private static void checkAction(PiPipelineModel model, PiTableId tableId,
+                                    PiActionId actionId, List<String> errors) {
+        final boolean found = model.table(tableId)
+                .flatMap(table -> table.action(actionId))
+                .isPresent();
+        if (!found) {
+            errors.add("action " + actionId + " not found in table " + tableId);
+        }
+    }
+}
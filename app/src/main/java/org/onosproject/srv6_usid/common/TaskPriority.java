@@ -0,0 +1,42 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.common;
+
+/**
+ * Priority classes of the configuration tasks, from the most to the least
+ * latency-critical.
+ */
+public enum TaskPriority {
+
+    /**
+     * Bring-up of a device that became available, e.g. after a reboot.
+     */
+    DEVICE_SETUP,
+
+    /**
+     * Reaction to topology changes, such as link, host and interface events.
+     */
+    TOPOLOGY_CHANGE,
+
+    /**
+     * Bulk northbound work, e.g. large policy or route imports. Should be
+     * submitted as several small tasks (batches), so that more urgent work can
+     * run in between. Their flow rules are written after the more urgent ones,
+     * in chunks of at most writeBatchSize.
+     */
+    BULK
+}
@@ -81,8 +81,7 @@ public final class Utils {
         checkNotNull(appId);
         checkArgument(!ports.isEmpty());
 
-        final GroupKey groupKey = new DefaultGroupKey(
-                ByteBuffer.allocate(4).putInt(groupId).array());
+        final GroupKey groupKey = buildGroupKey(groupId);
 
         final List<GroupBucket> bucketList = ports.stream()
                 .map(p -> DefaultTrafficTreatment.builder()
@@ -98,6 +97,10 @@ public final class Utils {
                 groupKey, groupId, appId);
     }
 
+    public static GroupKey buildGroupKey(int groupId) {
+        return new DefaultGroupKey(ByteBuffer.allocate(4).putInt(groupId).array());
+    }
+
     public static FlowRule buildFlowRule(DeviceId switchId, ApplicationId appId,
                                          String tableId, PiCriterion piCriterion,
                                          PiTableAction piAction) {
@@ -115,14 +118,13 @@ public final class Utils {
     }
 
     public static GroupDescription buildSelectGroup(DeviceId deviceId,
-                                                    String tableId,
-                                                    String actionProfileId,
+                                                    PiTableId tableId,
+                                                    PiActionProfileId actionProfileId,
                                                     int groupId,
                                                     Collection<PiAction> actions,
                                                     ApplicationId appId) {
 
-        final GroupKey groupKey = new PiGroupKey(
-                PiTableId.of(tableId), PiActionProfileId.of(actionProfileId), groupId);
+        final GroupKey groupKey = new PiGroupKey(tableId, actionProfileId, groupId);
         final List<GroupBucket> buckets = actions.stream()
                 .map(action -> DefaultTrafficTreatment.builder()
                         .piTableAction(action).build())
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.common;
+
+import com.google.common.util.concurrent.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Token bucket limiting the rate of flow rule operations written to a device,
+ * with a rate adapted to how fast the device completes them.
+ * <p>
+ * The rate is increased additively while batches complete within the target
+ * latency, and decreased multiplicatively when they are slower or fail
+ * (AIMD). This converges to the highest rate the device and its control
+ * channel can sustain, without piling up timeouts and retries.
+ */
+public final class WriteRateLimiter {
+
+    private static final Logger log = LoggerFactory.getLogger(WriteRateLimiter.class);
+
+    // Fraction of the rate added after a fast batch, and kept after a slow
+    // or failed one.
+    private static final double INCREASE_FACTOR = 0.05;
+    private static final double SLOW_DECREASE_FACTOR = 0.8;
+    private static final double FAILURE_DECREASE_FACTOR = 0.5;
+
+    private final String name;
+    private final double minRate;
+    private final double maxRate;
+    private final long targetLatencyNanos;
+    private final RateLimiter rateLimiter;
+
+    // Guarded by this.
+    private long batches;
+    private long failedBatches;
+    private long operations;
+    private long throttled;
+    private long totalLatencyNanos;
+    private long maxLatencyNanos;
+
+    /**
+     * Creates a new limiter.
+     *
+     * @param name          name used for logging, e.g. the device ID
+     * @param initialRate   initial rate, in operations per second
+     * @param minRate       minimum rate, in operations per second
+     * @param maxRate       maximum rate, in operations per second
+     * @param targetLatency latency above which a batch is considered slow
+     * @param unit          time unit of the target latency
+     */
+    public WriteRateLimiter(String name, double initialRate, double minRate,
+                            double maxRate, long targetLatency, TimeUnit unit) {
+        checkArgument(minRate > 0 && minRate <= initialRate && initialRate <= maxRate,
+                      "Invalid rates");
+        this.name = name;
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+        this.targetLatencyNanos = unit.toNanos(targetLatency);
+        this.rateLimiter = RateLimiter.create(initialRate);
+    }
+
+    /**
+     * Acquires the given number of operations if it can be done now.
+     * Operations in excess of the current budget are paid by the following
+     * acquisitions, so a large batch is never starved.
+     *
+     * @param permits number of operations
+     * @return true if acquired, false if the caller should retry later
+     */
+    public boolean tryAcquire(int permits) {
+        if (rateLimiter.tryAcquire(Math.max(permits, 1))) {
+            return true;
+        }
+        synchronized (this) {
+            throttled++;
+        }
+        return false;
+    }
+
+    /**
+     * Returns an estimate of how long to wait before the given number of
+     * operations can be acquired.
+     *
+     * @param permits number of operations
+     * @return delay in milliseconds, at least 1
+     */
+    public long retryDelayMillis(int permits) {
+        final double millis = Math.max(permits, 1) * 1000.0 / rateLimiter.getRate();
+        return Math.max(1, Math.min((long) millis, 1000));
+    }
+
+    /**
+     * Reports the completion of a batch and adapts the rate accordingly.
+     *
+     * @param size         number of operations in the batch
+     * @param latencyNanos time from submission to completion
+     * @param failed       true if some operations failed
+     */
+    public synchronized void batchDone(int size, long latencyNanos, boolean failed) {
+        batches++;
+        operations += size;
+        totalLatencyNanos += latencyNanos;
+        maxLatencyNanos = Math.max(maxLatencyNanos, latencyNanos);
+
+        final double rate = rateLimiter.getRate();
+        final double newRate;
+        if (failed) {
+            failedBatches++;
+            newRate = Math.max(minRate, rate * FAILURE_DECREASE_FACTOR);
+            log.warn("Write to {} failed, lowering rate to {} ops/s", name, (long) newRate);
+        } else if (latencyNanos > targetLatencyNanos) {
+            newRate = Math.max(minRate, rate * SLOW_DECREASE_FACTOR);
+            log.debug("Slow write to {} ({} ms), lowering rate to {} ops/s", name,
+                      TimeUnit.NANOSECONDS.toMillis(latencyNanos), (long) newRate);
+        } else {
+            newRate = Math.min(maxRate, rate + rate * INCREASE_FACTOR);
+        }
+        if (newRate != rate) {
+            rateLimiter.setRate(newRate);
+        }
+    }
+
+    /**
+     * Returns the current statistics of this limiter.
+     *
+     * @return statistics
+     */
+    public synchronized Stats stats() {
+        return new Stats(rateLimiter.getRate(), batches, failedBatches, operations,
+                         throttled, batches == 0 ? 0 : totalLatencyNanos / batches,
+                         maxLatencyNanos);
+    }
+
+    /**
+     * Statistics of a write rate limiter.
+     */
+    public static final class Stats {
+
+        private final double rate;
+        private final long batches;
+        private final long failedBatches;
+        private final long operations;
+        private final long throttled;
+        private final long avgLatencyNanos;
+        private final long maxLatencyNanos;
+
+        private Stats(double rate, long batches, long failedBatches, long operations,
+                      long throttled, long avgLatencyNanos, long maxLatencyNanos) {
+            this.rate = rate;
+            this.batches = batches;
+            this.failedBatches = failedBatches;
+            this.operations = operations;
+            this.throttled = throttled;
+            this.avgLatencyNanos = avgLatencyNanos;
+            this.maxLatencyNanos = maxLatencyNanos;
+        }
+
+        /**
+         * Returns the current rate, in operations per second.
+         *
+         * @return rate
+         */
+        public double rate() {
+            return rate;
+        }
+
+        /**
+         * Returns the number of batches completed.
+         *
+         * @return completed batches
+         */
+        public long batches() {
+            return batches;
+        }
+
+        /**
+         * Returns the number of batches with failed operations.
+         *
+         * @return failed batches
+         */
+        public long failedBatches() {
+            return failedBatches;
+        }
+
+        /**
+         * Returns the number of operations in the completed batches.
+         *
+         * @return operations
+         */
+        public long operations() {
+            return operations;
+        }
+
+        /**
+         * Returns the number of times a write was delayed by the limiter.
+         *
+         * @return throttling events
+         */
+        public long throttled() {
+            return throttled;
+        }
+
+        /**
+         * Returns the average batch latency.
+         *
+         * @return average latency in nanoseconds
+         */
+        public long avgLatencyNanos() {
+            return avgLatencyNanos;
+        }
+
+        /**
+         * Returns the maximum batch latency.
+         *
+         * @return maximum latency in nanoseconds
+         */
+        public long maxLatencyNanos() {
+            return maxLatencyNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "rate=%d ops/s, batches=%d, failedBatches=%d, operations=%d, " +
+                            "throttled=%d, avgLatency=%dms, maxLatency=%dms",
+                    (long) rate, batches, failedBatches, operations, throttled,
+                    TimeUnit.NANOSECONDS.toMillis(avgLatencyNanos),
+                    TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos));
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.common;
+
+import org.onosproject.event.Event;
+
+import java.util.Objects;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Origin of flow rule writes, i.e. the app component that requested them and,
+ * if they result from an event, the listener that received it and the time of
+ * the event. Used to attribute write latencies and event-to-write lags.
+ */
+public final class WriteSource {
+
+    private final String component;
+    private final String listener;
+    private final long eventTime;
+
+    private WriteSource(String component, String listener, long eventTime) {
+        this.component = checkNotNull(component);
+        this.listener = listener;
+        this.eventTime = eventTime;
+    }
+
+    /**
+     * Returns the source of writes requested by the given component, not as
+     * the result of an event.
+     *
+     * @param component component name
+     * @return write source
+     */
+    public static WriteSource of(String component) {
+        return new WriteSource(component, null, 0);
+    }
+
+    /**
+     * Returns the source of writes of the same component, resulting from the
+     * given event.
+     *
+     * @param listenerName name of the listener, unique within the component
+     * @param event        the event
+     * @return write source
+     */
+    public WriteSource forEvent(String listenerName, Event<?, ?> event) {
+        return new WriteSource(component, component + "/" + listenerName, event.time());
+    }
+
+    /**
+     * Returns the name of the component.
+     *
+     * @return component name
+     */
+    public String component() {
+        return component;
+    }
+
+    /**
+     * Returns the name of the listener, as component/listener.
+     *
+     * @return listener name, or null if not the result of an event
+     */
+    public String listener() {
+        return listener;
+    }
+
+    /**
+     * Returns the time of the event, as given by {@link Event#time()}.
+     *
+     * @return milliseconds since the epoch, or 0 if not the result of an event
+     */
+    public long eventTime() {
+        return eventTime;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof WriteSource)) {
+            return false;
+        }
+        final WriteSource that = (WriteSource) o;
+        return eventTime == that.eventTime && component.equals(that.component) &&
+                Objects.equals(listener, that.listener);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(component, listener, eventTime);
+    }
+
+    @Override
+    public String toString() {
+        return listener == null ? component : listener + "@" + eventTime;
+    }
+}
@@ -18,18 +18,19 @@ package org.onosproject.srv6_usid.pipeconf;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import org.onlab.packet.DeserializationException;
-import org.onlab.packet.Ethernet;
+import com.google.common.collect.Maps;
+import org.onlab.packet.MacAddress;
 import org.onlab.util.ImmutableByteSequence;
 import org.onosproject.net.ConnectPoint;
 import org.onosproject.net.DeviceId;
-import org.onosproject.net.Port;
 import org.onosproject.net.PortNumber;
-import org.onosproject.net.device.DeviceService;
 import org.onosproject.net.driver.AbstractHandlerBehaviour;
 import org.onosproject.net.flow.TrafficTreatment;
 import org.onosproject.net.flow.criteria.Criterion;
-import org.onosproject.net.packet.DefaultInboundPacket;
+import org.onosproject.net.flow.instructions.Instruction;
+import org.onosproject.net.flow.instructions.Instructions.GroupInstruction;
+import org.onosproject.net.flow.instructions.L2ModificationInstruction;
+import org.onosproject.net.flow.instructions.L2ModificationInstruction.ModEtherInstruction;
 import org.onosproject.net.packet.InboundPacket;
 import org.onosproject.net.packet.OutboundPacket;
 import org.onosproject.net.pi.model.PiMatchFieldId;
@@ -39,8 +40,13 @@ import org.onosproject.net.pi.model.PiTableId;
 import org.onosproject.net.pi.runtime.PiAction;
 import org.onosproject.net.pi.runtime.PiPacketMetadata;
 import org.onosproject.net.pi.runtime.PiPacketOperation;
+import org.onosproject.srv6_usid.FloodGroupComponent;
+import org.onosproject.srv6_usid.MetricsComponent;
+import org.onosproject.srv6_usid.PacketInAdmissionComponent;
+import org.onosproject.srv6_usid.common.OperationTracer;
+import org.onosproject.srv6_usid.common.OperationTracer.Span;
+import org.onosproject.srv6_usid.common.OperationType;
 
-import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -51,10 +57,24 @@ import static java.util.stream.Collectors.toList;
 import static org.onlab.util.ImmutableByteSequence.copyFrom;
 import static org.onosproject.net.PortNumber.CONTROLLER;
 import static org.onosproject.net.PortNumber.FLOOD;
+import static org.onosproject.net.flow.instructions.Instruction.Type.GROUP;
+import static org.onosproject.net.flow.instructions.Instruction.Type.L2MODIFICATION;
 import static org.onosproject.net.flow.instructions.Instruction.Type.OUTPUT;
 import static org.onosproject.net.flow.instructions.Instructions.OutputInstruction;
+import static org.onosproject.net.flow.instructions.L2ModificationInstruction.L2SubType.ETH_DST;
 import static org.onosproject.net.pi.model.PiPacketOperationType.PACKET_OUT;
 import static org.onosproject.srv6_usid.AppConstants.CPU_PORT_ID;
+import static org.onosproject.srv6_usid.AppConstants.FLOOD_GROUP_ID;
+import static org.onosproject.srv6_usid.common.OperationTracer.OUTCOME_DROPPED;
+import static org.onosproject.srv6_usid.common.OperationTracer.OUTCOME_FAILED;
+import static org.onosproject.srv6_usid.common.OperationTracer.OUTCOME_OK;
+import static org.onosproject.srv6_usid.common.RuleTemplates.ACL_TABLE;
+import static org.onosproject.srv6_usid.common.RuleTemplates.CLONE_TO_CPU;
+import static org.onosproject.srv6_usid.common.RuleTemplates.DROP;
+import static org.onosproject.srv6_usid.common.RuleTemplates.L2_FIREWALL;
+import static org.onosproject.srv6_usid.common.RuleTemplates.MULTICAST;
+import static org.onosproject.srv6_usid.common.RuleTemplates.ROUTING_V6;
+import static org.onosproject.srv6_usid.common.RuleTemplates.UNICAST;
 
 
 /**
@@ -67,11 +87,31 @@ public class InterpreterImpl extends AbstractHandlerBehaviour
     // From v1model.p4
     private static final int V1MODEL_PORT_BITWIDTH = 9;
 
+    // From main.p4, packet_out header.
+    private static final int MCAST_GRP_BITWIDTH = 16;
+    private static final int NO_MCAST_GRP = 0;
+
+    // Length of an Ethernet header without VLAN tags.
+    private static final int ETHERNET_HEADER_LENGTH = 14;
+
+    // Actions without parameters, built once.
+    private static final PiAction DROP_ACTION = PiAction.builder().withId(DROP).build();
+    private static final PiAction CLONE_TO_CPU_ACTION = PiAction.builder().withId(CLONE_TO_CPU).build();
+
+    // From P4Info, resolved once.
+    private static final PiPacketMetadataId INGRESS_PORT_METADATA_ID =
+            PiPacketMetadataId.of("ingress_port");
+    private static final PiPacketMetadataId EGRESS_PORT_METADATA_ID =
+            PiPacketMetadataId.of("egress_port");
+    private static final PiPacketMetadataId MCAST_GRP_METADATA_ID =
+            PiPacketMetadataId.of("mcast_grp");
+
     // From P4Info.
     private static final Map<Criterion.Type, String> CRITERION_MAP =
             new ImmutableMap.Builder<Criterion.Type, String>()
                     .put(Criterion.Type.IN_PORT, "standard_metadata.ingress_port")
                     .put(Criterion.Type.ETH_DST, "hdr.ethernet.dst_addr")
+                    .put(Criterion.Type.ETH_DST_MASKED, "hdr.ethernet.dst_addr")
                     .put(Criterion.Type.ETH_SRC, "hdr.ethernet.src_addr")
                     .put(Criterion.Type.ETH_TYPE, "hdr.ethernet.ether_type")
                     .put(Criterion.Type.IPV6_DST, "hdr.ipv6.dst_addr")
@@ -110,6 +150,9 @@ public class InterpreterImpl extends AbstractHandlerBehaviour
             throw new PiInterpreterException("Treatment not supported: " + treatment);
         }
 
+        // Copied once, shared by all packet-outs.
+        final ImmutableByteSequence data = copyFrom(packet.data());
+
         ImmutableList.Builder<PiPacketOperation> builder = ImmutableList.builder();
         for (OutputInstruction outInst : outInstructions) {
             if (outInst.port().isLogical() && !outInst.port().equals(FLOOD)) {
@@ -117,30 +160,45 @@ public class InterpreterImpl extends AbstractHandlerBehaviour
                         "Packet-out on logical port '%s' not supported",
                         outInst.port()));
             } else if (outInst.port().equals(FLOOD)) {
-                // To emulate flooding, we create a packet-out operation for
-                // each switch port.
-                final DeviceService deviceService = handler().get(DeviceService.class);
-                for (Port port : deviceService.getPorts(packet.sendThrough())) {
-                    builder.add(buildPacketOut(packet.data(), port.number().toLong()));
+                final FloodGroupComponent flood = InterpreterServices.flood();
+                if (flood == null) {
+                    throw new PiInterpreterException("Flood ports not available");
+                }
+                if (flood.isFloodGroupInstalled(packet.sendThrough())) {
+                    // One packet-out, replicated by the switch to all ports.
+                    builder.add(buildPacketOut(data, 0, FLOOD_GROUP_ID));
+                } else {
+                    // Group not installed yet, emulate flooding with a
+                    // packet-out operation for each switch port.
+                    for (PortNumber port : flood.getFloodPorts(packet.sendThrough())) {
+                        builder.add(buildPacketOut(data, port.toLong(), NO_MCAST_GRP));
+                    }
                 }
             } else {
                 // Create only one packet-out for the given OUTPUT instruction.
-                builder.add(buildPacketOut(packet.data(), outInst.port().toLong()));
+                builder.add(buildPacketOut(data, outInst.port().toLong(), NO_MCAST_GRP));
             }
         }
-        return builder.build();
+        final List<PiPacketOperation> packetOuts = builder.build();
+        final MetricsComponent metrics = InterpreterServices.metrics();
+        if (metrics != null) {
+            metrics.packetOut(packetOuts.size());
+        }
+        return packetOuts;
     }
 
     /**
      * Builds a pipeconf-specific packet-out instance with the given payload and
-     * egress port.
+     * egress port, or multicast group.
      *
      * @param pktData    packet payload
-     * @param portNumber egress port
+     * @param portNumber egress port, ignored if a multicast group is given
+     * @param mcastGrp   multicast group, or NO_MCAST_GRP
      * @return packet-out
      * @throws PiInterpreterException if packet-out cannot be built
      */
-    private PiPacketOperation buildPacketOut(ByteBuffer pktData, long portNumber)
+    private PiPacketOperation buildPacketOut(ImmutableByteSequence pktData,
+                                             long portNumber, int mcastGrp)
             throws PiInterpreterException {
 
         // Make sure port number can fit in v1model port metadata bitwidth.
@@ -153,20 +211,27 @@ public class InterpreterImpl extends AbstractHandlerBehaviour
         }
 
         // Create metadata instance for egress port.
-        // TODO EXERCISE 1: modify metadata names to match P4 program
-        // ---- START SOLUTION ----
-        final String outPortMetadataName = "egress_port";
-        // ---- END SOLUTION ----
         final PiPacketMetadata outPortMetadata = PiPacketMetadata.builder()
-                .withId(PiPacketMetadataId.of(outPortMetadataName))
+                .withId(EGRESS_PORT_METADATA_ID)
                 .withValue(portBytes)
                 .build();
 
+        final PiPacketMetadata mcastGrpMetadata;
+        try {
+            mcastGrpMetadata = PiPacketMetadata.builder()
+                    .withId(MCAST_GRP_METADATA_ID)
+                    .withValue(copyFrom(mcastGrp).fit(MCAST_GRP_BITWIDTH))
+                    .build();
+        } catch (ImmutableByteSequence.ByteSequenceTrimException e) {
+            throw new PiInterpreterException(format(
+                    "Multicast group %d too big, %s", mcastGrp, e.getMessage()));
+        }
+
         // Build packet out.
         return PiPacketOperation.builder()
                 .withType(PACKET_OUT)
-                .withData(copyFrom(pktData))
-                .withMetadata(outPortMetadata)
+                .withData(pktData)
+                .withMetadatas(ImmutableList.of(outPortMetadata, mcastGrpMetadata))
                 .build();
     }
 
@@ -176,7 +241,7 @@ public class InterpreterImpl extends AbstractHandlerBehaviour
      *
      * @param packetIn packet operation
      * @param deviceId ID of the device that originated the packet-in
-     * @return inbound packet
+     * @return inbound packet, or null if dropped by admission control
      * @throws PiInterpreterException if the packet operation cannot be mapped
      *                                to an inbound packet
      */
@@ -184,42 +249,63 @@ public class InterpreterImpl extends AbstractHandlerBehaviour
     public InboundPacket mapInboundPacket(PiPacketOperation packetIn, DeviceId deviceId)
             throws PiInterpreterException {
 
-        // Find the ingress_port metadata.
-        // TODO EXERCISE 1: modify metadata names to match P4 program
-        // ---- START SOLUTION ----
-        final String inportMetadataName = "ingress_port";
-        // ---- END SOLUTION ----
-        Optional<PiPacketMetadata> inportMetadata = packetIn.metadatas()
-                .stream()
-                .filter(meta -> meta.id().id().equals(inportMetadataName))
-                .findFirst();
+        final Span span = OperationTracer.start(OperationType.PACKET_IN_MAPPING, deviceId);
+        try {
+            // Find the ingress_port metadata.
+            PiPacketMetadata inportMetadata = null;
+            for (PiPacketMetadata meta : packetIn.metadatas()) {
+                if (meta.id().equals(INGRESS_PORT_METADATA_ID)) {
+                    inportMetadata = meta;
+                    break;
+                }
+            }
 
-        if (!inportMetadata.isPresent()) {
-            throw new PiInterpreterException(format(
-                    "Missing metadata '%s' in packet-in received from '%s': %s",
-                    inportMetadataName, deviceId, packetIn));
-        }
+            if (inportMetadata == null) {
+                throw new PiInterpreterException(format(
+                        "Missing metadata '%s' in packet-in received from '%s': %s",
+                        INGRESS_PORT_METADATA_ID, deviceId, packetIn));
+            }
+
+            if (packetIn.data().size() < ETHERNET_HEADER_LENGTH) {
+                throw new PiInterpreterException(format(
+                        "Packet-in received from '%s' too short: %d bytes",
+                        deviceId, packetIn.data().size()));
+            }
 
-        // Build ONOS InboundPacket instance with the given ingress port.
+            // Drop packets in excess before doing any other work. Null is ignored
+            // by the packet provider, without logging at each packet.
+            final PacketInAdmissionComponent admission = InterpreterServices.admission();
+            final boolean admitted = admission == null ||
+                    admission.admit(deviceId, packetIn.data().asReadOnlyBuffer());
+            final MetricsComponent metrics = InterpreterServices.metrics();
+            if (metrics != null) {
+                metrics.packetIn(admitted);
+            }
+            if (!admitted) {
+                span.end(OUTCOME_DROPPED);
+                return null;
+            }
 
-        // 1. Parse packet-in object into Ethernet packet instance.
-        final byte[] payloadBytes = packetIn.data().asArray();
-        final ByteBuffer rawData = ByteBuffer.wrap(payloadBytes);
-        final Ethernet ethPkt;
-        try {
-            ethPkt = Ethernet.deserializer().deserialize(
-                    payloadBytes, 0, packetIn.data().size());
-        } catch (DeserializationException dex) {
-            throw new PiInterpreterException(dex.getMessage());
-        }
+            // Get ingress port.
+            final short portNum = inportMetadata.value().asReadOnlyBuffer().getShort();
+            final ConnectPoint receivedFrom = new ConnectPoint(
+                    deviceId, PortNumber.portNumber(portNum));
 
-        // 2. Get ingress port
-        final ImmutableByteSequence portBytes = inportMetadata.get().value();
-        final short portNum = portBytes.asReadOnlyBuffer().getShort();
-        final ConnectPoint receivedFrom = new ConnectPoint(
-                deviceId, PortNumber.portNumber(portNum));
+            // Build ONOS InboundPacket instance with the given ingress port. The
+            // payload is not copied, and parsed only if a processor needs it.
+            span.entries(1).end(OUTCOME_OK);
+            return new LazyInboundPacket(receivedFrom, packetIn.data(),
+                                         InterpreterImpl::countMalformedPacketIn);
+        } finally {
+            span.end(OUTCOME_FAILED);
+        }
+    }
 
-        return new DefaultInboundPacket(receivedFrom, ethPkt, rawData);
+    private static void countMalformedPacketIn() {
+        final MetricsComponent metrics = InterpreterServices.metrics();
+        if (metrics != null) {
+            metrics.packetInMalformed();
+        }
     }
 
     @Override
@@ -240,10 +326,80 @@ public class InterpreterImpl extends AbstractHandlerBehaviour
         }
     }
 
+    /**
+     * Returns a PI action equivalent to the given treatment, for the given
+     * table. Used to translate flow rules and group buckets with standard
+     * treatments, e.g. those of flow objectives.
+     *
+     * @param treatment traffic treatment
+     * @param piTableId PI table ID
+     * @return PI action
+     * @throws PiInterpreterException if the treatment cannot be mapped to an
+     *                                action of the table
+     */
     @Override
     public PiAction mapTreatment(TrafficTreatment treatment, PiTableId piTableId)
             throws PiInterpreterException {
-        throw new PiInterpreterException("Treatment mapping not supported");
+        final Map<Instruction.Type, Instruction> instructions = Maps.newEnumMap(Instruction.Type.class);
+        MacAddress ethDst = null;
+        for (Instruction inst : treatment.allInstructions()) {
+            if (inst.type() == L2MODIFICATION) {
+                // Other L2 modifications are ignored: routing sets the
+                // source MAC itself, and the pipeline has no VLANs.
+                if (((L2ModificationInstruction) inst).subtype() == ETH_DST) {
+                    ethDst = ((ModEtherInstruction) inst).mac();
+                }
+            } else if (instructions.put(inst.type(), inst) != null) {
+                throw new PiInterpreterException(format(
+                        "Multiple %s instructions not supported: %s", inst.type(), treatment));
+            }
+        }
+
+        if (piTableId.equals(ROUTING_V6.tableId())) {
+            // Next hop of a route, e.g. a bucket of an ECMP group. The output
+            // port, if any, is given by the unicast table.
+            if (ethDst != null && instructions.keySet().stream().allMatch(type -> type == OUTPUT)) {
+                return ROUTING_V6.action(copyFrom(ethDst.toBytes()));
+            }
+        } else if (piTableId.equals(UNICAST.tableId())) {
+            if (ethDst == null && instructions.isEmpty()) {
+                return DROP_ACTION;
+            }
+            if (ethDst == null && instructions.size() == 1 && instructions.containsKey(OUTPUT)) {
+                final PortNumber port = ((OutputInstruction) instructions.get(OUTPUT)).port();
+                if (!port.isLogical()) {
+                    try {
+                        return UNICAST.action(copyFrom(port.toLong()).fit(V1MODEL_PORT_BITWIDTH));
+                    } catch (ImmutableByteSequence.ByteSequenceTrimException e) {
+                        throw new PiInterpreterException(format(
+                                "Port number %s too big, %s", port, e.getMessage()));
+                    }
+                }
+            }
+        } else if (piTableId.equals(MULTICAST.tableId())) {
+            if (ethDst == null && instructions.size() == 1 && instructions.containsKey(GROUP)) {
+                final int groupId = ((GroupInstruction) instructions.get(GROUP)).groupId().id();
+                try {
+                    return MULTICAST.action(copyFrom(groupId).fit(MCAST_GRP_BITWIDTH));
+                } catch (ImmutableByteSequence.ByteSequenceTrimException e) {
+                    throw new PiInterpreterException(format(
+                            "Multicast group %d too big, %s", groupId, e.getMessage()));
+                }
+            }
+        } else if (piTableId.equals(ACL_TABLE)) {
+            if (ethDst == null && instructions.isEmpty()) {
+                return DROP_ACTION;
+            }
+            if (ethDst == null && instructions.size() == 1 && instructions.containsKey(OUTPUT)
+                    && CONTROLLER.equals(((OutputInstruction) instructions.get(OUTPUT)).port())) {
+                return CLONE_TO_CPU_ACTION;
+            }
+        } else if (piTableId.equals(L2_FIREWALL.tableId())) {
+            // Any treatment, the table only tells packets to be routed.
+            return L2_FIREWALL.action();
+        }
+        throw new PiInterpreterException(format(
+                "Treatment not supported for table %s: %s", piTableId, treatment));
     }
 
     @Override
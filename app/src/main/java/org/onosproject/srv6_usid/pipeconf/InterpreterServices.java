@@ -0,0 +1,108 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.pipeconf;
+
+import org.onosproject.srv6_usid.FloodGroupComponent;
+import org.onosproject.srv6_usid.MetricsComponent;
+import org.onosproject.srv6_usid.PacketInAdmissionComponent;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * App components used by the interpreter for each packet-in and packet-out,
+ * bound by the components themselves while active. Looking them up through
+ * the driver handler would be an OSGi lookup per packet, failing while the
+ * app is deactivated. A component not bound is null, and the interpreter does
+ * without it.
+ */
+public final class InterpreterServices {
+
+    private static final AtomicReference<PacketInAdmissionComponent> ADMISSION =
+            new AtomicReference<>();
+    private static final AtomicReference<MetricsComponent> METRICS = new AtomicReference<>();
+    private static final AtomicReference<FloodGroupComponent> FLOOD = new AtomicReference<>();
+
+    private InterpreterServices() {
+        // Utility class.
+    }
+
+    /**
+     * Binds the packet-in admission component, on activation.
+     *
+     * @param admission admission component
+     */
+    public static void bind(PacketInAdmissionComponent admission) {
+        ADMISSION.set(admission);
+    }
+
+    /**
+     * Unbinds the packet-in admission component, on deactivation.
+     *
+     * @param admission admission component
+     */
+    public static void unbind(PacketInAdmissionComponent admission) {
+        ADMISSION.compareAndSet(admission, null);
+    }
+
+    /**
+     * Binds the metrics component, on activation.
+     *
+     * @param metrics metrics component
+     */
+    public static void bind(MetricsComponent metrics) {
+        METRICS.set(metrics);
+    }
+
+    /**
+     * Unbinds the metrics component, on deactivation.
+     *
+     * @param metrics metrics component
+     */
+    public static void unbind(MetricsComponent metrics) {
+        METRICS.compareAndSet(metrics, null);
+    }
+
+    /**
+     * Binds the flood group component, on activation.
+     *
+     * @param flood flood group component
+     */
+    public static void bind(FloodGroupComponent flood) {
+        FLOOD.set(flood);
+    }
+
+    /**
+     * Unbinds the flood group component, on deactivation.
+     *
+     * @param flood flood group component
+     */
+    public static void unbind(FloodGroupComponent flood) {
+        FLOOD.compareAndSet(flood, null);
+    }
+
+    static PacketInAdmissionComponent admission() {
+        return ADMISSION.get();
+    }
+
+    static MetricsComponent metrics() {
+        return METRICS.get();
+    }
+
+    static FloodGroupComponent flood() {
+        return FLOOD.get();
+    }
+}
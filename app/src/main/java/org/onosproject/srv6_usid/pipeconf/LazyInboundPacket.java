@@ -0,0 +1,114 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.pipeconf;
+
+import com.google.common.base.MoreObjects;
+import org.onlab.packet.DeserializationException;
+import org.onlab.packet.Ethernet;
+import org.onlab.util.ImmutableByteSequence;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.packet.InboundPacket;
+import org.slf4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Inbound packet backed by the payload of a packet-in, without copying it.
+ * The Ethernet frame is parsed only the first time a packet processor asks
+ * for it. As for any inbound packet, a malformed frame is parsed as null.
+ */
+final class LazyInboundPacket implements InboundPacket {
+
+    private static final Logger log = getLogger(LazyInboundPacket.class);
+
+    private final ConnectPoint receivedFrom;
+    private final ImmutableByteSequence data;
+    private final Runnable malformedCounter;
+
+    // Parsed frame, null until requested or if malformed. Concurrent first
+    // calls may parse twice, which is harmless.
+    private volatile Ethernet parsed;
+    private volatile boolean malformed;
+
+    /**
+     * Creates a new inbound packet.
+     *
+     * @param receivedFrom     ingress port
+     * @param data             packet-in payload
+     * @param malformedCounter invoked if the frame turns out to be malformed
+     */
+    LazyInboundPacket(ConnectPoint receivedFrom, ImmutableByteSequence data,
+                      Runnable malformedCounter) {
+        this.receivedFrom = receivedFrom;
+        this.data = data;
+        this.malformedCounter = malformedCounter;
+    }
+
+    @Override
+    public ConnectPoint receivedFrom() {
+        return receivedFrom;
+    }
+
+    @Override
+    public Ethernet parsed() {
+        Ethernet ethPkt = parsed;
+        if (ethPkt == null) {
+            if (malformed) {
+                return null;
+            }
+            // The deserializer needs an array, so the payload is copied
+            // here, and only for packets actually inspected.
+            final ByteBuffer buffer = data.asReadOnlyBuffer();
+            final byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            try {
+                ethPkt = Ethernet.deserializer().deserialize(bytes, 0, bytes.length);
+            } catch (DeserializationException e) {
+                // Not logged at each packet, the content is not trusted.
+                log.trace("Unable to parse packet-in from {}: {}",
+                          receivedFrom, e.getMessage());
+                malformed = true;
+                malformedCounter.run();
+                return null;
+            }
+            parsed = ethPkt;
+        }
+        return ethPkt;
+    }
+
+    @Override
+    public ByteBuffer unparsed() {
+        // A new read-only view for each caller, sharing the same bytes.
+        return data.asReadOnlyBuffer();
+    }
+
+    @Override
+    public Optional<Long> cookie() {
+        return Optional.empty();
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("receivedFrom", receivedFrom)
+                .add("size", data.size())
+                .toString();
+    }
+}
@@ -16,6 +16,10 @@
 
 package org.onosproject.srv6_usid.pipeconf;
 
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 import org.onosproject.net.behaviour.Pipeliner;
 import org.onosproject.net.driver.DriverAdminService;
 import org.onosproject.net.driver.DriverProvider;
@@ -31,11 +35,15 @@ import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.onosproject.srv6_usid.common.RuleTemplates;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.util.List;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 import static org.onosproject.net.pi.model.PiPipeconf.ExtensionType.BMV2_JSON;
@@ -43,7 +51,9 @@ import static org.onosproject.net.pi.model.PiPipeconf.ExtensionType.P4_INFO_TEXT
 import static org.onosproject.srv6_usid.AppConstants.PIPECONF_ID;
 
 /**
- * Component that builds and register the pipeconf at app activation.
+ * Component that builds and register the pipeconf at app activation. The
+ * pipeconf is identified by a digest of its P4Info and BMv2 JSON, and is
+ * registered again only when they change.
  */
 @Component(immediate = true, service = PipeconfLoader.class)
 public final class PipeconfLoader {
@@ -62,16 +72,43 @@ public final class PipeconfLoader {
 
     @Activate
     public void activate() {
-        // Registers the pipeconf at component activation.
-        if (pipeconfService.getPipeconf(PIPECONF_ID).isPresent()) {
+        final URL p4InfoUrl = PipeconfLoader.class.getResource(P4INFO_PATH);
+        final URL bmv2JsonUrl = PipeconfLoader.class.getResource(BMV2_JSON_PATH);
+
+        final String digest;
+        try (InputStream p4Info = p4InfoUrl.openStream();
+             InputStream bmv2Json = bmv2JsonUrl.openStream()) {
+            digest = digest(p4Info, bmv2Json);
+        } catch (IOException e) {
+            log.error("Unable to read the resources of " + PIPECONF_ID, e);
+            return;
+        }
+
+        // Registers the pipeconf at component activation, unless the same
+        // one is already registered, e.g. when the app is reactivated. This
+        // way devices keep their driver, and the pipeline is not pushed again.
+        PiPipelineModel pipelineModel = null;
+        final PiPipeconf registered = pipeconfService.getPipeconf(PIPECONF_ID).orElse(null);
+        if (registered != null) {
+            final boolean sameResources = digest.equals(registeredDigest(registered));
+            if (sameResources && hasCurrentBehaviours(registered)) {
+                log.info("Pipeconf {} is up to date (digest {}), not registering it again",
+                         PIPECONF_ID, digest);
+                return;
+            }
             // Remove first if already registered, to support reloading of the
             // pipeconf during the srv6_usid.
             pipeconfService.unregister(PIPECONF_ID);
+            if (sameResources) {
+                // Only the behaviours changed, e.g. the app was reinstalled.
+                pipelineModel = registered.pipelineModel();
+            }
         }
         removePipeconfDrivers();
         try {
-            pipeconfService.register(buildPipeconf());
-        } catch (P4InfoParserException e) {
+            pipeconfService.register(buildPipeconf(p4InfoUrl, bmv2JsonUrl, pipelineModel));
+            log.info("Registered pipeconf {} (digest {})", PIPECONF_ID, digest);
+        } catch (P4InfoParserException | IllegalStateException e) {
             log.error("Unable to register " + PIPECONF_ID, e);
         }
     }
@@ -81,11 +118,14 @@ public final class PipeconfLoader {
         // Do nothing.
     }
 
-    private PiPipeconf buildPipeconf() throws P4InfoParserException {
+    private PiPipeconf buildPipeconf(URL p4InfoUrl, URL bmv2JsonUrl,
+                                     PiPipelineModel cachedModel)
+            throws P4InfoParserException {
 
-        final URL p4InfoUrl = PipeconfLoader.class.getResource(P4INFO_PATH);
-        final URL bmv2JsonUrlUrl = PipeconfLoader.class.getResource(BMV2_JSON_PATH);
-        final PiPipelineModel pipelineModel = P4InfoParser.parse(p4InfoUrl);
+        final PiPipelineModel pipelineModel = cachedModel != null
+                ? cachedModel : P4InfoParser.parse(p4InfoUrl);
+        // Fail here, rather than when rules are written to the devices.
+        RuleTemplates.validate(pipelineModel);
 
         return DefaultPiPipeconf.builder()
                 .withId(PIPECONF_ID)
@@ -93,10 +133,52 @@ public final class PipeconfLoader {
                 .addBehaviour(PiPipelineInterpreter.class, InterpreterImpl.class)
                 .addBehaviour(Pipeliner.class, PipelinerImpl.class)
                 .addExtension(P4_INFO_TEXT, p4InfoUrl)
-                .addExtension(BMV2_JSON, bmv2JsonUrlUrl)
+                .addExtension(BMV2_JSON, bmv2JsonUrl)
                 .build();
     }
 
+    /**
+     * Returns the digest of the P4Info and BMv2 JSON of the given registered
+     * pipeconf, or null if they cannot be read, e.g. because they belong to a
+     * bundle that was uninstalled.
+     */
+    private String registeredDigest(PiPipeconf pipeconf) {
+        final Optional<InputStream> p4Info = pipeconf.extension(P4_INFO_TEXT);
+        final Optional<InputStream> bmv2Json = pipeconf.extension(BMV2_JSON);
+        if (!p4Info.isPresent() || !bmv2Json.isPresent()) {
+            return null;
+        }
+        try (InputStream p4InfoStream = p4Info.get();
+             InputStream bmv2JsonStream = bmv2Json.get()) {
+            return digest(p4InfoStream, bmv2JsonStream);
+        } catch (IOException e) {
+            log.debug("Unable to read the resources of the registered {}: {}",
+                      PIPECONF_ID, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the behaviours of the given pipeconf are the classes of
+     * this bundle. They differ after the app is reinstalled, even if the P4
+     * program did not change.
+     */
+    private static boolean hasCurrentBehaviours(PiPipeconf pipeconf) {
+        return pipeconf.implementation(PiPipelineInterpreter.class)
+                .filter(InterpreterImpl.class::equals).isPresent() &&
+                pipeconf.implementation(Pipeliner.class)
+                        .filter(PipelinerImpl.class::equals).isPresent();
+    }
+
+    private static String digest(InputStream p4Info, InputStream bmv2Json)
+            throws IOException {
+        final Hasher hasher = Hashing.sha256().newHasher();
+        // Lengths separate the two resources in the digest.
+        hasher.putLong(ByteStreams.copy(p4Info, Funnels.asOutputStream(hasher)));
+        hasher.putLong(ByteStreams.copy(bmv2Json, Funnels.asOutputStream(hasher)));
+        return hasher.hash().toString();
+    }
+
     private void removePipeconfDrivers() {
         List<DriverProvider> driverProvidersToRemove = driverAdminService
                 .getProviders().stream()
@@ -16,6 +16,13 @@
 
 package org.onosproject.srv6_usid.pipeconf;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.onlab.util.KryoNamespace;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.GroupId;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.PortNumber;
 import org.onosproject.net.behaviour.NextGroup;
@@ -23,129 +30,811 @@ import org.onosproject.net.behaviour.Pipeliner;
 import org.onosproject.net.behaviour.PipelinerContext;
 import org.onosproject.net.driver.AbstractHandlerBehaviour;
 import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
 import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowId;
 import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
 import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.criteria.EthCriterion;
+import org.onosproject.net.flow.instructions.Instruction;
 import org.onosproject.net.flow.instructions.Instructions;
+import org.onosproject.net.flow.instructions.L2ModificationInstruction;
 import org.onosproject.net.flowobjective.FilteringObjective;
 import org.onosproject.net.flowobjective.ForwardingObjective;
 import org.onosproject.net.flowobjective.NextObjective;
+import org.onosproject.net.flowobjective.Objective;
 import org.onosproject.net.flowobjective.ObjectiveError;
 import org.onosproject.net.group.GroupDescription;
-import org.onosproject.net.group.GroupService;
-import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiPipelineInterpreter;
 import org.onosproject.net.pi.model.PiTableId;
 import org.onosproject.net.pi.runtime.PiAction;
+import org.onosproject.net.pi.runtime.PiActionProfileGroupId;
+import org.onosproject.net.pi.runtime.PiTableAction;
+import org.onosproject.store.serializers.KryoNamespaces;
+import org.onosproject.srv6_usid.FlowRuleWriter;
 import org.onosproject.srv6_usid.common.Utils;
+import org.onosproject.srv6_usid.common.WriteSource;
 import org.slf4j.Logger;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
+import static com.google.common.collect.Streams.stream;
+import static java.lang.String.format;
+import static org.onosproject.net.flow.instructions.Instruction.Type.L2MODIFICATION;
 import static org.onosproject.net.flow.instructions.Instruction.Type.OUTPUT;
+import static org.onosproject.srv6_usid.AppConstants.BROADCAST_GROUP_ID;
 import static org.onosproject.srv6_usid.AppConstants.CPU_CLONE_SESSION_ID;
+import static org.onosproject.srv6_usid.AppConstants.FLOOD_GROUP_ID;
+import static org.onosproject.srv6_usid.AppConstants.PIPELINER_GROUP_ID_BIT;
+import static org.onosproject.srv6_usid.common.RuleTemplates.ACL_TABLE;
+import static org.onosproject.srv6_usid.common.RuleTemplates.CLONE_TO_CPU;
+import static org.onosproject.srv6_usid.common.RuleTemplates.ECMP_SELECTOR;
+import static org.onosproject.srv6_usid.common.RuleTemplates.L2_FIREWALL;
+import static org.onosproject.srv6_usid.common.RuleTemplates.MULTICAST;
+import static org.onosproject.srv6_usid.common.RuleTemplates.ROUTING_V6;
+import static org.onosproject.srv6_usid.common.RuleTemplates.UNICAST;
 import static org.slf4j.LoggerFactory.getLogger;
 
 /**
- * Pipeliner implementation that maps all forwarding objectives to the ACL
- * table. All other types of objectives are not supported.
+ * Pipeliner implementation translating flow objectives to entries of the
+ * pipeline tables, so that standard ONOS apps can program it:
+ * <ul>
+ * <li>filtering objectives on the destination MAC to l2_firewall entries,
+ * i.e. packets to be routed, other conditions being unsupported;</li>
+ * <li>forwarding objectives with an output to the controller to ACL entries,
+ * on IPv6 destinations to routing_v6 entries, and on destination MACs to
+ * unicast or multicast entries;</li>
+ * <li>hashed next objectives, and simple ones setting the destination MAC, to
+ * groups of the routing_v6 action selector, with IDs in a range reserved to
+ * the pipeliner, broadcast next objectives to multicast groups.</li>
+ * </ul>
+ * Next objectives are kept in the flow objective store, and cached with their
+ * group, and flow rules are written by the app's FlowRuleWriter, which
+ * batches them with other writes.
+ * <p>
+ * The clone session used by ACL rules is installed once per device, with the
+ * first rule, and removed with the last one. The ACL rules already on the
+ * device when the pipeliner is initialized count as users of the session.
  */
 public class PipelinerImpl extends AbstractHandlerBehaviour implements Pipeliner {
 
-    // From the P4Info file
-    private static final String ACL_TABLE = "IngressPipeImpl.acl";
-    private static final String CLONE_TO_CPU = "IngressPipeImpl.clone_to_cpu";
+    // From the P4Info file, checked against the pipeline model by the loader.
+    private static final PiTableId L2_FIREWALL_TABLE = L2_FIREWALL.tableId();
+    private static final PiTableId ROUTING_V6_TABLE = ROUTING_V6.tableId();
+    private static final PiTableId UNICAST_TABLE = UNICAST.tableId();
+    private static final PiTableId MULTICAST_TABLE = MULTICAST.tableId();
+    private static final PiAction CLONE_TO_CPU_ACTION = PiAction.builder().withId(CLONE_TO_CPU).build();
+    private static final TrafficTreatment CLONE_TO_CPU_TREATMENT =
+            DefaultTrafficTreatment.builder().piTableAction(CLONE_TO_CPU_ACTION).build();
+
+    // Multicast groups are 16 bit in the pipeline, and some IDs are used by
+    // the app.
+    private static final int MAX_MULTICAST_GROUP_ID = 0xFFFF;
+    private static final Set<Integer> RESERVED_GROUP_IDS = Sets.newHashSet(
+            CPU_CLONE_SESSION_ID, FLOOD_GROUP_ID, BROADCAST_GROUP_ID);
+
+    private static final WriteSource WRITE_SOURCE = WriteSource.of("pipeliner");
+
+    // Serializer of the next data kept in the flow objective store.
+    private static final KryoNamespace KRYO = new KryoNamespace.Builder()
+            .register(KryoNamespaces.API)
+            .build("PipelinerImpl");
 
     private final Logger log = getLogger(getClass());
 
-    private FlowRuleService flowRuleService;
-    private GroupService groupService;
+    private FlowRuleWriter flowRuleWriter;
+    private PiPipelineInterpreter interpreter;
+    private PipelinerContext context;
     private DeviceId deviceId;
 
+    // ACL rules cloning packets to the CPU, i.e. using the clone session.
+    // The session is installed with the first and removed with the last.
+    private final Set<FlowId> cloneSessionUsers = Sets.newHashSet();
+    // Installation of the clone session, null if not installed. Guarded by
+    // cloneSessionUsers.
+    private CompletableFuture<Void> cloneSession;
+
+    // Next objectives installed on the device, by next ID. Guarded by itself.
+    private final Map<Integer, NextEntry> nexts = Maps.newHashMap();
 
     @Override
     public void init(DeviceId deviceId, PipelinerContext context) {
         this.deviceId = deviceId;
-        this.flowRuleService = context.directory().get(FlowRuleService.class);
-        this.groupService = context.directory().get(GroupService.class);
+        this.context = context;
+        // Writes go through the app, which skips the clone group and rules
+        // already installed, and batches them with other writes.
+        this.flowRuleWriter = context.directory().get(FlowRuleWriter.class);
+        this.interpreter = handler().behaviour(PiPipelineInterpreter.class);
+
+        // After a re-initialization, e.g. when the device reconnects, the
+        // ACL rules written before still use the clone session.
+        final FlowRuleService flowRuleService = context.directory().get(FlowRuleService.class);
+        synchronized (cloneSessionUsers) {
+            stream(flowRuleService.getFlowEntries(deviceId))
+                    .filter(e -> e.table().equals(ACL_TABLE))
+                    .filter(e -> e.state() != FlowEntry.FlowEntryState.PENDING_REMOVE &&
+                            e.state() != FlowEntry.FlowEntryState.REMOVED)
+                    .filter(e -> CLONE_TO_CPU_TREATMENT.equals(e.treatment()))
+                    .forEach(e -> cloneSessionUsers.add(e.id()));
+            if (!cloneSessionUsers.isEmpty()) {
+                cloneSession = CompletableFuture.completedFuture(null);
+            }
+        }
     }
 
     @Override
     public void filter(FilteringObjective obj) {
-        obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
+        if (obj.type() != FilteringObjective.Type.PERMIT) {
+            fail(obj, ObjectiveError.UNSUPPORTED);
+            return;
+        }
+
+        // The only filtering done by the pipeline is on the router MAC. Other
+        // conditions (e.g. ingress port or VLAN) cannot be honoured, so the
+        // objective is refused rather than installed partially.
+        if (obj.key() != null && obj.key().type() != Criterion.Type.DUMMY) {
+            log.warn("Unsupported filtering objective {} on {}: key {}",
+                     obj.id(), deviceId, obj.key());
+            fail(obj, ObjectiveError.UNSUPPORTED);
+            return;
+        }
+        final List<FlowRule> rules = Lists.newArrayList();
+        for (Criterion criterion : obj.conditions()) {
+            if (criterion.type() != Criterion.Type.ETH_DST) {
+                log.warn("Unsupported filtering objective {} on {}: condition {}",
+                         obj.id(), deviceId, criterion);
+                fail(obj, ObjectiveError.UNSUPPORTED);
+                return;
+            }
+            final TrafficSelector selector = DefaultTrafficSelector.builder()
+                    .matchEthDst(((EthCriterion) criterion).mac())
+                    .build();
+            rules.add(buildRule(obj, L2_FIREWALL_TABLE, selector, L2_FIREWALL.action()));
+        }
+
+        if (rules.isEmpty()) {
+            fail(obj, ObjectiveError.UNSUPPORTED);
+            return;
+        }
+
+        writeRules(obj, rules, () -> { }, () -> { });
     }
 
     @Override
     public void forward(ForwardingObjective obj) {
-        if (obj.treatment() == null) {
-            obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
+        if (obj.treatment() != null && isCloneToCpu(obj.treatment())) {
+            forwardToCpu(obj);
+            return;
         }
 
-        // Whether this objective specifies an OUTPUT:CONTROLLER instruction.
-        final boolean hasCloneToCpuAction = obj.treatment()
-                .allInstructions().stream()
-                .filter(i -> i.type().equals(OUTPUT))
-                .map(i -> (Instructions.OutputInstruction) i)
-                .anyMatch(i -> i.port().equals(PortNumber.CONTROLLER));
+        final Criterion ipv6Dst = obj.selector().getCriterion(Criterion.Type.IPV6_DST);
+        final Criterion ethDst = obj.selector().getCriterion(Criterion.Type.ETH_DST);
+
+        if (ipv6Dst == null && ethDst == null) {
+            fail(obj, ObjectiveError.UNSUPPORTED);
+            return;
+        }
+        if (obj.op() == Objective.Operation.REMOVE) {
+            writeRules(obj, buildRemovalRules(obj, ipv6Dst, ethDst), () -> { }, () -> { });
+            return;
+        }
 
-        if (!hasCloneToCpuAction) {
-            // We support only objectives for clone to CPU behaviours (e.g. for
-            // host and link discovery)
-            obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
+        final FlowRule rule;
+        try {
+            rule = ipv6Dst != null
+                    ? buildRoutingRule(obj, ipv6Dst)
+                    : buildBridgingRule(obj, ethDst);
+        } catch (ObjectiveException e) {
+            log.warn("Unable to translate forwarding objective {} on {}: {}",
+                     obj.id(), deviceId, e.getMessage());
+            fail(obj, e.error);
+            return;
         }
 
+        writeRules(obj, Collections.singletonList(rule), () -> { }, () -> { });
+    }
+
+    /**
+     * Builds the rules to remove for a forwarding objective. The flow ID only
+     * depends on the selector, table, priority and app, so rules are built
+     * without looking up the next objective, which apps usually remove
+     * first.
+     */
+    private List<FlowRule> buildRemovalRules(ForwardingObjective obj, Criterion ipv6Dst,
+                                             Criterion ethDst) {
+        if (ipv6Dst != null) {
+            return ImmutableList.of(buildRemovalRule(obj, ROUTING_V6_TABLE, ipv6Dst));
+        }
+        if (obj.nextId() == null) {
+            return ImmutableList.of(buildRemovalRule(obj, UNICAST_TABLE, ethDst));
+        }
+        final NextEntry next = lookupNext(obj.nextId());
+        if (next == null) {
+            // The table depends on the next, already gone: remove from both,
+            // as removing a rule that was never installed does nothing.
+            return ImmutableList.of(buildRemovalRule(obj, UNICAST_TABLE, ethDst),
+                                    buildRemovalRule(obj, MULTICAST_TABLE, ethDst));
+        }
+        return ImmutableList.of(buildRemovalRule(
+                obj, next.type == NextObjective.Type.BROADCAST ? MULTICAST_TABLE : UNICAST_TABLE,
+                ethDst));
+    }
+
+    private FlowRule buildRemovalRule(ForwardingObjective obj, PiTableId tableId,
+                                      Criterion criterion) {
+        // Other conditions are implied by the table, as when adding.
+        return buildRule(obj, tableId,
+                         DefaultTrafficSelector.builder().add(criterion).build(),
+                         DefaultTrafficTreatment.emptyTreatment());
+    }
+
+    /**
+     * Translates a forwarding objective with an output to the controller to
+     * an ACL rule.
+     *
+     * @param obj forwarding objective
+     */
+    private void forwardToCpu(ForwardingObjective obj) {
         // Create an equivalent FlowRule with same selector and clone_to_cpu action.
-        final PiAction cloneToCpuAction = PiAction.builder()
-                .withId(PiActionId.of(CLONE_TO_CPU))
+        final FlowRule rule = buildRule(obj, ACL_TABLE, obj.selector(), CLONE_TO_CPU_ACTION);
+
+        if (obj.op() == Objective.Operation.ADD) {
+            acquireCloneSession(rule, obj.appId()).whenComplete((r, e) -> {
+                if (e != null) {
+                    log.warn("Unable to install clone session for objective {} on {}: {}",
+                             obj.id(), deviceId, e.getMessage());
+                    forgetCloneSessionUser(rule);
+                    fail(obj, ObjectiveError.GROUPINSTALLATIONFAILED);
+                    return;
+                }
+                writeRules(obj, Collections.singletonList(rule), () -> { },
+                           () -> releaseCloneSession(rule, obj.appId()));
+            });
+        } else {
+            writeRules(obj, Collections.singletonList(rule),
+                       () -> releaseCloneSession(rule, obj.appId()), () -> { });
+        }
+    }
+
+    /**
+     * Builds the routing_v6 rule of a forwarding objective on the IPv6
+     * destination, pointing to the group of its next objective.
+     */
+    private FlowRule buildRoutingRule(ForwardingObjective obj, Criterion ipv6Dst)
+            throws ObjectiveException {
+        final NextEntry next = getNext(obj);
+        if (next.group == null || next.group.type() != GroupDescription.Type.SELECT) {
+            throw new ObjectiveException(ObjectiveError.UNSUPPORTED, format(
+                    "next %s is not a routing next", obj.nextId()));
+        }
+        // Other conditions (e.g. the ethertype) are implied by the table.
+        final TrafficSelector selector = DefaultTrafficSelector.builder()
+                .add(ipv6Dst)
                 .build();
+        return buildRule(obj, ROUTING_V6_TABLE, selector,
+                         PiActionProfileGroupId.of(next.groupId));
+    }
 
+    /**
+     * Builds the unicast or multicast rule of a forwarding objective on the
+     * destination MAC, with the output port or multicast group of its
+     * treatment or next objective.
+     */
+    private FlowRule buildBridgingRule(ForwardingObjective obj, Criterion ethDst)
+            throws ObjectiveException {
+        final TrafficSelector selector = DefaultTrafficSelector.builder()
+                .add(ethDst)
+                .build();
+        final TrafficTreatment treatment;
+        final PiTableId tableId;
+        if (obj.nextId() == null) {
+            treatment = obj.treatment();
+            tableId = UNICAST_TABLE;
+        } else {
+            final NextEntry next = getNext(obj);
+            if (next.type == NextObjective.Type.BROADCAST) {
+                treatment = DefaultTrafficTreatment.builder()
+                        .group(GroupId.valueOf(next.groupId))
+                        .build();
+                tableId = MULTICAST_TABLE;
+            } else if (next.group == null && next.treatments.size() == 1) {
+                treatment = next.treatments.get(0);
+                tableId = UNICAST_TABLE;
+            } else {
+                throw new ObjectiveException(ObjectiveError.UNSUPPORTED, format(
+                        "next %s is not a bridging next", obj.nextId()));
+            }
+        }
+        if (treatment == null) {
+            throw new ObjectiveException(ObjectiveError.BADPARAMS, "no treatment");
+        }
+        return buildRule(obj, tableId, selector, translate(treatment, tableId));
+    }
+
+    @Override
+    public void next(NextObjective obj) {
+        if (obj.op() == Objective.Operation.VERIFY) {
+            obj.context().ifPresent(c -> c.onSuccess(obj));
+            return;
+        }
+        if (obj.op() == Objective.Operation.REMOVE) {
+            removeNext(obj);
+            return;
+        }
+
+        final NextEntry entry;
+        try {
+            entry = updatedNext(obj, lookupNext(obj.id()));
+        } catch (ObjectiveException e) {
+            log.warn("Unable to translate next objective {} on {}: {}",
+                     obj.id(), deviceId, e.getMessage());
+            fail(obj, e.error);
+            return;
+        }
+
+        if (entry.group == null) {
+            // Nothing to write, resolved by the forwarding objectives.
+            nextInstalled(obj, entry);
+            return;
+        }
+
+        flowRuleWriter.addGroup(entry.group).whenComplete((r, e) -> {
+            if (e == null) {
+                nextInstalled(obj, entry);
+            } else {
+                log.warn("Unable to install group of next objective {} on {}: {}",
+                         obj.id(), deviceId, e.getMessage());
+                fail(obj, ObjectiveError.GROUPINSTALLATIONFAILED);
+            }
+        });
+    }
+
+    /**
+     * Returns the next entry resulting from applying the given objective to
+     * the current one, if any.
+     */
+    private NextEntry updatedNext(NextObjective obj, NextEntry current)
+            throws ObjectiveException {
+        final List<TrafficTreatment> treatments;
+        switch (obj.op()) {
+            case ADD:
+            case MODIFY:
+                treatments = ImmutableList.copyOf(obj.next());
+                break;
+            case ADD_TO_EXISTING:
+            case REMOVE_FROM_EXISTING:
+                if (current == null) {
+                    throw new ObjectiveException(ObjectiveError.GROUPMISSING, format(
+                            "next %s not found", obj.id()));
+                }
+                final List<TrafficTreatment> updated = Lists.newArrayList(current.treatments);
+                if (obj.op() == Objective.Operation.ADD_TO_EXISTING) {
+                    obj.next().stream()
+                            .filter(t -> !updated.contains(t))
+                            .forEach(updated::add);
+                } else {
+                    updated.removeAll(obj.next());
+                }
+                treatments = ImmutableList.copyOf(updated);
+                break;
+            default:
+                throw new ObjectiveException(ObjectiveError.UNSUPPORTED, format(
+                        "operation %s not supported", obj.op()));
+        }
+        if (treatments.isEmpty()) {
+            throw new ObjectiveException(ObjectiveError.BADPARAMS, "no treatments");
+        }
+
+        return buildNext(obj.type(), obj.id(), obj.appId(), treatments);
+    }
+
+    /**
+     * Builds the next entry of the given type and treatments, with its
+     * group if any.
+     */
+    private NextEntry buildNext(NextObjective.Type type, int nextId, ApplicationId appId,
+                                List<TrafficTreatment> treatments)
+            throws ObjectiveException {
+        switch (type) {
+            case HASHED:
+                return new NextEntry(type, appId, treatments,
+                                     buildSelectGroup(nextId, appId, treatments),
+                                     selectGroupId(nextId));
+            case SIMPLE:
+                if (setsEthDst(treatments.get(0))) {
+                    // A route with a single next hop.
+                    return new NextEntry(type, appId, treatments,
+                                         buildSelectGroup(nextId, appId, treatments),
+                                         selectGroupId(nextId));
+                }
+                return new NextEntry(type, appId, treatments, null, nextId);
+            case BROADCAST:
+                return new NextEntry(type, appId, treatments,
+                                     buildMulticastGroup(nextId, appId, treatments), nextId);
+            default:
+                throw new ObjectiveException(ObjectiveError.UNSUPPORTED, format(
+                        "next type %s not supported", type));
+        }
+    }
+
+    private GroupDescription buildSelectGroup(int nextId, ApplicationId appId,
+                                              List<TrafficTreatment> treatments)
+            throws ObjectiveException {
+        final List<PiAction> actions = Lists.newArrayList();
+        for (TrafficTreatment treatment : treatments) {
+            actions.add(translate(treatment, ROUTING_V6_TABLE));
+        }
+        return Utils.buildSelectGroup(deviceId, ROUTING_V6_TABLE, ECMP_SELECTOR,
+                                      selectGroupId(nextId), actions, appId);
+    }
+
+    /**
+     * Returns the ID of the ip6_ecmp_selector group of the given next
+     * objective, in the range reserved to the pipeliner, so that it never
+     * collides with groups written by the app components.
+     */
+    private static int selectGroupId(int nextId) throws ObjectiveException {
+        if (nextId <= 0 || nextId >= PIPELINER_GROUP_ID_BIT) {
+            throw new ObjectiveException(ObjectiveError.BADPARAMS, format(
+                    "next ID %s not usable as selector group", nextId));
+        }
+        return PIPELINER_GROUP_ID_BIT | nextId;
+    }
+
+    private GroupDescription buildMulticastGroup(int nextId, ApplicationId appId,
+                                                 List<TrafficTreatment> treatments)
+            throws ObjectiveException {
+        if (nextId <= 0 || nextId > MAX_MULTICAST_GROUP_ID ||
+                RESERVED_GROUP_IDS.contains(nextId)) {
+            throw new ObjectiveException(ObjectiveError.BADPARAMS, format(
+                    "next ID %s not usable as multicast group", nextId));
+        }
+        final Set<PortNumber> ports = Sets.newLinkedHashSet();
+        for (TrafficTreatment treatment : treatments) {
+            for (Instruction inst : treatment.allInstructions()) {
+                if (inst.type() == OUTPUT) {
+                    ports.add(((Instructions.OutputInstruction) inst).port());
+                } else if (inst.type() != L2MODIFICATION) {
+                    throw new ObjectiveException(ObjectiveError.UNSUPPORTED, format(
+                            "instruction %s not supported in broadcast", inst));
+                }
+            }
+        }
+        if (ports.isEmpty()) {
+            throw new ObjectiveException(ObjectiveError.BADPARAMS, "no output ports");
+        }
+        return Utils.buildMulticastGroup(appId, deviceId, nextId, ports);
+    }
+
+    /**
+     * Records the given next objective as installed, and tells the flow
+     * objective service, which can then send the forwarding objectives
+     * waiting for it. The entry is stored with the next, so that it survives
+     * a re-initialization of the pipeliner.
+     */
+    private void nextInstalled(NextObjective obj, NextEntry entry) {
+        synchronized (nexts) {
+            nexts.put(obj.id(), entry);
+        }
+        context.store().putNextGroup(obj.id(), new StoredNextGroup(entry));
+        obj.context().ifPresent(c -> c.onSuccess(obj));
+    }
+
+    /**
+     * Returns the entry of the given next, rebuilt from the flow objective
+     * store if not known to this instance of the pipeliner.
+     *
+     * @param nextId next ID
+     * @return next entry, or null if not found
+     */
+    private NextEntry lookupNext(int nextId) {
+        synchronized (nexts) {
+            final NextEntry entry = nexts.get(nextId);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        final NextGroup stored = context.store().getNextGroup(nextId);
+        final NextEntry entry = stored == null ? null : decodeNext(nextId, stored);
+        if (entry == null) {
+            return null;
+        }
+        synchronized (nexts) {
+            final NextEntry current = nexts.putIfAbsent(nextId, entry);
+            return current != null ? current : entry;
+        }
+    }
+
+    private NextEntry decodeNext(int nextId, NextGroup stored) {
+        try {
+            final List<?> fields = KRYO.deserialize(stored.data());
+            @SuppressWarnings("unchecked")
+            final List<TrafficTreatment> treatments = (List<TrafficTreatment>) fields.get(3);
+            final NextEntry entry = buildNext(
+                    NextObjective.Type.valueOf((String) fields.get(0)), nextId,
+                    (ApplicationId) fields.get(2), ImmutableList.copyOf(treatments));
+            if (entry.groupId != (Integer) fields.get(1)) {
+                log.warn("Not restoring next {} on {}: stored group 0x{} instead of 0x{}",
+                         nextId, deviceId, Integer.toHexString((Integer) fields.get(1)),
+                         Integer.toHexString(entry.groupId));
+                return null;
+            }
+            return entry;
+        } catch (ObjectiveException | RuntimeException e) {
+            log.warn("Unable to restore next {} on {}: {}", nextId, deviceId, e.getMessage());
+            return null;
+        }
+    }
+
+    private void removeNext(NextObjective obj) {
+        final NextEntry entry = lookupNext(obj.id());
+        synchronized (nexts) {
+            nexts.remove(obj.id());
+        }
+        if (entry == null) {
+            fail(obj, ObjectiveError.GROUPMISSING);
+            return;
+        }
+        context.store().removeNextGroup(obj.id());
+        if (entry.group != null) {
+            flowRuleWriter.removeGroup(deviceId, entry.group.appCookie(),
+                                       entry.group.appId());
+        }
+        obj.context().ifPresent(c -> c.onSuccess(obj));
+    }
+
+    private NextEntry getNext(ForwardingObjective obj) throws ObjectiveException {
+        if (obj.nextId() == null) {
+            throw new ObjectiveException(ObjectiveError.BADPARAMS, "no next ID");
+        }
+        final NextEntry next = lookupNext(obj.nextId());
+        if (next == null) {
+            throw new ObjectiveException(ObjectiveError.GROUPMISSING, format(
+                    "next %s not found", obj.nextId()));
+        }
+        return next;
+    }
+
+    private PiAction translate(TrafficTreatment treatment, PiTableId tableId)
+            throws ObjectiveException {
+        try {
+            return interpreter.mapTreatment(treatment, tableId);
+        } catch (PiPipelineInterpreter.PiInterpreterException e) {
+            throw new ObjectiveException(ObjectiveError.UNSUPPORTED, e.getMessage());
+        }
+    }
+
+    private FlowRule buildRule(Objective obj, PiTableId tableId,
+                               TrafficSelector selector, PiTableAction action) {
+        return buildRule(obj, tableId, selector, DefaultTrafficTreatment.builder()
+                .piTableAction(action).build());
+    }
+
+    private FlowRule buildRule(Objective obj, PiTableId tableId,
+                               TrafficSelector selector, TrafficTreatment treatment) {
         final FlowRule.Builder ruleBuilder = DefaultFlowRule.builder()
-                .forTable(PiTableId.of(ACL_TABLE))
+                .forTable(tableId)
                 .forDevice(deviceId)
-                .withSelector(obj.selector())
+                .withSelector(selector)
                 .fromApp(obj.appId())
                 .withPriority(obj.priority())
-                .withTreatment(DefaultTrafficTreatment.builder()
-                                       .piTableAction(cloneToCpuAction).build());
+                .withTreatment(treatment);
 
         if (obj.permanent()) {
             ruleBuilder.makePermanent();
         } else {
             ruleBuilder.makeTemporary(obj.timeout());
         }
+        return ruleBuilder.build();
+    }
 
-        final GroupDescription cloneGroup = Utils.buildCloneGroup(
-                obj.appId(),
-                deviceId,
-                CPU_CLONE_SESSION_ID,
-                // Ports where to clone the packet.
-                // Just controller in this case.
-                Collections.singleton(PortNumber.CONTROLLER));
-
+    /**
+     * Writes the flow rules of the given objective, and completes it when
+     * done. Rules are buffered by the writer with the rules of other
+     * objectives and components, and written to the device with a single
+     * batch.
+     *
+     * @param obj       the objective
+     * @param rules     flow rules to add or remove, depending on the objective
+     * @param onSuccess run before completing the objective successfully
+     * @param onError   run before completing the objective with an error
+     */
+    private void writeRules(Objective obj, Collection<FlowRule> rules,
+                            Runnable onSuccess, Runnable onError) {
+        final FlowRuleOperations.Builder opsBuilder = FlowRuleOperations.builder();
         switch (obj.op()) {
             case ADD:
-                flowRuleService.applyFlowRules(ruleBuilder.build());
-                groupService.addGroup(cloneGroup);
+            case ADD_TO_EXISTING:
+                rules.forEach(opsBuilder::add);
                 break;
             case REMOVE:
-                flowRuleService.removeFlowRules(ruleBuilder.build());
-                groupService.removeGroup(deviceId, cloneGroup.appCookie(), obj.appId());
+            case REMOVE_FROM_EXISTING:
+                rules.forEach(opsBuilder::remove);
                 break;
             default:
                 log.warn("Unknown operation {}", obj.op());
+                fail(obj, ObjectiveError.UNSUPPORTED);
+                return;
         }
 
-        obj.context().ifPresent(c -> c.onSuccess(obj));
+        flowRuleWriter.apply(WRITE_SOURCE, opsBuilder.build(new FlowRuleOperationsContext() {
+            @Override
+            public void onSuccess(FlowRuleOperations ops) {
+                onSuccess.run();
+                obj.context().ifPresent(c -> c.onSuccess(obj));
+            }
+
+            @Override
+            public void onError(FlowRuleOperations ops) {
+                onError.run();
+                fail(obj, ObjectiveError.FLOWINSTALLATIONFAILED);
+            }
+        }));
     }
 
-    @Override
-    public void next(NextObjective obj) {
-        obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
+    /**
+     * Returns true if the given treatment specifies an OUTPUT:CONTROLLER
+     * instruction.
+     */
+    private static boolean isCloneToCpu(TrafficTreatment treatment) {
+        return treatment.allInstructions().stream()
+                .filter(i -> i.type().equals(OUTPUT))
+                .map(i -> (Instructions.OutputInstruction) i)
+                .anyMatch(i -> i.port().equals(PortNumber.CONTROLLER));
+    }
+
+    private static boolean setsEthDst(TrafficTreatment treatment) {
+        return treatment.allInstructions().stream()
+                .filter(i -> i.type() == L2MODIFICATION)
+                .anyMatch(i -> ((L2ModificationInstruction) i).subtype() ==
+                        L2ModificationInstruction.L2SubType.ETH_DST);
+    }
+
+    /**
+     * Records the given ACL rule as a user of the clone session, installing
+     * the session if not installed yet.
+     *
+     * @param rule  ACL rule cloning packets to the CPU
+     * @param appId ID of the app requesting the rule
+     * @return future completed when the session is installed, or
+     *         exceptionally if that fails
+     */
+    private CompletableFuture<Void> acquireCloneSession(FlowRule rule, ApplicationId appId) {
+        synchronized (cloneSessionUsers) {
+            cloneSessionUsers.add(rule.id());
+            if (cloneSession == null || cloneSession.isCompletedExceptionally()) {
+                // First user, or the previous installation failed.
+                cloneSession = flowRuleWriter.addGroup(Utils.buildCloneGroup(
+                        appId,
+                        deviceId,
+                        CPU_CLONE_SESSION_ID,
+                        // Ports where to clone the packet.
+                        // Just controller in this case.
+                        Collections.singleton(PortNumber.CONTROLLER)));
+            }
+            return cloneSession;
+        }
+    }
+
+    /**
+     * Forgets the given ACL rule as a user of the clone session, removing the
+     * session if it was the last one, including the rules found on the
+     * device at initialization.
+     *
+     * @param rule  ACL rule cloning packets to the CPU
+     * @param appId ID of the app requesting the rule
+     */
+    private void releaseCloneSession(FlowRule rule, ApplicationId appId) {
+        final boolean last;
+        synchronized (cloneSessionUsers) {
+            last = cloneSessionUsers.remove(rule.id()) && cloneSessionUsers.isEmpty();
+            if (last) {
+                cloneSession = null;
+            }
+        }
+        if (last) {
+            flowRuleWriter.removeGroup(
+                    deviceId, Utils.buildGroupKey(CPU_CLONE_SESSION_ID), appId);
+        }
+    }
+
+    /**
+     * Forgets the given ACL rule as a user of the clone session, whose
+     * installation failed, so that the next user installs it again.
+     */
+    private void forgetCloneSessionUser(FlowRule rule) {
+        synchronized (cloneSessionUsers) {
+            cloneSessionUsers.remove(rule.id());
+        }
+    }
+
+    private void fail(Objective obj, ObjectiveError error) {
+        obj.context().ifPresent(c -> c.onError(obj, error));
     }
 
     @Override
     public List<String> getNextMappings(NextGroup nextGroup) {
-        // We do not use nextObjectives or groups.
-        return Collections.emptyList();
+        final List<?> fields;
+        try {
+            fields = KRYO.deserialize(nextGroup.data());
+        } catch (RuntimeException e) {
+            return Collections.emptyList();
+        }
+        final NextObjective.Type type = NextObjective.Type.valueOf((String) fields.get(0));
+        final int groupId = (Integer) fields.get(1);
+        @SuppressWarnings("unchecked")
+        final List<TrafficTreatment> treatments = (List<TrafficTreatment>) fields.get(3);
+        final boolean direct = type == NextObjective.Type.SIMPLE &&
+                !setsEthDst(treatments.get(0));
+        final String target = direct ? "direct" : format("group 0x%x", groupId);
+        return treatments.stream()
+                .map(t -> target + " -> " + t)
+                .collect(ImmutableList.toImmutableList());
+    }
+
+    /**
+     * A next objective installed on the device, with its group if any.
+     */
+    private static final class NextEntry {
+
+        private final NextObjective.Type type;
+        private final ApplicationId appId;
+        private final List<TrafficTreatment> treatments;
+        private final GroupDescription group;
+        private final int groupId;
+
+        NextEntry(NextObjective.Type type, ApplicationId appId,
+                  List<TrafficTreatment> treatments, GroupDescription group, int groupId) {
+            this.type = type;
+            this.appId = appId;
+            this.treatments = treatments;
+            this.group = group;
+            this.groupId = groupId;
+        }
+    }
+
+    /**
+     * Next group stored in the flow objective store, holding the type, group
+     * ID, app ID and treatments of the next, from which the entry and its
+     * group are rebuilt.
+     */
+    private static final class StoredNextGroup implements NextGroup {
+
+        private final byte[] data;
+
+        StoredNextGroup(NextEntry entry) {
+            this.data = KRYO.serialize(ImmutableList.of(
+                    entry.type.name(), entry.groupId, entry.appId,
+                    ImmutableList.copyOf(entry.treatments)));
+        }
+
+        @Override
+        public byte[] data() {
+            return data.clone();
+        }
+    }
+
+    /**
+     * Signals that an objective cannot be translated.
+     */
+    private static final class ObjectiveException extends Exception {
+
+        private final ObjectiveError error;
+
+        ObjectiveException(ObjectiveError error, String message) {
+            super(message);
+            this.error = error;
+        }
     }
 }
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.rest;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.onlab.osgi.DefaultServiceDirectory;
+import org.onosproject.rest.AbstractWebResource;
+import org.onosproject.srv6_usid.MetricsReport;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Metrics of the SRv6 app.
+ */
+@Path("metrics")
+public class MetricsWebResource extends AbstractWebResource {
+
+    /**
+     * Gets the metrics of the app, i.e. write latencies per component,
+     * device and table, event-to-write lags per listener, executor statistics
+     * and packet-in/out rates. Durations are in milliseconds.
+     *
+     * @return 200 OK with the metrics report
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getMetrics() {
+        ObjectNode report = MetricsReport.toJson(new DefaultServiceDirectory(), mapper());
+        return ok(report).build();
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.junit.TestUtils;
+import org.onlab.packet.IpPrefix;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultFlowEntry;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+import org.onosproject.net.flow.TableId;
+import org.onosproject.srv6_usid.common.WriteSource;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.onosproject.net.flow.FlowRuleOperation.Type.ADD;
+import static org.onosproject.net.flow.FlowRuleOperation.Type.MODIFY;
+import static org.onosproject.net.flow.FlowRuleOperation.Type.REMOVE;
+import static org.onosproject.srv6_usid.common.RuleTemplates.L2_FIREWALL;
+import static org.onosproject.srv6_usid.common.RuleTemplates.ROUTING_V6;
+import static org.onosproject.srv6_usid.common.RuleTemplates.SRV6_END;
+import static org.onosproject.srv6_usid.common.RuleTemplates.UNICAST;
+import static org.onosproject.srv6_usid.common.RuleTemplates.XCONNECT;
+
+/**
+ * Tests of {@link FlowRuleWriter}, writing to a fake flow rule service.
+ */
+public class FlowRuleWriterTest {
+
+    private static final long TIMEOUT = 5;
+
+    private static final DeviceId DEVICE = DeviceId.deviceId("device:leaf1");
+    private static final ApplicationId APP_ID = new DefaultApplicationId(1, "test");
+    private static final WriteSource SOURCE = WriteSource.of("test");
+
+    private FlowRuleWriter writer;
+    private FakeFlowRuleService flowRuleService;
+
+    @Before
+    public void setUp() throws Exception {
+        writer = new FlowRuleWriter();
+        flowRuleService = new FakeFlowRuleService();
+        TestUtils.setField(writer, "flowRuleService", flowRuleService);
+        TestUtils.setField(writer, "metrics", new MetricsComponent());
+        setBuffering(0, 500);
+    }
+
+    private void setBuffering(int delay, int size) throws Exception {
+        TestUtils.setField(writer, "writeBatchDelay", delay);
+        TestUtils.setField(writer, "writeBatchSize", size);
+    }
+
+    /**
+     * A remove cancels the add of the same flow still buffered, while the
+     * remove of a flow already written is sent.
+     */
+    @Test
+    public void testAddRemoveCancellation() throws Exception {
+        // Written only once two operations are buffered.
+        setBuffering((int) TimeUnit.SECONDS.toMillis(60), 2);
+        final FlowRule cancelled = rule(UNICAST.tableId(), 1, 1);
+        final Callback callback = new Callback();
+        writer.apply(SOURCE, FlowRuleOperations.builder().add(cancelled).build(callback));
+        writer.apply(SOURCE, FlowRuleOperations.builder().remove(cancelled).build());
+        assertNull(flowRuleService.batches.poll());
+
+        final FlowRule first = rule(UNICAST.tableId(), 2, 1);
+        final FlowRule second = rule(UNICAST.tableId(), 3, 1);
+        writer.applyFlowRules(SOURCE, first, second);
+        assertOps(flatten(nextBatch()), op(ADD, first), op(ADD, second));
+        assertEquals("Callback of the cancelled add", 1, callback.successes.get());
+
+        writer.apply(SOURCE, FlowRuleOperations.builder()
+                .remove(first)
+                .add(rule(UNICAST.tableId(), 4, 1))
+                .build());
+        assertTrue(flatten(nextBatch()).stream().anyMatch(
+                op -> op.type() == REMOVE && op.rule().id().equals(first.id())));
+    }
+
+    /**
+     * Removes are written first, from the highest table level down, then
+     * adds from the lowest level up, one stage per level.
+     */
+    @Test
+    public void testStagingByTableLevel() throws Exception {
+        final FlowRule firewall = rule(L2_FIREWALL.tableId(), 1, 1);
+        final FlowRule xconnect = rule(XCONNECT.tableId(), 2, 1);
+        final FlowRule unicast = rule(UNICAST.tableId(), 3, 1);
+        final FlowRule localSid = rule(SRV6_END.tableId(), 4, 1);
+        final FlowRule route = rule(ROUTING_V6.tableId(), 5, 1);
+        writer.apply(SOURCE, FlowRuleOperations.builder()
+                .add(firewall)
+                .add(xconnect)
+                .add(unicast)
+                .remove(localSid)
+                .remove(route)
+                .build());
+
+        final List<Set<FlowRuleOperation>> stages = nextBatch().stages();
+        assertEquals(5, stages.size());
+        assertOps(stages.get(0), op(REMOVE, localSid));
+        assertOps(stages.get(1), op(REMOVE, route));
+        assertOps(stages.get(2), op(ADD, unicast));
+        assertOps(stages.get(3), op(ADD, xconnect));
+        assertOps(stages.get(4), op(ADD, firewall));
+    }
+
+    /**
+     * Adding a flow already written is skipped if its content is the same,
+     * and sent as a modify otherwise.
+     */
+    @Test
+    public void testAddToModify() throws Exception {
+        final FlowRule flow = rule(ROUTING_V6.tableId(), 1, 1);
+        writer.applyFlowRules(SOURCE, flow);
+        assertOps(flatten(nextBatch()), op(ADD, flow));
+
+        final Callback callback = new Callback();
+        writer.apply(SOURCE, FlowRuleOperations.builder().add(flow).build(callback));
+        assertEquals(1, callback.successes.get());
+        assertNull(flowRuleService.batches.poll());
+
+        final FlowRule changed = rule(ROUTING_V6.tableId(), 1, 2);
+        assertEquals(flow.id(), changed.id());
+        writer.applyFlowRules(SOURCE, changed);
+        assertOps(flatten(nextBatch()), op(MODIFY, changed));
+    }
+
+    /**
+     * A flow found on the device at warm restart is adopted instead of being
+     * written again, unless its content changed.
+     */
+    @Test
+    public void testAdoptableSkip() throws Exception {
+        final FlowRule flow = rule(UNICAST.tableId(), 1, 1);
+        final FlowRule other = rule(UNICAST.tableId(), 2, 1);
+        final Map<DeviceId, Map<FlowId, FlowEntry>> adoptable =
+                TestUtils.getField(writer, "adoptable");
+        final Map<FlowId, FlowEntry> entries = Maps.newConcurrentMap();
+        entries.put(flow.id(), new DefaultFlowEntry(flow, FlowEntry.FlowEntryState.ADDED, 0, 0, 0));
+        entries.put(other.id(), new DefaultFlowEntry(other, FlowEntry.FlowEntryState.ADDED, 0, 0, 0));
+        adoptable.put(DEVICE, entries);
+
+        final Callback callback = new Callback();
+        writer.apply(SOURCE, FlowRuleOperations.builder().add(flow).build(callback));
+        assertEquals(1, callback.successes.get());
+        assertNull(flowRuleService.batches.poll());
+        assertEquals("Adopted flow still a candidate for removal",
+                     Set.of(other.id()), entries.keySet());
+
+        final FlowRule changed = rule(UNICAST.tableId(), 2, 2);
+        writer.applyFlowRules(SOURCE, changed);
+        assertOps(flatten(nextBatch()), op(ADD, changed));
+    }
+
+    /**
+     * A batch over the write rate is delayed, and written once the rate
+     * allows it.
+     */
+    @Test
+    public void testThrottledRetry() throws Exception {
+        // The first batch always goes through, but uses one second of the
+        // initial rate.
+        final List<FlowRule> flows = Lists.newArrayList();
+        for (int i = 0; i < AppConstants.INITIAL_WRITE_RATE; i++) {
+            flows.add(rule(ROUTING_V6.tableId(), i, 1));
+        }
+        writer.applyFlowRules(SOURCE, flows);
+        assertEquals(flows.size(), flatten(nextBatch()).size());
+
+        final FlowRule throttled = rule(ROUTING_V6.tableId(), flows.size(), 1);
+        final Callback callback = new Callback();
+        writer.apply(SOURCE, FlowRuleOperations.builder().add(throttled).build(callback));
+        assertNull("Written over the rate", flowRuleService.batches.poll());
+        assertEquals(0, callback.successes.get());
+        assertTrue(writer.getWriteStats().get(DEVICE).throttled() > 0);
+
+        assertOps(flatten(nextBatch()), op(ADD, throttled));
+        assertEquals(1, callback.successes.get());
+        assertEquals(0, callback.errors.get());
+    }
+
+    private FlowRuleOperations nextBatch() throws InterruptedException {
+        final FlowRuleOperations batch = flowRuleService.batches.poll(TIMEOUT, TimeUnit.SECONDS);
+        assertNotNull("No batch written", batch);
+        return batch;
+    }
+
+    private static List<FlowRuleOperation> flatten(FlowRuleOperations batch) {
+        return batch.stages().stream()
+                .flatMap(Set::stream)
+                .collect(Collectors.toList());
+    }
+
+    private static FlowRuleOperation op(FlowRuleOperation.Type type, FlowRule rule) {
+        return new FlowRuleOperation(rule, type);
+    }
+
+    // Compares the type, flow ID and treatment of the operations, in order.
+    private static void assertOps(Collection<FlowRuleOperation> actual,
+                                  FlowRuleOperation... expected) {
+        assertEquals(describe(Arrays.asList(expected)), describe(actual));
+    }
+
+    private static List<String> describe(Collection<FlowRuleOperation> ops) {
+        return ops.stream()
+                .map(op -> op.type() + " " + op.rule().id() + " " + op.rule().treatment())
+                .collect(Collectors.toList());
+    }
+
+    // Flows with the same table and match have the same ID, whatever the
+    // output port.
+    private static FlowRule rule(TableId table, int match, int port) {
+        return DefaultFlowRule.builder()
+                .forDevice(DEVICE)
+                .forTable(table)
+                .fromApp(APP_ID)
+                .withPriority(10)
+                .makePermanent()
+                .withSelector(DefaultTrafficSelector.builder()
+                                      .matchIPv6Dst(IpPrefix.valueOf(
+                                              String.format("2001:%x::/64", match)))
+                                      .build())
+                .withTreatment(DefaultTrafficTreatment.builder()
+                                       .setOutput(PortNumber.portNumber(port))
+                                       .build())
+                .build();
+    }
+
+    /**
+     * Flow rule service recording the batches written, which succeed.
+     */
+    private static class FakeFlowRuleService extends FlowRuleServiceAdapter {
+
+        private final BlockingQueue<FlowRuleOperations> batches = new LinkedBlockingQueue<>();
+
+        @Override
+        public void apply(FlowRuleOperations ops) {
+            batches.add(ops);
+            ops.callback().onSuccess(ops);
+        }
+    }
+
+    /**
+     * Batch callback counting its completions.
+     */
+    private static class Callback implements FlowRuleOperationsContext {
+
+        private final AtomicInteger successes = new AtomicInteger();
+        private final AtomicInteger errors = new AtomicInteger();
+
+        @Override
+        public void onSuccess(FlowRuleOperations ops) {
+            successes.incrementAndGet();
+        }
+
+        @Override
+        public void onError(FlowRuleOperations ops) {
+            errors.incrementAndGet();
+        }
+    }
+}
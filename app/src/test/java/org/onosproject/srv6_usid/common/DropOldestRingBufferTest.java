@@ -0,0 +1,180 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.common;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link DropOldestRingBuffer}.
+ */
+public class DropOldestRingBufferTest {
+
+    private static final long TIMEOUT = 30;
+
+    // Elements offered by each producer, encoded as producer * STRIDE + i.
+    private static final long STRIDE = 1_000_000_000L;
+
+    /**
+     * Elements are drained in the order they were offered.
+     */
+    @Test
+    public void testFifo() {
+        final DropOldestRingBuffer<Integer> ring = new DropOldestRingBuffer<>(5);
+        assertEquals(8, ring.capacity());
+        assertTrue(ring.isEmpty());
+
+        for (int i = 0; i < 6; i++) {
+            assertTrue(ring.offer(i));
+        }
+        assertEquals(6, ring.size());
+
+        final List<Integer> out = Lists.newArrayList();
+        assertEquals(4, ring.drain(out, 4));
+        assertEquals(Lists.newArrayList(0, 1, 2, 3), out);
+        assertEquals(2, ring.drain(out, 10));
+        assertEquals(Lists.newArrayList(0, 1, 2, 3, 4, 5), out);
+        assertTrue(ring.isEmpty());
+        assertEquals(0, ring.drain(out, 10));
+        assertEquals(6, ring.offered());
+        assertEquals(0, ring.dropped());
+    }
+
+    /**
+     * When full, the oldest elements are overwritten and counted as dropped.
+     */
+    @Test
+    public void testDropOldest() {
+        final DropOldestRingBuffer<Integer> ring = new DropOldestRingBuffer<>(8);
+        for (int i = 0; i < 20; i++) {
+            assertEquals("Wrong outcome for " + i, i < 8, ring.offer(i));
+        }
+        assertEquals(8, ring.size());
+
+        final List<Integer> out = Lists.newArrayList();
+        assertEquals(8, ring.drain(out, 100));
+        assertEquals(Lists.newArrayList(12, 13, 14, 15, 16, 17, 18, 19), out);
+        assertEquals(12, ring.dropped());
+        assertEquals(20, ring.offered());
+        assertTrue(ring.isEmpty());
+    }
+
+    /**
+     * With room for all elements, concurrent producers never lose any.
+     */
+    @Test
+    public void testConcurrentProducersNoDrops() throws Exception {
+        final int producers = 4;
+        final int perProducer = 50_000;
+        final DropOldestRingBuffer<Long> ring =
+                new DropOldestRingBuffer<>(producers * perProducer);
+        final List<Long> received = runProducers(ring, producers, perProducer);
+
+        assertEquals(producers * perProducer, received.size());
+        assertEquals(0, ring.dropped());
+        assertInOrder(received, producers);
+    }
+
+    /**
+     * With a small buffer and concurrent producers, elements are dropped but
+     * never duplicated nor reordered, and every element offered is either
+     * received or counted as dropped.
+     */
+    @Test
+    public void testConcurrentProducersWithDrops() throws Exception {
+        final int producers = 4;
+        final int perProducer = 200_000;
+        final DropOldestRingBuffer<Long> ring = new DropOldestRingBuffer<>(64);
+        final List<Long> received = runProducers(ring, producers, perProducer);
+
+        assertEquals(producers * perProducer, ring.offered());
+        assertEquals(ring.offered(), received.size() + ring.dropped());
+        assertTrue("Nothing dropped, not enough contention", ring.dropped() > 0);
+        assertInOrder(received, producers);
+    }
+
+    /**
+     * Runs the given number of producers offering elements concurrently,
+     * while the calling thread drains them, until all elements are offered
+     * and the buffer is empty.
+     */
+    private static List<Long> runProducers(DropOldestRingBuffer<Long> ring,
+                                           int producers, int perProducer)
+            throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger(producers);
+        final List<Thread> threads = Lists.newArrayList();
+        for (int p = 0; p < producers; p++) {
+            final long base = p * STRIDE;
+            final Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int i = 0; i < perProducer; i++) {
+                    ring.offer(base + i);
+                }
+                running.decrementAndGet();
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        final List<Long> received = Lists.newArrayList();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+        start.countDown();
+        while (running.get() > 0 || !ring.isEmpty()) {
+            assertTrue("Consumer stuck, " + ring.size() + " elements left",
+                       System.nanoTime() < deadline);
+            if (ring.drain(received, 32) == 0) {
+                Thread.yield();
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, ring.drain(received, 1));
+        return received;
+    }
+
+    /**
+     * Checks that the elements of each producer were received at most once
+     * and in the order they were offered.
+     */
+    private static void assertInOrder(List<Long> received, int producers) {
+        final long[] last = new long[producers];
+        Arrays.fill(last, -1);
+        for (long element : received) {
+            final int producer = (int) (element / STRIDE);
+            final long i = element % STRIDE;
+            assertTrue("Element " + i + " of producer " + producer + " after " +
+                               last[producer], i > last[producer]);
+            last[producer] = i;
+        }
+    }
+}
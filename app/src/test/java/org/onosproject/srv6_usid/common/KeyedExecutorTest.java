@@ -0,0 +1,257 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.common;
+
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link KeyedExecutor}.
+ */
+public class KeyedExecutorTest {
+
+    private static final long TIMEOUT = 5;
+
+    private KeyedExecutor<String> executor;
+
+    @After
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdown(TIMEOUT, TimeUnit.SECONDS);
+        }
+    }
+
+    private KeyedExecutor<String> newExecutor(int poolSize) {
+        executor = new KeyedExecutor<>(poolSize, Executors.defaultThreadFactory());
+        return executor;
+    }
+
+    /**
+     * Keys run by the priority of their most urgent task, and each key runs
+     * its tasks in submission order, whatever their priority.
+     */
+    @Test
+    public void testPriorityOrdering() throws Exception {
+        newExecutor(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(6);
+        final List<String> order = Collections.synchronizedList(Lists.newArrayList());
+
+        // Keep the only thread busy while submitting.
+        executor.execute("blocker", TaskPriority.DEVICE_SETUP, () -> await(release));
+
+        executor.execute("a", TaskPriority.BULK, record(order, "a-bulk", done));
+        executor.execute("b", TaskPriority.TOPOLOGY_CHANGE, record(order, "b-topo", done));
+        executor.execute("c", TaskPriority.DEVICE_SETUP, record(order, "c-setup", done));
+        executor.execute("a", TaskPriority.DEVICE_SETUP, record(order, "a-setup", done));
+        executor.execute("b", TaskPriority.BULK, record(order, "b-bulk", done));
+        executor.execute("c", TaskPriority.TOPOLOGY_CHANGE, record(order, "c-topo", done));
+
+        release.countDown();
+        assertTrue("Tasks not completed", done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(Lists.newArrayList("c-setup", "a-bulk", "a-setup",
+                                        "b-topo", "c-topo", "b-bulk"),
+                     order);
+    }
+
+    /**
+     * Among keys with tasks of the same priority, the one with the earliest
+     * deadline runs first, while tasks of the same key keep their order.
+     */
+    @Test
+    public void testDeadlineOrdering() throws Exception {
+        newExecutor(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(5);
+        final List<String> order = Collections.synchronizedList(Lists.newArrayList());
+
+        executor.execute("blocker", TaskPriority.DEVICE_SETUP, () -> await(release));
+
+        executor.execute("a", TaskPriority.TOPOLOGY_CHANGE, record(order, "a-none", done));
+        executor.execute("b", TaskPriority.TOPOLOGY_CHANGE, 10, TimeUnit.SECONDS,
+                         record(order, "b-late", done));
+        executor.execute("c", TaskPriority.TOPOLOGY_CHANGE, 1, TimeUnit.SECONDS,
+                         record(order, "c-early", done));
+        executor.execute("b", TaskPriority.TOPOLOGY_CHANGE, record(order, "b-none", done));
+        executor.execute("b", TaskPriority.TOPOLOGY_CHANGE, 1, TimeUnit.SECONDS,
+                         record(order, "b-early", done));
+
+        release.countDown();
+        assertTrue("Tasks not completed", done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(Lists.newArrayList("c-early", "b-late", "b-none", "b-early", "a-none"),
+                     order);
+    }
+
+    /**
+     * Tasks of the same key never run concurrently and run in submission
+     * order, while tasks of different keys run in parallel.
+     */
+    @Test
+    public void testPerKeySerialisation() throws Exception {
+        final int keys = 4;
+        final int tasksPerKey = 200;
+        newExecutor(keys);
+        final CountDownLatch done = new CountDownLatch(keys * tasksPerKey);
+        final Map<String, AtomicInteger> running = new ConcurrentHashMap<>();
+        final Map<String, List<Integer>> order = new ConcurrentHashMap<>();
+        final AtomicInteger overlaps = new AtomicInteger();
+
+        for (int i = 0; i < tasksPerKey; i++) {
+            for (int k = 0; k < keys; k++) {
+                final String key = "key" + k;
+                final int seq = i;
+                running.putIfAbsent(key, new AtomicInteger());
+                order.putIfAbsent(key, Collections.synchronizedList(Lists.newArrayList()));
+                executor.execute(key, () -> {
+                    if (running.get(key).incrementAndGet() > 1) {
+                        overlaps.incrementAndGet();
+                    }
+                    order.get(key).add(seq);
+                    Thread.yield();
+                    running.get(key).decrementAndGet();
+                    done.countDown();
+                });
+            }
+        }
+
+        assertTrue("Tasks not completed", done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals("Tasks of the same key overlapped", 0, overlaps.get());
+        order.forEach((key, seqs) -> {
+            for (int i = 0; i < tasksPerKey; i++) {
+                assertEquals("Wrong order for " + key, i, (int) seqs.get(i));
+            }
+        });
+
+        // Two keys must be able to run at the same time.
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final CountDownLatch met = new CountDownLatch(2);
+        final Runnable meet = () -> {
+            try {
+                barrier.await(TIMEOUT, TimeUnit.SECONDS);
+                met.countDown();
+            } catch (Exception e) {
+                // Left to the assertion below.
+            }
+        };
+        executor.execute("x", meet);
+        executor.execute("y", meet);
+        assertTrue("Different keys did not run in parallel",
+                   met.await(TIMEOUT, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Bulk tasks never take the last thread of the pool, so that urgent
+     * tasks can run while bulk work is queued.
+     */
+    @Test
+    public void testBulkThreadCap() throws Exception {
+        final int poolSize = 3;
+        final int bulkKeys = 6;
+        newExecutor(poolSize);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch bulkDone = new CountDownLatch(bulkKeys);
+        final AtomicInteger bulkRunning = new AtomicInteger();
+        final AtomicInteger maxBulkRunning = new AtomicInteger();
+
+        for (int k = 0; k < bulkKeys; k++) {
+            executor.execute("bulk" + k, TaskPriority.BULK, () -> {
+                maxBulkRunning.accumulateAndGet(bulkRunning.incrementAndGet(), Math::max);
+                await(release);
+                bulkRunning.decrementAndGet();
+                bulkDone.countDown();
+            });
+        }
+
+        // Wait for the bulk tasks to take the threads they are allowed to.
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+        while (bulkRunning.get() < poolSize - 1 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(100);
+        assertEquals(poolSize - 1, bulkRunning.get());
+
+        final CountDownLatch urgentDone = new CountDownLatch(1);
+        executor.execute("urgent", TaskPriority.DEVICE_SETUP, urgentDone::countDown);
+        assertTrue("Urgent task starved by bulk work",
+                   urgentDone.await(TIMEOUT, TimeUnit.SECONDS));
+
+        release.countDown();
+        assertTrue("Bulk tasks not completed", bulkDone.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(poolSize - 1, maxBulkRunning.get());
+    }
+
+    /**
+     * Growing the pool at runtime raises the bulk cap accordingly.
+     */
+    @Test
+    public void testPoolResize() throws Exception {
+        newExecutor(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger bulkRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(4);
+
+        for (int k = 0; k < 4; k++) {
+            executor.execute("bulk" + k, TaskPriority.BULK, () -> {
+                bulkRunning.incrementAndGet();
+                await(release);
+                done.countDown();
+            });
+        }
+        Thread.sleep(100);
+        assertEquals(1, bulkRunning.get());
+
+        executor.setPoolSize(4);
+        assertEquals(4, executor.poolSize());
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+        while (bulkRunning.get() < 3 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(3, bulkRunning.get());
+
+        release.countDown();
+        assertTrue("Tasks not completed", done.await(TIMEOUT, TimeUnit.SECONDS));
+    }
+
+    private static Runnable record(List<String> order, String name, CountDownLatch done) {
+        return () -> {
+            order.add(name);
+            done.countDown();
+        };
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.common;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onosproject.net.DeviceId;
+import org.onosproject.srv6_usid.common.NorthboundJournal.Kind;
+import org.onosproject.srv6_usid.common.NorthboundJournal.Op;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link NorthboundJournal}.
+ */
+public class NorthboundJournalTest {
+
+    // Smallest capacity allowed, one record of the maximum size.
+    private static final int CAPACITY = 16 + 64 * 1024;
+    // Magic, version and generation.
+    private static final int HEADER_SIZE = 16;
+    // Length and CRC.
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final DeviceId DEVICE_1 = DeviceId.deviceId("device:leaf1");
+    private static final DeviceId DEVICE_2 = DeviceId.deviceId("device:leaf2");
+
+    private static final Op POLICY_1 = Op.of(Kind.SRV6_POLICY, DEVICE_1, "2001:db8::1", 128, "fcbb:bb00:2::");
+    private static final Op POLICY_2 = Op.of(Kind.SRV6_POLICY, DEVICE_1, "2001:db8::2", 128, "fcbb:bb00:3::");
+    private static final Op ROUTE_1 = Op.of(Kind.ROUTE, DEVICE_1, "2001:1::", 64, "00:00:00:00:00:01");
+    private static final Op ROUTE_1_BIS = Op.of(Kind.ROUTE, DEVICE_1, "2001:1::", 64, "00:00:00:00:00:02");
+    private static final Op ROUTE_2 = Op.of(Kind.ROUTE, DEVICE_2, "2001:2::", 64, "00:00:00:00:00:03");
+    private static final Op CLEAR_1 = Op.of(Kind.CLEAR_SRV6_POLICIES, DEVICE_1);
+
+    private Path dir;
+    private NorthboundJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("journal");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private NorthboundJournal reopen() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+        journal = NorthboundJournal.open(dir, CAPACITY);
+        return journal;
+    }
+
+    // Position after the last record, from the usage of the journal.
+    private int position() {
+        return HEADER_SIZE + (int) Math.round(journal.usage() * (CAPACITY - HEADER_SIZE));
+    }
+
+    private void writeJournal(int position, byte[] bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(dir.resolve(NorthboundJournal.JOURNAL_FILE), WRITE)) {
+            channel.write(ByteBuffer.wrap(bytes), position);
+        }
+    }
+
+    private byte[] readJournal() throws IOException {
+        return Files.readAllBytes(dir.resolve(NorthboundJournal.JOURNAL_FILE));
+    }
+
+    /**
+     * Operations are recovered on reopen, the latest operation on a target
+     * replacing the previous ones.
+     */
+    @Test
+    public void testRecover() throws IOException {
+        reopen();
+        journal.append(ROUTE_1);
+        journal.append(POLICY_1);
+        journal.append(ROUTE_2);
+        journal.append(ROUTE_1_BIS);
+        assertEquals(3, journal.size());
+
+        reopen();
+        assertEquals(0, journal.generation());
+        assertEquals(3, journal.size());
+        assertEquals(ImmutableList.of(ROUTE_1_BIS, POLICY_1), journal.operations(DEVICE_1));
+        assertEquals(ImmutableList.of(ROUTE_2), journal.operations(DEVICE_2));
+    }
+
+    /**
+     * Clearing the SRv6 policies of a device removes only those, and is
+     * replayed in order on reopen.
+     */
+    @Test
+    public void testClearPolicies() throws IOException {
+        reopen();
+        journal.append(POLICY_1);
+        journal.append(ROUTE_1);
+        journal.append(ROUTE_2);
+        journal.append(CLEAR_1);
+        assertEquals(ImmutableList.of(ROUTE_1), journal.operations(DEVICE_1));
+        assertEquals(2, journal.size());
+
+        journal.append(POLICY_2);
+        reopen();
+        assertEquals(ImmutableList.of(ROUTE_1, POLICY_2), journal.operations(DEVICE_1));
+        assertEquals(ImmutableList.of(ROUTE_2), journal.operations(DEVICE_2));
+        assertEquals(3, journal.size());
+
+        // Without any policy, the device goes away with its last operation.
+        journal.append(Op.of(Kind.CLEAR_SRV6_POLICIES, DEVICE_2));
+        assertEquals(ImmutableList.of(ROUTE_2), journal.operations(DEVICE_2));
+        journal.append(CLEAR_1);
+        assertEquals(ImmutableList.of(ROUTE_1), journal.operations(DEVICE_1));
+        assertEquals(2, journal.size());
+    }
+
+    /**
+     * A record torn by a crash ends the journal, and what is left of it is
+     * cleared so that later records are recovered.
+     */
+    @Test
+    public void testTornRecord() throws IOException {
+        reopen();
+        journal.append(ROUTE_1);
+        final int torn = position();
+        journal.append(POLICY_1);
+        final int end = position();
+        journal.append(ROUTE_2);
+
+        // Payload of the second record half written, the third one intact.
+        writeJournal(torn + RECORD_HEADER_SIZE, new byte[(end - torn - RECORD_HEADER_SIZE) / 2]);
+        reopen();
+        assertEquals(ImmutableList.of(ROUTE_1), journal.operations(DEVICE_1));
+        assertEquals(ImmutableList.of(), journal.operations(DEVICE_2));
+        assertEquals(torn, position());
+
+        // The leftover of the torn and following records is zeroed.
+        final byte[] bytes = readJournal();
+        for (int i = torn; i < bytes.length; i++) {
+            assertEquals("Byte " + i + " not cleared", 0, bytes[i]);
+        }
+
+        journal.append(POLICY_2);
+        reopen();
+        assertEquals(ImmutableList.of(ROUTE_1, POLICY_2), journal.operations(DEVICE_1));
+    }
+
+    /**
+     * A record whose length was not written reads as the end of the journal.
+     */
+    @Test
+    public void testMissingLength() throws IOException {
+        reopen();
+        journal.append(ROUTE_1);
+        final int torn = position();
+        journal.append(POLICY_1);
+
+        writeJournal(torn, new byte[4]);
+        reopen();
+        assertEquals(ImmutableList.of(ROUTE_1), journal.operations(DEVICE_1));
+        assertEquals(1, journal.size());
+    }
+
+    /**
+     * Compaction moves the operations to a new snapshot of the next
+     * generation and clears the journal.
+     */
+    @Test
+    public void testCompact() throws IOException {
+        reopen();
+        journal.append(ROUTE_1);
+        journal.append(POLICY_1);
+        journal.compact();
+        assertEquals(1, journal.generation());
+        assertEquals(0, journal.usage(), 0);
+        assertTrue(Files.exists(dir.resolve(NorthboundJournal.SNAPSHOT_FILE)));
+
+        journal.append(ROUTE_1_BIS);
+        journal.append(CLEAR_1);
+        reopen();
+        assertEquals(1, journal.generation());
+        assertEquals(ImmutableList.of(ROUTE_1_BIS), journal.operations(DEVICE_1));
+
+        journal.compact();
+        reopen();
+        assertEquals(2, journal.generation());
+        assertEquals(0, journal.usage(), 0);
+        assertEquals(ImmutableList.of(ROUTE_1_BIS), journal.operations(DEVICE_1));
+    }
+
+    /**
+     * A full journal is compacted on append.
+     */
+    @Test
+    public void testCompactWhenFull() throws IOException {
+        reopen();
+        int i = 0;
+        while (journal.generation() == 0) {
+            journal.append(Op.of(Kind.ROUTE, DEVICE_1, "2001:1::", 64, i++));
+        }
+        final Op last = Op.of(Kind.ROUTE, DEVICE_1, "2001:1::", 64, i - 1);
+        assertEquals(ImmutableList.of(last), journal.operations(DEVICE_1));
+
+        reopen();
+        assertEquals(1, journal.generation());
+        assertEquals(ImmutableList.of(last), journal.operations(DEVICE_1));
+    }
+
+    /**
+     * Records of a journal older than the snapshot, left by a compaction
+     * interrupted after the snapshot was written, are ignored and cleared.
+     */
+    @Test
+    public void testInterruptedCompaction() throws IOException {
+        reopen();
+        journal.append(POLICY_1);
+        journal.append(CLEAR_1);
+        journal.append(ROUTE_1);
+        journal.force();
+        final byte[] before = readJournal();
+        journal.compact();
+        journal.close();
+        journal = null;
+
+        // Journal as before the compaction, with the snapshot in place.
+        writeJournal(0, before);
+        reopen();
+        assertEquals(1, journal.generation());
+        assertEquals(0, journal.usage(), 0);
+        assertEquals(ImmutableList.of(ROUTE_1), journal.operations(DEVICE_1));
+
+        journal.append(POLICY_2);
+        reopen();
+        assertEquals(1, journal.generation());
+        assertEquals(ImmutableList.of(ROUTE_1, POLICY_2), journal.operations(DEVICE_1));
+    }
+
+    /**
+     * Records of a journal newer than the snapshot are applied, keeping the
+     * generation of the journal.
+     */
+    @Test
+    public void testSnapshotOlderThanJournal() throws IOException {
+        reopen();
+        journal.append(ROUTE_1);
+        journal.compact();
+        journal.append(POLICY_1);
+        journal.close();
+        journal = null;
+
+        Files.delete(dir.resolve(NorthboundJournal.SNAPSHOT_FILE));
+        reopen();
+        assertEquals(1, journal.generation());
+        assertEquals(ImmutableList.of(POLICY_1), journal.operations(DEVICE_1));
+
+        journal.compact();
+        reopen();
+        assertEquals(2, journal.generation());
+        assertEquals(ImmutableList.of(POLICY_1), journal.operations(DEVICE_1));
+    }
+}
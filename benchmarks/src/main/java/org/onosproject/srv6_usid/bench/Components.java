@@ -0,0 +1,145 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.bench;
+
+import org.osgi.service.component.ComponentContext;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+/**
+ * Utilities to run app components outside of OSGi, i.e. to bind services
+ * and call activate and deactivate as the Karaf runtime would.
+ */
+public final class Components {
+
+    // Hide default constructor.
+    private Components() {
+    }
+
+    /**
+     * Binds the given service to all the fields of the given component that
+     * can hold it, as for fields annotated with @Reference.
+     *
+     * @param component app component
+     * @param service   service instance
+     * @param <T>       type of the component
+     * @return the component
+     * @throws IllegalArgumentException if no field can hold the service
+     */
+    public static <T> T bind(T component, Object service) {
+        boolean bound = false;
+        for (Class<?> c = component.getClass(); c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                final int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers) ||
+                        field.getType() == Object.class ||
+                        !field.getType().isInstance(service)) {
+                    continue;
+                }
+                field.setAccessible(true);
+                try {
+                    field.set(component, service);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+                bound = true;
+            }
+        }
+        if (!bound) {
+            throw new IllegalArgumentException(String.format(
+                    "No field of %s can hold %s", component.getClass().getSimpleName(),
+                    service.getClass().getSimpleName()));
+        }
+        return component;
+    }
+
+    /**
+     * Calls the activate method of the given component, with the default
+     * values of its component properties.
+     *
+     * @param component app component
+     * @param <T>       type of the component
+     * @return the component
+     */
+    public static <T> T activate(T component) {
+        return activate(component, new Hashtable<>());
+    }
+
+    /**
+     * Calls the activate method of the given component, with the given
+     * component properties. Properties not given take their default value.
+     *
+     * @param component  app component
+     * @param properties component properties
+     * @param <T>        type of the component
+     * @return the component
+     */
+    public static <T> T activate(T component, Dictionary<String, Object> properties) {
+        invoke(component, "activate", properties);
+        return component;
+    }
+
+    /**
+     * Calls the deactivate method of the given component.
+     *
+     * @param component app component
+     */
+    public static void deactivate(Object component) {
+        invoke(component, "deactivate", new Hashtable<>());
+    }
+
+    private static void invoke(Object component, String name,
+                               Dictionary<String, Object> properties) {
+        try {
+            Method method;
+            Object[] args;
+            try {
+                method = component.getClass().getDeclaredMethod(name, ComponentContext.class);
+                args = new Object[]{context(properties)};
+            } catch (NoSuchMethodException e) {
+                method = component.getClass().getDeclaredMethod(name);
+                args = new Object[0];
+            }
+            method.setAccessible(true);
+            method.invoke(component, args);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ComponentContext context(Dictionary<String, Object> properties) {
+        return (ComponentContext) Proxy.newProxyInstance(
+                ComponentContext.class.getClassLoader(), new Class<?>[]{ComponentContext.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("getProperties")) {
+                        return properties;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.bench;
+
+import com.google.common.collect.ImmutableList;
+import org.onlab.packet.ChassisId;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.ICMP6;
+import org.onlab.packet.IPv6;
+import org.onlab.packet.Ip6Address;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.ONOSLLDP;
+import org.onlab.packet.ndp.NeighborDiscoveryOptions;
+import org.onlab.packet.ndp.NeighborSolicitation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Ethernet frames punted to the controller, either built here or read from
+ * the capture files of the test directory.
+ */
+public final class Frames {
+
+    /**
+     * System property with the directory of the capture files, relative to
+     * the working directory, "test" by default.
+     */
+    public static final String PCAP_DIR_PROPERTY = "srv6_usid.bench.pcapDir";
+
+    private static final MacAddress HOST_MAC = MacAddress.valueOf("00:00:00:00:00:1a");
+    private static final Ip6Address HOST_IP = Ip6Address.valueOf("2001:1:1::a");
+    private static final Ip6Address TARGET_IP = Ip6Address.valueOf("2001:1:1::ff");
+
+    private static final int PCAP_HEADER_LENGTH = 24;
+    private static final int PCAP_RECORD_HEADER_LENGTH = 16;
+    private static final int PCAP_MAGIC = 0xa1b2c3d4;
+
+    /**
+     * Kinds of frames.
+     */
+    public enum Kind {
+        /**
+         * NDP Neighbor Solicitation from a host.
+         */
+        NDP_NS,
+        /**
+         * ONOS link discovery probe.
+         */
+        LLDP,
+        /**
+         * SRv6 packet to a uDX6 SID, from ipv6_test_decap.pcap.
+         */
+        SRV6_DECAP,
+        /**
+         * IPv4 packet to encapsulate, from ipv4_test_encap_2sid.pcap.
+         */
+        IPV4_ENCAP
+    }
+
+    // Hide default constructor.
+    private Frames() {
+    }
+
+    /**
+     * Returns a frame of the given kind.
+     *
+     * @param kind kind of frame
+     * @return frame bytes
+     * @throws IOException if the capture file cannot be read
+     */
+    public static byte[] of(Kind kind) throws IOException {
+        switch (kind) {
+            case NDP_NS:
+                return ndpNeighborSolicitation();
+            case LLDP:
+                return lldp();
+            case SRV6_DECAP:
+                return pcap("ipv6_test_decap.pcap").get(0);
+            case IPV4_ENCAP:
+                return pcap("ipv4_test_encap_2sid.pcap").get(0);
+            default:
+                throw new IllegalArgumentException("Unknown frame kind " + kind);
+        }
+    }
+
+    /**
+     * Returns a Neighbor Solicitation for a router address, as sent by a
+     * host resolving its gateway.
+     *
+     * @return frame bytes
+     */
+    public static byte[] ndpNeighborSolicitation() {
+        final NeighborSolicitation ns = new NeighborSolicitation();
+        ns.setTargetAddress(TARGET_IP.toOctets());
+        ns.addOption(NeighborDiscoveryOptions.TYPE_SOURCE_LL_ADDRESS, HOST_MAC.toBytes());
+
+        final ICMP6 icmp6 = new ICMP6();
+        icmp6.setIcmpType(ICMP6.NEIGHBOR_SOLICITATION);
+        icmp6.setPayload(ns);
+
+        final Ip6Address solicitedNode = Ip6Address.valueOf("ff02::1:ff00:ff");
+        final IPv6 ipv6 = new IPv6();
+        ipv6.setSourceAddress(HOST_IP.toOctets());
+        ipv6.setDestinationAddress(solicitedNode.toOctets());
+        ipv6.setHopLimit((byte) 255);
+        ipv6.setNextHeader(IPv6.PROTOCOL_ICMP6);
+        ipv6.setPayload(icmp6);
+
+        final Ethernet eth = new Ethernet();
+        eth.setSourceMACAddress(HOST_MAC);
+        eth.setDestinationMACAddress(MacAddress.valueOf("33:33:ff:00:00:ff"));
+        eth.setEtherType(Ethernet.TYPE_IPV6);
+        eth.setPayload(ipv6);
+        return eth.serialize();
+    }
+
+    /**
+     * Returns a link discovery probe sent by ONOS.
+     *
+     * @return frame bytes
+     */
+    public static byte[] lldp() {
+        final ONOSLLDP probe = ONOSLLDP.onosLLDP("device:leaf1", new ChassisId(1), 1);
+        final Ethernet eth = new Ethernet();
+        eth.setSourceMACAddress(MacAddress.valueOf("00:aa:00:00:00:01"));
+        eth.setDestinationMACAddress(MacAddress.valueOf("01:80:c2:00:00:0e"));
+        eth.setEtherType(Ethernet.TYPE_LLDP);
+        eth.setPayload(probe);
+        return eth.serialize();
+    }
+
+    /**
+     * Returns the frames of the given capture file, of the directory given by
+     * {@link #PCAP_DIR_PROPERTY}.
+     *
+     * @param fileName capture file name
+     * @return list of frames
+     * @throws IOException if the file cannot be read, or is not a capture
+     */
+    public static List<byte[]> pcap(String fileName) throws IOException {
+        final Path path = Paths.get(System.getProperty(PCAP_DIR_PROPERTY, "test"), fileName);
+        final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (buffer.remaining() < PCAP_HEADER_LENGTH) {
+            throw new IOException(path + " is too short");
+        }
+        // Records use the byte order of the magic number.
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != PCAP_MAGIC) {
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            if (buffer.getInt(0) != PCAP_MAGIC) {
+                throw new IOException(path + " is not a pcap file");
+            }
+        }
+        buffer.position(PCAP_HEADER_LENGTH);
+
+        final ImmutableList.Builder<byte[]> frames = ImmutableList.builder();
+        while (buffer.remaining() >= PCAP_RECORD_HEADER_LENGTH) {
+            // Skip timestamp, then captured and original length.
+            buffer.position(buffer.position() + 8);
+            final int length = buffer.getInt();
+            buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IOException(path + " is truncated");
+            }
+            final byte[] frame = new byte[length];
+            buffer.get(frame);
+            frames.add(frame);
+        }
+        final List<byte[]> result = frames.build();
+        if (result.isEmpty()) {
+            throw new IOException(path + " has no frames");
+        }
+        return result;
+    }
+}
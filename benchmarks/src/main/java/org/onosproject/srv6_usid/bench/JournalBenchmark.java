@@ -0,0 +1,135 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.bench;
+
+import org.onosproject.net.DeviceId;
+import org.onosproject.srv6_usid.common.NorthboundJournal;
+import org.onosproject.srv6_usid.common.NorthboundJournal.Kind;
+import org.onosproject.srv6_usid.common.NorthboundJournal.Op;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Time to append SRv6 policies to the northbound journal, and to recover
+ * them at activation, either from the journal alone or from a snapshot after
+ * compaction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JournalBenchmark {
+
+    private static final int CAPACITY = 64 * 1024 * 1024;
+    private static final int DEVICES = 100;
+
+    /**
+     * Number of policies.
+     */
+    @Param({"100000"})
+    public int policies;
+
+    private Path journalDir;
+    private Path snapshotDir;
+    private Path appendDir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        journalDir = Files.createTempDirectory("srv6-journal");
+        try (NorthboundJournal journal = NorthboundJournal.open(journalDir, CAPACITY)) {
+            appendPolicies(journal);
+        }
+        snapshotDir = Files.createTempDirectory("srv6-snapshot");
+        try (NorthboundJournal journal = NorthboundJournal.open(snapshotDir, CAPACITY)) {
+            appendPolicies(journal);
+            journal.compact();
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() throws IOException {
+        appendDir = Files.createTempDirectory("srv6-append");
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownInvocation() throws IOException {
+        delete(appendDir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        delete(journalDir);
+        delete(snapshotDir);
+    }
+
+    @Benchmark
+    public int append() throws IOException {
+        try (NorthboundJournal journal = NorthboundJournal.open(appendDir, CAPACITY)) {
+            appendPolicies(journal);
+            return journal.size();
+        }
+    }
+
+    @Benchmark
+    public int recoverFromJournal() throws IOException {
+        try (NorthboundJournal journal = NorthboundJournal.open(journalDir, CAPACITY)) {
+            return journal.size();
+        }
+    }
+
+    @Benchmark
+    public int recoverFromSnapshot() throws IOException {
+        try (NorthboundJournal journal = NorthboundJournal.open(snapshotDir, CAPACITY)) {
+            return journal.size();
+        }
+    }
+
+    private void appendPolicies(NorthboundJournal journal) throws IOException {
+        for (int i = 0; i < policies; i++) {
+            final DeviceId deviceId = DeviceId.deviceId("device:leaf" + i % DEVICES);
+            journal.append(Op.of(Kind.SRV6_POLICY, deviceId,
+                                 String.format("2001:%x:%x::", i >>> 16, i & 0xFFFF), 64,
+                                 "fcbb:bb00:2::", "fcbb:bb00:3::", "2001:1:2::1"));
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.bench;
+
+import org.onosproject.cfg.ComponentConfigAdapter;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.device.DeviceServiceAdapter;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.packet.DefaultOutboundPacket;
+import org.onosproject.net.packet.InboundPacket;
+import org.onosproject.net.packet.OutboundPacket;
+import org.onosproject.net.pi.model.PiPacketMetadataId;
+import org.onosproject.net.pi.model.PiPipelineInterpreter.PiInterpreterException;
+import org.onosproject.net.pi.runtime.PiPacketMetadata;
+import org.onosproject.net.pi.runtime.PiPacketOperation;
+import org.onosproject.srv6_usid.MetricsComponent;
+import org.onosproject.srv6_usid.PacketInAdmissionComponent;
+import org.onosproject.srv6_usid.common.PuntType;
+import org.onosproject.srv6_usid.pipeconf.InterpreterImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+
+import static org.onlab.util.ImmutableByteSequence.copyFrom;
+import static org.onosproject.net.pi.model.PiPacketOperationType.PACKET_IN;
+
+/**
+ * Throughput of InterpreterImpl.mapInboundPacket and mapOutboundPacket, on
+ * the frames most often exchanged with the devices (see {@link Frames}).
+ * Admission control is part of the inbound path, with rates high enough to
+ * admit all packets.
+ * <p>
+ * Run with -prof gc to also get the bytes allocated per packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketMappingBenchmark {
+
+    private static final DeviceId DEVICE_ID = DeviceId.deviceId("device:leaf1");
+
+    @Param({"NDP_NS", "LLDP", "SRV6_DECAP", "IPV4_ENCAP"})
+    public Frames.Kind frame;
+
+    private PacketInAdmissionComponent admission;
+    private MetricsComponent metrics;
+    private InterpreterImpl interpreter;
+    private PiPacketOperation packetIn;
+    private OutboundPacket packetOut;
+
+    @Setup
+    public void setUp() throws IOException {
+        final Dictionary<String, Object> rates = new Hashtable<>();
+        for (PuntType type : PuntType.values()) {
+            rates.put(type.rateProperty(), Integer.MAX_VALUE);
+        }
+        admission = Components.activate(Components.bind(Components.bind(
+                new PacketInAdmissionComponent(), new DeviceServiceAdapter()),
+                new ComponentConfigAdapter()), rates);
+
+        // Both bind themselves to the interpreter when activated.
+        metrics = Components.activate(new MetricsComponent());
+
+        interpreter = new InterpreterImpl();
+
+        final byte[] bytes = Frames.of(frame);
+        packetIn = PiPacketOperation.builder()
+                .withType(PACKET_IN)
+                .withData(copyFrom(bytes))
+                .withMetadata(PiPacketMetadata.builder()
+                                      .withId(PiPacketMetadataId.of("ingress_port"))
+                                      .withValue(copyFrom((short) 1))
+                                      .build())
+                .build();
+        packetOut = new DefaultOutboundPacket(
+                DEVICE_ID,
+                DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(2)).build(),
+                ByteBuffer.wrap(bytes));
+    }
+
+    @TearDown
+    public void tearDown() {
+        Components.deactivate(admission);
+        Components.deactivate(metrics);
+    }
+
+    @Benchmark
+    public InboundPacket mapInbound() throws PiInterpreterException {
+        return interpreter.mapInboundPacket(packetIn, DEVICE_ID);
+    }
+
+    @Benchmark
+    public Object mapInboundAndParse() throws PiInterpreterException {
+        return interpreter.mapInboundPacket(packetIn, DEVICE_ID).parsed();
+    }
+
+    @Benchmark
+    public Collection<PiPacketOperation> mapOutbound() throws PiInterpreterException {
+        return interpreter.mapOutboundPacket(packetOut);
+    }
+}
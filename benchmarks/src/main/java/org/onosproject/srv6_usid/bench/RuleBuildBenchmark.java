@@ -0,0 +1,207 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.bench;
+
+import com.google.common.collect.Lists;
+import org.onlab.packet.Ip6Address;
+import org.onlab.packet.MacAddress;
+import org.onlab.util.ImmutableByteSequence;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.criteria.PiCriterion;
+import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiActionParamId;
+import org.onosproject.net.pi.model.PiMatchFieldId;
+import org.onosproject.net.pi.runtime.PiAction;
+import org.onosproject.net.pi.runtime.PiActionParam;
+import org.onosproject.srv6_usid.common.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.onlab.util.ImmutableByteSequence.copyFrom;
+import static org.onosproject.srv6_usid.common.RuleTemplates.ROUTING_V6;
+import static org.onosproject.srv6_usid.common.RuleTemplates.SRV6_USID_UA;
+import static org.onosproject.srv6_usid.common.RuleTemplates.UNICAST;
+import static org.onosproject.srv6_usid.common.RuleTemplates.XCONNECT;
+import static org.onosproject.srv6_usid.common.RuleTemplates.usidEncap;
+
+/**
+ * Throughput of building the flow rules of insertSrv6InsertRule,
+ * insertRoutingRule, insertUARule and learnHost, with the rule templates the
+ * components use, and with Utils.buildFlowRule and identifiers looked up at
+ * each call, as the components did before the templates.
+ * <p>
+ * Run with -prof gc to also get the bytes allocated per rule.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RuleBuildBenchmark {
+
+    private static final ApplicationId APP_ID =
+            new DefaultApplicationId(1, "org.onosproject.srv6_usid");
+    private static final DeviceId DEVICE_ID = DeviceId.deviceId("device:leaf1");
+
+    /**
+     * Number of SIDs in the segment list of the encap rule, including the
+     * destination.
+     */
+    @Param({"2", "3"})
+    public int segments;
+
+    private Ip6Address mySid;
+    private Ip6Address destIp;
+    private List<Ip6Address> segmentList;
+    private Ip6Address nextHopIp;
+    private MacAddress nextHopMac;
+    private PortNumber port;
+
+    @Setup
+    public void setUp() {
+        mySid = Ip6Address.valueOf("fcbb:bb00:1::");
+        destIp = Ip6Address.valueOf("2001:1:2::");
+        segmentList = Lists.newArrayList();
+        for (int i = 0; i < segments; i++) {
+            segmentList.add(Ip6Address.valueOf("fcbb:bb00:" + (i + 2) + "::"));
+        }
+        nextHopIp = Ip6Address.valueOf("fcbb:bb00:2::");
+        nextHopMac = MacAddress.valueOf("00:aa:00:00:00:02");
+        port = PortNumber.portNumber(3);
+    }
+
+    @Benchmark
+    public FlowRule encapTemplate() {
+        final ImmutableByteSequence[] params = new ImmutableByteSequence[segmentList.size()];
+        params[0] = copyFrom(mySid.toOctets());
+        for (int i = 0; i < segmentList.size() - 1; i++) {
+            params[i + 1] = copyFrom(segmentList.get(i).toOctets());
+        }
+        return usidEncap(segmentList.size() - 1).lpm(
+                DEVICE_ID, APP_ID, destIp.toOctets(), 64, params);
+    }
+
+    @Benchmark
+    public FlowRule encapLegacy() {
+        final PiCriterion match = PiCriterion.builder()
+                .matchLpm(PiMatchFieldId.of("hdr.ipv6.dst_addr"), destIp.toOctets(), 64)
+                .build();
+        final List<PiActionParam> actionParams = Lists.newArrayList();
+        actionParams.add(new PiActionParam(PiActionParamId.of("src_addr"), mySid.toOctets()));
+        for (int i = 0; i < segmentList.size() - 1; i++) {
+            actionParams.add(new PiActionParam(PiActionParamId.of("s" + (i + 1)),
+                                               segmentList.get(i).toOctets()));
+        }
+        final PiAction action = PiAction.builder()
+                .withId(PiActionId.of("IngressPipeImpl.usid_encap_" + (segmentList.size() - 1)))
+                .withParameters(actionParams)
+                .build();
+        return Utils.buildFlowRule(DEVICE_ID, APP_ID, "IngressPipeImpl.srv6_encap",
+                                   match, action);
+    }
+
+    @Benchmark
+    public FlowRule routeTemplate() {
+        return ROUTING_V6.lpm(DEVICE_ID, APP_ID, destIp.toOctets(), 64,
+                              copyFrom(nextHopMac.toBytes()));
+    }
+
+    @Benchmark
+    public FlowRule routeLegacy() {
+        final PiCriterion match = PiCriterion.builder()
+                .matchLpm(PiMatchFieldId.of("hdr.ipv6.dst_addr"), destIp.toOctets(), 64)
+                .build();
+        final PiAction action = PiAction.builder()
+                .withId(PiActionId.of("IngressPipeImpl.set_next_hop"))
+                .withParameter(new PiActionParam(PiActionParamId.of("next_hop"),
+                                                 nextHopMac.toBytes()))
+                .build();
+        return Utils.buildFlowRule(DEVICE_ID, APP_ID, "IngressPipeImpl.routing_v6",
+                                   match, action);
+    }
+
+    @Benchmark
+    public void uaTemplate(Blackhole bh) {
+        bh.consume(SRV6_USID_UA.lpm(DEVICE_ID, APP_ID, mySid.toOctets(), 64,
+                                    copyFrom(nextHopIp.toOctets())));
+        bh.consume(XCONNECT.lpm(DEVICE_ID, APP_ID, nextHopIp.toOctets(), 64,
+                                copyFrom(nextHopMac.toBytes())));
+    }
+
+    @Benchmark
+    public void uaLegacy(Blackhole bh) {
+        PiCriterion match = PiCriterion.builder()
+                .matchLpm(PiMatchFieldId.of("hdr.ipv6.dst_addr"), mySid.toOctets(), 64)
+                .build();
+        PiAction action = PiAction.builder()
+                .withId(PiActionId.of("IngressPipeImpl.srv6_usid_ua"))
+                .withParameter(new PiActionParam(PiActionParamId.of("next_hop"),
+                                                 nextHopIp.toOctets()))
+                .build();
+        bh.consume(Utils.buildFlowRule(DEVICE_ID, APP_ID, "IngressPipeImpl.srv6_localsid_table",
+                                       match, action));
+        match = PiCriterion.builder()
+                .matchLpm(PiMatchFieldId.of("local_metadata.ua_next_hop"),
+                          nextHopIp.toOctets(), 64)
+                .build();
+        action = PiAction.builder()
+                .withId(PiActionId.of("IngressPipeImpl.xconnect_act"))
+                .withParameter(new PiActionParam(PiActionParamId.of("next_hop"),
+                                                 nextHopMac.toBytes()))
+                .build();
+        bh.consume(Utils.buildFlowRule(DEVICE_ID, APP_ID, "IngressPipeImpl.xconnect_table",
+                                       match, action));
+    }
+
+    @Benchmark
+    public FlowRule hostTemplate() {
+        return UNICAST.exact(DEVICE_ID, APP_ID, nextHopMac.toBytes(),
+                             copyFrom(port.toLong()));
+    }
+
+    @Benchmark
+    public FlowRule hostLegacy() {
+        final PiCriterion match = PiCriterion.builder()
+                .matchExact(PiMatchFieldId.of("hdr.ethernet.dst_addr"), nextHopMac.toBytes())
+                .build();
+        final PiAction action = PiAction.builder()
+                .withId(PiActionId.of("IngressPipeImpl.set_output_port"))
+                .withParameter(new PiActionParam(PiActionParamId.of("port_num"),
+                                                 port.toLong()))
+                .build();
+        return Utils.buildFlowRule(DEVICE_ID, APP_ID, "IngressPipeImpl.unicast",
+                                   match, action);
+    }
+}
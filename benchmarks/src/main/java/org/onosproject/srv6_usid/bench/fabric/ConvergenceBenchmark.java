@@ -0,0 +1,282 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.bench.fabric;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.onosproject.net.Host;
+import org.onosproject.net.HostLocation;
+import org.onosproject.net.Link;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Measures the time from a topology event to the last rule written because
+ * of it, and the number of rules written per event, for fabrics of
+ * increasing size.
+ * <p>
+ * Events are LINK_REMOVED, DEVICE_AVAILABILITY_CHANGED (a device becoming
+ * available again after losing its rules) and HOST_MOVED. Results are
+ * written as JSON and, if a baseline is given, compared with it, e.g.
+ * {@code leaves=8,32,128 events=20 baseline=benchmarks/baselines/convergence.json}.
+ * The exit code is 1 if a metric regressed by more than the given tolerance.
+ */
+public final class ConvergenceBenchmark {
+
+    // Writes are batched for a few milliseconds, see FlowRuleWriter.
+    private static final long IDLE_MILLIS = 200;
+    private static final long TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .enable(SerializationFeature.INDENT_OUTPUT);
+
+    /**
+     * Kinds of events injected.
+     */
+    enum EventKind {
+        LINK_REMOVED, DEVICE_AVAILABILITY_CHANGED, HOST_MOVED
+    }
+
+    private final Map<String, String> args;
+    private final Random random;
+
+    // Updated by the write thread of the fake services.
+    private final AtomicLong eventWrites = new AtomicLong();
+    private final AtomicLong lastWriteNanos = new AtomicLong();
+    private final Consumer<WriteLog.Write> observer = write -> {
+        eventWrites.incrementAndGet();
+        lastWriteNanos.accumulateAndGet(write.nanos(), Math::max);
+    };
+
+    private ConvergenceBenchmark(Map<String, String> args) {
+        this.args = args;
+        this.random = new Random(Long.parseLong(arg("seed", "1")));
+    }
+
+    public static void main(String[] argv) throws InterruptedException, IOException {
+        final Map<String, String> args = Maps.newHashMap();
+        for (String arg : argv) {
+            final String[] pair = arg.split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            args.put(pair[0], pair[1]);
+        }
+        System.exit(new ConvergenceBenchmark(args).run() ? 0 : 1);
+    }
+
+    private boolean run() throws InterruptedException, IOException {
+        final ObjectNode results = MAPPER.createObjectNode();
+        for (String size : arg("leaves", "8,32,128").split(",")) {
+            final Topology topology = Topology.clos(
+                    intArg("spines", 4), Integer.parseInt(size.trim()), intArg("hosts", 4));
+            final String name = String.format("clos-%ds-%sl", intArg("spines", 4), size.trim());
+            System.out.printf("%s: %s%n", name, topology);
+            results.set(name, measure(topology));
+        }
+
+        final File output = new File(arg("output", "benchmarks/target/convergence.json"));
+        if (output.getParentFile() != null) {
+            output.getParentFile().mkdirs();
+        }
+        MAPPER.writeValue(output, results);
+        System.out.printf("Results written to %s%n", output);
+
+        final String baseline = args.get("baseline");
+        if (baseline == null) {
+            return true;
+        }
+        final File baselineFile = new File(baseline);
+        if (!baselineFile.exists()) {
+            if (baselineFile.getParentFile() != null) {
+                baselineFile.getParentFile().mkdirs();
+            }
+            MAPPER.writeValue(baselineFile, results);
+            System.out.printf("No baseline found, results saved as %s%n", baselineFile);
+            return true;
+        }
+        return compare(MAPPER.readTree(baselineFile), results,
+                       Double.parseDouble(arg("tolerance", "0.1")));
+    }
+
+    private ObjectNode measure(Topology topology) throws InterruptedException {
+        final FabricHarness harness = FabricHarness.builder()
+                .topology(topology)
+                .latencyMicros(intArg("latency", 0))
+                .build();
+        final ObjectNode result = MAPPER.createObjectNode();
+        try {
+            harness.start();
+            awaitConvergence(harness);
+            harness.writeLog().addObserver(observer);
+            for (EventKind kind : EventKind.values()) {
+                final List<Sample> samples = Lists.newArrayList();
+                for (int i = 0; i < intArg("events", 20); i++) {
+                    samples.add(inject(harness, kind));
+                }
+                final ObjectNode stats = stats(samples);
+                System.out.printf("  %-28s %s%n", kind, stats);
+                result.set(kind.name(), stats);
+            }
+        } finally {
+            harness.writeLog().removeObserver(observer);
+            harness.stop();
+        }
+        return result;
+    }
+
+    // Injects an event, waits for the fabric to converge, then reverts it.
+    private Sample inject(FabricHarness harness, EventKind kind) throws InterruptedException {
+        final Topology topology = harness.topology();
+        Runnable revert = () -> { };
+        eventWrites.set(0);
+        lastWriteNanos.set(0);
+        final long start;
+        switch (kind) {
+            case LINK_REMOVED:
+                final Link link = topology.links().get(random.nextInt(topology.links().size()));
+                start = System.nanoTime();
+                harness.failLink(link);
+                revert = () -> harness.restoreLink(link);
+                break;
+            case DEVICE_AVAILABILITY_CHANGED:
+                final Topology.Node node = topology.nodes().get(random.nextInt(topology.nodes().size()));
+                // Only the device becoming available again is measured.
+                harness.deviceService().setAvailable(node.id(), false);
+                harness.flowRuleService().wipe(node.id());
+                awaitConvergence(harness);
+                eventWrites.set(0);
+                lastWriteNanos.set(0);
+                start = System.nanoTime();
+                harness.deviceService().setAvailable(node.id(), true);
+                break;
+            case HOST_MOVED:
+                final List<Host> hosts = topology.hosts();
+                final Host host = hosts.get(random.nextInt(hosts.size()));
+                // Move to the port of another host, on another device if any.
+                final Host other = hosts.get((hosts.indexOf(host) + hosts.size() / 2 + 1) % hosts.size());
+                start = System.nanoTime();
+                harness.moveHost(host.id(), new HostLocation(other.location(), 0));
+                revert = () -> harness.moveHost(host.id(), host.location());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown event " + kind);
+        }
+        final boolean converged = awaitConvergence(harness);
+        final Sample sample = new Sample(converged, eventWrites.get(),
+                                         Math.max(0, lastWriteNanos.get() - start));
+        revert.run();
+        awaitConvergence(harness);
+        return sample;
+    }
+
+    private static ObjectNode stats(List<Sample> samples) {
+        final long[] latencies = samples.stream()
+                .filter(s -> s.writes > 0)
+                .mapToLong(s -> s.latencyNanos)
+                .sorted()
+                .toArray();
+        final long writes = samples.stream().mapToLong(s -> s.writes).sum();
+        final ObjectNode stats = MAPPER.createObjectNode()
+                .put("events", samples.size())
+                .put("notConverged", samples.stream().filter(s -> !s.converged).count())
+                .put("withoutWrites", samples.size() - latencies.length)
+                .put("writesPerEvent", (double) writes / samples.size());
+        stats.put("p50Millis", millis(percentile(latencies, 0.50)))
+                .put("p99Millis", millis(percentile(latencies, 0.99)))
+                .put("maxMillis", millis(latencies.length == 0 ? 0 : latencies[latencies.length - 1]));
+        return stats;
+    }
+
+    // Nearest-rank percentile of sorted values.
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1e3) / 1e3;
+    }
+
+    // Returns false if a latency or write amplification metric grew by more
+    // than the given tolerance.
+    private static boolean compare(JsonNode baseline, JsonNode results, double tolerance) {
+        boolean ok = true;
+        for (String topology : (Iterable<String>) results::fieldNames) {
+            for (EventKind kind : EventKind.values()) {
+                final JsonNode before = baseline.path(topology).path(kind.name());
+                final JsonNode after = results.path(topology).path(kind.name());
+                if (before.isMissingNode()) {
+                    continue;
+                }
+                for (String metric : Arrays.asList("p50Millis", "p99Millis", "maxMillis",
+                                                   "writesPerEvent")) {
+                    final double b = before.path(metric).asDouble();
+                    final double a = after.path(metric).asDouble();
+                    final boolean regressed = a > b * (1 + tolerance) && a - b > 1e-3;
+                    ok &= !regressed;
+                    System.out.printf("%-16s %-28s %-16s %10.3f -> %10.3f%s%n", topology, kind,
+                                      metric, b, a, regressed ? "  REGRESSION" : "");
+                }
+            }
+        }
+        return ok;
+    }
+
+    private boolean awaitConvergence(FabricHarness harness) throws InterruptedException {
+        return harness.awaitQuiescence(IDLE_MILLIS, TIMEOUT_MILLIS);
+    }
+
+    private String arg(String key, String defaultValue) {
+        return args.getOrDefault(key, defaultValue);
+    }
+
+    private int intArg(String key, int defaultValue) {
+        return Integer.parseInt(arg(key, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * Outcome of a single event.
+     */
+    private static final class Sample {
+
+        private final boolean converged;
+        private final long writes;
+        private final long latencyNanos;
+
+        private Sample(boolean converged, long writes, long latencyNanos) {
+            this.converged = converged;
+            this.writes = writes;
+            this.latencyNanos = latencyNanos;
+        }
+    }
+}
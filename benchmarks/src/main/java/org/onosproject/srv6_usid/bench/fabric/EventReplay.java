@@ -0,0 +1,345 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.bench.fabric;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Multisets;
+import org.onosproject.event.Event;
+import org.onosproject.mastership.MastershipEvent;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.config.NetworkConfigEvent;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.flow.FlowRuleEvent;
+import org.onosproject.net.flow.FlowRuleListener;
+import org.onosproject.net.group.GroupEvent;
+import org.onosproject.net.group.GroupListener;
+import org.onosproject.net.host.HostEvent;
+import org.onosproject.net.intf.InterfaceEvent;
+import org.onosproject.net.link.LinkEvent;
+import org.onosproject.srv6_usid.common.EventLog;
+import org.onosproject.srv6_usid.common.Srv6DeviceConfig;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a log recorded by the app (see EventRecorderComponent) into the app
+ * components running on the fake services, and compares the resulting writes
+ * and timing with the recorded ones.
+ * <p>
+ * The state of the network when the recording started is replayed first and
+ * not measured. Events are then fed at the recorded pace, scaled by the given
+ * speed, or as fast as possible if speed is 0, e.g.
+ * {@code log=/tmp/srv6-events.bin speed=0 latency=200}. The exit code is 1 if
+ * the writes differ.
+ */
+public final class EventReplay {
+
+    // Writes are batched for a few milliseconds, see FlowRuleWriter.
+    private static final long IDLE_MILLIS = 200;
+    private static final long TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final int MAX_DIFFS_SHOWN = 10;
+
+    private final FabricHarness harness;
+
+    // Writes made while replaying events, after the snapshot.
+    private final List<Timed> replayedWrites = Lists.newArrayList();
+    private volatile boolean collecting;
+    private volatile long replayStartNanos;
+
+    private EventReplay(FabricHarness harness) {
+        this.harness = harness;
+    }
+
+    public static void main(String[] argv) throws IOException, InterruptedException {
+        final Map<String, String> args = Maps.newHashMap();
+        for (String arg : argv) {
+            final String[] pair = arg.split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            args.put(pair[0], pair[1]);
+        }
+        final String path = args.get("log");
+        if (path == null) {
+            throw new IllegalArgumentException("Missing log=<path>");
+        }
+        final List<EventLog.Entry> entries = Lists.newArrayList();
+        try (EventLog.Reader reader = new EventLog.Reader(new FileInputStream(path))) {
+            for (EventLog.Entry entry = reader.next(); entry != null; entry = reader.next()) {
+                entries.add(entry);
+            }
+        }
+        final FabricHarness harness = FabricHarness.builder()
+                .topology(Topology.empty())
+                .latencyMicros(Long.parseLong(args.getOrDefault("latency", "0")))
+                .failureRate(Double.parseDouble(args.getOrDefault("failureRate", "0")))
+                .build();
+        boolean same;
+        try {
+            same = new EventReplay(harness).replay(
+                    entries, Double.parseDouble(args.getOrDefault("speed", "1")));
+        } finally {
+            harness.stop();
+        }
+        System.exit(same ? 0 : 1);
+    }
+
+    private boolean replay(List<EventLog.Entry> entries, double speed) throws InterruptedException {
+        harness.start();
+        harness.flowRuleService().addListener(new InternalFlowRuleListener());
+        harness.groupService().addListener(new InternalGroupListener());
+
+        int snapshotEvents = 0;
+        for (EventLog.Entry entry : entries) {
+            if (entry.isSnapshot() && entry.event() != null) {
+                apply(entry);
+                snapshotEvents++;
+            }
+        }
+        awaitConvergence();
+        print("snapshot", String.format("%d events, %d writes", snapshotEvents,
+                                        harness.writeLog().written()));
+
+        final List<Timed> recordedWrites = Lists.newArrayList();
+        long firstMicros = -1;
+        int events = 0;
+        collecting = true;
+        replayStartNanos = System.nanoTime();
+        for (EventLog.Entry entry : entries) {
+            if (entry.isSnapshot()) {
+                continue;
+            }
+            if (firstMicros < 0) {
+                firstMicros = entry.micros();
+            }
+            final long offsetMicros = entry.micros() - firstMicros;
+            if (entry.write() != null) {
+                recordedWrites.add(new Timed(offsetMicros, entry.write()));
+                continue;
+            }
+            if (speed > 0) {
+                final long dueNanos = replayStartNanos + (long) (offsetMicros * 1000 / speed);
+                final long waitNanos = dueNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                }
+            }
+            apply(entry);
+            events++;
+        }
+        final long feedMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - replayStartNanos);
+        final boolean converged = awaitConvergence();
+        collecting = false;
+
+        print("events", String.format("%d fed in %d ms%s", events, feedMicros / 1000,
+                                      converged ? "" : ", not converged"));
+        final List<Timed> replayed;
+        synchronized (replayedWrites) {
+            replayed = Lists.newArrayList(replayedWrites);
+        }
+        print("recorded writes", summary(recordedWrites));
+        print("replayed writes", summary(replayed));
+        return compare(recordedWrites, replayed);
+    }
+
+    private void apply(EventLog.Entry entry) {
+        final Event<?, ?> event = entry.event();
+        if (event instanceof DeviceEvent) {
+            apply((DeviceEvent) event, entry);
+        } else if (event instanceof LinkEvent) {
+            final LinkEvent linkEvent = (LinkEvent) event;
+            if (linkEvent.type() == LinkEvent.Type.LINK_REMOVED) {
+                harness.linkService().removeLink(linkEvent.subject());
+            } else {
+                harness.linkService().addLink(linkEvent.subject());
+            }
+        } else if (event instanceof HostEvent) {
+            final Host host = ((HostEvent) event).subject();
+            switch (((HostEvent) event).type()) {
+                case HOST_MOVED:
+                    harness.moveHost(host.id(), host.location());
+                    break;
+                case HOST_REMOVED:
+                    harness.hostService().removeHost(host.id());
+                    break;
+                default:
+                    harness.hostService().addHost(host);
+            }
+        } else if (event instanceof InterfaceEvent) {
+            final InterfaceEvent intfEvent = (InterfaceEvent) event;
+            if (intfEvent.type() == InterfaceEvent.Type.INTERFACE_REMOVED) {
+                harness.interfaceService().removeInterface(
+                        intfEvent.subject().name(), intfEvent.subject().connectPoint());
+            } else {
+                harness.interfaceService().updateInterface(intfEvent.subject());
+            }
+        } else if (event instanceof NetworkConfigEvent) {
+            final NetworkConfigEvent configEvent = (NetworkConfigEvent) event;
+            final DeviceId deviceId = (DeviceId) configEvent.subject();
+            if (configEvent.type() == NetworkConfigEvent.Type.CONFIG_REMOVED) {
+                harness.configService().removeSrv6Config(deviceId);
+            } else if (configEvent.config().isPresent()) {
+                harness.configService().setSrv6Config(
+                        deviceId, (Srv6DeviceConfig) configEvent.config().get());
+            }
+        } else if (event instanceof MastershipEvent) {
+            harness.mastershipService().setLocalMaster(
+                    ((MastershipEvent) event).subject(), entry.available());
+        }
+    }
+
+    private void apply(DeviceEvent event, EventLog.Entry entry) {
+        final FakeDeviceService deviceService = harness.deviceService();
+        final DeviceId deviceId = event.subject().id();
+        switch (event.type()) {
+            case DEVICE_ADDED:
+                deviceService.addDevice(event.subject(), entry.ports());
+                deviceService.setAvailable(deviceId, entry.available());
+                break;
+            case DEVICE_AVAILABILITY_CHANGED:
+                deviceService.setAvailable(deviceId, entry.available());
+                break;
+            case DEVICE_REMOVED:
+                deviceService.removeDevice(deviceId);
+                break;
+            case PORT_ADDED:
+            case PORT_UPDATED:
+                deviceService.updatePort(deviceId, event.port());
+                break;
+            case PORT_REMOVED:
+                deviceService.removePort(deviceId, event.port().number());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private boolean awaitConvergence() throws InterruptedException {
+        return harness.awaitQuiescence(IDLE_MILLIS, TIMEOUT_MILLIS);
+    }
+
+    private static String summary(List<Timed> writes) {
+        if (writes.isEmpty()) {
+            return "none";
+        }
+        final long spanMicros = writes.stream().mapToLong(w -> w.micros).max().getAsLong();
+        return String.format("%d in %d ms (%.0f writes/s)", writes.size(), spanMicros / 1000,
+                             spanMicros == 0 ? 0 : writes.size() * 1e6 / spanMicros);
+    }
+
+    private static boolean compare(List<Timed> recorded, List<Timed> replayed) {
+        final Multiset<EventLog.Write> before = HashMultiset.create();
+        recorded.forEach(w -> before.add(w.write));
+        final Multiset<EventLog.Write> after = HashMultiset.create();
+        replayed.forEach(w -> after.add(w.write));
+        final Multiset<EventLog.Write> missing = Multisets.difference(before, after);
+        final Multiset<EventLog.Write> extra = Multisets.difference(after, before);
+        print("missing writes", missing.size());
+        missing.entrySet().stream().limit(MAX_DIFFS_SHOWN)
+                .forEach(e -> print("  - " + e.getElement(), e.getCount()));
+        print("extra writes", extra.size());
+        extra.entrySet().stream().limit(MAX_DIFFS_SHOWN)
+                .forEach(e -> print("  + " + e.getElement(), e.getCount()));
+        return missing.isEmpty() && extra.isEmpty();
+    }
+
+    private static void print(String name, Object value) {
+        System.out.printf("%-32s %s%n", name, value);
+    }
+
+    private void collect(EventLog.Write write) {
+        if (!collecting) {
+            return;
+        }
+        final long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - replayStartNanos);
+        synchronized (replayedWrites) {
+            replayedWrites.add(new Timed(micros, write));
+        }
+    }
+
+    /**
+     * Write with its time since the first replayed event.
+     */
+    private static final class Timed {
+
+        private final long micros;
+        private final EventLog.Write write;
+
+        private Timed(long micros, EventLog.Write write) {
+            this.micros = micros;
+            this.write = write;
+        }
+    }
+
+    /**
+     * Listener of the flow rules written on the fake devices, classified as
+     * by the recorder.
+     */
+    private class InternalFlowRuleListener implements FlowRuleListener {
+
+        @Override
+        public boolean isRelevant(FlowRuleEvent event) {
+            return event.type() == FlowRuleEvent.Type.RULE_ADDED ||
+                    event.type() == FlowRuleEvent.Type.RULE_REMOVED;
+        }
+
+        @Override
+        public void event(FlowRuleEvent event) {
+            collect(new EventLog.Write(
+                    event.type() == FlowRuleEvent.Type.RULE_ADDED
+                            ? EventLog.WriteKind.FLOW_ADDED : EventLog.WriteKind.FLOW_REMOVED,
+                    event.subject().deviceId(), event.subject().table().toString()));
+        }
+    }
+
+    /**
+     * Listener of the groups written on the fake devices, classified as by
+     * the recorder.
+     */
+    private class InternalGroupListener implements GroupListener {
+
+        @Override
+        public boolean isRelevant(GroupEvent event) {
+            switch (event.type()) {
+                case GROUP_ADDED:
+                case GROUP_UPDATED:
+                case GROUP_REMOVED:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public void event(GroupEvent event) {
+            final EventLog.WriteKind kind = event.type() == GroupEvent.Type.GROUP_ADDED
+                    ? EventLog.WriteKind.GROUP_ADDED
+                    : event.type() == GroupEvent.Type.GROUP_UPDATED
+                    ? EventLog.WriteKind.GROUP_UPDATED : EventLog.WriteKind.GROUP_REMOVED;
+            collect(new EventLog.Write(kind, event.subject().deviceId(),
+                                       "0x" + Integer.toHexString(event.subject().id().id())));
+        }
+    }
+}
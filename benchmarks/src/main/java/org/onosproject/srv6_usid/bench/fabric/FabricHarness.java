@@ -0,0 +1,403 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.bench.fabric;
+
+import com.google.common.collect.ImmutableList;
+import org.onlab.packet.Ip6Address;
+import org.onlab.packet.MacAddress;
+import org.onosproject.cfg.ComponentConfigAdapter;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.CoreServiceAdapter;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.HostId;
+import org.onosproject.net.HostLocation;
+import org.onosproject.net.Link;
+import org.onosproject.net.pi.service.PiPipeconfService;
+import org.onosproject.srv6_usid.DeviceLifecycleComponent;
+import org.onosproject.srv6_usid.FloodGroupComponent;
+import org.onosproject.srv6_usid.FlowRuleWriter;
+import org.onosproject.srv6_usid.Ipv6RoutingComponent;
+import org.onosproject.srv6_usid.L2BridgingComponent;
+import org.onosproject.srv6_usid.MainComponent;
+import org.onosproject.srv6_usid.MetricsComponent;
+import org.onosproject.srv6_usid.NdpReplyComponent;
+import org.onosproject.srv6_usid.NorthboundJournalComponent;
+import org.onosproject.srv6_usid.Srv6Component;
+import org.onosproject.srv6_usid.bench.Components;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.onosproject.srv6_usid.AppConstants.PIPECONF_ID;
+
+/**
+ * Runs the app components on fake ONOS services emulating a fabric, so that
+ * the app can be measured at scale without devices nor a running ONOS.
+ * <p>
+ * Components are activated in dependency order, as the Karaf runtime would,
+ * then the topology is added: configs, devices, links, interfaces and hosts.
+ */
+public final class FabricHarness {
+
+    // Polling interval while waiting for quiescence.
+    private static final long POLL_MILLIS = 10;
+
+    private final Topology topology;
+    private final WriteModel writeModel;
+    private final WriteLog writeLog = new WriteLog();
+
+    private final FakeFlowRuleService flowRuleService;
+    private final FakeGroupService groupService;
+    private final FakeDeviceService deviceService = new FakeDeviceService();
+    private final FakeLinkService linkService = new FakeLinkService();
+    private final FakeHostService hostService = new FakeHostService();
+    private final FakeInterfaceService interfaceService = new FakeInterfaceService();
+    private final FakeMastershipService mastershipService = new FakeMastershipService();
+    private final FakeNetworkConfigService configService = new FakeNetworkConfigService();
+
+    private final MainComponent mainComponent = new MainComponent();
+    private final Ipv6RoutingComponent routingComponent = new Ipv6RoutingComponent();
+
+    // In activation order.
+    private final List<Object> components;
+
+    private boolean started;
+
+    private FabricHarness(Builder builder) {
+        this.topology = builder.topology;
+        this.writeModel = new WriteModel(builder.latencyMicros, builder.failureRate, builder.seed);
+        this.flowRuleService = new FakeFlowRuleService(writeModel, writeLog);
+        this.groupService = new FakeGroupService(writeModel, writeLog);
+        this.components = ImmutableList.of(
+                mainComponent, new MetricsComponent(), new NorthboundJournalComponent(),
+                new FlowRuleWriter(), new DeviceLifecycleComponent(),
+                new FloodGroupComponent(), routingComponent, new L2BridgingComponent(),
+                new NdpReplyComponent(), new Srv6Component());
+    }
+
+    /**
+     * Returns a new builder.
+     *
+     * @return builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Activates the components and adds the topology. Returns as soon as the
+     * topology is added, see {@link #awaitQuiescence(long, long)} to wait for
+     * the devices to be set up.
+     */
+    public void start() {
+        final List<Object> services = ImmutableList.of(
+                flowRuleService, groupService, deviceService, linkService, hostService,
+                interfaceService, mastershipService, configService, new FixedCoreService(),
+                new ComponentConfigAdapter(), pipeconfService());
+        for (Object component : components) {
+            services.forEach(service -> bindIfUsed(component, service));
+            components.forEach(other -> bindIfUsed(component, other));
+            Components.activate(component);
+        }
+        started = true;
+
+        for (Topology.Node node : topology.nodes()) {
+            configService.addSrv6Config(node.id(), node.mac(), node.uN(), node.uDX(), node.isCore());
+        }
+        topology.nodes().forEach(node -> deviceService.addDevice(node.device(), node.ports()));
+        topology.links().forEach(linkService::addLink);
+        topology.interfaces().forEach(interfaceService::addInterface);
+        topology.hosts().forEach(hostService::addHost);
+    }
+
+    /**
+     * Deactivates the components and stops the emulated devices.
+     */
+    public void stop() {
+        if (started) {
+            components.reverse().forEach(Components::deactivate);
+            started = false;
+        }
+        writeModel.shutdown();
+    }
+
+    /**
+     * Waits until no write was made for the given time and no per-device task
+     * is pending.
+     *
+     * @param idleMillis    time without writes, in milliseconds
+     * @param timeoutMillis max time to wait, in milliseconds
+     * @return true if quiescent, false if timed out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitQuiescence(long idleMillis, long timeoutMillis)
+            throws InterruptedException {
+        final long idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (System.nanoTime() < deadline) {
+            if (writeLog.isIdle(idleNanos) && mainComponent.getExecutorStats().values().stream()
+                    .allMatch(stats -> stats.queueDepth() == 0)) {
+                return true;
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+        return false;
+    }
+
+    /**
+     * Inserts the given number of routes, spread over all devices, each to a
+     * distinct /64 prefix via the MAC address of the next device.
+     *
+     * @param count number of routes
+     */
+    public void insertRoutes(int count) {
+        final List<Topology.Node> nodes = topology.nodes();
+        final byte[] prefix = new byte[Ip6Address.BYTE_LENGTH];
+        prefix[0] = 0x30;
+        for (int i = 0; i < count; i++) {
+            final Topology.Node node = nodes.get(i % nodes.size());
+            final MacAddress nextHop = nodes.get((i + 1) % nodes.size()).mac();
+            prefix[4] = (byte) (i >> 24);
+            prefix[5] = (byte) (i >> 16);
+            prefix[6] = (byte) (i >> 8);
+            prefix[7] = (byte) i;
+            routingComponent.insertRoutingRule(node.id(), Ip6Address.valueOf(prefix), 64, nextHop);
+        }
+    }
+
+    /**
+     * Emulates a reboot of the given device: it becomes unavailable, loses
+     * its flow rules, and becomes available again.
+     *
+     * @param deviceId the device ID
+     */
+    public void flapDevice(DeviceId deviceId) {
+        deviceService.setAvailable(deviceId, false);
+        flowRuleService.wipe(deviceId);
+        deviceService.setAvailable(deviceId, true);
+    }
+
+    /**
+     * Removes the given link, in both directions.
+     *
+     * @param link the link
+     */
+    public void failLink(Link link) {
+        linkService.removeLink(link);
+        linkService.getEgressLinks(link.dst()).stream()
+                .filter(l -> l.dst().equals(link.src()))
+                .forEach(linkService::removeLink);
+    }
+
+    /**
+     * Adds the given link again, in both directions.
+     *
+     * @param link the link
+     */
+    public void restoreLink(Link link) {
+        topology.links().stream()
+                .filter(l -> l.src().equals(link.src()) && l.dst().equals(link.dst()) ||
+                        l.src().equals(link.dst()) && l.dst().equals(link.src()))
+                .forEach(linkService::addLink);
+    }
+
+    /**
+     * Moves the given host to the given location.
+     *
+     * @param hostId   the host ID
+     * @param location new location
+     */
+    public void moveHost(HostId hostId, HostLocation location) {
+        hostService.moveHost(hostId, location);
+    }
+
+    public Topology topology() {
+        return topology;
+    }
+
+    public WriteLog writeLog() {
+        return writeLog;
+    }
+
+    public FakeFlowRuleService flowRuleService() {
+        return flowRuleService;
+    }
+
+    public FakeGroupService groupService() {
+        return groupService;
+    }
+
+    public FakeDeviceService deviceService() {
+        return deviceService;
+    }
+
+    public FakeLinkService linkService() {
+        return linkService;
+    }
+
+    public FakeHostService hostService() {
+        return hostService;
+    }
+
+    public FakeInterfaceService interfaceService() {
+        return interfaceService;
+    }
+
+    public FakeMastershipService mastershipService() {
+        return mastershipService;
+    }
+
+    public FakeNetworkConfigService configService() {
+        return configService;
+    }
+
+    public MainComponent mainComponent() {
+        return mainComponent;
+    }
+
+    /**
+     * Returns the app component of the given type.
+     *
+     * @param type component class
+     * @param <T>  type of the component
+     * @return component
+     */
+    public <T> T component(Class<T> type) {
+        return components.stream()
+                .filter(type::isInstance)
+                .map(type::cast)
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("No component " + type.getName()));
+    }
+
+    private static void bindIfUsed(Object component, Object service) {
+        if (component == service) {
+            return;
+        }
+        try {
+            Components.bind(component, service);
+        } catch (IllegalArgumentException e) {
+            // Not a dependency of this component.
+        }
+    }
+
+    // Pipeconf service reporting that all devices run the app pipeconf.
+    private static PiPipeconfService pipeconfService() {
+        return (PiPipeconfService) Proxy.newProxyInstance(
+                PiPipeconfService.class.getClassLoader(), new Class<?>[]{PiPipeconfService.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("ofDevice")) {
+                        return Optional.of(PIPECONF_ID);
+                    }
+                    if (method.getReturnType() == Optional.class) {
+                        return Optional.empty();
+                    }
+                    if (method.getReturnType() == boolean.class) {
+                        return false;
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * Core service registering applications with a fixed ID.
+     */
+    private static class FixedCoreService extends CoreServiceAdapter {
+
+        @Override
+        public ApplicationId registerApplication(String name) {
+            return new DefaultApplicationId(1, name);
+        }
+
+        @Override
+        public ApplicationId getAppId(String name) {
+            return new DefaultApplicationId(1, name);
+        }
+    }
+
+    /**
+     * Builder of fabric harnesses.
+     */
+    public static final class Builder {
+
+        private Topology topology;
+        private long latencyMicros;
+        private double failureRate;
+        private long seed = 1;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the emulated topology.
+         *
+         * @param topology the topology
+         * @return this builder
+         */
+        public Builder topology(Topology topology) {
+            this.topology = topology;
+            return this;
+        }
+
+        /**
+         * Sets the latency of each write, 0 by default.
+         *
+         * @param latencyMicros latency in microseconds
+         * @return this builder
+         */
+        public Builder latencyMicros(long latencyMicros) {
+            this.latencyMicros = latencyMicros;
+            return this;
+        }
+
+        /**
+         * Sets the probability of a write failing, 0 by default.
+         *
+         * @param failureRate probability from 0 to 1
+         * @return this builder
+         */
+        public Builder failureRate(double failureRate) {
+            this.failureRate = failureRate;
+            return this;
+        }
+
+        /**
+         * Sets the seed of the failures, for reproducible runs.
+         *
+         * @param seed the seed
+         * @return this builder
+         */
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * Builds the harness.
+         *
+         * @return fabric harness
+         */
+        public FabricHarness build() {
+            checkNotNull(topology, "Topology cannot be null");
+            return new FabricHarness(this);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.bench.fabric;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.onosproject.event.ListenerRegistry;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Port;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceServiceAdapter;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Device service with devices and ports added by the harness.
+ */
+public class FakeDeviceService extends DeviceServiceAdapter {
+
+    private final Map<DeviceId, Device> devices = Maps.newConcurrentMap();
+    private final Map<DeviceId, List<Port>> ports = Maps.newConcurrentMap();
+    private final Set<DeviceId> available = Sets.newConcurrentHashSet();
+    private final ListenerRegistry<DeviceEvent, DeviceListener> listeners = new ListenerRegistry<>();
+
+    /**
+     * Adds an available device with the given ports.
+     *
+     * @param device the device
+     * @param devicePorts its ports
+     */
+    public void addDevice(Device device, List<Port> devicePorts) {
+        devices.put(device.id(), device);
+        ports.put(device.id(), ImmutableList.copyOf(devicePorts));
+        available.add(device.id());
+        listeners.process(new DeviceEvent(DeviceEvent.Type.DEVICE_ADDED, device));
+    }
+
+    /**
+     * Changes the availability of the given device.
+     *
+     * @param deviceId  the device ID
+     * @param isAvailable true if available
+     */
+    public void setAvailable(DeviceId deviceId, boolean isAvailable) {
+        final Device device = devices.get(deviceId);
+        if (device == null) {
+            return;
+        }
+        final boolean changed = isAvailable ? available.add(deviceId) : available.remove(deviceId);
+        if (changed) {
+            listeners.process(new DeviceEvent(
+                    DeviceEvent.Type.DEVICE_AVAILABILITY_CHANGED, device));
+        }
+    }
+
+    /**
+     * Adds or replaces a port of the given device.
+     *
+     * @param deviceId the device ID
+     * @param port     the port
+     */
+    public void updatePort(DeviceId deviceId, Port port) {
+        final Device device = devices.get(deviceId);
+        if (device == null) {
+            return;
+        }
+        final List<Port> devicePorts = Lists.newArrayList(getPorts(deviceId));
+        final boolean existed = devicePorts.removeIf(p -> p.number().equals(port.number()));
+        devicePorts.add(port);
+        ports.put(deviceId, ImmutableList.copyOf(devicePorts));
+        listeners.process(new DeviceEvent(existed ? DeviceEvent.Type.PORT_UPDATED
+                                                  : DeviceEvent.Type.PORT_ADDED, device, port));
+    }
+
+    /**
+     * Removes a port of the given device.
+     *
+     * @param deviceId   the device ID
+     * @param portNumber the port number
+     */
+    public void removePort(DeviceId deviceId, PortNumber portNumber) {
+        final Device device = devices.get(deviceId);
+        final Port port = getPort(deviceId, portNumber);
+        if (device == null || port == null) {
+            return;
+        }
+        ports.put(deviceId, getPorts(deviceId).stream()
+                .filter(p -> !p.number().equals(portNumber))
+                .collect(ImmutableList.toImmutableList()));
+        listeners.process(new DeviceEvent(DeviceEvent.Type.PORT_REMOVED, device, port));
+    }
+
+    /**
+     * Removes the given device.
+     *
+     * @param deviceId the device ID
+     */
+    public void removeDevice(DeviceId deviceId) {
+        final Device device = devices.remove(deviceId);
+        if (device == null) {
+            return;
+        }
+        ports.remove(deviceId);
+        available.remove(deviceId);
+        listeners.process(new DeviceEvent(DeviceEvent.Type.DEVICE_REMOVED, device));
+    }
+
+    @Override
+    public int getDeviceCount() {
+        return devices.size();
+    }
+
+    @Override
+    public Iterable<Device> getDevices() {
+        return ImmutableList.copyOf(devices.values());
+    }
+
+    @Override
+    public Iterable<Device> getAvailableDevices() {
+        return devices.values().stream()
+                .filter(device -> available.contains(device.id()))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public int getAvailableDeviceCount() {
+        return available.size();
+    }
+
+    @Override
+    public Device getDevice(DeviceId deviceId) {
+        return devices.get(deviceId);
+    }
+
+    @Override
+    public boolean isAvailable(DeviceId deviceId) {
+        return available.contains(deviceId);
+    }
+
+    @Override
+    public List<Port> getPorts(DeviceId deviceId) {
+        return ports.getOrDefault(deviceId, Collections.emptyList());
+    }
+
+    @Override
+    public Port getPort(DeviceId deviceId, PortNumber portNumber) {
+        return getPorts(deviceId).stream()
+                .filter(port -> port.number().equals(portNumber))
+                .findFirst().orElse(null);
+    }
+
+    @Override
+    public void addListener(DeviceListener listener) {
+        listeners.addListener(listener);
+    }
+
+    @Override
+    public void removeListener(DeviceListener listener) {
+        listeners.removeListener(listener);
+    }
+}
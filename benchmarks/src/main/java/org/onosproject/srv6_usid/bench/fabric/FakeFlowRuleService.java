@@ -0,0 +1,163 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.bench.fabric;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.event.ListenerRegistry;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.DefaultFlowEntry;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleEvent;
+import org.onosproject.net.flow.FlowRuleListener;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Flow rule service storing the flow rules written in memory. Batches are
+ * written as a whole after the latency of the write model, or fail as a
+ * whole.
+ */
+public class FakeFlowRuleService extends FlowRuleServiceAdapter {
+
+    private final WriteModel writeModel;
+    private final WriteLog writeLog;
+
+    private final Map<DeviceId, Map<FlowId, FlowEntry>> flows = Maps.newConcurrentMap();
+    private final ListenerRegistry<FlowRuleEvent, FlowRuleListener> listeners =
+            new ListenerRegistry<>();
+
+    FakeFlowRuleService(WriteModel writeModel, WriteLog writeLog) {
+        this.writeModel = writeModel;
+        this.writeLog = writeLog;
+    }
+
+    @Override
+    public void apply(FlowRuleOperations ops) {
+        writeLog.batchSubmitted();
+        writeModel.submit(() -> {
+            try {
+                write(ops);
+            } finally {
+                writeLog.batchDone();
+            }
+        });
+    }
+
+    private void write(FlowRuleOperations ops) {
+        final boolean fail = writeModel.nextFails();
+        for (Set<FlowRuleOperation> stage : ops.stages()) {
+            for (FlowRuleOperation op : stage) {
+                final FlowRule rule = op.rule();
+                writeLog.record(rule.deviceId(), kind(op), rule.id(), fail);
+                if (!fail) {
+                    store(op);
+                }
+            }
+        }
+        if (ops.callback() == null) {
+            return;
+        }
+        if (fail) {
+            ops.callback().onError(ops);
+        } else {
+            ops.callback().onSuccess(ops);
+        }
+    }
+
+    private void store(FlowRuleOperation op) {
+        final FlowRule rule = op.rule();
+        final Map<FlowId, FlowEntry> deviceFlows = flows.computeIfAbsent(
+                rule.deviceId(), d -> Maps.newConcurrentMap());
+        if (op.type() == FlowRuleOperation.Type.REMOVE) {
+            if (deviceFlows.remove(rule.id()) != null) {
+                listeners.process(new FlowRuleEvent(FlowRuleEvent.Type.RULE_REMOVED, rule));
+            }
+            return;
+        }
+        final FlowEntry previous = deviceFlows.put(rule.id(), new DefaultFlowEntry(
+                rule, FlowEntry.FlowEntryState.ADDED, 0, 0, 0));
+        listeners.process(new FlowRuleEvent(previous == null
+                ? FlowRuleEvent.Type.RULE_ADDED : FlowRuleEvent.Type.RULE_UPDATED, rule));
+    }
+
+    private static WriteLog.Kind kind(FlowRuleOperation op) {
+        switch (op.type()) {
+            case ADD:
+                return WriteLog.Kind.FLOW_ADD;
+            case MODIFY:
+                return WriteLog.Kind.FLOW_MODIFY;
+            default:
+                return WriteLog.Kind.FLOW_REMOVE;
+        }
+    }
+
+    /**
+     * Forgets the flow rules of the given device, as when its pipeline is
+     * pushed again.
+     *
+     * @param deviceId the device ID
+     */
+    public void wipe(DeviceId deviceId) {
+        final Map<FlowId, FlowEntry> deviceFlows = flows.remove(deviceId);
+        if (deviceFlows != null) {
+            deviceFlows.values().forEach(entry -> listeners.process(
+                    new FlowRuleEvent(FlowRuleEvent.Type.RULE_REMOVED, entry)));
+        }
+    }
+
+    @Override
+    public int getFlowRuleCount() {
+        return flows.values().stream().mapToInt(Map::size).sum();
+    }
+
+    @Override
+    public Iterable<FlowEntry> getFlowEntries(DeviceId deviceId) {
+        final Map<FlowId, FlowEntry> deviceFlows = flows.get(deviceId);
+        return deviceFlows == null ? Collections.emptyList()
+                : ImmutableList.copyOf(deviceFlows.values());
+    }
+
+    @Override
+    public Iterable<FlowEntry> getFlowEntriesById(ApplicationId id) {
+        final List<FlowEntry> entries = Lists.newArrayList();
+        flows.values().forEach(deviceFlows -> deviceFlows.values().stream()
+                .filter(entry -> entry.appId() == id.id())
+                .forEach(entries::add));
+        return entries;
+    }
+
+    @Override
+    public void addListener(FlowRuleListener listener) {
+        listeners.addListener(listener);
+    }
+
+    @Override
+    public void removeListener(FlowRuleListener listener) {
+        listeners.removeListener(listener);
+    }
+}
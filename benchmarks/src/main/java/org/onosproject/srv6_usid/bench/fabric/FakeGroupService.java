@@ -0,0 +1,164 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.bench.fabric;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.GroupId;
+import org.onosproject.event.ListenerRegistry;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.group.DefaultGroup;
+import org.onosproject.net.group.DefaultGroupDescription;
+import org.onosproject.net.group.Group;
+import org.onosproject.net.group.GroupBuckets;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.group.GroupEvent;
+import org.onosproject.net.group.GroupKey;
+import org.onosproject.net.group.GroupListener;
+import org.onosproject.net.group.GroupServiceAdapter;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Group service storing the groups written in memory. Each group operation
+ * is a write of the write model, confirmed with a group event.
+ */
+public class FakeGroupService extends GroupServiceAdapter {
+
+    private final WriteModel writeModel;
+    private final WriteLog writeLog;
+
+    private final Map<DeviceId, Map<GroupKey, Group>> groups = Maps.newConcurrentMap();
+    private final AtomicInteger nextGroupId = new AtomicInteger(1 << 16);
+    private final ListenerRegistry<GroupEvent, GroupListener> listeners = new ListenerRegistry<>();
+
+    FakeGroupService(WriteModel writeModel, WriteLog writeLog) {
+        this.writeModel = writeModel;
+        this.writeLog = writeLog;
+    }
+
+    @Override
+    public void addGroup(GroupDescription description) {
+        write(description.deviceId(), description.appCookie(), WriteLog.Kind.GROUP_ADD,
+              () -> store(description), GroupEvent.Type.GROUP_ADDED,
+              GroupEvent.Type.GROUP_ADD_FAILED);
+    }
+
+    @Override
+    public void setBucketsForGroup(DeviceId deviceId, GroupKey oldCookie, GroupBuckets buckets,
+                                   GroupKey newCookie, ApplicationId appId) {
+        write(deviceId, oldCookie, WriteLog.Kind.GROUP_MODIFY, () -> {
+            final Group group = getGroup(deviceId, oldCookie);
+            if (group == null) {
+                return null;
+            }
+            groups.get(deviceId).remove(oldCookie);
+            return store(new DefaultGroupDescription(
+                    deviceId, group.type(), buckets, newCookie, group.id().id(), appId));
+        }, GroupEvent.Type.GROUP_UPDATED, GroupEvent.Type.GROUP_UPDATE_FAILED);
+    }
+
+    @Override
+    public void removeGroup(DeviceId deviceId, GroupKey appCookie, ApplicationId appId) {
+        write(deviceId, appCookie, WriteLog.Kind.GROUP_REMOVE, () -> {
+            final Map<GroupKey, Group> deviceGroups = groups.get(deviceId);
+            return deviceGroups == null ? null : deviceGroups.remove(appCookie);
+        }, GroupEvent.Type.GROUP_REMOVED, GroupEvent.Type.GROUP_REMOVE_FAILED);
+    }
+
+    /**
+     * Performs a group write on the write thread, and posts the event of its
+     * outcome.
+     */
+    private void write(DeviceId deviceId, GroupKey key, WriteLog.Kind kind,
+                       GroupWrite write, GroupEvent.Type done, GroupEvent.Type failed) {
+        writeLog.batchSubmitted();
+        writeModel.submit(() -> {
+            try {
+                final boolean fail = writeModel.nextFails();
+                writeLog.record(deviceId, kind, key, fail);
+                if (fail) {
+                    final Group group = getGroup(deviceId, key);
+                    if (group != null) {
+                        listeners.process(new GroupEvent(failed, group));
+                    }
+                    return;
+                }
+                final Group group = write.apply();
+                if (group != null) {
+                    listeners.process(new GroupEvent(done, group));
+                }
+            } finally {
+                writeLog.batchDone();
+            }
+        });
+    }
+
+    private Group store(GroupDescription description) {
+        final int id = description.givenGroupId() != null
+                ? description.givenGroupId() : nextGroupId.getAndIncrement();
+        final DefaultGroup group = new DefaultGroup(new GroupId(id), description);
+        group.setState(Group.GroupState.ADDED);
+        groups.computeIfAbsent(description.deviceId(), d -> Maps.newConcurrentMap())
+                .put(description.appCookie(), group);
+        return group;
+    }
+
+    @Override
+    public Group getGroup(DeviceId deviceId, GroupKey appCookie) {
+        final Map<GroupKey, Group> deviceGroups = groups.get(deviceId);
+        return deviceGroups == null ? null : deviceGroups.get(appCookie);
+    }
+
+    @Override
+    public Iterable<Group> getGroups(DeviceId deviceId, ApplicationId appId) {
+        final Map<GroupKey, Group> deviceGroups = groups.get(deviceId);
+        return deviceGroups == null ? Collections.emptyList()
+                : deviceGroups.values().stream()
+                .filter(group -> group.appId().equals(appId))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public Iterable<Group> getGroups(DeviceId deviceId) {
+        final Map<GroupKey, Group> deviceGroups = groups.get(deviceId);
+        return deviceGroups == null ? Collections.emptyList()
+                : ImmutableList.copyOf(deviceGroups.values());
+    }
+
+    @Override
+    public void addListener(GroupListener listener) {
+        listeners.addListener(listener);
+    }
+
+    @Override
+    public void removeListener(GroupListener listener) {
+        listeners.removeListener(listener);
+    }
+
+    /**
+     * Group write, returning the group written or null if there was none.
+     */
+    @FunctionalInterface
+    private interface GroupWrite {
+        Group apply();
+    }
+}
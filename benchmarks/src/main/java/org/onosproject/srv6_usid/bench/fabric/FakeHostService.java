@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.bench.fabric;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import org.onosproject.event.ListenerRegistry;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultHost;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.HostId;
+import org.onosproject.net.HostLocation;
+import org.onosproject.net.host.HostEvent;
+import org.onosproject.net.host.HostListener;
+import org.onosproject.net.host.HostServiceAdapter;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Host service with hosts added and moved by the harness.
+ */
+public class FakeHostService extends HostServiceAdapter {
+
+    private final Map<HostId, Host> hosts = Maps.newConcurrentMap();
+    private final ListenerRegistry<HostEvent, HostListener> listeners = new ListenerRegistry<>();
+
+    /**
+     * Adds or replaces the given host.
+     *
+     * @param host the host
+     */
+    public void addHost(Host host) {
+        final Host previous = hosts.put(host.id(), host);
+        listeners.process(previous == null
+                                  ? new HostEvent(HostEvent.Type.HOST_ADDED, host)
+                                  : new HostEvent(HostEvent.Type.HOST_UPDATED, host, previous));
+    }
+
+    /**
+     * Moves the given host to a new location.
+     *
+     * @param hostId   the host ID
+     * @param location new location
+     * @return the moved host, or null if not found
+     */
+    public Host moveHost(HostId hostId, HostLocation location) {
+        final Host previous = hosts.get(hostId);
+        if (previous == null) {
+            return null;
+        }
+        final Host moved = new DefaultHost(previous.providerId(), hostId, previous.mac(),
+                                           previous.vlan(), location, previous.ipAddresses());
+        hosts.put(hostId, moved);
+        listeners.process(new HostEvent(HostEvent.Type.HOST_MOVED, moved, previous));
+        return moved;
+    }
+
+    /**
+     * Removes the given host.
+     *
+     * @param hostId the host ID
+     */
+    public void removeHost(HostId hostId) {
+        final Host host = hosts.remove(hostId);
+        if (host != null) {
+            listeners.process(new HostEvent(HostEvent.Type.HOST_REMOVED, host));
+        }
+    }
+
+    @Override
+    public int getHostCount() {
+        return hosts.size();
+    }
+
+    @Override
+    public Iterable<Host> getHosts() {
+        return ImmutableList.copyOf(hosts.values());
+    }
+
+    @Override
+    public Host getHost(HostId hostId) {
+        return hosts.get(hostId);
+    }
+
+    @Override
+    public Set<Host> getConnectedHosts(ConnectPoint connectPoint) {
+        return hosts.values().stream()
+                .filter(host -> host.locations().stream()
+                        .anyMatch(location -> location.deviceId().equals(connectPoint.deviceId()) &&
+                                location.port().equals(connectPoint.port())))
+                .collect(ImmutableSet.toImmutableSet());
+    }
+
+    @Override
+    public Set<Host> getConnectedHosts(DeviceId deviceId) {
+        return hosts.values().stream()
+                .filter(host -> host.locations().stream()
+                        .anyMatch(location -> location.deviceId().equals(deviceId)))
+                .collect(ImmutableSet.toImmutableSet());
+    }
+
+    @Override
+    public void addListener(HostListener listener) {
+        listeners.addListener(listener);
+    }
+
+    @Override
+    public void removeListener(HostListener listener) {
+        listeners.removeListener(listener);
+    }
+}
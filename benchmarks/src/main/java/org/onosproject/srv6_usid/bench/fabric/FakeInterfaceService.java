@@ -0,0 +1,116 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.bench.fabric;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import org.onlab.packet.IpAddress;
+import org.onosproject.event.ListenerRegistry;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.intf.Interface;
+import org.onosproject.net.intf.InterfaceEvent;
+import org.onosproject.net.intf.InterfaceListener;
+import org.onosproject.net.intf.InterfaceServiceAdapter;
+
+import java.util.Set;
+
+/**
+ * Interface service with the interfaces of the synthetic topology.
+ */
+public class FakeInterfaceService extends InterfaceServiceAdapter {
+
+    private final Set<Interface> interfaces = Sets.newConcurrentHashSet();
+    private final ListenerRegistry<InterfaceEvent, InterfaceListener> listeners =
+            new ListenerRegistry<>();
+
+    /**
+     * Adds the given interface.
+     *
+     * @param intf the interface
+     */
+    public void addInterface(Interface intf) {
+        if (interfaces.add(intf)) {
+            listeners.process(new InterfaceEvent(InterfaceEvent.Type.INTERFACE_ADDED, intf));
+        }
+    }
+
+    /**
+     * Replaces the interface with the same name and connect point as the
+     * given one, or adds it.
+     *
+     * @param intf the interface
+     */
+    public void updateInterface(Interface intf) {
+        final Interface previous = find(intf.name(), intf.connectPoint());
+        if (previous == null) {
+            addInterface(intf);
+            return;
+        }
+        interfaces.remove(previous);
+        interfaces.add(intf);
+        listeners.process(new InterfaceEvent(InterfaceEvent.Type.INTERFACE_UPDATED, intf, previous));
+    }
+
+    /**
+     * Removes the interface with the given name and connect point.
+     *
+     * @param name the interface name
+     * @param cp   the connect point
+     */
+    public void removeInterface(String name, ConnectPoint cp) {
+        final Interface intf = find(name, cp);
+        if (intf != null && interfaces.remove(intf)) {
+            listeners.process(new InterfaceEvent(InterfaceEvent.Type.INTERFACE_REMOVED, intf));
+        }
+    }
+
+    private Interface find(String name, ConnectPoint cp) {
+        return interfaces.stream()
+                .filter(intf -> intf.name().equals(name) && intf.connectPoint().equals(cp))
+                .findFirst().orElse(null);
+    }
+
+    @Override
+    public Set<Interface> getInterfaces() {
+        return ImmutableSet.copyOf(interfaces);
+    }
+
+    @Override
+    public Set<Interface> getInterfacesByPort(ConnectPoint port) {
+        return interfaces.stream()
+                .filter(intf -> intf.connectPoint().equals(port))
+                .collect(ImmutableSet.toImmutableSet());
+    }
+
+    @Override
+    public Set<Interface> getInterfacesByIp(IpAddress ip) {
+        return interfaces.stream()
+                .filter(intf -> intf.ipAddressesList().stream()
+                        .anyMatch(address -> address.ipAddress().equals(ip)))
+                .collect(ImmutableSet.toImmutableSet());
+    }
+
+    @Override
+    public void addListener(InterfaceListener listener) {
+        listeners.addListener(listener);
+    }
+
+    @Override
+    public void removeListener(InterfaceListener listener) {
+        listeners.removeListener(listener);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.bench.fabric;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.onosproject.event.ListenerRegistry;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.link.LinkEvent;
+import org.onosproject.net.link.LinkListener;
+import org.onosproject.net.link.LinkServiceAdapter;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Link service with links added and removed by the harness.
+ */
+public class FakeLinkService extends LinkServiceAdapter {
+
+    private final Set<Link> links = Sets.newConcurrentHashSet();
+    private final Map<DeviceId, Set<Link>> egress = Maps.newConcurrentMap();
+    private final Map<DeviceId, Set<Link>> ingress = Maps.newConcurrentMap();
+    private final ListenerRegistry<LinkEvent, LinkListener> listeners = new ListenerRegistry<>();
+
+    /**
+     * Adds the given link.
+     *
+     * @param link the link
+     */
+    public void addLink(Link link) {
+        if (!links.add(link)) {
+            return;
+        }
+        egress.computeIfAbsent(link.src().deviceId(), d -> Sets.newConcurrentHashSet()).add(link);
+        ingress.computeIfAbsent(link.dst().deviceId(), d -> Sets.newConcurrentHashSet()).add(link);
+        listeners.process(new LinkEvent(LinkEvent.Type.LINK_ADDED, link));
+    }
+
+    /**
+     * Removes the given link.
+     *
+     * @param link the link
+     */
+    public void removeLink(Link link) {
+        if (!links.remove(link)) {
+            return;
+        }
+        egress.getOrDefault(link.src().deviceId(), Collections.emptySet()).remove(link);
+        ingress.getOrDefault(link.dst().deviceId(), Collections.emptySet()).remove(link);
+        listeners.process(new LinkEvent(LinkEvent.Type.LINK_REMOVED, link));
+    }
+
+    @Override
+    public int getLinkCount() {
+        return links.size();
+    }
+
+    @Override
+    public Iterable<Link> getLinks() {
+        return ImmutableSet.copyOf(links);
+    }
+
+    @Override
+    public Iterable<Link> getActiveLinks() {
+        return getLinks();
+    }
+
+    @Override
+    public Set<Link> getDeviceLinks(DeviceId deviceId) {
+        return ImmutableSet.<Link>builder()
+                .addAll(getDeviceEgressLinks(deviceId))
+                .addAll(getDeviceIngressLinks(deviceId))
+                .build();
+    }
+
+    @Override
+    public Set<Link> getDeviceEgressLinks(DeviceId deviceId) {
+        return ImmutableSet.copyOf(egress.getOrDefault(deviceId, Collections.emptySet()));
+    }
+
+    @Override
+    public Set<Link> getDeviceIngressLinks(DeviceId deviceId) {
+        return ImmutableSet.copyOf(ingress.getOrDefault(deviceId, Collections.emptySet()));
+    }
+
+    @Override
+    public Set<Link> getEgressLinks(ConnectPoint connectPoint) {
+        return getDeviceEgressLinks(connectPoint.deviceId()).stream()
+                .filter(link -> link.src().equals(connectPoint))
+                .collect(ImmutableSet.toImmutableSet());
+    }
+
+    @Override
+    public Set<Link> getIngressLinks(ConnectPoint connectPoint) {
+        return getDeviceIngressLinks(connectPoint.deviceId()).stream()
+                .filter(link -> link.dst().equals(connectPoint))
+                .collect(ImmutableSet.toImmutableSet());
+    }
+
+    @Override
+    public void addListener(LinkListener listener) {
+        listeners.addListener(listener);
+    }
+
+    @Override
+    public void removeListener(LinkListener listener) {
+        listeners.removeListener(listener);
+    }
+}
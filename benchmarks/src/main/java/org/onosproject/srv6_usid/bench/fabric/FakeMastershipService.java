@@ -0,0 +1,74 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.bench.fabric;
+
+import com.google.common.collect.Sets;
+import org.onosproject.event.ListenerRegistry;
+import org.onosproject.mastership.MastershipEvent;
+import org.onosproject.mastership.MastershipInfo;
+import org.onosproject.mastership.MastershipListener;
+import org.onosproject.mastership.MastershipServiceAdapter;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.MastershipRole;
+
+import java.util.Set;
+
+/**
+ * Mastership service where this instance is master of all devices, except
+ * those given to another instance by the harness.
+ */
+public class FakeMastershipService extends MastershipServiceAdapter {
+
+    private final Set<DeviceId> notMastered = Sets.newConcurrentHashSet();
+    private final ListenerRegistry<MastershipEvent, MastershipListener> listeners =
+            new ListenerRegistry<>();
+
+    /**
+     * Sets whether this instance is master of the given device, and posts a
+     * MASTER_CHANGED event if it changed.
+     *
+     * @param deviceId the device ID
+     * @param isMaster true if master
+     */
+    public void setLocalMaster(DeviceId deviceId, boolean isMaster) {
+        final boolean changed = isMaster ? notMastered.remove(deviceId) : notMastered.add(deviceId);
+        if (changed) {
+            listeners.process(new MastershipEvent(
+                    MastershipEvent.Type.MASTER_CHANGED, deviceId, new MastershipInfo()));
+        }
+    }
+
+    @Override
+    public boolean isLocalMaster(DeviceId deviceId) {
+        return !notMastered.contains(deviceId);
+    }
+
+    @Override
+    public MastershipRole getLocalRole(DeviceId deviceId) {
+        return isLocalMaster(deviceId) ? MastershipRole.MASTER : MastershipRole.STANDBY;
+    }
+
+    @Override
+    public void addListener(MastershipListener listener) {
+        listeners.addListener(listener);
+    }
+
+    @Override
+    public void removeListener(MastershipListener listener) {
+        listeners.removeListener(listener);
+    }
+}
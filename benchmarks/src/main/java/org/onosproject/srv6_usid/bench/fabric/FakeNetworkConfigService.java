@@ -0,0 +1,114 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.bench.fabric;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Maps;
+import org.onlab.packet.Ip6Address;
+import org.onlab.packet.MacAddress;
+import org.onosproject.event.ListenerRegistry;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.config.Config;
+import org.onosproject.net.config.NetworkConfigEvent;
+import org.onosproject.net.config.NetworkConfigListener;
+import org.onosproject.net.config.NetworkConfigRegistryAdapter;
+import org.onosproject.srv6_usid.common.Srv6DeviceConfig;
+
+import java.util.Map;
+
+/**
+ * Network config service holding the Srv6DeviceConfig of each device of the
+ * synthetic topology.
+ */
+public class FakeNetworkConfigService extends NetworkConfigRegistryAdapter {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Map<DeviceId, Srv6DeviceConfig> configs = Maps.newConcurrentMap();
+    private final ListenerRegistry<NetworkConfigEvent, NetworkConfigListener> listeners =
+            new ListenerRegistry<>();
+
+    /**
+     * Adds or replaces the config of the given device.
+     *
+     * @param deviceId     the device ID
+     * @param myStationMac router MAC
+     * @param uN           micro SID of the device
+     * @param uDX          uDX instruction, or null
+     * @param isCore       true if a core device
+     */
+    public void addSrv6Config(DeviceId deviceId, MacAddress myStationMac, Ip6Address uN,
+                              Ip6Address uDX, boolean isCore) {
+        final ObjectNode node = MAPPER.createObjectNode()
+                .put("myStationMac", myStationMac.toString())
+                .put("uN", uN.toString())
+                .put("isCore", isCore);
+        if (uDX != null) {
+            node.put("uDX", uDX.toString());
+        }
+        final Srv6DeviceConfig config = new Srv6DeviceConfig();
+        config.init(deviceId, Srv6DeviceConfig.CONFIG_KEY, node, MAPPER, c -> { });
+        setSrv6Config(deviceId, config);
+    }
+
+    /**
+     * Adds or replaces the config of the given device.
+     *
+     * @param deviceId the device ID
+     * @param config   the config
+     */
+    public void setSrv6Config(DeviceId deviceId, Srv6DeviceConfig config) {
+        final Srv6DeviceConfig previous = configs.put(deviceId, config);
+        listeners.process(new NetworkConfigEvent(
+                previous != null ? NetworkConfigEvent.Type.CONFIG_UPDATED : NetworkConfigEvent.Type.CONFIG_ADDED,
+                deviceId, config, previous, Srv6DeviceConfig.class));
+    }
+
+    /**
+     * Removes the config of the given device.
+     *
+     * @param deviceId the device ID
+     */
+    public void removeSrv6Config(DeviceId deviceId) {
+        final Srv6DeviceConfig previous = configs.remove(deviceId);
+        if (previous != null) {
+            listeners.process(new NetworkConfigEvent(
+                    NetworkConfigEvent.Type.CONFIG_REMOVED, deviceId, null, previous,
+                    Srv6DeviceConfig.class));
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <S, C extends Config<S>> C getConfig(S subject, Class<C> configClass) {
+        if (configClass == Srv6DeviceConfig.class && subject instanceof DeviceId) {
+            return (C) configs.get(subject);
+        }
+        return null;
+    }
+
+    @Override
+    public void addListener(NetworkConfigListener listener) {
+        listeners.addListener(listener);
+    }
+
+    @Override
+    public void removeListener(NetworkConfigListener listener) {
+        listeners.removeListener(listener);
+    }
+}
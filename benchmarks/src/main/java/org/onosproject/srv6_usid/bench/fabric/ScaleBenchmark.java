@@ -0,0 +1,165 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.bench.fabric;
+
+import com.google.common.collect.Maps;
+import org.onosproject.net.Link;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the app on an emulated fabric: time to set up all devices, rate
+ * of route insertion, peak heap, and time to converge after device reboots
+ * and link failures.
+ * <p>
+ * Arguments are key=value pairs, e.g.
+ * {@code topology=clos spines=4 leaves=32 hosts=8 routes=100000 latency=50
+ * failureRate=0.001 flaps=5}. A mesh is selected with
+ * {@code topology=mesh devices=64 degree=4}.
+ */
+public final class ScaleBenchmark {
+
+    // Writes are batched for a few milliseconds, see FlowRuleWriter. Wait
+    // for longer than that before considering the fabric converged.
+    private static final long IDLE_MILLIS = 200;
+    private static final long TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final Map<String, String> args;
+
+    private ScaleBenchmark(Map<String, String> args) {
+        this.args = args;
+    }
+
+    public static void main(String[] argv) throws InterruptedException {
+        final Map<String, String> args = Maps.newHashMap();
+        for (String arg : argv) {
+            final String[] pair = arg.split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            args.put(pair[0], pair[1]);
+        }
+        new ScaleBenchmark(args).run();
+        System.exit(0);
+    }
+
+    private void run() throws InterruptedException {
+        final Topology topology = "mesh".equals(arg("topology", "clos"))
+                ? Topology.mesh(intArg("devices", 64), intArg("degree", 4))
+                : Topology.clos(intArg("spines", 4), intArg("leaves", 32), intArg("hosts", 8));
+        final FabricHarness harness = FabricHarness.builder()
+                .topology(topology)
+                .latencyMicros(intArg("latency", 0))
+                .failureRate(Double.parseDouble(arg("failureRate", "0")))
+                .seed(intArg("seed", 1))
+                .build();
+        final WriteLog writeLog = harness.writeLog();
+        print("topology", topology);
+
+        resetPeakHeap();
+        try {
+            long start = System.nanoTime();
+            harness.start();
+            awaitConvergence(harness);
+            print("setup", String.format("%d ms, %d writes, %d failed",
+                                         millisSince(start), writeLog.written(), writeLog.failed()));
+
+            final int routes = intArg("routes", 100000);
+            long written = writeLog.written();
+            start = System.nanoTime();
+            harness.insertRoutes(routes);
+            awaitConvergence(harness);
+            final long routeNanos = System.nanoTime() - start - TimeUnit.MILLISECONDS.toNanos(IDLE_MILLIS);
+            print("routes", String.format("%d routes, %d writes, %.0f writes/s", routes,
+                                          writeLog.written() - written,
+                                          (writeLog.written() - written) * 1e9 / routeNanos));
+
+            final Random random = new Random(intArg("seed", 1));
+            final List<Topology.Node> nodes = topology.nodes();
+            for (int i = 0; i < intArg("flaps", 3); i++) {
+                final Topology.Node node = nodes.get(random.nextInt(nodes.size()));
+                written = writeLog.written();
+                start = System.nanoTime();
+                harness.flapDevice(node.id());
+                final long millis = awaitConvergence(harness) ? millisSince(start) - IDLE_MILLIS : -1;
+                print("flap " + node, String.format("converged in %d ms, %d writes",
+                                                    millis, writeLog.written() - written));
+            }
+            final List<Link> links = topology.links();
+            for (int i = 0; i < intArg("linkFailures", 3); i++) {
+                final Link link = links.get(random.nextInt(links.size()));
+                written = writeLog.written();
+                start = System.nanoTime();
+                harness.failLink(link);
+                final long millis = awaitConvergence(harness) ? millisSince(start) - IDLE_MILLIS : -1;
+                print("link down " + link.src() + "-" + link.dst(),
+                      String.format("converged in %d ms, %d writes", millis,
+                                    writeLog.written() - written));
+                harness.restoreLink(link);
+                awaitConvergence(harness);
+            }
+            print("peak heap", String.format("%d MB", peakHeap() / (1024 * 1024)));
+        } finally {
+            harness.stop();
+        }
+    }
+
+    private boolean awaitConvergence(FabricHarness harness) throws InterruptedException {
+        if (!harness.awaitQuiescence(IDLE_MILLIS, TIMEOUT_MILLIS)) {
+            print("warning", "not converged after " + TIMEOUT_MILLIS + " ms");
+            return false;
+        }
+        return true;
+    }
+
+    private String arg(String key, String defaultValue) {
+        return args.getOrDefault(key, defaultValue);
+    }
+
+    private int intArg(String key, int defaultValue) {
+        return Integer.parseInt(arg(key, String.valueOf(defaultValue)));
+    }
+
+    private static long millisSince(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    private static void print(String name, Object value) {
+        System.out.printf("%-32s %s%n", name, value);
+    }
+
+    private static void resetPeakHeap() {
+        System.gc();
+        ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getType() == MemoryType.HEAP)
+                .forEach(MemoryPoolMXBean::resetPeakUsage);
+    }
+
+    // Sum of the peaks of each pool, an upper bound of the peak heap usage.
+    private static long peakHeap() {
+        return ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getType() == MemoryType.HEAP)
+                .mapToLong(pool -> pool.getPeakUsage().getUsed())
+                .sum();
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.bench.fabric;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import org.onlab.packet.ChassisId;
+import org.onlab.packet.Ip6Address;
+import org.onlab.packet.IpAddress;
+import org.onlab.packet.IpPrefix;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.VlanId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultDevice;
+import org.onosproject.net.DefaultHost;
+import org.onosproject.net.DefaultLink;
+import org.onosproject.net.DefaultPort;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.HostId;
+import org.onosproject.net.HostLocation;
+import org.onosproject.net.Link;
+import org.onosproject.net.Port;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.host.InterfaceIpAddress;
+import org.onosproject.net.intf.Interface;
+import org.onosproject.net.provider.ProviderId;
+
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Synthetic fabric: devices with their Srv6DeviceConfig, links between them,
+ * and hosts with the interfaces they are attached to.
+ */
+public final class Topology {
+
+    static final ProviderId PROVIDER_ID = new ProviderId("bench", "org.onosproject.srv6_usid.bench");
+
+    private static final int MAX_DEVICES = 1 << 16;
+
+    private final List<Node> nodes;
+    private final List<Link> links;
+    private final List<Host> hosts;
+    private final List<Interface> interfaces;
+
+    private Topology(List<Node> nodes, List<Link> links, List<Host> hosts,
+                     List<Interface> interfaces) {
+        this.nodes = ImmutableList.copyOf(nodes);
+        this.links = ImmutableList.copyOf(links);
+        this.hosts = ImmutableList.copyOf(hosts);
+        this.interfaces = ImmutableList.copyOf(interfaces);
+    }
+
+    /**
+     * Returns a topology without devices, e.g. to add them by replaying
+     * events.
+     *
+     * @return topology
+     */
+    public static Topology empty() {
+        return new Builder().build();
+    }
+
+    /**
+     * Returns a two-tier Clos fabric, where each leaf is connected to every
+     * spine and hosts are attached to leaves.
+     *
+     * @param spines       number of spines (core devices)
+     * @param leaves       number of leaves
+     * @param hostsPerLeaf number of hosts of each leaf
+     * @return topology
+     */
+    public static Topology clos(int spines, int leaves, int hostsPerLeaf) {
+        checkArgument(spines > 0 && leaves > 0 && spines + leaves <= MAX_DEVICES,
+                      "Invalid number of devices");
+        final Builder builder = new Builder();
+        final List<Node> spineNodes = Lists.newArrayList();
+        for (int s = 0; s < spines; s++) {
+            spineNodes.add(builder.node("spine" + (s + 1), true));
+        }
+        for (int l = 0; l < leaves; l++) {
+            final Node leaf = builder.node("leaf" + (l + 1), false);
+            for (int h = 0; h < hostsPerLeaf; h++) {
+                builder.host(leaf, h);
+            }
+            spineNodes.forEach(spine -> builder.link(leaf, spine));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns a mesh where each device is connected to the next degree / 2
+     * devices of a ring, i.e. each device has degree links in each
+     * direction, and a host is attached to each device.
+     *
+     * @param devices number of devices
+     * @param degree  number of neighbours of each device, even
+     * @return topology
+     */
+    public static Topology mesh(int devices, int degree) {
+        checkArgument(devices > 0 && devices <= MAX_DEVICES, "Invalid number of devices");
+        checkArgument(degree >= 2 && degree % 2 == 0 && degree < devices,
+                      "Degree must be even and lower than the number of devices");
+        final Builder builder = new Builder();
+        final List<Node> meshNodes = Lists.newArrayList();
+        for (int i = 0; i < devices; i++) {
+            final Node node = builder.node("r" + (i + 1), false);
+            builder.host(node, 0);
+            meshNodes.add(node);
+        }
+        for (int i = 0; i < devices; i++) {
+            for (int k = 1; k <= degree / 2; k++) {
+                builder.link(meshNodes.get(i), meshNodes.get((i + k) % devices));
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the devices.
+     *
+     * @return list of nodes
+     */
+    public List<Node> nodes() {
+        return nodes;
+    }
+
+    /**
+     * Returns the links, two per pair of connected devices.
+     *
+     * @return list of links
+     */
+    public List<Link> links() {
+        return links;
+    }
+
+    /**
+     * Returns the hosts.
+     *
+     * @return list of hosts
+     */
+    public List<Host> hosts() {
+        return hosts;
+    }
+
+    /**
+     * Returns the interfaces where hosts are attached.
+     *
+     * @return list of interfaces
+     */
+    public List<Interface> interfaces() {
+        return interfaces;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d devices, %d links, %d hosts",
+                             nodes.size(), links.size(), hosts.size());
+    }
+
+    /**
+     * Device of the topology, with its ports and config.
+     */
+    public static final class Node {
+
+        private final int index;
+        private final Device device;
+        private final List<Port> ports = Lists.newArrayList();
+        private final MacAddress mac;
+        private final Ip6Address uN;
+        private final Ip6Address uDX;
+        private final boolean isCore;
+
+        private Node(int index, String name, boolean isCore) {
+            this.index = index;
+            this.device = new DefaultDevice(PROVIDER_ID, DeviceId.deviceId("device:" + name),
+                                            Device.Type.SWITCH, "bench", "bmv2", "1.0",
+                                            String.valueOf(index), new ChassisId(index));
+            this.mac = MacAddress.valueOf(new byte[]{
+                    0x00, (byte) 0xaa, 0x00, 0x00, (byte) (index >> 8), (byte) index});
+            this.uN = sid(index, 0);
+            this.uDX = isCore ? null : sid(index, 0xfd00);
+            this.isCore = isCore;
+        }
+
+        private static Ip6Address sid(int index, int function) {
+            final byte[] bytes = new byte[Ip6Address.BYTE_LENGTH];
+            bytes[0] = (byte) 0xfc;
+            bytes[1] = (byte) 0xbb;
+            bytes[2] = (byte) 0xbb;
+            bytes[4] = (byte) (index >> 8);
+            bytes[5] = (byte) index;
+            bytes[6] = (byte) (function >> 8);
+            bytes[7] = (byte) function;
+            return Ip6Address.valueOf(bytes);
+        }
+
+        private PortNumber newPort() {
+            final PortNumber number = PortNumber.portNumber(ports.size() + 1);
+            ports.add(new DefaultPort(device, number, true));
+            return number;
+        }
+
+        public DeviceId id() {
+            return device.id();
+        }
+
+        public Device device() {
+            return device;
+        }
+
+        public List<Port> ports() {
+            return ImmutableList.copyOf(ports);
+        }
+
+        public MacAddress mac() {
+            return mac;
+        }
+
+        public Ip6Address uN() {
+            return uN;
+        }
+
+        public Ip6Address uDX() {
+            return uDX;
+        }
+
+        public boolean isCore() {
+            return isCore;
+        }
+
+        @Override
+        public String toString() {
+            return device.id().toString();
+        }
+    }
+
+    private static final class Builder {
+
+        private final List<Node> nodes = Lists.newArrayList();
+        private final List<Link> links = Lists.newArrayList();
+        private final List<Host> hosts = Lists.newArrayList();
+        private final List<Interface> interfaces = Lists.newArrayList();
+
+        private Node node(String name, boolean isCore) {
+            final Node node = new Node(nodes.size() + 1, name, isCore);
+            nodes.add(node);
+            return node;
+        }
+
+        private void link(Node a, Node b) {
+            final ConnectPoint cpA = new ConnectPoint(a.id(), a.newPort());
+            final ConnectPoint cpB = new ConnectPoint(b.id(), b.newPort());
+            links.add(link(cpA, cpB));
+            links.add(link(cpB, cpA));
+        }
+
+        private static Link link(ConnectPoint src, ConnectPoint dst) {
+            return DefaultLink.builder()
+                    .providerId(PROVIDER_ID)
+                    .src(src)
+                    .dst(dst)
+                    .type(Link.Type.DIRECT)
+                    .state(Link.State.ACTIVE)
+                    .build();
+        }
+
+        private void host(Node node, int h) {
+            final PortNumber port = node.newPort();
+            // Subnet 2001:<device>:<host>::/64, gateway ::ff.
+            final byte[] subnet = new byte[Ip6Address.BYTE_LENGTH];
+            subnet[0] = 0x20;
+            subnet[1] = 0x01;
+            subnet[2] = (byte) (node.index >> 8);
+            subnet[3] = (byte) node.index;
+            subnet[4] = (byte) (h >> 8);
+            subnet[5] = (byte) h;
+            final IpPrefix prefix = IpPrefix.valueOf(Ip6Address.valueOf(subnet), 64);
+            final byte[] hostIp = subnet.clone();
+            hostIp[15] = 1;
+            final byte[] gatewayIp = subnet.clone();
+            gatewayIp[15] = (byte) 0xff;
+
+            final MacAddress hostMac = MacAddress.valueOf(new byte[]{
+                    0x00, 0x00, (byte) (node.index >> 8), (byte) node.index,
+                    (byte) (h >> 8), (byte) h});
+            hosts.add(new DefaultHost(PROVIDER_ID, HostId.hostId(hostMac, VlanId.NONE),
+                                      hostMac, VlanId.NONE,
+                                      new HostLocation(node.id(), port, 0),
+                                      ImmutableSet.of(IpAddress.valueOf(
+                                              IpAddress.Version.INET6, hostIp))));
+            interfaces.add(new Interface(
+                    node.device.id().toString() + "-" + port,
+                    new ConnectPoint(node.id(), port),
+                    ImmutableList.of(new InterfaceIpAddress(
+                            IpAddress.valueOf(IpAddress.Version.INET6, gatewayIp), prefix)),
+                    node.mac, VlanId.NONE));
+        }
+
+        private Topology build() {
+            return new Topology(nodes, links, hosts, interfaces);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.bench.fabric;
+
+import org.onosproject.net.DeviceId;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Counters of the flow rule and group writes received by the fake services,
+ * with observers notified of each write when it completes.
+ */
+public final class WriteLog {
+
+    /**
+     * Kinds of writes.
+     */
+    public enum Kind {
+        FLOW_ADD, FLOW_MODIFY, FLOW_REMOVE, GROUP_ADD, GROUP_MODIFY, GROUP_REMOVE
+    }
+
+    /**
+     * A flow rule or group written on a device.
+     */
+    public static final class Write {
+
+        private final long nanos;
+        private final DeviceId deviceId;
+        private final Kind kind;
+        private final Object key;
+        private final boolean failed;
+
+        Write(long nanos, DeviceId deviceId, Kind kind, Object key, boolean failed) {
+            this.nanos = nanos;
+            this.deviceId = deviceId;
+            this.kind = kind;
+            this.key = key;
+            this.failed = failed;
+        }
+
+        /**
+         * Returns the time the write completed, from System.nanoTime.
+         *
+         * @return time in nanoseconds
+         */
+        public long nanos() {
+            return nanos;
+        }
+
+        /**
+         * Returns the device written.
+         *
+         * @return device ID
+         */
+        public DeviceId deviceId() {
+            return deviceId;
+        }
+
+        /**
+         * Returns the kind of write.
+         *
+         * @return kind
+         */
+        public Kind kind() {
+            return kind;
+        }
+
+        /**
+         * Returns the ID of the flow rule or the key of the group written.
+         *
+         * @return flow ID or group key
+         */
+        public Object key() {
+            return key;
+        }
+
+        /**
+         * Returns true if the device rejected the write.
+         *
+         * @return true if failed
+         */
+        public boolean failed() {
+            return failed;
+        }
+    }
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile long lastActivityNanos = System.nanoTime();
+
+    private final List<Consumer<Write>> observers = new CopyOnWriteArrayList<>();
+
+    /**
+     * Adds an observer of the writes.
+     *
+     * @param observer the observer
+     */
+    public void addObserver(Consumer<Write> observer) {
+        observers.add(observer);
+    }
+
+    /**
+     * Removes an observer of the writes.
+     *
+     * @param observer the observer
+     */
+    public void removeObserver(Consumer<Write> observer) {
+        observers.remove(observer);
+    }
+
+    void batchSubmitted() {
+        pending.incrementAndGet();
+        lastActivityNanos = System.nanoTime();
+    }
+
+    void batchDone() {
+        batches.incrementAndGet();
+        lastActivityNanos = System.nanoTime();
+        pending.decrementAndGet();
+    }
+
+    void record(DeviceId deviceId, Kind kind, Object key, boolean failure) {
+        (failure ? failed : written).incrementAndGet();
+        if (observers.isEmpty()) {
+            return;
+        }
+        final Write write = new Write(System.nanoTime(), deviceId, kind, key, failure);
+        observers.forEach(o -> o.accept(write));
+    }
+
+    /**
+     * Returns the number of flow rules and groups written.
+     *
+     * @return written count
+     */
+    public long written() {
+        return written.get();
+    }
+
+    /**
+     * Returns the number of flow rule and group writes that failed.
+     *
+     * @return failed count
+     */
+    public long failed() {
+        return failed.get();
+    }
+
+    /**
+     * Returns the number of batches completed, i.e. flow rule batches and
+     * group operations.
+     *
+     * @return batch count
+     */
+    public long batches() {
+        return batches.get();
+    }
+
+    /**
+     * Returns true if no write is in progress and none was submitted nor
+     * completed during the given time.
+     *
+     * @param idleNanos idle time in nanoseconds
+     * @return true if idle
+     */
+    public boolean isIdle(long idleNanos) {
+        return pending.get() == 0 && System.nanoTime() - lastActivityNanos >= idleNanos;
+    }
+}
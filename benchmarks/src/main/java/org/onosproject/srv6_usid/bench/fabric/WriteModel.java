@@ -0,0 +1,81 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.srv6_usid.bench.fabric;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.onlab.util.Tools.groupedThreads;
+
+/**
+ * Behaviour of the emulated devices when written to: each write completes
+ * after a fixed latency, and fails with a given probability. Writes complete
+ * one at a time and in order, as with a single connection to the devices.
+ */
+public final class WriteModel {
+
+    private final long latencyMicros;
+    private final double failureRate;
+    private final Random random;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            groupedThreads("srv6-usid-bench", "device-writes-%d"));
+
+    /**
+     * Creates a new write model.
+     *
+     * @param latencyMicros latency of each write, in microseconds
+     * @param failureRate   probability of a write failing, from 0 to 1
+     * @param seed          seed of the failures
+     */
+    public WriteModel(long latencyMicros, double failureRate, long seed) {
+        this.latencyMicros = latencyMicros;
+        this.failureRate = failureRate;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Runs the given write once the latency elapsed.
+     *
+     * @param write the write
+     */
+    void submit(Runnable write) {
+        if (latencyMicros <= 0) {
+            executor.execute(write);
+        } else {
+            executor.schedule(write, latencyMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    /**
+     * Returns true if the current write must fail. Called by the write thread
+     * only.
+     *
+     * @return true if failed
+     */
+    boolean nextFails() {
+        return failureRate > 0 && random.nextDouble() < failureRate;
+    }
+
+    /**
+     * Stops completing writes.
+     */
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}